@@ -0,0 +1,285 @@
+package it.agid.spid.saml.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.opensaml.core.xml.XMLObjectBuilder;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.schema.XSString;
+import org.opensaml.saml.common.SAMLVersion;
+import org.opensaml.saml.common.SignableSAMLObject;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Attribute;
+import org.opensaml.saml.saml2.core.AttributeStatement;
+import org.opensaml.saml.saml2.core.AttributeValue;
+import org.opensaml.saml.saml2.core.Audience;
+import org.opensaml.saml.saml2.core.AudienceRestriction;
+import org.opensaml.saml.saml2.core.AuthnContext;
+import org.opensaml.saml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml.saml2.core.AuthnStatement;
+import org.opensaml.saml.saml2.core.Conditions;
+import org.opensaml.saml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.NameID;
+import org.opensaml.saml.saml2.core.NameIDType;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.core.Status;
+import org.opensaml.saml.saml2.core.StatusCode;
+import org.opensaml.saml.saml2.core.Subject;
+import org.opensaml.saml.saml2.core.SubjectConfirmation;
+import org.opensaml.saml.saml2.core.SubjectConfirmationData;
+import org.opensaml.saml.saml2.encryption.Encrypter;
+import org.opensaml.saml.saml2.encryption.Encrypter.KeyPlacement;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.security.credential.CredentialSupport;
+import org.opensaml.security.x509.BasicX509Credential;
+import org.opensaml.xmlsec.encryption.support.DataEncryptionParameters;
+import org.opensaml.xmlsec.encryption.support.EncryptionConstants;
+import org.opensaml.xmlsec.encryption.support.KeyEncryptionParameters;
+import org.opensaml.xmlsec.SignatureSigningParameters;
+import org.opensaml.xmlsec.keyinfo.impl.X509KeyInfoGeneratorFactory;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+import org.opensaml.xmlsec.signature.support.SignatureSupport;
+
+import it.agid.spid.saml.core.dto.SamlAssertionConsumerServiceUtil;
+import it.agid.spid.saml.core.dto.SamlAttributeDto;
+import it.agid.spid.saml.core.dto.SamlAttributesConsumingServiceDto;
+import it.agid.spid.saml.core.dto.SamlBindingUtils;
+import it.agid.spid.saml.core.dto.SamlOrganizationDto;
+import it.agid.spid.saml.core.dto.SamlOtherContactPerson;
+import it.agid.spid.saml.core.utils.AgidUtils;
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SamlBindingTypes;
+import it.agid.spid.saml.core.utils.SpidControlChecker;
+
+/**
+ * Dati di prova comuni ai benchmark: chiavi del pfx di esempio, parametri dei metadata e SAML Response SPID firmate
+ * generate localmente. Il percorso del pfx si può indicare con la system property {@value #KEYSTORE_PROPERTY}
+ */
+public class BenchmarkFixtures {
+	public static final String KEYSTORE_PROPERTY = "spid.benchmark.keystore";
+	public static final String KEYSTORE_PASSWORD = "esempio.certificato";
+	public static final String SP_ENTITY_ID = "https://sample-entity-id/";
+	public static final String IDP_ENTITY_ID = "https://sample-idp-entity-id/";
+	public static final String ACS_URL = "https://assertion-consumer-binding-post";
+	public static final String SUPPORTED_PROTOCOL = "urn:oasis:names:tc:SAML:2.0:protocol";
+
+	private final X509Certificate certificate;
+	private final PrivateKey privateKey;
+	private final List<String> base64Certificates;
+
+	public BenchmarkFixtures() throws Exception {
+		OpenSAMLUtils.openSamlBootstrap();
+		KeyStore ks = KeyStore.getInstance("PKCS12");
+		try( InputStream is = new FileInputStream(keystoreFile()) ){
+			ks.load(is, KEYSTORE_PASSWORD.toCharArray());
+		}
+		String alias = ks.aliases().nextElement();
+		certificate = (X509Certificate) ks.getCertificate(alias);
+		privateKey = (PrivateKey) ks.getKey(alias, KEYSTORE_PASSWORD.toCharArray());
+		base64Certificates = Collections.singletonList(Base64.getEncoder().encodeToString(certificate.getEncoded()));
+	}
+	private static File keystoreFile() {
+		String configured = System.getProperty(KEYSTORE_PROPERTY);
+		if( configured != null ) {
+			return new File(configured);
+		}
+		//Eseguito dalla root del progetto o dalla directory benchmark
+		File file = new File("certificate/esempio.pfx");
+		return file.exists() ? file : new File("../certificate/esempio.pfx");
+	}
+	public X509Certificate getCertificate() {
+		return certificate;
+	}
+	public PrivateKey getPrivateKey() {
+		return privateKey;
+	}
+	public KeyPair getKeyPair() {
+		return new KeyPair(certificate.getPublicKey(), privateKey);
+	}
+	public List<Credential> getIdpCredentials() {
+		return Collections.singletonList(new BasicX509Credential(certificate));
+	}
+	public List<String> getBase64Certificates() {
+		return base64Certificates;
+	}
+	public List<SamlBindingUtils> singleLogoutServices() {
+		SamlBindingUtils bu = new SamlBindingUtils();
+		bu.setBindingType(SamlBindingTypes.POST);
+		bu.setLocation("https://single-logout-url-post");
+		bu.setResponseLocation("https://single-logout-url-post/response-location");
+		return Collections.singletonList(bu);
+	}
+	public List<SamlAssertionConsumerServiceUtil> assertionConsumerServices() {
+		SamlBindingUtils binding = new SamlBindingUtils();
+		binding.setBindingType(SamlBindingTypes.POST);
+		binding.setLocation(ACS_URL);
+		SamlAssertionConsumerServiceUtil acs = new SamlAssertionConsumerServiceUtil();
+		acs.setDefaultElement(true);
+		acs.setIndex(0);
+		acs.setSamlBinding(binding);
+		return Collections.singletonList(acs);
+	}
+	public SamlOrganizationDto organization() {
+		SamlOrganizationDto organization = new SamlOrganizationDto();
+		organization.setOrganizationDisplayName("Organization Display Name");
+		organization.setOrganizationName("Organization Name");
+		organization.setOrganizationUrl("https://organization-url/");
+		return organization;
+	}
+	public SamlOtherContactPerson contactPerson() {
+		SamlOtherContactPerson otherContactPerson = new SamlOtherContactPerson();
+		otherContactPerson.setSpPubblico(true);
+		otherContactPerson.setCompanyName("Company name");
+		otherContactPerson.setEmailAddress("email@email.it");
+		otherContactPerson.setFiscalCode("fiscal code");
+		otherContactPerson.setIpaCode("ipa code");
+		return otherContactPerson;
+	}
+	/**
+	 * @return -il set di attributi (eIDAS minimo) richiesto nella response di prova
+	 */
+	public SamlAttributesConsumingServiceDto requestedAttributes() {
+		return AgidUtils.agidSpidEidasAttributes().get(1);
+	}
+	/**
+	 * Costruisce un metadata SP minimale con l'entity ID atteso come audience
+	 * @return -l'{@link EntityDescriptor} creato
+	 */
+	public EntityDescriptor spMetadata() {
+		EntityDescriptor ed = OpenSAMLUtils.buildSAMLObject(EntityDescriptor.class);
+		ed.setEntityID(SP_ENTITY_ID);
+		return ed;
+	}
+	/**
+	 * Genera una SAML Response SPID valida, firmata (response e assertion) ed eventualmente con assertion cifrata
+	 * con la chiave pubblica del certificato di esempio
+	 * @param encrypted -true per cifrare l'assertion
+	 * @param now -l'istante di emissione della response
+	 * @return -i byte XML della response
+	 * @throws Exception -sollevata in caso di errore
+	 */
+	public byte[] signedResponse(boolean encrypted, DateTime now) throws Exception {
+		String requestId = OpenSAMLUtils.generateSecureRandomId();
+		Assertion assertion = OpenSAMLUtils.buildSAMLObject(Assertion.class);
+		assertion.setID(OpenSAMLUtils.generateSecureRandomId());
+		assertion.setVersion(SAMLVersion.VERSION_20);
+		assertion.setIssueInstant(now);
+		assertion.setIssuer(issuer());
+		Subject subject = OpenSAMLUtils.buildSAMLObject(Subject.class);
+		NameID nameId = OpenSAMLUtils.buildSAMLObject(NameID.class);
+		nameId.setFormat(NameIDType.TRANSIENT);
+		nameId.setNameQualifier(IDP_ENTITY_ID);
+		nameId.setValue(OpenSAMLUtils.generateSecureRandomId());
+		subject.setNameID(nameId);
+		SubjectConfirmation subjectConfirmation = OpenSAMLUtils.buildSAMLObject(SubjectConfirmation.class);
+		subjectConfirmation.setMethod(SubjectConfirmation.METHOD_BEARER);
+		SubjectConfirmationData scd = OpenSAMLUtils.buildSAMLObject(SubjectConfirmationData.class);
+		scd.setRecipient(ACS_URL);
+		scd.setInResponseTo(requestId);
+		scd.setNotOnOrAfter(now.plusMinutes(5));
+		subjectConfirmation.setSubjectConfirmationData(scd);
+		subject.getSubjectConfirmations().add(subjectConfirmation);
+		assertion.setSubject(subject);
+		Conditions conditions = OpenSAMLUtils.buildSAMLObject(Conditions.class);
+		conditions.setNotBefore(now);
+		conditions.setNotOnOrAfter(now.plusMinutes(5));
+		AudienceRestriction audienceRestriction = OpenSAMLUtils.buildSAMLObject(AudienceRestriction.class);
+		Audience audience = OpenSAMLUtils.buildSAMLObject(Audience.class);
+		audience.setAudienceURI(SP_ENTITY_ID);
+		audienceRestriction.getAudiences().add(audience);
+		conditions.getAudienceRestrictions().add(audienceRestriction);
+		assertion.setConditions(conditions);
+		AuthnStatement authnStatement = OpenSAMLUtils.buildSAMLObject(AuthnStatement.class);
+		authnStatement.setAuthnInstant(now);
+		AuthnContext authnContext = OpenSAMLUtils.buildSAMLObject(AuthnContext.class);
+		AuthnContextClassRef classRef = OpenSAMLUtils.buildSAMLObject(AuthnContextClassRef.class);
+		classRef.setAuthnContextClassRef(SpidControlChecker.BASE_SPID_AUTHN_CONTEXT_CLAS_REF+"2");
+		authnContext.setAuthnContextClassRef(classRef);
+		authnStatement.setAuthnContext(authnContext);
+		assertion.getAuthnStatements().add(authnStatement);
+		AttributeStatement attributeStatement = OpenSAMLUtils.buildSAMLObject(AttributeStatement.class);
+		@SuppressWarnings("unchecked")
+		XMLObjectBuilder<XSString> stringValueBuilder = (XMLObjectBuilder<XSString>) XMLObjectProviderRegistrySupport.getBuilderFactory().getBuilder(XSString.TYPE_NAME);
+		for (SamlAttributeDto requested : requestedAttributes().getAttrs()) {
+			Attribute attribute = OpenSAMLUtils.buildSAMLObject(Attribute.class);
+			attribute.setName(requested.getName());
+			attribute.setNameFormat(Attribute.BASIC);
+			XSString value = stringValueBuilder.buildObject(AttributeValue.DEFAULT_ELEMENT_NAME, XSString.TYPE_NAME);
+			value.setValue(requested.getName());
+			attribute.getAttributeValues().add(value);
+			attributeStatement.getAttributes().add(attribute);
+		}
+		assertion.getAttributeStatements().add(attributeStatement);
+		//L'assertion viene inclusa nella response: come gli IdP reali uso la canonicalizzazione esclusiva
+		signWithExclusiveC14n(assertion);
+
+		Response response = OpenSAMLUtils.buildSAMLObject(Response.class);
+		response.setID(OpenSAMLUtils.generateSecureRandomId());
+		response.setVersion(SAMLVersion.VERSION_20);
+		response.setIssueInstant(now);
+		response.setDestination(ACS_URL);
+		response.setInResponseTo(requestId);
+		response.setIssuer(issuer());
+		Status status = OpenSAMLUtils.buildSAMLObject(Status.class);
+		StatusCode statusCode = OpenSAMLUtils.buildSAMLObject(StatusCode.class);
+		statusCode.setValue(StatusCode.SUCCESS);
+		status.setStatusCode(statusCode);
+		response.setStatus(status);
+		if( encrypted ) {
+			response.getEncryptedAssertions().add(encrypt(assertion));
+		}else {
+			response.getAssertions().add(assertion);
+		}
+		OpenSAMLUtils.signSamlObj(response, privateKey, certificate);
+		return OpenSAMLUtils.samlObjectToString(response).getBytes(StandardCharsets.UTF_8);
+	}
+	/**
+	 * Ricostruisce la {@link Response} dai byte XML
+	 * @param xml -i byte XML
+	 * @return -la {@link Response}
+	 * @throws Exception -sollevata in caso di errore
+	 */
+	public static Response parseResponse(byte[] xml) throws Exception {
+		return OpenSAMLUtils.fromInputStreamToSamlObject(new ByteArrayInputStream(xml), Response.class);
+	}
+	private Issuer issuer() {
+		Issuer issuer = OpenSAMLUtils.buildSAMLObject(Issuer.class);
+		issuer.setFormat(NameIDType.ENTITY);
+		issuer.setValue(IDP_ENTITY_ID);
+		return issuer;
+	}
+	private void signWithExclusiveC14n(SignableSAMLObject signable) throws Exception {
+		SignatureSigningParameters parameters = new SignatureSigningParameters();
+		parameters.setSigningCredential(new BasicX509Credential(certificate, privateKey));
+		parameters.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA512);
+		parameters.setSignatureReferenceDigestMethod(SignatureConstants.ALGO_ID_DIGEST_SHA512);
+		parameters.setSignatureCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+		X509KeyInfoGeneratorFactory keyInfoGeneratorFactory = new X509KeyInfoGeneratorFactory();
+		keyInfoGeneratorFactory.setEmitEntityCertificate(true);
+		parameters.setKeyInfoGenerator(keyInfoGeneratorFactory.newInstance());
+		SignatureSupport.signObject(signable, parameters);
+	}
+	private EncryptedAssertion encrypt(Assertion assertion) throws Exception {
+		DataEncryptionParameters dataParameters = new DataEncryptionParameters();
+		dataParameters.setAlgorithm(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES128);
+		KeyEncryptionParameters keyParameters = new KeyEncryptionParameters();
+		keyParameters.setEncryptionCredential(CredentialSupport.getSimpleCredential(certificate.getPublicKey(), null));
+		keyParameters.setAlgorithm(EncryptionConstants.ALGO_ID_KEYTRANSPORT_RSAOAEP);
+		Encrypter encrypter = new Encrypter(dataParameters, keyParameters);
+		encrypter.setKeyPlacement(KeyPlacement.INLINE);
+		return encrypter.encrypt(assertion);
+	}
+}
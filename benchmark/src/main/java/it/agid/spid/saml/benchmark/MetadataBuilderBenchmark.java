@@ -0,0 +1,160 @@
+package it.agid.spid.saml.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.opensaml.saml.saml2.core.NameIDType;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Element;
+
+import it.agid.spid.saml.core.IdpMetadataBuilder;
+import it.agid.spid.saml.core.MetadataStreamSerializer;
+import it.agid.spid.saml.core.SpMetadataBuilder;
+import it.agid.spid.saml.core.SpMetadataTemplate;
+import it.agid.spid.saml.core.SpSoggettoAggregatoreMetadataBuilder;
+import it.agid.spid.saml.core.dto.SamlOtherContactPerson;
+import it.agid.spid.saml.core.utils.AgidUtils;
+import it.agid.spid.saml.core.utils.CanonicalXmlWriter;
+import it.agid.spid.saml.core.utils.InsertBeforeElementEnum;
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SigningCredential;
+import it.agid.spid.saml.core.utils.StreamingXmlSigner;
+
+/**
+ * Benchmark di costruzione, serializzazione e firma dei metadata
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetadataBuilderBenchmark {
+	private BenchmarkFixtures fixtures;
+	private List<String> nameIds;
+	private SamlOtherContactPerson informazioniSoggettoAggregato;
+	private EntityDescriptor spMetadata;
+	private String unsignedSpMetadata;
+	private SigningCredential signingCredential;
+	private StreamingXmlSigner streamingSigner;
+	private SpMetadataTemplate spMetadataTemplate;
+
+	@Setup
+	public void setup() throws Exception {
+		fixtures = new BenchmarkFixtures();
+		nameIds = Collections.singletonList(NameIDType.TRANSIENT);
+		informazioniSoggettoAggregato = new SamlOtherContactPerson();
+		informazioniSoggettoAggregato.setSpPubblico(true);
+		informazioniSoggettoAggregato.setCompanyName("Organizzazione aggregata");
+		informazioniSoggettoAggregato.setIpaCode("aggr_ipa");
+		spMetadata = buildSpMetadata();
+		unsignedSpMetadata = OpenSAMLUtils.samlObjectToString(spMetadata);
+		signingCredential = new SigningCredential(fixtures.getPrivateKey(), fixtures.getCertificate());
+		streamingSigner = new StreamingXmlSigner(signingCredential);
+		spMetadataTemplate = SpMetadataBuilder.getInstance().compileSpMetadata(BenchmarkFixtures.SP_ENTITY_ID, true, true, BenchmarkFixtures.SUPPORTED_PROTOCOL,
+				fixtures.getBase64Certificates(), fixtures.getBase64Certificates(), fixtures.singleLogoutServices(), nameIds,
+				fixtures.assertionConsumerServices(), fixtures.organization(), fixtures.contactPerson(), null, AgidUtils.agidSpidEidasAttributes());
+	}
+	/**
+	 * Metadata SP non firmato, ricostruito prima di ogni invocazione dei benchmark di firma
+	 */
+	@State(Scope.Thread)
+	public static class UnsignedMetadata {
+		private EntityDescriptor metadata;
+
+		@Setup(Level.Invocation)
+		public void setup(MetadataBuilderBenchmark benchmark) {
+			metadata = benchmark.buildSpMetadata();
+		}
+	}
+	@Benchmark
+	public EntityDescriptor buildSpMetadata() {
+		return SpMetadataBuilder.getInstance().buildSpMetadata(BenchmarkFixtures.SP_ENTITY_ID, true, true, BenchmarkFixtures.SUPPORTED_PROTOCOL,
+				fixtures.getBase64Certificates(), fixtures.getBase64Certificates(), fixtures.singleLogoutServices(), nameIds,
+				fixtures.assertionConsumerServices(), fixtures.organization(), fixtures.contactPerson(), null, AgidUtils.agidSpidEidasAttributes());
+	}
+	@Benchmark
+	public EntityDescriptor buildSoggettoAggregatoSpMetadata() {
+		return SpSoggettoAggregatoreMetadataBuilder.getInstance().buildSpMetadata(BenchmarkFixtures.SP_ENTITY_ID, true, true, BenchmarkFixtures.SUPPORTED_PROTOCOL,
+				fixtures.getBase64Certificates(), fixtures.getBase64Certificates(), fixtures.singleLogoutServices(), nameIds,
+				fixtures.assertionConsumerServices(), fixtures.organization(), fixtures.contactPerson(), informazioniSoggettoAggregato, null,
+				AgidUtils.agidSpidEidasAttributes(), false);
+	}
+	@Benchmark
+	public EntityDescriptor buildIdpMetadata() {
+		return IdpMetadataBuilder.getInstance().buildIdpMetadata(BenchmarkFixtures.IDP_ENTITY_ID, new DateTime().plusYears(1), Boolean.TRUE,
+				BenchmarkFixtures.SUPPORTED_PROTOCOL, fixtures.getBase64Certificates(), fixtures.getBase64Certificates(), nameIds,
+				fixtures.singleLogoutServices(), fixtures.singleLogoutServices());
+	}
+	@Benchmark
+	public String buildAndSerializeSpMetadata() {
+		return OpenSAMLUtils.samlObjectToString(buildSpMetadata());
+	}
+	@Benchmark
+	public byte[] writeSpMetadataStream() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+		CanonicalXmlWriter writer = new CanonicalXmlWriter(out);
+		MetadataStreamSerializer.getInstance().writeSpMetadata(writer, null, BenchmarkFixtures.SP_ENTITY_ID, true, true, BenchmarkFixtures.SUPPORTED_PROTOCOL,
+				fixtures.getBase64Certificates(), fixtures.getBase64Certificates(), fixtures.singleLogoutServices(), nameIds,
+				fixtures.assertionConsumerServices(), fixtures.organization(), fixtures.contactPerson(), null, AgidUtils.agidSpidEidasAttributes());
+		writer.flush();
+		return out.toByteArray();
+	}
+	@Benchmark
+	public String samlObjectToString() {
+		return OpenSAMLUtils.samlObjectToString(spMetadata);
+	}
+	@Benchmark
+	public EntityDescriptor signSamlObj(UnsignedMetadata unsigned) throws Exception {
+		OpenSAMLUtils.signSamlObj(unsigned.metadata, fixtures.getPrivateKey(), fixtures.getCertificate());
+		return unsigned.metadata;
+	}
+	@Benchmark
+	public EntityDescriptor signSamlObjWithSigningCredential(UnsignedMetadata unsigned) throws Exception {
+		OpenSAMLUtils.signSamlObj(unsigned.metadata, signingCredential);
+		return unsigned.metadata;
+	}
+	@Benchmark
+	public String signMetadataString() throws Exception {
+		return SpMetadataBuilder.getInstance().signMetadata(unsignedSpMetadata, spMetadata.getID(), fixtures.getPrivateKey(), fixtures.getCertificate(),
+				"", InsertBeforeElementEnum.SP_TAG);
+	}
+	@Benchmark
+	public Element signMetadataDom(UnsignedMetadata unsigned) throws Exception {
+		return SpMetadataBuilder.getInstance().signMetadata(unsigned.metadata, fixtures.getPrivateKey(), fixtures.getCertificate(), "", InsertBeforeElementEnum.SP_TAG);
+	}
+	@Benchmark
+	public byte[] writeSignedSpMetadataStream() throws Exception {
+		String id = OpenSAMLUtils.generateSecureRandomId();
+		return streamingSigner.writeSigned(id, InsertBeforeElementEnum.SP_TAG, writer -> MetadataStreamSerializer.getInstance().writeSpMetadata(writer, id,
+				BenchmarkFixtures.SP_ENTITY_ID, true, true, BenchmarkFixtures.SUPPORTED_PROTOCOL, fixtures.getBase64Certificates(), fixtures.getBase64Certificates(),
+				fixtures.singleLogoutServices(), nameIds, fixtures.assertionConsumerServices(), fixtures.organization(), fixtures.contactPerson(), null,
+				AgidUtils.agidSpidEidasAttributes()));
+	}
+	@Benchmark
+	public byte[] renderSpMetadataTemplate() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+		spMetadataTemplate.render(new DateTime().plusYears(1), fixtures.singleLogoutServices(), fixtures.assertionConsumerServices(), out);
+		return out.toByteArray();
+	}
+	@Benchmark
+	public byte[] renderSignedSpMetadataTemplate() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+		spMetadataTemplate.renderSigned(new DateTime().plusYears(1), fixtures.singleLogoutServices(), fixtures.assertionConsumerServices(), streamingSigner, out);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,55 @@
+package it.agid.spid.saml.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.QName;
+
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.saml.saml2.metadata.RequestedAttribute;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SamlObjectBuilderHandle;
+
+/**
+ * Confronta la costruzione di un oggetto SAML tramite reflection e registry ad ogni chiamata (implementazione precedente
+ * di {@link OpenSAMLUtils#buildSAMLObject(Class)}), tramite {@link OpenSAMLUtils#buildSAMLObject(Class)} con cache per classe
+ * e tramite {@link SamlObjectBuilderHandle}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SamlObjectBuilderBenchmark {
+	private SamlObjectBuilderHandle<RequestedAttribute> handle;
+
+	@Setup
+	public void setup() throws Exception {
+		OpenSAMLUtils.openSamlBootstrap();
+		handle = OpenSAMLUtils.builderFor(RequestedAttribute.class);
+	}
+	@Benchmark
+	public RequestedAttribute reflectiveLookup() throws Exception {
+		QName defaultElementName = (QName)RequestedAttribute.class.getDeclaredField("DEFAULT_ELEMENT_NAME").get(null);
+		return (RequestedAttribute)XMLObjectProviderRegistrySupport.getBuilderFactory().getBuilder(defaultElementName).buildObject(defaultElementName);
+	}
+	@Benchmark
+	public RequestedAttribute buildSAMLObject() {
+		return OpenSAMLUtils.buildSAMLObject(RequestedAttribute.class);
+	}
+	@Benchmark
+	public RequestedAttribute builderHandle() {
+		return handle.build();
+	}
+}
@@ -0,0 +1,82 @@
+package it.agid.spid.saml.benchmark;
+
+import java.security.KeyPair;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.security.credential.Credential;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.agid.spid.saml.core.dto.SamlAttributesConsumingServiceDto;
+import it.agid.spid.saml.core.utils.SpidControlChecker;
+import it.agid.spid.saml.core.utils.SpidValidationContext;
+
+/**
+ * Benchmark dei controlli SPID su SAML Response firmate, con assertion in chiaro o cifrata, generate localmente con le chiavi del pfx di esempio
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpidControlCheckerBenchmark {
+	//Le response vengono generate una sola volta: la tolleranza copre tutta la durata del benchmark
+	private static final int TOLLERANCE_MILLIS = 24 * 60 * 60 * 1000;
+	@Param({"false", "true"})
+	public boolean encrypted;
+	private byte[] responseXml;
+	private Response response;
+	private List<Credential> credentials;
+	private EntityDescriptor spMetadata;
+	private SamlAttributesConsumingServiceDto attributiRichiesti;
+	private KeyPair keyPair;
+	private SpidValidationContext context;
+
+	@Setup
+	public void setup() throws Exception {
+		BenchmarkFixtures fixtures = new BenchmarkFixtures();
+		responseXml = fixtures.signedResponse(encrypted, new DateTime());
+		response = BenchmarkFixtures.parseResponse(responseXml);
+		credentials = fixtures.getIdpCredentials();
+		spMetadata = fixtures.spMetadata();
+		attributiRichiesti = fixtures.requestedAttributes();
+		keyPair = fixtures.getKeyPair();
+		context = SpidValidationContext.builder().credentials(credentials).tolleranceTimeMillisecond(TOLLERANCE_MILLIS).idpDestinationUrl(BenchmarkFixtures.ACS_URL)
+				.spidIdpEntityId(BenchmarkFixtures.IDP_ENTITY_ID).spitEnteAggregatoMetadata(spMetadata).attributiRichiesti(attributiRichiesti)
+				.keyPair(keyPair).spLivelloAutenticazioneSpid(1).build();
+		//Verifico che la response generata superi i controlli
+		verifySamlResponseSpidCompliance();
+	}
+	@Benchmark
+	public Response verifySamlResponseSpidCompliance() throws Exception {
+		SpidControlChecker.verifySamlResponseSpidCompliance(response, credentials, TOLLERANCE_MILLIS, BenchmarkFixtures.ACS_URL,
+				BenchmarkFixtures.IDP_ENTITY_ID, spMetadata, attributiRichiesti, keyPair, 1);
+		return response;
+	}
+	@Benchmark
+	public Response verifyWithValidationContext() throws Exception {
+		SpidControlChecker.verifySamlResponseSpidCompliance(response, context);
+		return response;
+	}
+	@Benchmark
+	public Response parseAndVerifySamlResponseSpidCompliance() throws Exception {
+		Response parsed = BenchmarkFixtures.parseResponse(responseXml);
+		SpidControlChecker.verifySamlResponseSpidCompliance(parsed, credentials, TOLLERANCE_MILLIS, BenchmarkFixtures.ACS_URL,
+				BenchmarkFixtures.IDP_ENTITY_ID, spMetadata, attributiRichiesti, keyPair, 1);
+		return parsed;
+	}
+}
@@ -2,6 +2,9 @@ package it.agid.spid.saml.core;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.security.PrivateKey;
 
@@ -11,10 +14,17 @@ import org.apache.xml.security.signature.XMLSignature;
 import org.apache.xml.security.transforms.Transforms;
 import org.apache.xml.security.utils.XMLUtils;
 import org.apache.xml.security.utils.resolver.implementations.ResolverLocalFilesystem;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.Marshaller;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 import it.agid.spid.saml.core.utils.InsertBeforeElementEnum;
+import it.agid.spid.saml.core.utils.SigningCredential;
+import it.agid.spid.saml.core.utils.SigningCredentialRegistry;
+import it.agid.spid.saml.core.utils.StringUtil;
+import it.agid.spid.saml.core.utils.XmlParserPool;
 
 public abstract class AbstractMetadataBuilder {
 	/**
@@ -29,14 +39,107 @@ public abstract class AbstractMetadataBuilder {
 	 */
 	public String signMetadata( String orignalMetadata, String generatedId, PrivateKey privateKey, java.security.cert.X509Certificate cert, String baseUri, InsertBeforeElementEnum inserBefore ) throws Exception{
 		//String generatedId = OpenSAMLUtils.generateSecureRandomId();
-		javax.xml.parsers.DocumentBuilderFactory dbf =	javax.xml.parsers.DocumentBuilderFactory.newInstance();
-		dbf.setNamespaceAware(true);
-		javax.xml.parsers.DocumentBuilder db = dbf.newDocumentBuilder();
-		Document doc = db.parse(new ByteArrayInputStream(orignalMetadata.getBytes()));
+		Document doc = XmlParserPool.getInstance().parse(new ByteArrayInputStream(orignalMetadata.getBytes()));
+		signDocument(doc.getDocumentElement(), generatedId, privateKey, cert, baseUri, inserBefore);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		XMLUtils.outputDOM(doc, baos, true);
+		return baos.toString(StandardCharsets.UTF_8);
+	}
+	/**
+	 * Partendo dalla stringa in ingresso genera la stringa del metadata firmata XML-Sig con la {@link SigningCredential} indicata
+	 * @param orignalMetadata -la stringa rappresentante il metadata non firmato
+	 * @param generatedId -l'ID del metadata referenziato dalla firma
+	 * @param signingCredential -la {@link SigningCredential} da utilizzare per la firma, ad esempio ottenuta da {@link SigningCredentialRegistry}
+	 * @param baseUri - il base uri di default
+	 * @param inserBefore -Indica il nome dell'elemento prima del quale inserire la firma del metadata
+	 * @return -La stringa rappresentante il metadata firmato
+	 * @throws Exception sollevata in caso di errore.
+	 */
+	public String signMetadata( String orignalMetadata, String generatedId, SigningCredential signingCredential, String baseUri, InsertBeforeElementEnum inserBefore ) throws Exception{
+		return signMetadata(orignalMetadata, generatedId, signingCredential.getPrivateKey(), signingCredential.getCertificate(), baseUri, inserBefore);
+	}
+	/**
+	 * Firma XML-Sig il DOM dell'{@link EntityDescriptor} con la {@link SigningCredential} indicata
+	 * @param metadata -l'{@link EntityDescriptor} da firmare. Il suo ID viene usato come riferimento della firma
+	 * @param signingCredential -la {@link SigningCredential} da utilizzare per la firma, ad esempio ottenuta da {@link SigningCredentialRegistry}
+	 * @param baseUri - il base uri di default
+	 * @param inserBefore -Indica il nome dell'elemento prima del quale inserire la firma del metadata
+	 * @return -l'{@link Element} radice del metadata firmato
+	 * @throws Exception sollevata in caso di errore.
+	 */
+	public Element signMetadata( EntityDescriptor metadata, SigningCredential signingCredential, String baseUri, InsertBeforeElementEnum inserBefore ) throws Exception{
+		return signMetadata(metadata, signingCredential.getPrivateKey(), signingCredential.getCertificate(), baseUri, inserBefore);
+	}
+	/**
+	 * Firma XML-Sig direttamente il DOM dell'{@link EntityDescriptor} passato in ingresso, senza passare dalla sua rappresentazione in stringa.
+	 * Se l'oggetto non è ancora stato serializzato in DOM viene effettuato il marshalling; la firma viene inserita nel DOM in cache
+	 * dell'oggetto, per cui una successiva chiamata a {@link it.agid.spid.saml.core.utils.OpenSAMLUtils#samlObjectToString(org.opensaml.core.xml.XMLObject)}
+	 * restituisce il metadata firmato.
+	 * @param metadata -l'{@link EntityDescriptor} da firmare. Il suo ID viene usato come riferimento della firma
+	 * @param privateKey -la {@link PrivateKey} da utilizzare per la firma
+	 * @param cert -il {@link java.security.cert.X509Certificate} da utilizzare per la firma
+	 * @param baseUri - il base uri di default
+	 * @param inserBefore -Indica il nome dell'elemento prima del quale inserire la firma del metadata
+	 * @return -l'{@link Element} radice del metadata firmato
+	 * @throws Exception sollevata in caso di errore.
+	 */
+	public Element signMetadata( EntityDescriptor metadata, PrivateKey privateKey, java.security.cert.X509Certificate cert, String baseUri, InsertBeforeElementEnum inserBefore ) throws Exception{
+		if( StringUtil.isEmptyString(metadata.getID()) ) {
+			throw new IllegalArgumentException("Passato un EntityDescriptor senza ID ["+metadata.getID()+"]. Impossibile firmare il metadata");
+		}
+		Element root = metadata.getDOM();
+		if( root == null ) {
+			Marshaller marshaller = XMLObjectProviderRegistrySupport.getMarshallerFactory().getMarshaller(metadata);
+			root = marshaller.marshall(metadata);
+		}
+		signDocument(root, metadata.getID(), privateKey, cert, baseUri, inserBefore);
+		return root;
+	}
+	/**
+	 * Firma XML-Sig il DOM dell'{@link EntityDescriptor} e scrive il metadata firmato sull'{@link OutputStream} passato in ingresso.
+	 * Lo stream non viene chiuso.
+	 * @param metadata -l'{@link EntityDescriptor} da firmare
+	 * @param privateKey -la {@link PrivateKey} da utilizzare per la firma
+	 * @param cert -il {@link java.security.cert.X509Certificate} da utilizzare per la firma
+	 * @param baseUri - il base uri di default
+	 * @param inserBefore -Indica il nome dell'elemento prima del quale inserire la firma del metadata
+	 * @param out -l'{@link OutputStream} su cui scrivere il metadata firmato (UTF-8)
+	 * @throws Exception sollevata in caso di errore.
+	 */
+	public void signMetadata( EntityDescriptor metadata, PrivateKey privateKey, java.security.cert.X509Certificate cert, String baseUri, InsertBeforeElementEnum inserBefore, OutputStream out ) throws Exception{
+		Element root = signMetadata(metadata, privateKey, cert, baseUri, inserBefore);
+		XMLUtils.outputDOM(root.getOwnerDocument(), out, true);
+		out.flush();
+	}
+	/**
+	 * Firma XML-Sig il DOM dell'{@link EntityDescriptor} e scrive il metadata firmato sul {@link WritableByteChannel} passato in ingresso.
+	 * Il canale non viene chiuso.
+	 * @param metadata -l'{@link EntityDescriptor} da firmare
+	 * @param privateKey -la {@link PrivateKey} da utilizzare per la firma
+	 * @param cert -il {@link java.security.cert.X509Certificate} da utilizzare per la firma
+	 * @param baseUri - il base uri di default
+	 * @param inserBefore -Indica il nome dell'elemento prima del quale inserire la firma del metadata
+	 * @param channel -il {@link WritableByteChannel} su cui scrivere il metadata firmato (UTF-8)
+	 * @throws Exception sollevata in caso di errore.
+	 */
+	public void signMetadata( EntityDescriptor metadata, PrivateKey privateKey, java.security.cert.X509Certificate cert, String baseUri, InsertBeforeElementEnum inserBefore, WritableByteChannel channel ) throws Exception{
+		signMetadata(metadata, privateKey, cert, baseUri, inserBefore, Channels.newOutputStream(channel));
+	}
+	/**
+	 * Applica la firma enveloped all'elemento radice passato in ingresso, modificandone il DOM
+	 * @param root -l'{@link Element} radice del metadata
+	 * @param generatedId -l'ID del metadata referenziato dalla firma
+	 * @param privateKey -la {@link PrivateKey} da utilizzare per la firma
+	 * @param cert -il {@link java.security.cert.X509Certificate} da utilizzare per la firma
+	 * @param baseUri - il base uri di default
+	 * @param inserBefore -Indica il nome dell'elemento prima del quale inserire la firma del metadata
+	 * @throws Exception sollevata in caso di errore.
+	 */
+	void signDocument( Element root, String generatedId, PrivateKey privateKey, java.security.cert.X509Certificate cert, String baseUri, InsertBeforeElementEnum inserBefore ) throws Exception{
+		Document doc = root.getOwnerDocument();
 		//Devo evitare di far leggere l'ID al parser. Lo faccio in questo modo
-		doc.getDocumentElement().setIdAttribute("ID", true);
+		root.setIdAttribute("ID", true);
 		XMLSignature sig = new XMLSignature(doc, baseUri, XMLSignature.ALGO_ID_SIGNATURE_RSA_SHA512);
-		Element root = doc.getDocumentElement();
 		//Vado alla ricerca del primo elemento che ha nome passato in ingresso ed inserisco la firma prima di questo elemento
 		root.insertBefore(sig.getElement(), root.getElementsByTagNameNS(inserBefore.getNameSpace(),inserBefore.getElementName()).item(0));
 		sig.getSignedInfo().addResourceResolver(new ResolverLocalFilesystem());
@@ -47,8 +150,5 @@ public abstract class AbstractMetadataBuilder {
 		sig.addKeyInfo(cert);
 		sig.addKeyInfo(cert.getPublicKey());
 		sig.sign(privateKey);
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		XMLUtils.outputDOM(doc, baos, true);
-		return baos.toString(StandardCharsets.UTF_8);
 	}
 }
@@ -0,0 +1,264 @@
+package it.agid.spid.saml.core;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.xmlsec.signature.Signature;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import it.agid.spid.saml.core.utils.CanonicalXmlWriter;
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SigningCredential;
+import it.agid.spid.saml.core.utils.StreamingXmlSigner;
+
+/**
+ * Scrittura in streaming di un EntitiesDescriptor firmato contenente un numero qualsiasi di EntityDescriptor, ad esempio tutti i
+ * soggetti aggregati di un soggetto aggregatore. Ogni EntityDescriptor viene scritto su file appena ricevuto e il suo DOM viene
+ * rilasciato, per cui la memoria occupata non dipende dal numero di entità. Il documento è scritto direttamente in forma canonica
+ * Exclusive C14N e il digest della firma enveloped viene aggiornato durante la scrittura; poiché lo schema prevede la firma come primo
+ * figlio, alla apertura viene riservato lo spazio del blocco Signature, di lunghezza nota a priori, che alla chiusura viene sovrascritto
+ * con la firma effettiva. Il file viene scritto su un file temporaneo e spostato sulla destinazione solo alla chiusura; se una scrittura
+ * fallisce il documento resta incompleto, per cui la chiusura elimina il file temporaneo senza firmarlo né sostituire la destinazione.
+ * Gli EntityDescriptor già firmati singolarmente mantengono una firma valida solo se firmati con Exclusive C14N: le firme con
+ * canonicalizzazione inclusiva (ad esempio quelle di {@link AbstractMetadataBuilder#signMetadata(EntityDescriptor, SigningCredential, String, it.agid.spid.saml.core.utils.InsertBeforeElementEnum)})
+ * dipendono dai namespace del documento originale e vengono invalidate dalla riscrittura, per cui questi EntityDescriptor vengono rifiutati.
+ * Non è thread safe
+ */
+public class EntitiesDescriptorStreamWriter implements AutoCloseable {
+	private static final Logger logger = LoggerFactory.getLogger(EntitiesDescriptorStreamWriter.class.getName());
+	private static final byte[] XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>".getBytes(StandardCharsets.UTF_8);
+	private static final DateTimeFormatter DATE_TIME_FORMATTER = ISODateTimeFormat.dateTime().withZoneUTC();
+	private static final String MD_PREFIX = "md";
+	private final Path target;
+	private final Path temp;
+	private final FileChannel channel;
+	private final CanonicalXmlWriter writer;
+	private final StreamingXmlSigner signer;
+	private final MessageDigest digest;
+	private final String id;
+	private final long signaturePosition;
+	private final int signatureLength;
+	private int entities;
+	private boolean closed;
+	private boolean failed;
+	/**
+	 * Apre il file e scrive l'elemento radice EntitiesDescriptor
+	 * @param target -il file di destinazione
+	 * @param name -il valore dell'attributo Name, può essere null
+	 * @param validUntil -il valore dell'attributo validUntil, può essere null
+	 * @param signingCredential -la {@link SigningCredential} con chiave RSA con cui firmare l'aggregato, null per non firmarlo
+	 * @throws IOException -sollevata in caso di errore di scrittura
+	 */
+	public EntitiesDescriptorStreamWriter(Path target, String name, DateTime validUntil, SigningCredential signingCredential) throws IOException {
+		this.target = target.toAbsolutePath();
+		this.temp = Files.createTempFile(this.target.getParent(), this.target.getFileName().toString(), ".tmp");
+		this.channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+		this.writer = new CanonicalXmlWriter(out);
+		this.signer = signingCredential == null ? null : new StreamingXmlSigner(signingCredential);
+		this.digest = signer == null ? null : signer.newDigest();
+		this.id = OpenSAMLUtils.generateSecureRandomId();
+		try {
+			writer.writeRaw(XML_DECLARATION);
+			writer.setDigest(digest);
+			writer.startElement(MD_PREFIX, SAMLConstants.SAML20MD_NS, "EntitiesDescriptor");
+			writer.attribute("ID", id);
+			if( name != null ) {
+				writer.attribute("Name", name);
+			}
+			if( validUntil != null ) {
+				writer.attribute("validUntil", DATE_TIME_FORMATTER.print(validUntil));
+			}
+			//La firma è esclusa dal digest (trasformata enveloped): lo spazio riservato viene scritto senza aggiornarlo
+			this.signaturePosition = writer.getBytesWritten();
+			this.signatureLength = signer == null ? 0 : signer.signatureLength(referenceUri());
+			if( signatureLength > 0 ) {
+				byte[] placeholder = new byte[signatureLength];
+				Arrays.fill(placeholder, (byte) ' ');
+				writer.writeRaw(placeholder);
+			}
+		}catch (IOException | RuntimeException e) {
+			discard();
+			throw e;
+		}
+	}
+	/**
+	 * Scrive l'EntityDescriptor nell'aggregato. Se l'oggetto non ha un DOM viene serializzato e il DOM viene rilasciato dopo la scrittura
+	 * @param entityDescriptor -l'{@link EntityDescriptor} da scrivere
+	 * @throws Exception -sollevata in caso di errore nella serializzazione o nella scrittura
+	 */
+	public void write(EntityDescriptor entityDescriptor) throws Exception {
+		boolean marshalled = entityDescriptor.getDOM() == null;
+		Element element = marshalled ? XMLObjectProviderRegistrySupport.getMarshallerFactory().getMarshaller(entityDescriptor).marshall(entityDescriptor) : entityDescriptor.getDOM();
+		try {
+			write(element);
+		}finally {
+			if( marshalled ) {
+				entityDescriptor.releaseChildrenDOM(true);
+				entityDescriptor.releaseDOM();
+			}
+		}
+	}
+	/**
+	 * Scrive l'elemento EntityDescriptor, ad esempio letto da un metadata già generato, nell'aggregato
+	 * @param entityDescriptor -l'{@link Element} EntityDescriptor da scrivere
+	 * @throws IOException -sollevata in caso di errore di scrittura
+	 * @throws IllegalArgumentException -sollevata se l'elemento non è un EntityDescriptor o ha una firma non Exclusive C14N
+	 */
+	public void write(Element entityDescriptor) throws IOException {
+		if( closed ) {
+			throw new IllegalStateException("Aggregato "+target+" già chiuso");
+		}
+		if( failed ) {
+			throw new IllegalStateException("Aggregato "+target+" incompleto per un errore in una scrittura precedente");
+		}
+		if( !SAMLConstants.SAML20MD_NS.equals(entityDescriptor.getNamespaceURI()) || !EntityDescriptor.DEFAULT_ELEMENT_LOCAL_NAME.equals(entityDescriptor.getLocalName()) ) {
+			throw new IllegalArgumentException("Elemento {"+entityDescriptor.getNamespaceURI()+"}"+entityDescriptor.getLocalName()+" non è un EntityDescriptor");
+		}
+		checkSignature(entityDescriptor);
+		try {
+			writer.writeNode(entityDescriptor);
+		}catch (IOException | RuntimeException e) {
+			//L'elemento può essere stato scritto in parte: il documento non può più essere chiuso né firmato
+			failed = true;
+			throw e;
+		}
+		entities++;
+	}
+	/**
+	 * @return -il numero di EntityDescriptor scritti
+	 */
+	public int getEntities() {
+		return entities;
+	}
+	/**
+	 * @return -il valore dell'attributo ID dell'EntitiesDescriptor, riferito dalla firma
+	 */
+	public String getId() {
+		return id;
+	}
+	/**
+	 * Chiude l'elemento radice, scrive la firma nello spazio riservato e sposta il file sulla destinazione.
+	 * Se una scrittura precedente è fallita elimina il file temporaneo e lascia invariata la destinazione
+	 * @throws IOException -sollevata in caso di errore nella scrittura o se una scrittura precedente è fallita
+	 * @throws GeneralSecurityException -sollevata in caso di errore nella firma
+	 */
+	@Override
+	public void close() throws IOException, GeneralSecurityException {
+		if( closed ) {
+			return;
+		}
+		closed = true;
+		if( failed ) {
+			discard();
+			throw new IOException("Aggregato "+target+" non scritto: errore in una scrittura precedente");
+		}
+		try {
+			if( entities == 0 ) {
+				throw new IllegalStateException("L'aggregato "+target+" deve contenere almeno un EntityDescriptor");
+			}
+			writer.endElement();
+			writer.flush();
+			if( signer != null ) {
+				byte[] signature = signer.sign(referenceUri(), digest);
+				if( signature.length != signatureLength ) {
+					throw new IllegalStateException("Lunghezza firma "+signature.length+" differente dallo spazio riservato "+signatureLength);
+				}
+				ByteBuffer buffer = ByteBuffer.wrap(signature);
+				long position = signaturePosition;
+				while( buffer.hasRemaining() ) {
+					position += channel.write(buffer, position);
+				}
+			}
+			channel.close();
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			if( logger.isDebugEnabled() ) {
+				logger.debug("Aggregato {} scritto con {} entità", target, entities);
+			}
+		}catch (IOException | GeneralSecurityException | RuntimeException e) {
+			discard();
+			throw e;
+		}
+	}
+	/**
+	 * Verifica che la firma enveloped dell'EntityDescriptor, se presente, resti valida nell'aggregato: sia la CanonicalizationMethod
+	 * sia l'ultima trasformazione di ogni Reference devono essere Exclusive C14N. In assenza di una trasformazione di
+	 * canonicalizzazione il digest del Reference viene calcolato con C14N inclusiva
+	 */
+	private static void checkSignature(Element entityDescriptor) {
+		for (Element signature : children(entityDescriptor, Signature.DEFAULT_ELEMENT_LOCAL_NAME)) {
+			Element signedInfo = firstChild(signature, "SignedInfo");
+			Element canonicalizationMethod = signedInfo == null ? null : firstChild(signedInfo, "CanonicalizationMethod");
+			String algorithm = canonicalizationMethod == null ? null : canonicalizationMethod.getAttributeNS(null, "Algorithm");
+			if( !isExclusive(algorithm) ) {
+				throw new IllegalArgumentException("EntityDescriptor "+entityDescriptor.getAttributeNS(null, "entityID")+" firmato con CanonicalizationMethod ["+algorithm+"] non Exclusive C14N: la firma non resterebbe valida nell'aggregato");
+			}
+			for (Element reference : children(signedInfo, "Reference")) {
+				Element transforms = firstChild(reference, "Transforms");
+				List<Element> transformList = transforms == null ? Collections.<Element>emptyList() : children(transforms, "Transform");
+				String lastTransform = transformList.isEmpty() ? null : transformList.get(transformList.size() - 1).getAttributeNS(null, "Algorithm");
+				if( !isExclusive(lastTransform) ) {
+					throw new IllegalArgumentException("EntityDescriptor "+entityDescriptor.getAttributeNS(null, "entityID")+" firmato con trasformazione del Reference ["+lastTransform+"] non Exclusive C14N: la firma non resterebbe valida nell'aggregato");
+				}
+			}
+		}
+	}
+	private static boolean isExclusive(String algorithm) {
+		return SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS.equals(algorithm) || SignatureConstants.ALGO_ID_C14N_EXCL_WITH_COMMENTS.equals(algorithm);
+	}
+	/**
+	 * @return -i figli dell'elemento nel namespace XML Signature con il nome locale indicato
+	 */
+	private static List<Element> children(Element parent, String localName) {
+		List<Element> result = new ArrayList<>(1);
+		NodeList nodes = parent.getChildNodes();
+		for (int i = 0; i < nodes.getLength(); i++) {
+			Node node = nodes.item(i);
+			if( node.getNodeType() == Node.ELEMENT_NODE && SignatureConstants.XMLSIG_NS.equals(node.getNamespaceURI()) && localName.equals(node.getLocalName()) ) {
+				result.add((Element) node);
+			}
+		}
+		return result;
+	}
+	private static Element firstChild(Element parent, String localName) {
+		List<Element> children = children(parent, localName);
+		return children.isEmpty() ? null : children.get(0);
+	}
+	private String referenceUri() {
+		return "#" + id;
+	}
+	private void discard() {
+		try {
+			channel.close();
+			Files.deleteIfExists(temp);
+		} catch (IOException e) {
+			logger.warn("Impossibile eliminare il file temporaneo "+temp, e);
+		}
+	}
+}
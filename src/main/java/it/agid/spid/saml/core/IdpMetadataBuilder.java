@@ -21,6 +21,7 @@ import org.slf4j.LoggerFactory;
 
 import it.agid.spid.saml.core.dto.SamlBindingUtils;
 import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SamlObjectBuilderHandle;
 import it.agid.spid.saml.core.utils.StringUtil;
 /**
  * Singleton per la costruzione del metadata di un ServiceProvider
@@ -167,9 +168,11 @@ public class IdpMetadataBuilder extends AbstractMetadataBuilder {
 		KeyDescriptor result = OpenSAMLUtils.buildSAMLObject(KeyDescriptor.class);
 		result.setUse(usage);
 		KeyInfo keyInfo = OpenSAMLUtils.buildSAMLObject(KeyInfo.class);
+		SamlObjectBuilderHandle<X509Data> x509DataBuilder = OpenSAMLUtils.builderFor(X509Data.class);
+		SamlObjectBuilderHandle<X509Certificate> x509CertificateBuilder = OpenSAMLUtils.builderFor(X509Certificate.class);
 		base64Cert.forEach(cer ->{
-			X509Data x509Data = OpenSAMLUtils.buildSAMLObject(X509Data.class);
-			X509Certificate certificato = OpenSAMLUtils.buildSAMLObject(X509Certificate.class);
+			X509Data x509Data = x509DataBuilder.build();
+			X509Certificate certificato = x509CertificateBuilder.build();
 			certificato.setValue(cer);
 			x509Data.getX509Certificates().add(certificato);
 			keyInfo.getX509Datas().add(x509Data);
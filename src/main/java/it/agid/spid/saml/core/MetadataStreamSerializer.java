@@ -0,0 +1,440 @@
+package it.agid.spid.saml.core;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.crypto.dsig.XMLSignature;
+
+import org.joda.time.DateTime;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.config.SAMLConfigurationSupport;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.security.credential.UsageType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.agid.spid.saml.core.dto.SamlAssertionConsumerServiceUtil;
+import it.agid.spid.saml.core.dto.SamlAttributeDto;
+import it.agid.spid.saml.core.dto.SamlAttributesConsumingServiceDto;
+import it.agid.spid.saml.core.dto.SamlBindingUtils;
+import it.agid.spid.saml.core.dto.SamlFpaCessionarioCommittente;
+import it.agid.spid.saml.core.dto.SamlOrganizationDto;
+import it.agid.spid.saml.core.dto.SamlOtherContactPerson;
+import it.agid.spid.saml.core.dto.SamlSoggettoAggregatoDto;
+import it.agid.spid.saml.core.dto.SamlSoggettoAggregatoreDto;
+import it.agid.spid.saml.core.utils.CanonicalXmlWriter;
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.StringUtil;
+import it.agid.spid.saml.spid.utils.SoggettoAggregatoreConvention;
+import it.agid.spid.saml.spid.utils.SpidAggregatorEntityTypeEnum;
+/**
+ * Singleton per la scrittura diretta dei metadata SPID (ServiceProvider, soggetto aggregato e IdentityProvider) a partire dai DTO,
+ * senza costruire gli oggetti OpenSAML né il DOM. Il metadata viene scritto su un {@link CanonicalXmlWriter} ed è identico,
+ * in forma canonica Exclusive C14N, a quello serializzato dal corrispondente builder ({@link SpMetadataBuilder},
+ * {@link SpSoggettoAggregatoreMetadataBuilder}, {@link IdpMetadataBuilder}) con lo stesso ID; i controlli sui dati in ingresso
+ * sono gli stessi del builder. In caso di errore il metadata può essere stato scritto solo in parte
+ */
+public class MetadataStreamSerializer {
+	private static final Logger logger = LoggerFactory.getLogger(MetadataStreamSerializer.class.getName());
+	private static final String FPA_NS_URI = SpMetadataBuilder.FPA_NS_URI;
+	private static final String FPA_NS_PREFIX = SpMetadataBuilder.FPA_NS_PREFIX;
+	private static final String SPID_NS_URI = SpMetadataBuilder.SPID_NS_URI;
+	private static final String SPID_NS_PREFIX = SpMetadataBuilder.SPID_NS_PREFIX;
+	private static final String MD_PREFIX = SAMLConstants.SAML20MD_PREFIX;
+	private static final String DS_PREFIX = "ds";
+
+	private static MetadataStreamSerializer _INSTANCE;
+	/**
+	 * Costruttore privato
+	 */
+	private MetadataStreamSerializer() {
+	}
+	/**
+	 * Recupero l'istanza dell'oggetto
+	 * @return -l'istanza
+	 */
+	public static synchronized MetadataStreamSerializer getInstance() {
+		if( _INSTANCE == null ) {
+			_INSTANCE = new MetadataStreamSerializer();
+		}
+		return _INSTANCE;
+	}
+	/**
+	 * Scrive il metadata del ServiceProvider. I parametri hanno lo stesso significato di
+	 * {@link SpMetadataBuilder#buildSpMetadata(String, boolean, boolean, String, List, List, List, List, List, SamlOrganizationDto, SamlOtherContactPerson, SamlFpaCessionarioCommittente, List)}
+	 * @param writer -il {@link CanonicalXmlWriter} su cui scrivere
+	 * @param id -l'ID del metadata, se null ne viene generato uno
+	 * @return -l'ID del metadata scritto
+	 * @throws IOException -sollevata in caso di errore di scrittura
+	 */
+	public String writeSpMetadata(CanonicalXmlWriter writer,
+			String id,
+			String entityId,
+			boolean wantAuthnRequestSigned,
+			boolean wantAssertionsSigned,
+			String supportedProtocol,
+			List<String> base64SigningCertificate,
+			List<String> base64EncryptionCertificate,
+			List<SamlBindingUtils> singleLogoutService,
+			List<String> nameIds,
+			List<SamlAssertionConsumerServiceUtil> assertionConsumerServices,
+			SamlOrganizationDto organization,
+			SamlOtherContactPerson otherContactPerson,
+			SamlFpaCessionarioCommittente cessionarioCommittente,
+			List<SamlAttributesConsumingServiceDto> acss
+			) throws IOException {
+		String metadataId = startEntityDescriptor(writer, id, entityId);
+		startSpDescriptor(writer, wantAuthnRequestSigned, wantAssertionsSigned, supportedProtocol);
+		writeKeyDescriptors(writer, base64SigningCertificate, base64EncryptionCertificate);
+		writeEndpoints(writer, "SingleLogoutService", singleLogoutService);
+		writeNameIdFormats(writer, nameIds);
+		writeAssertionConsumerServices(writer, assertionConsumerServices);
+		writeAttributeConsumingServices(writer, acss);
+		writer.endElement();
+		writeOrganization(writer, organization);
+		writeOtherContactPerson(writer, otherContactPerson, organization.getOrganizationName());
+		if( !otherContactPerson.isSpPubblico() ) {
+			writeBillingContactPerson(writer, cessionarioCommittente);
+		}
+		writer.endElement();
+		return metadataId;
+	}
+	/**
+	 * Scrive il metadata del soggetto aggregato, uguale a quello prodotto da
+	 * {@link SpSoggettoAggregatoreMetadataBuilder#buildSignedSpMetadata(SamlSoggettoAggregatoreDto, java.util.Collection, java.security.PrivateKey, java.security.cert.X509Certificate, int)} prima della firma
+	 * @param writer -il {@link CanonicalXmlWriter} su cui scrivere
+	 * @param id -l'ID del metadata, se null ne viene generato uno
+	 * @param soggettoAggregatore -le informazioni comuni del soggetto aggregatore
+	 * @param soggettoAggregato -il soggetto aggregato
+	 * @return -l'ID del metadata scritto
+	 * @throws IOException -sollevata in caso di errore di scrittura
+	 */
+	public String writeSoggettoAggregatoMetadata(CanonicalXmlWriter writer, String id, SamlSoggettoAggregatoreDto soggettoAggregatore, SamlSoggettoAggregatoDto soggettoAggregato) throws IOException {
+		if( soggettoAggregatore == null || soggettoAggregatore.getInformazioniSoggettoAggregatore() == null ) {
+			throw new IllegalArgumentException("Passato un soggetto aggregatore nullo o senza informazioni di contatto ["+soggettoAggregatore+"]");
+		}
+		if( soggettoAggregato == null || StringUtil.isEmptyString(soggettoAggregato.getEntityId()) ) {
+			throw new IllegalArgumentException("Passato un soggetto aggregato nullo o senza entity ID ["+soggettoAggregato+"]");
+		}
+		String metadataId = startEntityDescriptor(writer, id, soggettoAggregato.getEntityId());
+		startSpDescriptor(writer, soggettoAggregatore.isWantAuthnRequestSigned(), soggettoAggregatore.isWantAssertionsSigned(), soggettoAggregatore.getSupportedProtocol());
+		writeKeyDescriptors(writer, soggettoAggregatore.getBase64SigningCertificate(), soggettoAggregatore.getBase64EncryptionCertificate());
+		writeEndpoints(writer, "SingleLogoutService", soggettoAggregato.getSingleLogoutService());
+		writeNameIdFormats(writer, soggettoAggregatore.getNameIds());
+		writeAssertionConsumerServices(writer, soggettoAggregato.getAssertionConsumerServices());
+		writeAttributeConsumingServices(writer, soggettoAggregatore.getAcss());
+		writer.endElement();
+		writeOrganization(writer, soggettoAggregato.getOrganization() != null ? soggettoAggregato.getOrganization() : soggettoAggregatore.getOrganization());
+		writeAggregatorContactPerson(writer, soggettoAggregatore.getInformazioniSoggettoAggregatore(), true, soggettoAggregatore.isEntePrivato());
+		writeAggregatorContactPerson(writer, soggettoAggregato.getInformazioniSoggettoAggregato(), false, soggettoAggregatore.isEntePrivato());
+		if( !soggettoAggregatore.getInformazioniSoggettoAggregatore().isSpPubblico() ) {
+			writeBillingContactPerson(writer, soggettoAggregatore.getCessionarioCommittente());
+		}
+		writer.endElement();
+		return metadataId;
+	}
+	/**
+	 * Scrive il metadata dell'IdentityProvider. I parametri hanno lo stesso significato di
+	 * {@link IdpMetadataBuilder#buildIdpMetadata(String, DateTime, Boolean, String, List, List, List, List, List)}
+	 * @param writer -il {@link CanonicalXmlWriter} su cui scrivere
+	 * @param id -l'ID del metadata, se null ne viene generato uno
+	 * @return -l'ID del metadata scritto
+	 * @throws IOException -sollevata in caso di errore di scrittura
+	 */
+	public String writeIdpMetadata(CanonicalXmlWriter writer,
+			String id,
+			String entityId,
+			DateTime validUntil,
+			Boolean wantAuthnRequestSigned,
+			String supportedProtocol,
+			List<String> base64SigningCertificate,
+			List<String> base64EncryptionCertificate,
+			List<String> nameIds,
+			List<SamlBindingUtils> singleSignOnService,
+			List<SamlBindingUtils> singleLogoutService) throws IOException {
+		if( singleSignOnService == null || singleSignOnService.isEmpty() ) {
+			throw new IllegalArgumentException("Nessun URL di single sign on passato. Impossibile proseguire");
+		}
+		String metadataId = startEntityDescriptor(writer, id, entityId);
+		md(writer, "IDPSSODescriptor");
+		if( validUntil != null ) {
+			writer.attribute("validUntil", SAMLConfigurationSupport.getSAMLDateFormatter().print(validUntil));
+		}
+		if( wantAuthnRequestSigned != null ) {
+			writer.attribute("WantAuthnRequestsSigned", wantAuthnRequestSigned.toString());
+		}
+		writer.attribute("protocolSupportEnumeration", supportedProtocol);
+		writeKeyDescriptors(writer, base64SigningCertificate, base64EncryptionCertificate);
+		writeEndpoints(writer, "SingleLogoutService", singleLogoutService);
+		writeNameIdFormats(writer, nameIds);
+		writeEndpoints(writer, "SingleSignOnService", singleSignOnService);
+		writer.endElement();
+		writer.endElement();
+		return metadataId;
+	}
+	private static String startEntityDescriptor(CanonicalXmlWriter writer, String id, String entityId) throws IOException {
+		String metadataId = id == null ? OpenSAMLUtils.generateSecureRandomId() : id;
+		md(writer, EntityDescriptor.DEFAULT_ELEMENT_LOCAL_NAME);
+		writer.attribute("ID", metadataId);
+		writer.attribute("entityID", entityId);
+		return metadataId;
+	}
+	private static void startSpDescriptor(CanonicalXmlWriter writer, boolean wantAuthnRequestSigned, boolean wantAssertionsSigned, String supportedProtocol) throws IOException {
+		md(writer, "SPSSODescriptor");
+		writer.attribute("AuthnRequestsSigned", String.valueOf(wantAuthnRequestSigned));
+		writer.attribute("WantAssertionsSigned", String.valueOf(wantAssertionsSigned));
+		writer.attribute("protocolSupportEnumeration", supportedProtocol);
+	}
+	private static void writeKeyDescriptors(CanonicalXmlWriter writer, List<String> base64SigningCertificate, List<String> base64EncryptionCertificate) throws IOException {
+		if( base64SigningCertificate != null && !base64SigningCertificate.isEmpty() ) {
+			writeKeyDescriptor(writer, base64SigningCertificate, UsageType.SIGNING);
+		}else {
+			if( logger.isWarnEnabled() ) {
+				logger.warn("Nessun certificato in base 64 passato per lo usage di tipo SIGNING");
+			}
+		}
+		if( base64EncryptionCertificate != null && !base64EncryptionCertificate.isEmpty() ) {
+			writeKeyDescriptor(writer, base64EncryptionCertificate, UsageType.ENCRYPTION);
+		}else {
+			if( logger.isWarnEnabled() ) {
+				logger.warn("Nessun certificato in base 64 passato per lo usage di tipo ENCRYPTION");
+			}
+		}
+	}
+	private static void writeKeyDescriptor(CanonicalXmlWriter writer, List<String> base64Cert, UsageType usage) throws IOException {
+		md(writer, "KeyDescriptor");
+		writer.attribute("use", usage.getValue());
+		writer.startElement(DS_PREFIX, XMLSignature.XMLNS, "KeyInfo");
+		for (String cer : base64Cert) {
+			writer.startElement(DS_PREFIX, XMLSignature.XMLNS, "X509Data");
+			writer.startElement(DS_PREFIX, XMLSignature.XMLNS, "X509Certificate");
+			text(writer, cer);
+			writer.endElement();
+			writer.endElement();
+		}
+		writer.endElement();
+		writer.endElement();
+	}
+	static void writeEndpoints(CanonicalXmlWriter writer, String elementName, List<SamlBindingUtils> endpoints) throws IOException {
+		if( endpoints == null ) {
+			return;
+		}
+		for (SamlBindingUtils bindingUtil : endpoints) {
+			if( StringUtil.isEmptyString(bindingUtil.getLocation()) ) {
+				throw new IllegalArgumentException("Passato location nullo o vuoto ["+bindingUtil.getLocation()+"]");
+			}
+			md(writer, elementName);
+			writer.attribute("Binding", bindingUtil.getBindingType().getBindingType());
+			writer.attribute("Location", bindingUtil.getLocation());
+			if( !StringUtil.isEmptyString(bindingUtil.getResponseLocation()) ) {
+				writer.attribute("ResponseLocation", bindingUtil.getResponseLocation());
+			}
+			writer.endElement();
+		}
+	}
+	private static void writeNameIdFormats(CanonicalXmlWriter writer, List<String> nameIds) throws IOException {
+		for (String nameId : nameIds) {
+			md(writer, "NameIDFormat");
+			text(writer, nameId);
+			writer.endElement();
+		}
+	}
+	static void writeAssertionConsumerServices(CanonicalXmlWriter writer, List<SamlAssertionConsumerServiceUtil> assertionConsumerServices) throws IOException {
+		if( assertionConsumerServices == null || assertionConsumerServices.isEmpty() ) {
+			throw new IllegalArgumentException("Passato un elenco di assertion consumer service nullo o vuoto ["+assertionConsumerServices+"]");
+		}
+		for (SamlAssertionConsumerServiceUtil assertionUtil : assertionConsumerServices) {
+			SamlBindingUtils bindingUtil = assertionUtil.getSamlBinding();
+			if( StringUtil.isEmptyString(bindingUtil.getLocation()) ) {
+				throw new IllegalArgumentException("Passato location nullo o vuoto ["+bindingUtil.getLocation()+"]");
+			}
+			md(writer, "AssertionConsumerService");
+			writer.attribute("Binding", bindingUtil.getBindingType().getBindingType());
+			writer.attribute("Location", bindingUtil.getLocation());
+			if( !StringUtil.isEmptyString(bindingUtil.getResponseLocation()) ) {
+				writer.attribute("ResponseLocation", bindingUtil.getResponseLocation());
+			}
+			writer.attribute("index", String.valueOf(assertionUtil.getIndex()));
+			writer.attribute("isDefault", String.valueOf(assertionUtil.isDefaultElement()));
+			writer.endElement();
+		}
+	}
+	private static void writeAttributeConsumingServices(CanonicalXmlWriter writer, List<SamlAttributesConsumingServiceDto> acss) throws IOException {
+		for (SamlAttributesConsumingServiceDto acs : acss) {
+			md(writer, "AttributeConsumingService");
+			writer.attribute("index", String.valueOf(acs.getIndex()));
+			localizedElement(writer, "ServiceName", acs.getServiceNameLang(), acs.getServiceName());
+			for (SamlAttributeDto attributo : acs.getAttrs()) {
+				md(writer, "RequestedAttribute");
+				if( !StringUtil.isEmptyString(attributo.getFriendlyName()) ) {
+					writer.attribute("FriendlyName", attributo.getFriendlyName());
+				}
+				if( attributo.getName() != null ) {
+					writer.attribute("Name", attributo.getName());
+				}
+				writer.endElement();
+			}
+			writer.endElement();
+		}
+	}
+	private static void writeOrganization(CanonicalXmlWriter writer, SamlOrganizationDto organization) throws IOException {
+		md(writer, "Organization");
+		localizedElement(writer, "OrganizationName", "it", organization.getOrganizationName());
+		localizedElement(writer, "OrganizationDisplayName", "it", organization.getOrganizationDisplayName());
+		localizedElement(writer, "OrganizationURL", "it", organization.getOrganizationUrl());
+		writer.endElement();
+	}
+	/**
+	 * ContactPerson di tipo other del ServiceProvider, come {@link SpMetadataBuilder}
+	 */
+	private static void writeOtherContactPerson(CanonicalXmlWriter writer, SamlOtherContactPerson otherContactPerson, String companyName) throws IOException {
+		if( otherContactPerson.isSpPubblico() ) {
+			if( StringUtil.isEmptyString(otherContactPerson.getIpaCode()) ) {
+				throw new IllegalArgumentException("Siamo nel caso di SP pubblico. Nessun IPA Code passato ["+otherContactPerson.getIpaCode()+"]");
+			}
+		}else if( StringUtil.isEmptyString(otherContactPerson.getVatNumber()) ) {
+			throw new IllegalArgumentException("Siamo nel caso di SP privato. Nessun Vat number passato ["+otherContactPerson.getVatNumber()+"]");
+		}
+		if( StringUtil.isEmptyString(otherContactPerson.getEmailAddress()) ) {
+			throw new IllegalArgumentException("Nessun indirizzo mail passato ["+otherContactPerson.getEmailAddress()+"]");
+		}
+		md(writer, "ContactPerson");
+		writer.attribute("contactType", "other");
+		md(writer, "Extensions");
+		if( otherContactPerson.isSpPubblico() ) {
+			spid(writer, "IPACode", otherContactPerson.getIpaCode());
+			spid(writer, "Public", null);
+		}else {
+			spid(writer, "VATNumber", otherContactPerson.getVatNumber());
+			spid(writer, "Private", null);
+		}
+		if( !StringUtil.isEmptyString(otherContactPerson.getFiscalCode()) ) {
+			spid(writer, "FiscalCode", otherContactPerson.getFiscalCode());
+		}
+		writer.endElement();
+		if( !StringUtil.isEmptyString(companyName) ) {
+			textElement(writer, "Company", companyName);
+		}
+		textElement(writer, "EmailAddress", otherContactPerson.getEmailAddress());
+		if( !StringUtil.isEmptyString(otherContactPerson.getTelephoneNumber()) ) {
+			textElement(writer, "TelephoneNumber", otherContactPerson.getTelephoneNumber());
+		}
+		writer.endElement();
+	}
+	/**
+	 * ContactPerson di tipo other del soggetto aggregatore o aggregato, come {@link SpSoggettoAggregatoreMetadataBuilder}
+	 */
+	private static void writeAggregatorContactPerson(CanonicalXmlWriter writer, SamlOtherContactPerson spidAggregator, boolean cpSoggettoAggregatore, boolean entePrivato) throws IOException {
+		if( cpSoggettoAggregatore && StringUtil.isEmptyString(spidAggregator.getCompanyName()) ) {
+			throw new IllegalArgumentException("Passato un company name del soggetto aggregatore non corretto");
+		}
+		if( cpSoggettoAggregatore && StringUtil.isEmptyString(spidAggregator.getEmailAddress()) ) {
+			throw new IllegalArgumentException("Passato un indirizzo mail del soggetto aggregatore non corretto");
+		}
+		if( StringUtil.isEmptyString(spidAggregator.getIpaCode()) ) {
+			throw new IllegalArgumentException("Passato un IPA code aggregatore nullo");
+		}
+		md(writer, "ContactPerson");
+		writer.attribute("contactType", "other");
+		SpidAggregatorEntityTypeEnum entityType = cpSoggettoAggregatore ? SpidAggregatorEntityTypeEnum.AGGREGATOR : SpidAggregatorEntityTypeEnum.AGGREGATED;
+		writer.attribute(SPID_NS_PREFIX, SPID_NS_URI, "entityType", entityType.getEntityType());
+		md(writer, "Extensions");
+		spid(writer, "IPACode", spidAggregator.getIpaCode());
+		if( cpSoggettoAggregatore ) {
+			spid(writer, "VATNumber", spidAggregator.getVatNumber());
+			spid(writer, "FiscalCode", spidAggregator.getFiscalCode());
+			SoggettoAggregatoreConvention convention = entePrivato ? SoggettoAggregatoreConvention.AGGREGATORE_FULL_SERVIZI_PRIVATI : SoggettoAggregatoreConvention.AGGREGATORE_FULL_SERVIZI_PUBBLICI;
+			spid(writer, convention.getMetadataTagName(), null);
+		}else {
+			spid(writer, entePrivato ? "Private" : "Public", null);
+		}
+		writer.endElement();
+		if( !StringUtil.isEmptyString(spidAggregator.getCompanyName()) ) {
+			textElement(writer, "Company", spidAggregator.getCompanyName());
+		}
+		if( !StringUtil.isEmptyString(spidAggregator.getEmailAddress()) ) {
+			textElement(writer, "EmailAddress", spidAggregator.getEmailAddress());
+		}
+		if( !StringUtil.isEmptyString(spidAggregator.getTelephoneNumber()) ) {
+			textElement(writer, "TelephoneNumber", spidAggregator.getTelephoneNumber());
+		}
+		writer.endElement();
+	}
+	private static void writeBillingContactPerson(CanonicalXmlWriter writer, SamlFpaCessionarioCommittente cessionCommittente) throws IOException {
+		if( cessionCommittente == null ) {
+			if( logger.isWarnEnabled() ) {
+				logger.warn("Siamo in caso di ente privato ma cessionario committente nullo");
+			}
+			return;
+		}
+		if( StringUtil.isEmptyString(cessionCommittente.getMail()) ) {
+			throw new IllegalArgumentException("Nessun indirizzo mail passato ["+cessionCommittente.getMail()+"]");
+		}
+		md(writer, "ContactPerson");
+		writer.attribute("contactType", "billing");
+		md(writer, "Extensions");
+		fpa(writer, "CessionarioCommittente");
+		fpa(writer, "DatiAnagrafici");
+		fpa(writer, "IdFiscaleIVA");
+		fpaText(writer, "IdPaese", cessionCommittente.getDatiAnagrafici().getFiscaleIva().getIdPaese());
+		fpaText(writer, "IdCodice", cessionCommittente.getDatiAnagrafici().getFiscaleIva().getIdCodice());
+		writer.endElement();
+		fpa(writer, "Anagrafica");
+		fpaText(writer, "Denominazione", cessionCommittente.getDatiAnagrafici().getDenominazione());
+		writer.endElement();
+		writer.endElement();
+		fpa(writer, "Sede");
+		fpaText(writer, "Indirizzo", cessionCommittente.getSede().getIndrizzo());
+		fpaText(writer, "NumeroCivico", cessionCommittente.getSede().getNumeroCivico());
+		fpaText(writer, "CAP", cessionCommittente.getSede().getCap());
+		fpaText(writer, "Comune", cessionCommittente.getSede().getComune());
+		fpaText(writer, "Provincia", cessionCommittente.getSede().getProvincia());
+		fpaText(writer, "Nazione", cessionCommittente.getSede().getNazione());
+		writer.endElement();
+		writer.endElement();
+		writer.endElement();
+		if( !StringUtil.isEmptyString(cessionCommittente.getCompany()) ) {
+			textElement(writer, "Company", cessionCommittente.getCompany());
+		}
+		textElement(writer, "EmailAddress", cessionCommittente.getMail());
+		if( !StringUtil.isEmptyString(cessionCommittente.getTelephoneNumber()) ) {
+			textElement(writer, "TelephoneNumber", cessionCommittente.getTelephoneNumber());
+		}
+		writer.endElement();
+	}
+	private static void md(CanonicalXmlWriter writer, String localName) throws IOException {
+		writer.startElement(MD_PREFIX, SAMLConstants.SAML20MD_NS, localName);
+	}
+	private static void textElement(CanonicalXmlWriter writer, String localName, String value) throws IOException {
+		md(writer, localName);
+		text(writer, value);
+		writer.endElement();
+	}
+	private static void localizedElement(CanonicalXmlWriter writer, String localName, String lang, String value) throws IOException {
+		md(writer, localName);
+		if( lang != null ) {
+			writer.attribute(XMLConstants.XML_NS_PREFIX, XMLConstants.XML_NS_URI, "lang", lang);
+		}
+		text(writer, value);
+		writer.endElement();
+	}
+	private static void spid(CanonicalXmlWriter writer, String localName, String value) throws IOException {
+		writer.startElement(SPID_NS_PREFIX, SPID_NS_URI, localName);
+		text(writer, value);
+		writer.endElement();
+	}
+	private static void fpa(CanonicalXmlWriter writer, String localName) throws IOException {
+		writer.startElement(FPA_NS_PREFIX, FPA_NS_URI, localName);
+	}
+	private static void fpaText(CanonicalXmlWriter writer, String localName, String value) throws IOException {
+		fpa(writer, localName);
+		text(writer, value);
+		writer.endElement();
+	}
+	private static void text(CanonicalXmlWriter writer, String value) throws IOException {
+		if( value != null && !value.isEmpty() ) {
+			writer.characters(value);
+		}
+	}
+}
@@ -42,6 +42,7 @@ import it.agid.spid.saml.core.dto.SamlFpaCessionarioCommittente;
 import it.agid.spid.saml.core.dto.SamlOrganizationDto;
 import it.agid.spid.saml.core.dto.SamlOtherContactPerson;
 import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SamlObjectBuilderHandle;
 import it.agid.spid.saml.core.utils.StringUtil;
 /**
  * Singleton per la costruzione del metadata di un ServiceProvider
@@ -165,6 +166,33 @@ public class SpMetadataBuilder extends AbstractMetadataBuilder {
 		return ed;
 	}
 
+	/**
+	 * Costruisce una sola volta il metadata del ServiceProvider e lo compila in uno {@link SpMetadataTemplate}, da cui ottenere
+	 * nuove istanze del metadata (nuovo ID, validUntil ed eventualmente endpoint differenti) concatenando segmenti pre-renderizzati in forma canonica.
+	 * I parametri hanno lo stesso significato di {@link #buildSpMetadata(String, boolean, boolean, String, List, List, List, List, List, SamlOrganizationDto, SamlOtherContactPerson, SamlFpaCessionarioCommittente, List)}
+	 * @return -lo {@link SpMetadataTemplate} creato
+	 * @throws Exception -sollevata in caso di errore nella costruzione del metadata
+	 */
+	public SpMetadataTemplate compileSpMetadata(String entityId, 
+			boolean wantAuthnRequestSigned, 
+			boolean wantAssertionsSigned, 
+			String supportedProtocol,
+			List<String> base64SigningCertificate,
+			List<String> base64EncryptionCertificate,
+			List<SamlBindingUtils> singleLogoutService,
+			List<String> nameIds,
+			List<SamlAssertionConsumerServiceUtil> assertionConsumerServices,
+			SamlOrganizationDto organization,
+			SamlOtherContactPerson otherContactPerson,
+			SamlFpaCessionarioCommittente cessionarioCommittente,
+			List<SamlAttributesConsumingServiceDto> acss
+			) throws Exception {
+		EntityDescriptor ed = buildSpMetadata(entityId, wantAuthnRequestSigned, wantAssertionsSigned, supportedProtocol, base64SigningCertificate,
+				base64EncryptionCertificate, singleLogoutService, nameIds, assertionConsumerServices, organization, otherContactPerson,
+				cessionarioCommittente, acss);
+		return new SpMetadataTemplate(ed);
+	}
+
 	/**
 	 * Costruisce l'oggetto {@link ContactPerson} con tipo {@link ContactPersonTypeEnumeration#BILLING}
 	 * @param cessionCommittente; oggetto {@link SamlFpaCessionarioCommittente} contenente i dati per la costruzione del tag CessionarioCommittente
@@ -350,7 +378,7 @@ public class SpMetadataBuilder extends AbstractMetadataBuilder {
 	 * @param assertionConsumerServices {@link List} di {@link SamlAssertionConsumerServiceUtil} contenenti le informazioni necessarie
 	 * @return {@link List} di {@link AssertionConsumerService} creato
 	 */
-	private List<AssertionConsumerService> buildAssertionConsumerServices(List<SamlAssertionConsumerServiceUtil> assertionConsumerServices) {
+	List<AssertionConsumerService> buildAssertionConsumerServices(List<SamlAssertionConsumerServiceUtil> assertionConsumerServices) {
 		if( assertionConsumerServices == null || assertionConsumerServices.isEmpty() ) {
 			throw new IllegalArgumentException("Passato un elenco di assertion consumer service nullo o vuoto ["+assertionConsumerServices+"]");
 		}
@@ -378,7 +406,7 @@ public class SpMetadataBuilder extends AbstractMetadataBuilder {
 	 * @param singleLogoutService il {@link List} di {@link SamlBindingUtils} contenente le informazioni necessarie
 	 * @return il {@link List} di {@link SingleLogoutService}
 	 */
-	private List<SingleLogoutService> buildSingleLogoutServices(List<SamlBindingUtils> singleLogoutService) {
+	List<SingleLogoutService> buildSingleLogoutServices(List<SamlBindingUtils> singleLogoutService) {
 		if( singleLogoutService == null || singleLogoutService.isEmpty() ) {
 			return null;
 		}else {
@@ -409,9 +437,11 @@ public class SpMetadataBuilder extends AbstractMetadataBuilder {
 		KeyDescriptor result = OpenSAMLUtils.buildSAMLObject(KeyDescriptor.class);
 		result.setUse(usage);
 		KeyInfo keyInfo = OpenSAMLUtils.buildSAMLObject(KeyInfo.class);
+		SamlObjectBuilderHandle<X509Data> x509DataBuilder = OpenSAMLUtils.builderFor(X509Data.class);
+		SamlObjectBuilderHandle<X509Certificate> x509CertificateBuilder = OpenSAMLUtils.builderFor(X509Certificate.class);
 		base64Cert.forEach(cer ->{
-			X509Data x509Data = OpenSAMLUtils.buildSAMLObject(X509Data.class);
-			X509Certificate certificato = OpenSAMLUtils.buildSAMLObject(X509Certificate.class);
+			X509Data x509Data = x509DataBuilder.build();
+			X509Certificate certificato = x509CertificateBuilder.build();
 			certificato.setValue(cer);
 			x509Data.getX509Certificates().add(certificato);
 			keyInfo.getX509Datas().add(x509Data);
@@ -425,6 +455,7 @@ public class SpMetadataBuilder extends AbstractMetadataBuilder {
 	 */
 	private List<AttributeConsumingService> buildConsumingService(List<SamlAttributesConsumingServiceDto> acss) {
 		List<AttributeConsumingService> result = new ArrayList<AttributeConsumingService>(acss.size());
+		SamlObjectBuilderHandle<RequestedAttribute> requestedAttributeBuilder = OpenSAMLUtils.builderFor(RequestedAttribute.class);
 		acss.forEach(acs -> {
 			AttributeConsumingService anAcs = OpenSAMLUtils.buildSAMLObject(AttributeConsumingService.class);
 			anAcs.setIndex(acs.getIndex());
@@ -434,7 +465,7 @@ public class SpMetadataBuilder extends AbstractMetadataBuilder {
 			anAcs.getNames().add(serviceName);
 			List<SamlAttributeDto> attributi = acs.getAttrs();
 			attributi.forEach(attributo ->{
-				RequestedAttribute samlAttr = OpenSAMLUtils.buildSAMLObject(RequestedAttribute.class);
+				RequestedAttribute samlAttr = requestedAttributeBuilder.build();
 				if( !StringUtil.isEmptyString(attributo.getFriendlyName()) ) {
 
 					samlAttr.setFriendlyName(attributo.getFriendlyName());
@@ -0,0 +1,329 @@
+package it.agid.spid.saml.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+
+import org.joda.time.DateTime;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.config.SAMLConfigurationSupport;
+import org.opensaml.saml.saml2.metadata.AssertionConsumerService;
+import org.opensaml.saml.saml2.metadata.AttributeConsumingService;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.ManageNameIDService;
+import org.opensaml.saml.saml2.metadata.NameIDFormat;
+import org.opensaml.saml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml.saml2.metadata.SingleLogoutService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import it.agid.spid.saml.core.dto.SamlAssertionConsumerServiceUtil;
+import it.agid.spid.saml.core.dto.SamlBindingUtils;
+import it.agid.spid.saml.core.utils.CanonicalXmlWriter;
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SigningCredential;
+import it.agid.spid.saml.core.utils.StreamingXmlSigner;
+
+/**
+ * Metadata di un ServiceProvider "compilato": l'{@link EntityDescriptor} viene costruito e scritto una sola volta in forma canonica
+ * (Exclusive C14N, con {@link CanonicalXmlWriter}) e spezzato in segmenti di byte attorno alle parti variabili: l'ID, il validUntil e i blocchi
+ * dei {@link SingleLogoutService} e degli {@link AssertionConsumerService}. Ogni nuova istanza si ottiene concatenando i segmenti con i nuovi valori,
+ * senza DOM, parsing o serializzazione del documento; solo gli endpoint sostituiti vengono scritti di nuovo.
+ * Il metadata prodotto è la forma canonica di quello ottenuto con {@link SpMetadataBuilder#buildSpMetadata} impostando gli stessi valori,
+ * per cui la firma si calcola direttamente sui segmenti ({@link #renderSigned(DateTime, List, List, StreamingXmlSigner, OutputStream)}).
+ * È immutabile e thread safe; si ottiene tramite {@link SpMetadataBuilder#compileSpMetadata}
+ */
+public class SpMetadataTemplate {
+	private static final Logger logger = LoggerFactory.getLogger(SpMetadataTemplate.class.getName());
+	private static final byte[] XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] EMPTY = new byte[0];
+	private static final String ID_ATTRIB_NAME = "ID";
+	//Caratteri non ammessi in XML: non possono comparire nei valori del metadata
+	private static final String ID_MARKER = "\u0001ID\u0001";
+	private static final String VALID_UNTIL_MARKER = "\u0001validUntil\u0001";
+	private static final List<String> AFTER_SINGLE_LOGOUT = Arrays.asList(ManageNameIDService.DEFAULT_ELEMENT_LOCAL_NAME, NameIDFormat.DEFAULT_ELEMENT_LOCAL_NAME,
+			AssertionConsumerService.DEFAULT_ELEMENT_LOCAL_NAME, AttributeConsumingService.DEFAULT_ELEMENT_LOCAL_NAME);
+	private static final List<String> AFTER_ASSERTION_CONSUMER = Arrays.asList(AttributeConsumingService.DEFAULT_ELEMENT_LOCAL_NAME);
+	//Posizione del segmento prima del quale va inserita la firma: il SPSSODescriptor
+	private static final int SIGNATURE_SEGMENT = 6;
+	private final String entityId;
+	private final String rootPrefix;
+	private final String rootNamespaceUri;
+	private final String rootLocalName;
+	private final String spPrefix;
+	//Tag di apertura dell'EntityDescriptor attorno a ID e validUntil
+	private final byte[] rootHead;
+	private final byte[] rootMiddle;
+	private final byte[] rootTail;
+	//Figli dell'EntityDescriptor che precedono il SPSSODescriptor
+	private final byte[] beforeSpDescriptor;
+	//SPSSODescriptor fino agli endpoint, blocchi degli endpoint e resto del documento
+	private final byte[] spDescriptorHead;
+	private final byte[] singleLogoutServices;
+	private final byte[] spDescriptorMiddle;
+	private final byte[] assertionConsumerServices;
+	private final byte[] tail;
+	/**
+	 * Crea il template partendo dall'{@link EntityDescriptor} costruito dal builder
+	 * @param metadata -l'{@link EntityDescriptor} da compilare
+	 * @throws Exception -sollevata in caso di errore nel marshalling o se il metadata non contiene un SPSSODescriptor
+	 */
+	SpMetadataTemplate(EntityDescriptor metadata) throws Exception {
+		this.entityId = metadata.getEntityID();
+		Element root = metadata.getDOM();
+		if( root == null ) {
+			root = XMLObjectProviderRegistrySupport.getMarshallerFactory().getMarshaller(metadata).marshall(metadata);
+		}
+		this.rootPrefix = root.getPrefix();
+		this.rootNamespaceUri = root.getNamespaceURI();
+		this.rootLocalName = root.getLocalName();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(8192);
+		CanonicalXmlWriter writer = new CanonicalXmlWriter(baos);
+		writer.startElement(root.getPrefix(), root.getNamespaceURI(), root.getLocalName());
+		writeAttributes(writer, root);
+		writer.attribute(EntityDescriptor.VALID_UNTIL_ATTRIB_NAME, VALID_UNTIL_MARKER);
+		int rootStartTagEnd = (int) writer.getBytesWritten();
+		Element spDescriptor = null;
+		int spStart = -1, slsStart = -1, slsEnd = -1, acsStart = -1, acsEnd = -1;
+		for (Node child = root.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if( spDescriptor != null || !isMetadataElement(child, SPSSODescriptor.DEFAULT_ELEMENT_LOCAL_NAME) ) {
+				writer.writeNode(child);
+				continue;
+			}
+			spDescriptor = (Element) child;
+			spStart = (int) writer.getBytesWritten();
+			writer.startElement(spDescriptor.getPrefix(), spDescriptor.getNamespaceURI(), spDescriptor.getLocalName());
+			writeAttributes(writer, spDescriptor);
+			//Gli endpoint sono contigui nell'ordine dello schema: se assenti il blocco vuoto è prima degli elementi che li seguono
+			for (Node spChild = spDescriptor.getFirstChild(); spChild != null; spChild = spChild.getNextSibling()) {
+				if( isMetadataElement(spChild, SingleLogoutService.DEFAULT_ELEMENT_LOCAL_NAME) ) {
+					slsStart = slsStart < 0 ? (int) writer.getBytesWritten() : slsStart;
+					writer.writeNode(spChild);
+					slsEnd = (int) writer.getBytesWritten();
+					continue;
+				}
+				if( slsStart < 0 && isMetadataElement(spChild, AFTER_SINGLE_LOGOUT) ) {
+					slsStart = slsEnd = (int) writer.getBytesWritten();
+				}
+				if( isMetadataElement(spChild, AssertionConsumerService.DEFAULT_ELEMENT_LOCAL_NAME) ) {
+					acsStart = acsStart < 0 ? (int) writer.getBytesWritten() : acsStart;
+					writer.writeNode(spChild);
+					acsEnd = (int) writer.getBytesWritten();
+					continue;
+				}
+				if( acsStart < 0 && isMetadataElement(spChild, AFTER_ASSERTION_CONSUMER) ) {
+					acsStart = acsEnd = (int) writer.getBytesWritten();
+				}
+				writer.writeNode(spChild);
+			}
+			if( slsStart < 0 ) {
+				slsStart = slsEnd = (int) writer.getBytesWritten();
+			}
+			if( acsStart < 0 ) {
+				acsStart = acsEnd = (int) writer.getBytesWritten();
+			}
+			writer.endElement();
+		}
+		if( spDescriptor == null ) {
+			throw new IllegalStateException("Nessun "+SPSSODescriptor.DEFAULT_ELEMENT_LOCAL_NAME+" presente nel metadata "+entityId);
+		}
+		writer.endElement();
+		writer.flush();
+		this.spPrefix = spDescriptor.getPrefix();
+		byte[] document = baos.toByteArray();
+		String startTag = new String(document, 0, rootStartTagEnd, StandardCharsets.UTF_8);
+		String validUntilAttribute = " " + EntityDescriptor.VALID_UNTIL_ATTRIB_NAME + "=\"" + VALID_UNTIL_MARKER + "\"";
+		int idIndex = startTag.indexOf(ID_MARKER);
+		int validUntilIndex = startTag.indexOf(validUntilAttribute);
+		if( idIndex < 0 || validUntilIndex < idIndex ) {
+			throw new IllegalStateException("Attributi ID e validUntil non trovati nel tag di apertura del metadata "+entityId);
+		}
+		this.rootHead = startTag.substring(0, idIndex).getBytes(StandardCharsets.UTF_8);
+		this.rootMiddle = startTag.substring(idIndex + ID_MARKER.length(), validUntilIndex).getBytes(StandardCharsets.UTF_8);
+		this.rootTail = startTag.substring(validUntilIndex + validUntilAttribute.length()).getBytes(StandardCharsets.UTF_8);
+		this.beforeSpDescriptor = Arrays.copyOfRange(document, rootStartTagEnd, spStart);
+		this.spDescriptorHead = Arrays.copyOfRange(document, spStart, slsStart);
+		this.singleLogoutServices = Arrays.copyOfRange(document, slsStart, slsEnd);
+		this.spDescriptorMiddle = Arrays.copyOfRange(document, slsEnd, acsStart);
+		this.assertionConsumerServices = Arrays.copyOfRange(document, acsStart, acsEnd);
+		this.tail = Arrays.copyOfRange(document, acsEnd, document.length);
+		if( logger.isDebugEnabled() ) {
+			logger.debug("Compilato template del metadata per l'entity ID {} ({} byte)", entityId, document.length);
+		}
+	}
+	/**
+	 * Crea una nuova istanza del metadata con un nuovo ID e la scrive sull'{@link OutputStream} passato in ingresso. Lo stream non viene chiuso.
+	 * @param validUntil -la data di fine validità del metadata. Se null l'attributo validUntil non viene valorizzato
+	 * @param out -l'{@link OutputStream} su cui scrivere il metadata (UTF-8, forma canonica)
+	 * @return -l'ID del nuovo metadata
+	 * @throws IOException -sollevata in caso di errore di scrittura
+	 */
+	public String render(DateTime validUntil, OutputStream out) throws IOException {
+		return render(validUntil, null, null, out);
+	}
+	/**
+	 * Crea una nuova istanza del metadata con un nuovo ID sostituendo, se indicati, i {@link SingleLogoutService} e gli {@link AssertionConsumerService}.
+	 * Lo stream non viene chiuso.
+	 * @param validUntil -la data di fine validità del metadata. Se null l'attributo validUntil non viene valorizzato
+	 * @param singleLogoutService -i nuovi {@link SingleLogoutService}. Se null vengono mantenuti quelli del template
+	 * @param assertionConsumerServices -i nuovi {@link AssertionConsumerService}. Se null vengono mantenuti quelli del template
+	 * @param out -l'{@link OutputStream} su cui scrivere il metadata (UTF-8, forma canonica)
+	 * @return -l'ID del nuovo metadata
+	 * @throws IOException -sollevata in caso di errore di scrittura
+	 */
+	public String render(DateTime validUntil, List<SamlBindingUtils> singleLogoutService, List<SamlAssertionConsumerServiceUtil> assertionConsumerServices,
+			OutputStream out) throws IOException {
+		String id = OpenSAMLUtils.generateSecureRandomId();
+		byte[][] segments = segments(id, validUntil, singleLogoutService, assertionConsumerServices);
+		out.write(XML_DECLARATION);
+		for (byte[] segment : segments) {
+			out.write(segment);
+		}
+		out.flush();
+		return id;
+	}
+	/**
+	 * Crea una nuova istanza del metadata con un nuovo ID
+	 * @param validUntil -la data di fine validità del metadata. Se null l'attributo validUntil non viene valorizzato
+	 * @return -i byte UTF-8 del metadata
+	 * @throws IOException -sollevata in caso di errore di scrittura
+	 */
+	public byte[] render(DateTime validUntil) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(8192);
+		render(validUntil, baos);
+		return baos.toByteArray();
+	}
+	/**
+	 * Crea una nuova istanza del metadata e la firma XML-Sig (RSA-SHA512, Exclusive C14N) prima del SPSSODescriptor: il digest viene calcolato
+	 * direttamente sui segmenti, senza costruire né canonicalizzare un DOM. Lo stream non viene chiuso.
+	 * @param validUntil -la data di fine validità del metadata. Se null l'attributo validUntil non viene valorizzato
+	 * @param singleLogoutService -i nuovi {@link SingleLogoutService}. Se null vengono mantenuti quelli del template
+	 * @param assertionConsumerServices -i nuovi {@link AssertionConsumerService}. Se null vengono mantenuti quelli del template
+	 * @param signer -lo {@link StreamingXmlSigner} con cui firmare
+	 * @param out -l'{@link OutputStream} su cui scrivere il metadata firmato (UTF-8)
+	 * @return -l'ID del nuovo metadata
+	 * @throws Exception -sollevata in caso di errore nella scrittura o nella firma
+	 */
+	public String renderSigned(DateTime validUntil, List<SamlBindingUtils> singleLogoutService, List<SamlAssertionConsumerServiceUtil> assertionConsumerServices,
+			StreamingXmlSigner signer, OutputStream out) throws Exception {
+		String id = OpenSAMLUtils.generateSecureRandomId();
+		byte[][] segments = segments(id, validUntil, singleLogoutService, assertionConsumerServices);
+		MessageDigest digest = signer.newDigest();
+		for (byte[] segment : segments) {
+			digest.update(segment);
+		}
+		byte[] signature = signer.sign("#" + id, digest);
+		out.write(XML_DECLARATION);
+		for (int i = 0; i < segments.length; i++) {
+			if( i == SIGNATURE_SEGMENT ) {
+				out.write(signature);
+			}
+			out.write(segments[i]);
+		}
+		out.flush();
+		return id;
+	}
+	/**
+	 * Crea una nuova istanza del metadata, la firma XML-Sig e la scrive sull'{@link OutputStream} passato in ingresso. Lo stream non viene chiuso.
+	 * La chiave deve essere RSA: per firmare molte istanze con la stessa chiave conviene
+	 * {@link #renderSigned(DateTime, List, List, StreamingXmlSigner, OutputStream)} con uno {@link StreamingXmlSigner} riutilizzato
+	 * @param validUntil -la data di fine validità del metadata. Se null l'attributo validUntil non viene valorizzato
+	 * @param singleLogoutService -i nuovi {@link SingleLogoutService}. Se null vengono mantenuti quelli del template
+	 * @param assertionConsumerServices -i nuovi {@link AssertionConsumerService}. Se null vengono mantenuti quelli del template
+	 * @param privateKey -la {@link PrivateKey} RSA da utilizzare per la firma
+	 * @param cert -il {@link java.security.cert.X509Certificate} da utilizzare per la firma
+	 * @param out -l'{@link OutputStream} su cui scrivere il metadata firmato (UTF-8)
+	 * @throws Exception -sollevata in caso di errore
+	 */
+	public void renderSigned(DateTime validUntil, List<SamlBindingUtils> singleLogoutService, List<SamlAssertionConsumerServiceUtil> assertionConsumerServices,
+			PrivateKey privateKey, java.security.cert.X509Certificate cert, OutputStream out) throws Exception {
+		renderSigned(validUntil, singleLogoutService, assertionConsumerServices, new StreamingXmlSigner(new SigningCredential(privateKey, cert)), out);
+	}
+	/**
+	 * Crea una nuova istanza del metadata e la firma XML-Sig
+	 * @param validUntil -la data di fine validità del metadata. Se null l'attributo validUntil non viene valorizzato
+	 * @param privateKey -la {@link PrivateKey} RSA da utilizzare per la firma
+	 * @param cert -il {@link java.security.cert.X509Certificate} da utilizzare per la firma
+	 * @return -La stringa rappresentante il metadata firmato
+	 * @throws Exception -sollevata in caso di errore
+	 */
+	public String renderSigned(DateTime validUntil, PrivateKey privateKey, java.security.cert.X509Certificate cert) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(8192);
+		renderSigned(validUntil, null, null, privateKey, cert, baos);
+		return baos.toString(StandardCharsets.UTF_8);
+	}
+	public String getEntityId() {
+		return entityId;
+	}
+	/**
+	 * Segmenti dell'istanza nell'ordine del documento. La firma va inserita prima del segmento {@value #SIGNATURE_SEGMENT}
+	 */
+	private byte[][] segments(String id, DateTime validUntil, List<SamlBindingUtils> singleLogoutService,
+			List<SamlAssertionConsumerServiceUtil> assertionConsumerServices) throws IOException {
+		byte[] validUntilAttribute = validUntil == null ? EMPTY : (" " + EntityDescriptor.VALID_UNTIL_ATTRIB_NAME + "=\""
+				+ SAMLConfigurationSupport.getSAMLDateFormatter().print(validUntil) + "\"").getBytes(StandardCharsets.UTF_8);
+		return new byte[][] { rootHead, id.getBytes(StandardCharsets.UTF_8), rootMiddle, validUntilAttribute, rootTail, beforeSpDescriptor,
+				spDescriptorHead,
+				singleLogoutService == null ? singleLogoutServices : endpoints(singleLogoutService, null),
+				spDescriptorMiddle,
+				assertionConsumerServices == null ? this.assertionConsumerServices : endpoints(null, assertionConsumerServices),
+				tail };
+	}
+	/**
+	 * Scrive in forma canonica gli endpoint indicati nel contesto dei namespace del SPSSODescriptor, in modo che i byte siano quelli del documento
+	 */
+	private byte[] endpoints(List<SamlBindingUtils> singleLogoutService, List<SamlAssertionConsumerServiceUtil> assertionConsumerServices) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(512);
+		CanonicalXmlWriter writer = new CanonicalXmlWriter(baos);
+		writer.startElement(rootPrefix, rootNamespaceUri, rootLocalName);
+		writer.startElement(spPrefix, SAMLConstants.SAML20MD_NS, SPSSODescriptor.DEFAULT_ELEMENT_LOCAL_NAME);
+		int start = (int) writer.getBytesWritten();
+		if( singleLogoutService != null ) {
+			MetadataStreamSerializer.writeEndpoints(writer, SingleLogoutService.DEFAULT_ELEMENT_LOCAL_NAME, singleLogoutService);
+		}else {
+			MetadataStreamSerializer.writeAssertionConsumerServices(writer, assertionConsumerServices);
+		}
+		int end = (int) writer.getBytesWritten();
+		writer.flush();
+		return Arrays.copyOfRange(baos.toByteArray(), start, end);
+	}
+	/**
+	 * Copia gli attributi dell'elemento, escluse le dichiarazioni di namespace, sostituendo l'ID con il segnaposto
+	 */
+	private static void writeAttributes(CanonicalXmlWriter writer, Element element) {
+		NamedNodeMap attributes = element.getAttributes();
+		for (int i = 0; i < attributes.getLength(); i++) {
+			Attr attr = (Attr) attributes.item(i);
+			String localName = attr.getLocalName() == null ? attr.getName() : attr.getLocalName();
+			if( XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attr.getNamespaceURI()) || (attr.getNamespaceURI() == null && attr.getName().startsWith(XMLConstants.XMLNS_ATTRIBUTE)) ) {
+				continue;
+			}
+			if( attr.getNamespaceURI() == null && ID_ATTRIB_NAME.equals(localName) ) {
+				writer.attribute(ID_ATTRIB_NAME, ID_MARKER);
+			}else if( attr.getNamespaceURI() == null && EntityDescriptor.VALID_UNTIL_ATTRIB_NAME.equals(localName) ) {
+				//Sostituito dal segnaposto aggiunto dal chiamante
+				continue;
+			}else {
+				writer.attribute(attr.getPrefix(), attr.getNamespaceURI(), localName, attr.getValue());
+			}
+		}
+	}
+	private static boolean isMetadataElement(Node node, String localName) {
+		return node.getNodeType() == Node.ELEMENT_NODE && SAMLConstants.SAML20MD_NS.equals(node.getNamespaceURI()) && localName.equals(node.getLocalName());
+	}
+	private static boolean isMetadataElement(Node node, List<String> localNames) {
+		return node.getNodeType() == Node.ELEMENT_NODE && SAMLConstants.SAML20MD_NS.equals(node.getNamespaceURI()) && localNames.contains(node.getLocalName());
+	}
+}
@@ -0,0 +1,235 @@
+package it.agid.spid.saml.core;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.agid.spid.saml.core.dto.SamlIncrementalGenerationResult;
+import it.agid.spid.saml.core.dto.SamlMetadataBatchResult;
+import it.agid.spid.saml.core.dto.SamlSoggettoAggregatoDto;
+import it.agid.spid.saml.core.dto.SamlSoggettoAggregatoreDto;
+import it.agid.spid.saml.core.utils.StringUtil;
+
+/**
+ * Generazione incrementale dei metadata firmati dei soggetti aggregati. Per ogni soggetto aggregato viene calcolato un hash SHA-256
+ * di tutti gli input del metadata: i DTO del soggetto aggregatore e del soggetto aggregato (organizzazione, contatti, dati di fatturazione,
+ * certificati, attributi, endpoint) e il certificato di firma. Il metadata firmato viene salvato nella cartella di output insieme
+ * all'hash e all'istante di generazione; alle esecuzioni successive vengono rigenerati e firmati solo i soggetti aggregati i cui input
+ * o la cui chiave di firma sono cambiati, il cui metadata non è presente su disco o è più vecchio della durata massima indicata.
+ * L'hash è calcolato sul contenuto dei campi dei DTO e non dipende dall'implementazione delle liste né dall'identità degli oggetti
+ */
+public class SpSoggettoAggregatoreIncrementalGenerator {
+	private static final Logger logger = LoggerFactory.getLogger(SpSoggettoAggregatoreIncrementalGenerator.class.getName());
+	public static final String METADATA_EXTENSION = ".xml";
+	public static final String HASH_EXTENSION = ".hash";
+	/**
+	 * Versione del metadata prodotto: va incrementata se, a parità di input, cambia il metadata generato dal builder
+	 */
+	private static final int FORMAT_VERSION = 1;
+	private static final String DTO_PACKAGE = SamlSoggettoAggregatoDto.class.getPackage().getName();
+	private static final ClassValue<Field[]> HASHED_FIELDS = new ClassValue<Field[]>() {
+		@Override
+		protected Field[] computeValue(Class<?> type) {
+			List<Field> fields = new ArrayList<>();
+			for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+				for (Field field : c.getDeclaredFields()) {
+					if( !Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers()) ) {
+						field.setAccessible(true);
+						fields.add(field);
+					}
+				}
+			}
+			fields.sort(Comparator.comparing(Field::getName));
+			return fields.toArray(new Field[0]);
+		}
+	};
+	private final SpSoggettoAggregatoreMetadataBuilder builder;
+	private final Path outputDirectory;
+	private final long maxAgeMillis;
+	/**
+	 * Crea il generatore
+	 * @param outputDirectory -la cartella in cui salvare i metadata firmati e i relativi hash
+	 * @param maxAgeMillis -età massima in millisecondi di un metadata prima della rigenerazione, da scegliere in modo da rinnovare la firma
+	 * prima della scadenza. Se minore o uguale a 0 i metadata vengono rigenerati solo al cambiamento degli input
+	 */
+	public SpSoggettoAggregatoreIncrementalGenerator(Path outputDirectory, long maxAgeMillis) {
+		this.builder = SpSoggettoAggregatoreMetadataBuilder.getInstance();
+		this.outputDirectory = outputDirectory;
+		this.maxAgeMillis = maxAgeMillis;
+	}
+	/**
+	 * Rigenera e firma i metadata dei soggetti aggregati i cui input sono cambiati con
+	 * {@link SpSoggettoAggregatoreMetadataBuilder#buildSignedSpMetadata(SamlSoggettoAggregatoreDto, Collection, PrivateKey, X509Certificate, int)}
+	 * e li salva nella cartella di output
+	 * @param soggettoAggregatore -le informazioni comuni del soggetto aggregatore
+	 * @param soggettiAggregati -la {@link Collection} dei soggetti aggregati
+	 * @param privateKey -la {@link PrivateKey} da utilizzare per la firma
+	 * @param cert -il {@link X509Certificate} da utilizzare per la firma
+	 * @param parallelism -numero massimo di metadata generati contemporaneamente. Se minore di 1 viene usato il numero di processori disponibili
+	 * @return -il {@link SamlIncrementalGenerationResult} con i soggetti aggregati rigenerati e quelli invariati
+	 * @throws Exception -sollevata se non è possibile costruire le parti comuni del metadata o scrivere nella cartella di output
+	 */
+	public SamlIncrementalGenerationResult generate(SamlSoggettoAggregatoreDto soggettoAggregatore,
+			Collection<SamlSoggettoAggregatoDto> soggettiAggregati,
+			PrivateKey privateKey,
+			X509Certificate cert,
+			int parallelism) throws Exception {
+		long start = System.currentTimeMillis();
+		Files.createDirectories(outputDirectory);
+		MessageDigest sharedDigest = sha256();
+		updateInt(sharedDigest, FORMAT_VERSION);
+		hash(sharedDigest, soggettoAggregatore);
+		sharedDigest.update(cert.getEncoded());
+		byte[] sharedHash = sharedDigest.digest();
+		List<SamlSoggettoAggregatoDto> toRegenerate = new ArrayList<>();
+		Map<SamlSoggettoAggregatoDto, String> inputHashes = new IdentityHashMap<>();
+		List<String> unchanged = new ArrayList<>();
+		for (SamlSoggettoAggregatoDto soggettoAggregato : soggettiAggregati) {
+			if( soggettoAggregato == null || StringUtil.isEmptyString(soggettoAggregato.getEntityId()) ) {
+				//Il builder riporta l'errore nel relativo risultato
+				toRegenerate.add(soggettoAggregato);
+				continue;
+			}
+			MessageDigest digest = sha256();
+			digest.update(sharedHash);
+			hash(digest, soggettoAggregato);
+			String inputHash = Hex.encodeHexString(digest.digest());
+			if( isUpToDate(soggettoAggregato.getEntityId(), inputHash, start) ) {
+				unchanged.add(soggettoAggregato.getEntityId());
+			}else {
+				toRegenerate.add(soggettoAggregato);
+				inputHashes.put(soggettoAggregato, inputHash);
+			}
+		}
+		List<SamlMetadataBatchResult> regenerated = toRegenerate.isEmpty() ? Collections.emptyList()
+				: builder.buildSignedSpMetadata(soggettoAggregatore, toRegenerate, privateKey, cert, parallelism);
+		for (int i = 0; i < regenerated.size(); i++) {
+			SamlMetadataBatchResult result = regenerated.get(i);
+			if( result.isSuccess() ) {
+				String fileName = fileName(result.getEntityId());
+				writeAtomically(outputDirectory.resolve(fileName + METADATA_EXTENSION), result.getSignedMetadata());
+				//L'hash viene scritto dopo il metadata: un'interruzione tra le due scritture comporta solo una nuova rigenerazione
+				String hashLine = inputHashes.get(toRegenerate.get(i)) + "\t" + start + "\t" + result.getEntityId() + "\n";
+				writeAtomically(outputDirectory.resolve(fileName + HASH_EXTENSION), hashLine.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		SamlIncrementalGenerationResult result = new SamlIncrementalGenerationResult(regenerated, unchanged);
+		if( logger.isInfoEnabled() ) {
+			logger.info("Generazione incrementale in {}: {} in {} ms", outputDirectory, result, System.currentTimeMillis() - start);
+		}
+		return result;
+	}
+	/**
+	 * @param entityId -l'entity ID del soggetto aggregato
+	 * @return -il {@link Path} del metadata firmato del soggetto aggregato nella cartella di output
+	 */
+	public Path getMetadataPath(String entityId) {
+		return outputDirectory.resolve(fileName(entityId) + METADATA_EXTENSION);
+	}
+	/**
+	 * @return -true se il metadata su disco è stato generato con gli stessi input e non ha superato l'età massima
+	 */
+	private boolean isUpToDate(String entityId, String inputHash, long now) {
+		String fileName = fileName(entityId);
+		Path hashFile = outputDirectory.resolve(fileName + HASH_EXTENSION);
+		if( !Files.isRegularFile(hashFile) || !Files.isRegularFile(outputDirectory.resolve(fileName + METADATA_EXTENSION)) ) {
+			return false;
+		}
+		try {
+			String[] stored = new String(Files.readAllBytes(hashFile), StandardCharsets.UTF_8).trim().split("\t");
+			if( stored.length < 2 || !inputHash.equals(stored[0]) ) {
+				return false;
+			}
+			return maxAgeMillis <= 0 || now - Long.parseLong(stored[1]) < maxAgeMillis;
+		} catch (IOException | NumberFormatException e) {
+			if( logger.isDebugEnabled() ) {
+				logger.debug("Hash del metadata di {} non leggibile, il metadata viene rigenerato", entityId, e);
+			}
+			return false;
+		}
+	}
+	/**
+	 * @return -il nome dei file del soggetto aggregato: lo SHA-1 esadecimale dell'entity ID, come nella forma {sha1} del protocollo MDQ
+	 */
+	private static String fileName(String entityId) {
+		try {
+			return Hex.encodeHexString(MessageDigest.getInstance("SHA-1").digest(entityId.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Algoritmo SHA-1 non disponibile", e);
+		}
+	}
+	private static void writeAtomically(Path target, byte[] content) throws IOException {
+		Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+		try {
+			Files.write(temp, content);
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+	/**
+	 * Aggiunge al digest il contenuto del valore: i DTO campo per campo in ordine di nome, le {@link Collection} elemento per elemento,
+	 * gli altri valori con la loro rappresentazione testuale. Ogni valore è preceduto dal tipo e dalla lunghezza, per cui input diversi
+	 * non possono produrre la stessa sequenza di byte
+	 */
+	private static void hash(MessageDigest digest, Object value) throws IllegalAccessException {
+		if( value == null ) {
+			digest.update((byte) 0);
+		}else if( value instanceof Collection ) {
+			Collection<?> collection = (Collection<?>) value;
+			digest.update((byte) 1);
+			updateInt(digest, collection.size());
+			for (Object element : collection) {
+				hash(digest, element);
+			}
+		}else if( DTO_PACKAGE.equals(value.getClass().getPackage().getName()) && !value.getClass().isEnum() ) {
+			digest.update((byte) 2);
+			updateString(digest, value.getClass().getName());
+			for (Field field : HASHED_FIELDS.get(value.getClass())) {
+				updateString(digest, field.getName());
+				hash(digest, field.get(value));
+			}
+		}else {
+			digest.update((byte) 3);
+			updateString(digest, value instanceof Enum ? ((Enum<?>) value).name() : String.valueOf(value));
+		}
+	}
+	private static void updateString(MessageDigest digest, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		updateInt(digest, bytes.length);
+		digest.update(bytes);
+	}
+	private static void updateInt(MessageDigest digest, int value) {
+		digest.update(new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value});
+	}
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Algoritmo SHA-256 non disponibile", e);
+		}
+	}
+	@Override
+	public String toString() {
+		return "SpSoggettoAggregatoreIncrementalGenerator [outputDirectory=" + outputDirectory + ", maxAgeMillis=" + maxAgeMillis + "]";
+	}
+}
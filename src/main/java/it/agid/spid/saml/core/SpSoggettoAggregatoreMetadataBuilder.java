@@ -1,12 +1,19 @@
 package it.agid.spid.saml.core;
 
+import java.io.ByteArrayOutputStream;
+import java.security.PrivateKey;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import javax.xml.namespace.QName;
 
 import org.opensaml.core.xml.Namespace;
 import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.Marshaller;
 import org.opensaml.core.xml.schema.XSAny;
 import org.opensaml.core.xml.schema.impl.XSAnyBuilder;
 import org.opensaml.saml.saml2.core.NameIDType;
@@ -35,15 +42,23 @@ import org.opensaml.xmlsec.signature.X509Certificate;
 import org.opensaml.xmlsec.signature.X509Data;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 import it.agid.spid.saml.core.dto.SamlAssertionConsumerServiceUtil;
 import it.agid.spid.saml.core.dto.SamlAttributeDto;
 import it.agid.spid.saml.core.dto.SamlAttributesConsumingServiceDto;
 import it.agid.spid.saml.core.dto.SamlBindingUtils;
 import it.agid.spid.saml.core.dto.SamlFpaCessionarioCommittente;
+import it.agid.spid.saml.core.dto.SamlMetadataBatchResult;
 import it.agid.spid.saml.core.dto.SamlOrganizationDto;
 import it.agid.spid.saml.core.dto.SamlOtherContactPerson;
+import it.agid.spid.saml.core.dto.SamlSoggettoAggregatoDto;
+import it.agid.spid.saml.core.dto.SamlSoggettoAggregatoreDto;
+import it.agid.spid.saml.core.utils.InsertBeforeElementEnum;
 import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SamlObjectBuilderHandle;
 import it.agid.spid.saml.core.utils.StringUtil;
 import it.agid.spid.saml.spid.utils.SoggettoAggregatoreConvention;
 import it.agid.spid.saml.spid.utils.SpidAggregatorEntityTypeEnum;
@@ -109,6 +124,44 @@ public class SpSoggettoAggregatoreMetadataBuilder extends AbstractMetadataBuilde
 			boolean entePrivato
 			) {
 
+		EntityDescriptor ed = buildSpEntityDescriptor(entityId, wantAuthnRequestSigned, wantAssertionsSigned, supportedProtocol, singleLogoutService, nameIds, assertionConsumerServices);
+		SPSSODescriptor spDescriptor = (SPSSODescriptor) ed.getRoleDescriptors(SPSSODescriptor.DEFAULT_ELEMENT_NAME).get(0);
+		//Costruisco Keydescriptor di tipo signing ed encryption
+		spDescriptor.getKeyDescriptors().addAll(buildKeyDescriptors(base64SigningCertificate, base64EncryptionCertificate));
+		//Costruzione attributi SPID ed eidas
+		spDescriptor.getAttributeConsumingServices().addAll(buildConsumingService(acss));
+		Organization organiza = buildOrganization(organization);
+		ed.setOrganization(organiza);
+		ed.getContactPersons().add(buildContactPerson(informazioniSoggettoAggregatore, true, entePrivato));
+		ed.getContactPersons().add(buildContactPerson(informazioniSoggettoAggregato, false, entePrivato));
+		ContactPerson billingCp = buildBillingContactPerson(informazioniSoggettoAggregatore, cessionarioCommittente);
+		if( billingCp != null ) {
+			ed.getContactPersons().add(billingCp);
+		}
+		return ed;
+	}
+	/**
+	 * Costruisce l'{@link EntityDescriptor} con il relativo {@link SPSSODescriptor}, valorizzando le sole parti proprie di ciascun soggetto aggregato:
+	 * ID, entity ID, attributi del descrittore, {@link SingleLogoutService}, NameIDFormat e {@link AssertionConsumerService}.
+	 * KeyDescriptor, {@link AttributeConsumingService}, {@link Organization} e {@link ContactPerson} vengono aggiunti dal chiamante.
+	 * È usato sia da {@link #buildSpMetadata(String, boolean, boolean, String, List, List, List, List, List, SamlOrganizationDto, SamlOtherContactPerson, SamlOtherContactPerson, SamlFpaCessionarioCommittente, List, boolean)}
+	 * sia dalla generazione in parallelo, per cui i due metadata hanno sempre la stessa struttura
+	 * @param entityId -l'entity ID
+	 * @param wantAuthnRequestSigned -indica se la AuthRequest deve essere firmata
+	 * @param wantAssertionsSigned -indica se le assetion devono essere firmate
+	 * @param supportedProtocol -il protocollo supportato
+	 * @param singleLogoutService -{@link List} di oggetti {@link SamlBindingUtils} per costruire i vari {@link SingleLogoutService}
+	 * @param nameIds -{@link List} dei NameIDFormat
+	 * @param assertionConsumerServices -{@link List} di {@link SamlAssertionConsumerServiceUtil} per costruire gli {@link AssertionConsumerService}
+	 * @return -l'{@link EntityDescriptor}; contiene come unico RoleDescriptor il {@link SPSSODescriptor}
+	 */
+	private EntityDescriptor buildSpEntityDescriptor(String entityId,
+			boolean wantAuthnRequestSigned,
+			boolean wantAssertionsSigned,
+			String supportedProtocol,
+			List<SamlBindingUtils> singleLogoutService,
+			List<String> nameIds,
+			List<SamlAssertionConsumerServiceUtil> assertionConsumerServices) {
 		EntityDescriptor ed = OpenSAMLUtils.buildSAMLObject(EntityDescriptor.class);
 		//SPID name space 
 		Namespace spidNs = new Namespace(SPID_NS_URI, SPID_NS_PREFIX);
@@ -122,51 +175,209 @@ public class SpSoggettoAggregatoreMetadataBuilder extends AbstractMetadataBuilde
 		spDescriptor.setWantAssertionsSigned(wantAssertionsSigned);
 		//Per SPID deve essere "urn:oasis:names:tc:SAML:2.0:protocol"
 		spDescriptor.addSupportedProtocol(supportedProtocol);
-		//Costruisco Keydescriptor di tipo signing ed encryption
+		List<SingleLogoutService> slss = buildSingleLogoutServices(singleLogoutService);
+		if( slss != null ) {
+
+			spDescriptor.getSingleLogoutServices().addAll(slss);
+		}
+		nameIds.forEach(nameId->{
+			NameIDFormat nidf = OpenSAMLUtils.buildSAMLObject(NameIDFormat.class);
+			nidf.setFormat(nameId);
+			spDescriptor.getNameIDFormats().add(nidf);
+		});
+		spDescriptor.getAssertionConsumerServices().addAll(buildAssertionConsumerServices(assertionConsumerServices));
+		ed.getRoleDescriptors(SPSSODescriptor.DEFAULT_ELEMENT_NAME).add(spDescriptor);
+		return ed;
+	}
+	/**
+	 * Costruisce i KeyDescriptor di tipo signing ed encryption. Se una delle due liste di certificati è vuota il relativo KeyDescriptor non viene costruito
+	 * @param base64SigningCertificate -i certificati in base 64 di firma
+	 * @param base64EncryptionCertificate -i certificati in base 64 di cifratura
+	 * @return -il {@link List} di {@link KeyDescriptor}
+	 */
+	private List<KeyDescriptor> buildKeyDescriptors(List<String> base64SigningCertificate, List<String> base64EncryptionCertificate) {
+		List<KeyDescriptor> kds = new ArrayList<KeyDescriptor>(2);
 		if( base64SigningCertificate != null && !base64SigningCertificate.isEmpty() ) {
 
-			spDescriptor.getKeyDescriptors().add(buildKeyDescr(base64SigningCertificate, UsageType.SIGNING));
+			kds.add(buildKeyDescr(base64SigningCertificate, UsageType.SIGNING));
 		}else {
 			if( logger.isWarnEnabled() ) {
 				logger.warn("Nessun certificato in base 64 passato per lo usage di tipo SIGNING");
 			}
 		}
 		if( base64EncryptionCertificate != null && !base64EncryptionCertificate.isEmpty() ) {
-			spDescriptor.getKeyDescriptors().add(buildKeyDescr(base64EncryptionCertificate, UsageType.ENCRYPTION));
+			kds.add(buildKeyDescr(base64EncryptionCertificate, UsageType.ENCRYPTION));
 		}else {
 			if( logger.isWarnEnabled() ) {
 				logger.warn("Nessun certificato in base 64 passato per lo usage di tipo ENCRYPTION");
 			}
 		}
-		List<SingleLogoutService> slss = buildSingleLogoutServices(singleLogoutService);
-		if( slss != null ) {
+		return kds;
+	}
+	/**
+	 * Costruisce il {@link ContactPerson} di fatturazione, previsto solo per il soggetto aggregatore privato
+	 * @param informazioniSoggettoAggregatore -le informazioni del soggetto aggregatore
+	 * @param cessionarioCommittente -i dati di fatturazione
+	 * @return -il {@link ContactPerson} di fatturazione, null se il soggetto aggregatore è pubblico o i dati di fatturazione sono assenti
+	 */
+	private ContactPerson buildBillingContactPerson(SamlOtherContactPerson informazioniSoggettoAggregatore, SamlFpaCessionarioCommittente cessionarioCommittente) {
+		if( informazioniSoggettoAggregatore.isSpPubblico() ) {
+			return null;
+		}
+		if( cessionarioCommittente == null ) {
+			if( logger.isWarnEnabled() ) {
+				logger.warn("Siamo in caso di ente privato ma cessionario committente nullo");
+			}
+			return null;
+		}
+		return buildBillingContactType(cessionarioCommittente);
+	}
 
-			spDescriptor.getSingleLogoutServices().addAll(slss);
+	/**
+	 * Costruisce e firma in parallelo i metadata di un insieme di soggetti aggregati dello stesso soggetto aggregatore.
+	 * Le parti comuni (KeyDescriptor, {@link AttributeConsumingService}, {@link Organization} e {@link ContactPerson} del soggetto aggregatore
+	 * e di fatturazione) vengono costruite e serializzate una sola volta e poi copiate nel metadata di ciascun soggetto aggregato.
+	 * Il metadata prodotto è identico a quello ottenuto con {@link #buildSpMetadata(String, boolean, boolean, String, List, List, List, List, List, SamlOrganizationDto, SamlOtherContactPerson, SamlOtherContactPerson, SamlFpaCessionarioCommittente, List, boolean)}
+	 * e successiva firma. Un errore su un soggetto aggregato non interrompe l'elaborazione degli altri ma viene riportato nel relativo
+	 * {@link SamlMetadataBatchResult}
+	 * @param soggettoAggregatore -le informazioni comuni del soggetto aggregatore
+	 * @param soggettiAggregati -la {@link Collection} dei soggetti aggregati di cui generare il metadata
+	 * @param privateKey -la {@link PrivateKey} da utilizzare per la firma
+	 * @param cert -il {@link java.security.cert.X509Certificate} da utilizzare per la firma
+	 * @param parallelism -numero massimo di metadata generati contemporaneamente. Se minore di 1 viene usato il numero di processori disponibili
+	 * @return -il {@link List} di {@link SamlMetadataBatchResult} nello stesso ordine dei soggetti aggregati in ingresso
+	 * @throws Exception -sollevata se non è possibile costruire le parti comuni del metadata
+	 */
+	public List<SamlMetadataBatchResult> buildSignedSpMetadata(SamlSoggettoAggregatoreDto soggettoAggregatore,
+			Collection<SamlSoggettoAggregatoDto> soggettiAggregati,
+			PrivateKey privateKey,
+			java.security.cert.X509Certificate cert,
+			int parallelism) throws Exception {
+		SharedMetadataParts sharedParts = new SharedMetadataParts(soggettoAggregatore);
+		int threads = parallelism < 1 ? Runtime.getRuntime().availableProcessors() : parallelism;
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			List<ForkJoinTask<SamlMetadataBatchResult>> tasks = new ArrayList<ForkJoinTask<SamlMetadataBatchResult>>(soggettiAggregati.size());
+			for (SamlSoggettoAggregatoDto soggettoAggregato : soggettiAggregati) {
+				tasks.add(pool.submit(() -> buildSignedSpMetadata(sharedParts, soggettoAggregato, privateKey, cert)));
+			}
+			List<SamlMetadataBatchResult> result = new ArrayList<SamlMetadataBatchResult>(tasks.size());
+			for (ForkJoinTask<SamlMetadataBatchResult> task : tasks) {
+				result.add(task.join());
+			}
+			if( logger.isDebugEnabled() ) {
+				logger.debug("Generati {} metadata di soggetti aggregati con parallelismo {}", result.size(), threads);
+			}
+			return result;
+		}finally {
+			pool.shutdown();
 		}
-		nameIds.forEach(nameId->{
-			NameIDFormat nidf = OpenSAMLUtils.buildSAMLObject(NameIDFormat.class);
-			nidf.setFormat(nameId);
-			spDescriptor.getNameIDFormats().add(nidf);
-		});
-		spDescriptor.getAssertionConsumerServices().addAll(buildAssertionConsumerServices(assertionConsumerServices));
-		//Costruzione attributi SPID ed eidas
-		spDescriptor.getAttributeConsumingServices().addAll(buildConsumingService(acss));
-		Organization organiza = buildOrganization(organization);
-		ed.setOrganization(organiza);
-		ed.getContactPersons().add(buildContactPerson(informazioniSoggettoAggregatore, true, entePrivato));
-		ed.getContactPersons().add(buildContactPerson(informazioniSoggettoAggregato, false, entePrivato));
-		if( !informazioniSoggettoAggregatore.isSpPubblico() ) {
-			if( cessionarioCommittente != null ) {
+	}
+	/**
+	 * Costruisce e firma il metadata del singolo soggetto aggregato riutilizzando le parti comuni
+	 * @param sharedParts -le parti comuni già serializzate
+	 * @param soggettoAggregato -il soggetto aggregato
+	 * @param privateKey -la {@link PrivateKey} da utilizzare per la firma
+	 * @param cert -il {@link java.security.cert.X509Certificate} da utilizzare per la firma
+	 * @return -il {@link SamlMetadataBatchResult} contenente il metadata firmato o l'errore riscontrato
+	 */
+	private SamlMetadataBatchResult buildSignedSpMetadata(SharedMetadataParts sharedParts, SamlSoggettoAggregatoDto soggettoAggregato, PrivateKey privateKey, java.security.cert.X509Certificate cert) {
+		String entityId = soggettoAggregato == null ? null : soggettoAggregato.getEntityId();
+		try {
+			if( soggettoAggregato == null || StringUtil.isEmptyString(entityId) ) {
+				throw new IllegalArgumentException("Passato un soggetto aggregato nullo o senza entity ID ["+soggettoAggregato+"]");
+			}
+			SamlSoggettoAggregatoreDto aggregatore = sharedParts.soggettoAggregatore;
+			EntityDescriptor ed = buildSpEntityDescriptor(entityId, aggregatore.isWantAuthnRequestSigned(), aggregatore.isWantAssertionsSigned(), aggregatore.getSupportedProtocol(),
+					soggettoAggregato.getSingleLogoutService(), aggregatore.getNameIds(), soggettoAggregato.getAssertionConsumerServices());
+			SPSSODescriptor spDescriptor = (SPSSODescriptor) ed.getRoleDescriptors(SPSSODescriptor.DEFAULT_ELEMENT_NAME).get(0);
+			if( soggettoAggregato.getOrganization() != null ) {
+				ed.setOrganization(buildOrganization(soggettoAggregato.getOrganization()));
+			}
+			ContactPerson aggregatoCp = buildContactPerson(soggettoAggregato.getInformazioniSoggettoAggregato(), false, aggregatore.isEntePrivato());
+			ed.getContactPersons().add(aggregatoCp);
+			Element root = XMLObjectProviderRegistrySupport.getMarshallerFactory().getMarshaller(ed).marshall(ed);
+			//Inserisco le parti comuni nelle posizioni previste dallo schema: KeyDescriptor in testa e AttributeConsumingService in coda
+			//al SPSSODescriptor, Organization e ContactPerson del soggetto aggregatore prima del soggetto aggregato, fatturazione in coda
+			Document doc = root.getOwnerDocument();
+			Element spDescriptorElement = spDescriptor.getDOM();
+			Node firstSpChild = spDescriptorElement.getFirstChild();
+			for (Element keyDescriptor : sharedParts.keyDescriptors) {
+				spDescriptorElement.insertBefore(sharedParts.importInto(doc, keyDescriptor), firstSpChild);
+			}
+			for (Element acs : sharedParts.attributeConsumingServices) {
+				spDescriptorElement.appendChild(sharedParts.importInto(doc, acs));
+			}
+			if( soggettoAggregato.getOrganization() == null ) {
+				root.insertBefore(sharedParts.importInto(doc, sharedParts.organization), aggregatoCp.getDOM());
+			}
+			root.insertBefore(sharedParts.importInto(doc, sharedParts.aggregatorContactPerson), aggregatoCp.getDOM());
+			if( sharedParts.billingContactPerson != null ) {
+				root.appendChild(sharedParts.importInto(doc, sharedParts.billingContactPerson));
+			}
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(8192);
+			signMetadata(ed, privateKey, cert, "", InsertBeforeElementEnum.SP_TAG, baos);
+			return new SamlMetadataBatchResult(entityId, baos.toByteArray(), null);
+		}catch (Exception e) {
+			if( logger.isWarnEnabled() ) {
+				logger.warn("Errore nella generazione del metadata del soggetto aggregato {}", entityId, e);
+			}
+			return new SamlMetadataBatchResult(entityId, null, e);
+		}
+	}
+	/**
+	 * Parti del metadata comuni a tutti i soggetti aggregati. Vengono costruite una sola volta dentro un {@link EntityDescriptor}
+	 * prototipo (in modo da ereditare le stesse dichiarazioni di namespace del metadata finale) e serializzate in DOM;
+	 * per ogni soggetto aggregato ne viene importata una copia direttamente nel DOM del suo metadata, prima della firma.
+	 */
+	private class SharedMetadataParts {
+		private final SamlSoggettoAggregatoreDto soggettoAggregatore;
+		private final List<Element> keyDescriptors = new ArrayList<Element>(2);
+		private final List<Element> attributeConsumingServices = new ArrayList<Element>();
+		private final Element organization;
+		private final Element aggregatorContactPerson;
+		private final Element billingContactPerson;
 
-				ed.getContactPersons().add(buildBillingContactType(cessionarioCommittente));
-			}else {
-				if( logger.isWarnEnabled() ) {
-					logger.warn("Siamo in caso di ente privato ma cessionario committente nullo");
-				}
+		private SharedMetadataParts(SamlSoggettoAggregatoreDto soggettoAggregatore) throws Exception {
+			if( soggettoAggregatore == null || soggettoAggregatore.getInformazioniSoggettoAggregatore() == null ) {
+				throw new IllegalArgumentException("Passato un soggetto aggregatore nullo o senza informazioni di contatto ["+soggettoAggregatore+"]");
+			}
+			this.soggettoAggregatore = soggettoAggregatore;
+			EntityDescriptor prototype = OpenSAMLUtils.buildSAMLObject(EntityDescriptor.class);
+			prototype.getNamespaceManager().registerNamespaceDeclaration(new Namespace(SPID_NS_URI, SPID_NS_PREFIX));
+			SPSSODescriptor spDescriptor = OpenSAMLUtils.buildSAMLObject(SPSSODescriptor.class);
+			List<KeyDescriptor> kds = buildKeyDescriptors(soggettoAggregatore.getBase64SigningCertificate(), soggettoAggregatore.getBase64EncryptionCertificate());
+			spDescriptor.getKeyDescriptors().addAll(kds);
+			List<AttributeConsumingService> acss = buildConsumingService(soggettoAggregatore.getAcss());
+			spDescriptor.getAttributeConsumingServices().addAll(acss);
+			Organization organiza = buildOrganization(soggettoAggregatore.getOrganization());
+			prototype.setOrganization(organiza);
+			ContactPerson aggregatorCp = buildContactPerson(soggettoAggregatore.getInformazioniSoggettoAggregatore(), true, soggettoAggregatore.isEntePrivato());
+			prototype.getContactPersons().add(aggregatorCp);
+			ContactPerson billingCp = buildBillingContactPerson(soggettoAggregatore.getInformazioniSoggettoAggregatore(), soggettoAggregatore.getCessionarioCommittente());
+			if( billingCp != null ) {
+				prototype.getContactPersons().add(billingCp);
+			}
+			prototype.getRoleDescriptors(SPSSODescriptor.DEFAULT_ELEMENT_NAME).add(spDescriptor);
+			Marshaller marshaller = XMLObjectProviderRegistrySupport.getMarshallerFactory().getMarshaller(prototype);
+			marshaller.marshall(prototype);
+			kds.forEach(kd -> keyDescriptors.add(kd.getDOM()));
+			acss.forEach(acs -> attributeConsumingServices.add(acs.getDOM()));
+			this.organization = organiza.getDOM();
+			this.aggregatorContactPerson = aggregatorCp.getDOM();
+			this.billingContactPerson = billingCp == null ? null : billingCp.getDOM();
+		}
+		/**
+		 * Importa nel documento indicato una copia profonda dell'elemento comune. Le copie sono serializzate sull'istanza, condivisa tra i thread del batch
+		 * @param doc -il {@link Document} del metadata del soggetto aggregato
+		 * @param template -l'{@link Element} da copiare
+		 * @return -l'{@link Element} copiato, non ancora inserito nel documento
+		 */
+		private Element importInto(Document doc, Element template) {
+			synchronized (this) {
+				return (Element) doc.importNode(template, true);
 			}
 		}
-		ed.getRoleDescriptors(SPSSODescriptor.DEFAULT_ELEMENT_NAME).add(spDescriptor);
-		return ed;
 	}
 
 	private ContactPerson buildContactPerson(SamlOtherContactPerson spidAggregator, boolean cpSoggettoAggregatore, boolean entePrivato) {
@@ -452,9 +663,11 @@ public class SpSoggettoAggregatoreMetadataBuilder extends AbstractMetadataBuilde
 		KeyDescriptor result = OpenSAMLUtils.buildSAMLObject(KeyDescriptor.class);
 		result.setUse(usage);
 		KeyInfo keyInfo = OpenSAMLUtils.buildSAMLObject(KeyInfo.class);
+		SamlObjectBuilderHandle<X509Data> x509DataBuilder = OpenSAMLUtils.builderFor(X509Data.class);
+		SamlObjectBuilderHandle<X509Certificate> x509CertificateBuilder = OpenSAMLUtils.builderFor(X509Certificate.class);
 		base64Cert.forEach(cer ->{
-			X509Data x509Data = OpenSAMLUtils.buildSAMLObject(X509Data.class);
-			X509Certificate certificato = OpenSAMLUtils.buildSAMLObject(X509Certificate.class);
+			X509Data x509Data = x509DataBuilder.build();
+			X509Certificate certificato = x509CertificateBuilder.build();
 			certificato.setValue(cer);
 			x509Data.getX509Certificates().add(certificato);
 			keyInfo.getX509Datas().add(x509Data);
@@ -468,6 +681,7 @@ public class SpSoggettoAggregatoreMetadataBuilder extends AbstractMetadataBuilde
 	 */
 	private List<AttributeConsumingService> buildConsumingService(List<SamlAttributesConsumingServiceDto> acss) {
 		List<AttributeConsumingService> result = new ArrayList<AttributeConsumingService>(acss.size());
+		SamlObjectBuilderHandle<RequestedAttribute> requestedAttributeBuilder = OpenSAMLUtils.builderFor(RequestedAttribute.class);
 		acss.forEach(acs -> {
 			AttributeConsumingService anAcs = OpenSAMLUtils.buildSAMLObject(AttributeConsumingService.class);
 			anAcs.setIndex(acs.getIndex());
@@ -477,7 +691,7 @@ public class SpSoggettoAggregatoreMetadataBuilder extends AbstractMetadataBuilde
 			anAcs.getNames().add(serviceName);
 			List<SamlAttributeDto> attributi = acs.getAttrs();
 			attributi.forEach(attributo ->{
-				RequestedAttribute samlAttr = OpenSAMLUtils.buildSAMLObject(RequestedAttribute.class);
+				RequestedAttribute samlAttr = requestedAttributeBuilder.build();
 				if( !StringUtil.isEmptyString(attributo.getFriendlyName()) ) {
 
 					samlAttr.setFriendlyName(attributo.getFriendlyName());
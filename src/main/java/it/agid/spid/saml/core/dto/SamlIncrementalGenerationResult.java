@@ -0,0 +1,42 @@
+package it.agid.spid.saml.core.dto;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Esito della generazione incrementale dei metadata dei soggetti aggregati
+ */
+public class SamlIncrementalGenerationResult implements Serializable {
+
+	private static final long serialVersionUID = 2164087345501093867L;
+	private final List<SamlMetadataBatchResult> regenerated;
+	private final List<String> unchangedEntityIds;
+	public SamlIncrementalGenerationResult(List<SamlMetadataBatchResult> regenerated, List<String> unchangedEntityIds) {
+		super();
+		this.regenerated = regenerated;
+		this.unchangedEntityIds = unchangedEntityIds;
+	}
+	/**
+	 * @return -i {@link SamlMetadataBatchResult} dei soggetti aggregati rigenerati, compresi quelli la cui generazione è fallita
+	 */
+	public List<SamlMetadataBatchResult> getRegenerated() {
+		return regenerated;
+	}
+	/**
+	 * @return -gli entity ID dei soggetti aggregati il cui metadata su disco è ancora valido e non è stato rigenerato
+	 */
+	public List<String> getUnchangedEntityIds() {
+		return unchangedEntityIds;
+	}
+	/**
+	 * @return -il numero di soggetti aggregati la cui generazione è fallita
+	 */
+	public long getFailed() {
+		return regenerated.stream().filter(result -> !result.isSuccess()).count();
+	}
+	@Override
+	public String toString() {
+		return "SamlIncrementalGenerationResult [regenerated=" + regenerated.size() + ", unchanged=" + unchangedEntityIds.size() + ", failed="
+				+ getFailed() + "]";
+	}
+}
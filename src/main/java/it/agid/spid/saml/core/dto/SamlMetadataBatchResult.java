@@ -0,0 +1,46 @@
+package it.agid.spid.saml.core.dto;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Esito della generazione del metadata firmato di un singolo soggetto aggregato
+ */
+public class SamlMetadataBatchResult implements Serializable {
+
+	private static final long serialVersionUID = -8433001746359245112L;
+	private final String entityId;
+	private final byte[] signedMetadata;
+	private final Exception error;
+	public SamlMetadataBatchResult(String entityId, byte[] signedMetadata, Exception error) {
+		super();
+		this.entityId = entityId;
+		this.signedMetadata = signedMetadata;
+		this.error = error;
+	}
+	public String getEntityId() {
+		return entityId;
+	}
+	/**
+	 * @return -i byte (UTF-8) del metadata firmato, null in caso di errore
+	 */
+	public byte[] getSignedMetadata() {
+		return signedMetadata;
+	}
+	public String getSignedMetadataAsString() {
+		return signedMetadata == null ? null : new String(signedMetadata, StandardCharsets.UTF_8);
+	}
+	/**
+	 * @return -l'errore che ha impedito la generazione del metadata, null in caso di successo
+	 */
+	public Exception getError() {
+		return error;
+	}
+	public boolean isSuccess() {
+		return error == null;
+	}
+	@Override
+	public String toString() {
+		return "SamlMetadataBatchResult [entityId=" + entityId + ", success=" + isSuccess() + ", error=" + error + "]";
+	}
+}
@@ -0,0 +1,56 @@
+package it.agid.spid.saml.core.dto;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Informazioni specifiche del metadata di un singolo soggetto aggregato
+ */
+public class SamlSoggettoAggregatoDto implements Serializable {
+
+	private static final long serialVersionUID = -1702592370268460531L;
+	private String entityId;
+	private SamlOtherContactPerson informazioniSoggettoAggregato;
+	private SamlOrganizationDto organization;
+	private List<SamlBindingUtils> singleLogoutService;
+	private List<SamlAssertionConsumerServiceUtil> assertionConsumerServices;
+	public String getEntityId() {
+		return entityId;
+	}
+	public void setEntityId(String entityId) {
+		this.entityId = entityId;
+	}
+	public SamlOtherContactPerson getInformazioniSoggettoAggregato() {
+		return informazioniSoggettoAggregato;
+	}
+	public void setInformazioniSoggettoAggregato(SamlOtherContactPerson informazioniSoggettoAggregato) {
+		this.informazioniSoggettoAggregato = informazioniSoggettoAggregato;
+	}
+	/**
+	 * @return -l'organizzazione specifica del soggetto aggregato. Se null viene usata quella del soggetto aggregatore
+	 */
+	public SamlOrganizationDto getOrganization() {
+		return organization;
+	}
+	public void setOrganization(SamlOrganizationDto organization) {
+		this.organization = organization;
+	}
+	public List<SamlBindingUtils> getSingleLogoutService() {
+		return singleLogoutService;
+	}
+	public void setSingleLogoutService(List<SamlBindingUtils> singleLogoutService) {
+		this.singleLogoutService = singleLogoutService;
+	}
+	public List<SamlAssertionConsumerServiceUtil> getAssertionConsumerServices() {
+		return assertionConsumerServices;
+	}
+	public void setAssertionConsumerServices(List<SamlAssertionConsumerServiceUtil> assertionConsumerServices) {
+		this.assertionConsumerServices = assertionConsumerServices;
+	}
+	@Override
+	public String toString() {
+		return "SamlSoggettoAggregatoDto [entityId=" + entityId + ", informazioniSoggettoAggregato="
+				+ informazioniSoggettoAggregato + ", organization=" + organization + ", singleLogoutService="
+				+ singleLogoutService + ", assertionConsumerServices=" + assertionConsumerServices + "]";
+	}
+}
@@ -0,0 +1,97 @@
+package it.agid.spid.saml.core.dto;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Parti del metadata comuni a tutti i soggetti aggregati di un soggetto aggregatore
+ */
+public class SamlSoggettoAggregatoreDto implements Serializable {
+
+	private static final long serialVersionUID = 5873104419232657163L;
+	private boolean wantAuthnRequestSigned;
+	private boolean wantAssertionsSigned;
+	private String supportedProtocol;
+	private List<String> base64SigningCertificate;
+	private List<String> base64EncryptionCertificate;
+	private List<String> nameIds;
+	private SamlOrganizationDto organization;
+	private SamlOtherContactPerson informazioniSoggettoAggregatore;
+	private SamlFpaCessionarioCommittente cessionarioCommittente;
+	private List<SamlAttributesConsumingServiceDto> acss;
+	private boolean entePrivato;
+	public boolean isWantAuthnRequestSigned() {
+		return wantAuthnRequestSigned;
+	}
+	public void setWantAuthnRequestSigned(boolean wantAuthnRequestSigned) {
+		this.wantAuthnRequestSigned = wantAuthnRequestSigned;
+	}
+	public boolean isWantAssertionsSigned() {
+		return wantAssertionsSigned;
+	}
+	public void setWantAssertionsSigned(boolean wantAssertionsSigned) {
+		this.wantAssertionsSigned = wantAssertionsSigned;
+	}
+	public String getSupportedProtocol() {
+		return supportedProtocol;
+	}
+	public void setSupportedProtocol(String supportedProtocol) {
+		this.supportedProtocol = supportedProtocol;
+	}
+	public List<String> getBase64SigningCertificate() {
+		return base64SigningCertificate;
+	}
+	public void setBase64SigningCertificate(List<String> base64SigningCertificate) {
+		this.base64SigningCertificate = base64SigningCertificate;
+	}
+	public List<String> getBase64EncryptionCertificate() {
+		return base64EncryptionCertificate;
+	}
+	public void setBase64EncryptionCertificate(List<String> base64EncryptionCertificate) {
+		this.base64EncryptionCertificate = base64EncryptionCertificate;
+	}
+	public List<String> getNameIds() {
+		return nameIds;
+	}
+	public void setNameIds(List<String> nameIds) {
+		this.nameIds = nameIds;
+	}
+	public SamlOrganizationDto getOrganization() {
+		return organization;
+	}
+	public void setOrganization(SamlOrganizationDto organization) {
+		this.organization = organization;
+	}
+	public SamlOtherContactPerson getInformazioniSoggettoAggregatore() {
+		return informazioniSoggettoAggregatore;
+	}
+	public void setInformazioniSoggettoAggregatore(SamlOtherContactPerson informazioniSoggettoAggregatore) {
+		this.informazioniSoggettoAggregatore = informazioniSoggettoAggregatore;
+	}
+	public SamlFpaCessionarioCommittente getCessionarioCommittente() {
+		return cessionarioCommittente;
+	}
+	public void setCessionarioCommittente(SamlFpaCessionarioCommittente cessionarioCommittente) {
+		this.cessionarioCommittente = cessionarioCommittente;
+	}
+	public List<SamlAttributesConsumingServiceDto> getAcss() {
+		return acss;
+	}
+	public void setAcss(List<SamlAttributesConsumingServiceDto> acss) {
+		this.acss = acss;
+	}
+	public boolean isEntePrivato() {
+		return entePrivato;
+	}
+	public void setEntePrivato(boolean entePrivato) {
+		this.entePrivato = entePrivato;
+	}
+	@Override
+	public String toString() {
+		return "SamlSoggettoAggregatoreDto [wantAuthnRequestSigned=" + wantAuthnRequestSigned + ", wantAssertionsSigned="
+				+ wantAssertionsSigned + ", supportedProtocol=" + supportedProtocol + ", nameIds=" + nameIds
+				+ ", organization=" + organization + ", informazioniSoggettoAggregatore="
+				+ informazioniSoggettoAggregatore + ", cessionarioCommittente=" + cessionarioCommittente
+				+ ", entePrivato=" + entePrivato + "]";
+	}
+}
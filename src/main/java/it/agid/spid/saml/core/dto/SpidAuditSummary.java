@@ -0,0 +1,60 @@
+package it.agid.spid.saml.core.dto;
+
+import java.io.Serializable;
+import java.util.Locale;
+
+/**
+ * Riepilogo della validazione massiva di SAML Response archiviate
+ */
+public class SpidAuditSummary implements Serializable {
+
+	private static final long serialVersionUID = 6044384790931518262L;
+	private final long total;
+	private final long valid;
+	private final long invalid;
+	private final long unreadable;
+	private final long elapsedMillis;
+	public SpidAuditSummary(long total, long valid, long invalid, long unreadable, long elapsedMillis) {
+		super();
+		this.total = total;
+		this.valid = valid;
+		this.invalid = invalid;
+		this.unreadable = unreadable;
+		this.elapsedMillis = elapsedMillis;
+	}
+	public long getTotal() {
+		return total;
+	}
+	/**
+	 * @return -il numero di response che hanno superato tutti i controlli SPID
+	 */
+	public long getValid() {
+		return valid;
+	}
+	/**
+	 * @return -il numero di response che non hanno superato i controlli SPID
+	 */
+	public long getInvalid() {
+		return invalid;
+	}
+	/**
+	 * @return -il numero di record non leggibili come SAML Response (XML o Base64 non validi)
+	 */
+	public long getUnreadable() {
+		return unreadable;
+	}
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+	/**
+	 * @return -il numero di response validate al secondo
+	 */
+	public double getResponsesPerSecond() {
+		return elapsedMillis == 0 ? total * 1000d : total * 1000d / elapsedMillis;
+	}
+	@Override
+	public String toString() {
+		return "SpidAuditSummary [total=" + total + ", valid=" + valid + ", invalid=" + invalid + ", unreadable=" + unreadable + ", elapsedMillis="
+				+ elapsedMillis + ", responsesPerSecond=" + String.format(Locale.ROOT, "%.1f", getResponsesPerSecond()) + "]";
+	}
+}
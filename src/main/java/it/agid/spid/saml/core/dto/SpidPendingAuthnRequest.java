@@ -0,0 +1,59 @@
+package it.agid.spid.saml.core.dto;
+
+import java.io.Serializable;
+
+/**
+ * AuthnRequest inviata ad un IDP e in attesa della relativa SAML Response
+ */
+public class SpidPendingAuthnRequest implements Serializable {
+
+	private static final long serialVersionUID = -2270934513648815870L;
+	private final String id;
+	private final String assertionConsumerServiceUrl;
+	private final String idpEntityId;
+	private final int spidLevel;
+	private final long issueInstantMillis;
+	private final long expiresAtMillis;
+	public SpidPendingAuthnRequest(String id, String assertionConsumerServiceUrl, String idpEntityId, int spidLevel, long issueInstantMillis,
+			long expiresAtMillis) {
+		super();
+		this.id = id;
+		this.assertionConsumerServiceUrl = assertionConsumerServiceUrl;
+		this.idpEntityId = idpEntityId;
+		this.spidLevel = spidLevel;
+		this.issueInstantMillis = issueInstantMillis;
+		this.expiresAtMillis = expiresAtMillis;
+	}
+	public String getId() {
+		return id;
+	}
+	/**
+	 * @return -l'URL dell'AssertionConsumerService a cui la response deve essere indirizzata, null se non va controllato
+	 */
+	public String getAssertionConsumerServiceUrl() {
+		return assertionConsumerServiceUrl;
+	}
+	/**
+	 * @return -l'entity ID dell'IDP a cui è stata inviata la AuthnRequest, null se non va controllato
+	 */
+	public String getIdpEntityId() {
+		return idpEntityId;
+	}
+	/**
+	 * @return -il livello SPID richiesto, 0 se non va controllato
+	 */
+	public int getSpidLevel() {
+		return spidLevel;
+	}
+	public long getIssueInstantMillis() {
+		return issueInstantMillis;
+	}
+	public long getExpiresAtMillis() {
+		return expiresAtMillis;
+	}
+	@Override
+	public String toString() {
+		return "SpidPendingAuthnRequest [id=" + id + ", assertionConsumerServiceUrl=" + assertionConsumerServiceUrl + ", idpEntityId=" + idpEntityId
+				+ ", spidLevel=" + spidLevel + ", issueInstantMillis=" + issueInstantMillis + ", expiresAtMillis=" + expiresAtMillis + "]";
+	}
+}
@@ -0,0 +1,51 @@
+package it.agid.spid.saml.core.dto;
+
+import java.io.Serializable;
+
+/**
+ * Contatori di esecuzione di una regola SPID dello SpidRuleEngine
+ */
+public class SpidRuleStatistics implements Serializable {
+
+	private static final long serialVersionUID = 3925112203558826917L;
+	private final String ruleName;
+	private final long executions;
+	private final long failures;
+	private final long totalNanos;
+	public SpidRuleStatistics(String ruleName, long executions, long failures, long totalNanos) {
+		super();
+		this.ruleName = ruleName;
+		this.executions = executions;
+		this.failures = failures;
+		this.totalNanos = totalNanos;
+	}
+	public String getRuleName() {
+		return ruleName;
+	}
+	public long getExecutions() {
+		return executions;
+	}
+	/**
+	 * @return -il numero di esecuzioni terminate con un errore
+	 */
+	public long getFailures() {
+		return failures;
+	}
+	/**
+	 * @return -il tempo totale di esecuzione in nanosecondi
+	 */
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+	/**
+	 * @return -il tempo medio di esecuzione in nanosecondi, 0 se la regola non è mai stata eseguita
+	 */
+	public long getAverageNanos() {
+		return executions == 0 ? 0 : totalNanos / executions;
+	}
+	@Override
+	public String toString() {
+		return "SpidRuleStatistics [ruleName=" + ruleName + ", executions=" + executions + ", failures=" + failures + ", totalNanos=" + totalNanos
+				+ ", averageNanos=" + getAverageNanos() + "]";
+	}
+}
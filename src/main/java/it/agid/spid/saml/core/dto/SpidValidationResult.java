@@ -0,0 +1,74 @@
+package it.agid.spid.saml.core.dto;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import it.agid.spid.saml.spid.exception.SpidCheckerException;
+import it.agid.spid.saml.spid.exception.SpidErrorCode;
+
+/**
+ * Esito dei controlli SPID su una SAML Response. In caso di errore il messaggio viene costruito solo se richiesto con {@link #getMessage()}
+ */
+public class SpidValidationResult implements Serializable {
+
+	private static final long serialVersionUID = -2870412256437360853L;
+	public static final SpidValidationResult VALID = new SpidValidationResult(null);
+	private final boolean valid;
+	private final SpidErrorCode errorCode;
+	private final int anomaliaUtente;
+	private transient SpidCheckerException failure;
+	private String message;
+	private SpidValidationResult(SpidCheckerException failure) {
+		super();
+		this.valid = failure == null;
+		this.errorCode = failure != null ? failure.getErrorCode() : null;
+		this.anomaliaUtente = failure != null ? failure.getAnomaliaUtente() : 0;
+		this.failure = failure;
+	}
+	/**
+	 * @param failure -la {@link SpidCheckerException} sollevata dai controlli
+	 * @return -l'esito negativo dei controlli
+	 */
+	public static SpidValidationResult invalid(SpidCheckerException failure) {
+		return new SpidValidationResult(failure);
+	}
+	public boolean isValid() {
+		return valid;
+	}
+	/**
+	 * @return -lo {@link SpidErrorCode} dell'errore, null se la response è valida
+	 */
+	public SpidErrorCode getErrorCode() {
+		return errorCode;
+	}
+	/**
+	 * @return -il codice di anomalia utente SPID, 0 se la response è valida o l'errore non è una anomalia utente
+	 */
+	public int getAnomaliaUtente() {
+		return anomaliaUtente;
+	}
+	/**
+	 * @return -il messaggio di errore, null se la response è valida
+	 */
+	public String getMessage() {
+		if( message == null && failure != null ) {
+			message = failure.getMessage();
+		}
+		return message;
+	}
+	/**
+	 * @return -la {@link SpidCheckerException} sollevata dai controlli, null se la response è valida o l'esito è stato deserializzato
+	 */
+	public SpidCheckerException getFailure() {
+		return failure;
+	}
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		getMessage();
+		out.defaultWriteObject();
+	}
+	@Override
+	public String toString() {
+		return "SpidValidationResult [valid=" + valid + ", errorCode=" + errorCode + ", anomaliaUtente=" + anomaliaUtente + ", message=" + getMessage() + "]";
+	}
+}
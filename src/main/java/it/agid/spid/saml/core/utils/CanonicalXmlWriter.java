@@ -0,0 +1,331 @@
+package it.agid.spid.saml.core.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.XMLConstants;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+
+/**
+ * Writer XML che produce direttamente la forma canonica Exclusive XML Canonicalization 1.0 senza commenti
+ * (http://www.w3.org/2001/10/xml-exc-c14n#): elementi vuoti con tag di chiusura, attributi ordinati per namespace e nome,
+ * dichiarazioni di namespace emesse solo sugli elementi che le utilizzano e solo se non già emesse da un antenato, caratteri
+ * speciali sostituiti secondo la specifica. I byte scritti sono quindi già quelli su cui calcolare il digest di una firma
+ * XML-Sig, che può essere aggiornato durante la scrittura con {@link #setDigest(MessageDigest)} senza costruire un DOM.
+ * Non è thread safe
+ */
+public class CanonicalXmlWriter {
+	private static final Comparator<PendingAttribute> ATTRIBUTE_ORDER = Comparator.<PendingAttribute, String>comparing(a -> a.namespaceUri)
+			.thenComparing(a -> a.localName);
+	private final OutputStream out;
+	private final Deque<Frame> elements = new ArrayDeque<>();
+	private final StringBuilder buffer = new StringBuilder(256);
+	private final List<PendingAttribute> pendingAttributes = new ArrayList<>();
+	private String pendingPrefix;
+	private String pendingNamespaceUri;
+	private String pendingLocalName;
+	private MessageDigest digest;
+	private long bytesWritten;
+	private String reservedNamespaceUri;
+	private String reservedLocalName;
+	private int reservedLength;
+	private long reservedPosition = -1;
+	/**
+	 * @param out -l'{@link OutputStream} su cui scrivere in UTF-8. Non viene chiuso
+	 */
+	public CanonicalXmlWriter(OutputStream out) {
+		this.out = out;
+	}
+	/**
+	 * Imposta il {@link MessageDigest} aggiornato con i byte scritti da questo momento
+	 * @param digest -il {@link MessageDigest} da aggiornare, null per sospendere il calcolo
+	 */
+	public void setDigest(MessageDigest digest) {
+		this.digest = digest;
+	}
+	/**
+	 * Apre un elemento. Attributi e namespace vengono scritti alla chiusura del tag di apertura, in ordine canonico
+	 * @param prefix -il prefisso dell'elemento, vuoto o null se senza prefisso
+	 * @param namespaceUri -il namespace dell'elemento, vuoto o null se senza namespace
+	 * @param localName -il nome locale dell'elemento
+	 * @throws IOException -sollevata in caso di errore di scrittura
+	 */
+	public void startElement(String prefix, String namespaceUri, String localName) throws IOException {
+		closeStartTag();
+		if( reservedLocalName != null && reservedPosition < 0 && elements.size() == 1 && reservedLocalName.equals(localName)
+				&& ("*".equals(reservedNamespaceUri) || reservedNamespaceUri.equals(namespaceUri == null ? "" : namespaceUri)) ) {
+			reservedPosition = bytesWritten;
+			byte[] placeholder = new byte[reservedLength];
+			Arrays.fill(placeholder, (byte) ' ');
+			writeRaw(placeholder);
+		}
+		pendingPrefix = prefix == null ? "" : prefix;
+		pendingNamespaceUri = namespaceUri == null ? "" : namespaceUri;
+		pendingLocalName = localName;
+	}
+	/**
+	 * Riserva uno spazio, escluso dal digest, prima del primo figlio dell'elemento radice con il nome indicato: ad esempio
+	 * il blocco Signature da inserire prima del SPSSODescriptor. La posizione dello spazio è restituita da {@link #getReservedPosition()}
+	 * @param namespaceUri -il namespace dell'elemento, "*" per qualsiasi namespace
+	 * @param localName -il nome locale dell'elemento
+	 * @param length -la lunghezza in byte dello spazio da riservare
+	 */
+	public void reserveBefore(String namespaceUri, String localName, int length) {
+		this.reservedNamespaceUri = namespaceUri;
+		this.reservedLocalName = localName;
+		this.reservedLength = length;
+		this.reservedPosition = -1;
+	}
+	/**
+	 * @return -la posizione in byte dello spazio riservato con {@link #reserveBefore(String, String, int)}, -1 se l'elemento non è ancora stato scritto
+	 */
+	public long getReservedPosition() {
+		return reservedPosition;
+	}
+	/**
+	 * Aggiunge un attributo all'elemento aperto con {@link #startElement(String, String, String)}
+	 * @param prefix -il prefisso dell'attributo, vuoto o null se senza namespace
+	 * @param namespaceUri -il namespace dell'attributo, vuoto o null se senza namespace
+	 * @param localName -il nome locale dell'attributo
+	 * @param value -il valore dell'attributo
+	 */
+	public void attribute(String prefix, String namespaceUri, String localName, String value) {
+		if( pendingLocalName == null ) {
+			throw new IllegalStateException("Attributo "+localName+" fuori dal tag di apertura di un elemento");
+		}
+		pendingAttributes.add(new PendingAttribute(prefix == null ? "" : prefix, namespaceUri == null ? "" : namespaceUri, localName, value));
+	}
+	/**
+	 * Aggiunge un attributo senza namespace all'elemento aperto
+	 * @param localName -il nome dell'attributo
+	 * @param value -il valore dell'attributo
+	 */
+	public void attribute(String localName, String value) {
+		attribute(null, null, localName, value);
+	}
+	/**
+	 * Scrive il testo come contenuto dell'elemento corrente
+	 * @param text -il testo da scrivere
+	 * @throws IOException -sollevata in caso di errore di scrittura
+	 */
+	public void characters(String text) throws IOException {
+		closeStartTag();
+		buffer.setLength(0);
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '&': buffer.append("&amp;"); break;
+			case '<': buffer.append("&lt;"); break;
+			case '>': buffer.append("&gt;"); break;
+			case '\r': buffer.append("&#xD;"); break;
+			default: buffer.append(c);
+			}
+		}
+		write(buffer);
+	}
+	/**
+	 * Chiude l'elemento corrente
+	 * @throws IOException -sollevata in caso di errore di scrittura
+	 */
+	public void endElement() throws IOException {
+		closeStartTag();
+		Frame frame = elements.pop();
+		buffer.setLength(0);
+		buffer.append("</").append(frame.qualifiedName).append('>');
+		write(buffer);
+	}
+	/**
+	 * Scrive in forma canonica il sottoalbero DOM dell'elemento, nel contesto dei namespace già emessi dal writer.
+	 * Commenti e dichiarazioni di namespace del DOM non vengono riportati: le dichiarazioni necessarie vengono calcolate dal writer
+	 * @param node -il nodo da scrivere
+	 * @throws IOException -sollevata in caso di errore di scrittura
+	 */
+	public void writeNode(Node node) throws IOException {
+		switch (node.getNodeType()) {
+		case Node.ELEMENT_NODE:
+			String localName = node.getLocalName() == null ? node.getNodeName() : node.getLocalName();
+			startElement(node.getPrefix(), node.getNamespaceURI(), localName);
+			NamedNodeMap attributes = node.getAttributes();
+			for (int i = 0; i < attributes.getLength(); i++) {
+				Attr attr = (Attr) attributes.item(i);
+				if( XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attr.getNamespaceURI()) || (attr.getNamespaceURI() == null && attr.getName().startsWith(XMLConstants.XMLNS_ATTRIBUTE)) ) {
+					continue;
+				}
+				attribute(attr.getPrefix(), attr.getNamespaceURI(), attr.getLocalName() == null ? attr.getName() : attr.getLocalName(), attr.getValue());
+			}
+			for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+				writeNode(child);
+			}
+			endElement();
+			break;
+		case Node.TEXT_NODE:
+		case Node.CDATA_SECTION_NODE:
+			characters(node.getNodeValue());
+			break;
+		case Node.PROCESSING_INSTRUCTION_NODE:
+			closeStartTag();
+			ProcessingInstruction pi = (ProcessingInstruction) node;
+			buffer.setLength(0);
+			buffer.append("<?").append(pi.getTarget());
+			if( pi.getData() != null && !pi.getData().isEmpty() ) {
+				buffer.append(' ').append(pi.getData());
+			}
+			buffer.append("?>");
+			write(buffer);
+			break;
+		default:
+			//Commenti e altri nodi non fanno parte della forma canonica senza commenti
+			break;
+		}
+	}
+	/**
+	 * Scrive i byte così come sono, senza aggiornare il digest: ad esempio la dichiarazione XML o lo spazio riservato alla firma
+	 * @param bytes -i byte da scrivere
+	 * @throws IOException -sollevata in caso di errore di scrittura
+	 */
+	public void writeRaw(byte[] bytes) throws IOException {
+		closeStartTag();
+		out.write(bytes);
+		bytesWritten += bytes.length;
+	}
+	/**
+	 * @return -il numero di byte scritti sull'{@link OutputStream}
+	 */
+	public long getBytesWritten() throws IOException {
+		closeStartTag();
+		return bytesWritten;
+	}
+	/**
+	 * @return -il numero di elementi aperti e non ancora chiusi
+	 */
+	public int getDepth() {
+		return elements.size() + (pendingLocalName == null ? 0 : 1);
+	}
+	public void flush() throws IOException {
+		closeStartTag();
+		out.flush();
+	}
+	/**
+	 * Scrive il tag di apertura in attesa con le dichiarazioni di namespace utilizzate e non ancora emesse, in ordine canonico
+	 */
+	private void closeStartTag() throws IOException {
+		if( pendingLocalName == null ) {
+			return;
+		}
+		Map<String, String> inherited = elements.isEmpty() ? Collections.emptyMap() : elements.peek().renderedNamespaces;
+		TreeMap<String, String> declarations = new TreeMap<>();
+		utilize(declarations, inherited, pendingPrefix, pendingNamespaceUri);
+		for (PendingAttribute attribute : pendingAttributes) {
+			if( !attribute.prefix.isEmpty() ) {
+				utilize(declarations, inherited, attribute.prefix, attribute.namespaceUri);
+			}
+		}
+		Map<String, String> rendered = inherited;
+		if( !declarations.isEmpty() ) {
+			rendered = new HashMap<>(inherited);
+			rendered.putAll(declarations);
+		}
+		String qualifiedName = pendingPrefix.isEmpty() ? pendingLocalName : pendingPrefix + ":" + pendingLocalName;
+		buffer.setLength(0);
+		buffer.append('<').append(qualifiedName);
+		for (Map.Entry<String, String> declaration : declarations.entrySet()) {
+			buffer.append(' ').append(XMLConstants.XMLNS_ATTRIBUTE);
+			if( !declaration.getKey().isEmpty() ) {
+				buffer.append(':').append(declaration.getKey());
+			}
+			appendAttributeValue(declaration.getValue());
+		}
+		pendingAttributes.sort(ATTRIBUTE_ORDER);
+		for (PendingAttribute attribute : pendingAttributes) {
+			buffer.append(' ');
+			if( !attribute.prefix.isEmpty() ) {
+				buffer.append(attribute.prefix).append(':');
+			}
+			buffer.append(attribute.localName);
+			appendAttributeValue(attribute.value);
+		}
+		buffer.append('>');
+		elements.push(new Frame(qualifiedName, rendered));
+		pendingAttributes.clear();
+		pendingPrefix = null;
+		pendingNamespaceUri = null;
+		pendingLocalName = null;
+		write(buffer);
+	}
+	/**
+	 * Registra la dichiarazione del prefisso se non è già stata emessa da un antenato con lo stesso namespace.
+	 * Il prefisso xml è legato implicitamente e non viene mai dichiarato
+	 */
+	private static void utilize(Map<String, String> declarations, Map<String, String> inherited, String prefix, String namespaceUri) {
+		if( XMLConstants.XML_NS_PREFIX.equals(prefix) ) {
+			return;
+		}
+		String current = inherited.get(prefix);
+		if( current == null && prefix.isEmpty() ) {
+			current = "";
+		}
+		if( !namespaceUri.equals(current) ) {
+			declarations.put(prefix, namespaceUri);
+		}
+	}
+	private void appendAttributeValue(String value) {
+		buffer.append("=\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '&': buffer.append("&amp;"); break;
+			case '<': buffer.append("&lt;"); break;
+			case '"': buffer.append("&quot;"); break;
+			case '\t': buffer.append("&#x9;"); break;
+			case '\n': buffer.append("&#xA;"); break;
+			case '\r': buffer.append("&#xD;"); break;
+			default: buffer.append(c);
+			}
+		}
+		buffer.append('"');
+	}
+	private void write(CharSequence text) throws IOException {
+		byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+		out.write(bytes);
+		bytesWritten += bytes.length;
+		if( digest != null ) {
+			digest.update(bytes);
+		}
+	}
+	private static final class Frame {
+		private final String qualifiedName;
+		private final Map<String, String> renderedNamespaces;
+		private Frame(String qualifiedName, Map<String, String> renderedNamespaces) {
+			this.qualifiedName = qualifiedName;
+			this.renderedNamespaces = renderedNamespaces;
+		}
+	}
+	private static final class PendingAttribute {
+		private final String prefix;
+		private final String namespaceUri;
+		private final String localName;
+		private final String value;
+		private PendingAttribute(String prefix, String namespaceUri, String localName, String value) {
+			this.prefix = prefix;
+			this.namespaceUri = namespaceUri;
+			this.localName = localName;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package it.agid.spid.saml.core.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link SpidReplayCache} in memoria per un singolo nodo. Gli ID sono distribuiti su più segmenti, ognuno con un proprio lock,
+ * per cui registrazioni concorrenti di ID diversi raramente si bloccano a vicenda. In ogni segmento gli ID sono raggruppati
+ * in intervalli di scadenza: gli intervalli scaduti vengono rimossi in blocco ad ogni registrazione, senza thread dedicati.
+ * Il numero di ID conservati non supera mai la dimensione massima: un ID non ancora scaduto non viene mai rimosso, per cui se un segmento
+ * è pieno la registrazione fallisce con {@link IllegalStateException} e la response viene rifiutata, incrementando il contatore {@link #getRejections()}
+ */
+public class InMemorySpidReplayCache implements SpidReplayCache {
+	private static final Logger logger = LoggerFactory.getLogger(InMemorySpidReplayCache.class.getName());
+	public static final int DEFAULT_MAX_ENTRIES = 100000;
+	public static final long DEFAULT_BUCKET_MILLIS = 1000;
+	private static final int STRIPES = 32;
+	private final Stripe[] stripes;
+	private final int maxEntriesPerStripe;
+	private final long bucketMillis;
+	private final AtomicLong replays = new AtomicLong();
+	private final AtomicLong rejections = new AtomicLong();
+	/**
+	 * Crea la cache con {@value #DEFAULT_MAX_ENTRIES} ID e intervalli di scadenza di {@value #DEFAULT_BUCKET_MILLIS} millisecondi
+	 */
+	public InMemorySpidReplayCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_BUCKET_MILLIS);
+	}
+	/**
+	 * Crea la cache
+	 * @param maxEntries -numero massimo di ID conservati
+	 * @param bucketMillis -ampiezza in millisecondi degli intervalli di scadenza. Un ID viene rimosso al più bucketMillis dopo la sua scadenza
+	 */
+	public InMemorySpidReplayCache(int maxEntries, long bucketMillis) {
+		if( maxEntries < STRIPES ) {
+			throw new IllegalArgumentException("Dimensione massima della cache non valida ["+maxEntries+"], minimo "+STRIPES);
+		}
+		if( bucketMillis < 1 ) {
+			throw new IllegalArgumentException("Ampiezza degli intervalli di scadenza non valida ["+bucketMillis+"]");
+		}
+		this.maxEntriesPerStripe = maxEntries / STRIPES;
+		this.bucketMillis = bucketMillis;
+		this.stripes = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+	@Override
+	public boolean checkAndStore(String context, String id, long expiresAtMillis) {
+		String key = context + '\u0000' + id;
+		Stripe stripe = stripes[spread(key.hashCode()) & (STRIPES - 1)];
+		long now = System.currentTimeMillis();
+		stripe.lock.lock();
+		try {
+			stripe.purge(now / bucketMillis);
+			Long expiry = stripe.entries.get(key);
+			if( expiry != null && expiry.longValue() >= now ) {
+				replays.incrementAndGet();
+				if( logger.isWarnEnabled() ) {
+					logger.warn("ID {} già utilizzato nel contesto {}: possibile replay", id, context);
+				}
+				return false;
+			}
+			if( expiry == null && stripe.entries.size() >= maxEntriesPerStripe ) {
+				//Rimuovere ID non scaduti consentirebbe il replay delle relative response: la registrazione fallisce
+				rejections.incrementAndGet();
+				if( logger.isWarnEnabled() ) {
+					logger.warn("Cache anti replay piena: {} ID non scaduti, ID {} nel contesto {} non registrato", stripe.entries.size(), id, context);
+				}
+				throw new IllegalStateException("Cache anti replay piena: "+stripe.entries.size()+" ID non scaduti nel segmento");
+			}
+			stripe.store(key, expiresAtMillis, expiresAtMillis / bucketMillis);
+			return true;
+		}finally {
+			stripe.lock.unlock();
+		}
+	}
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				size += stripe.entries.size();
+			}finally {
+				stripe.lock.unlock();
+			}
+		}
+		return size;
+	}
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				stripe.entries.clear();
+				stripe.buckets.clear();
+			}finally {
+				stripe.lock.unlock();
+			}
+		}
+	}
+	/**
+	 * @return -il numero di replay rilevati
+	 */
+	public long getReplays() {
+		return replays.get();
+	}
+	/**
+	 * @return -il numero di ID non registrati per mancanza di spazio
+	 */
+	public long getRejections() {
+		return rejections.get();
+	}
+	@Override
+	public String toString() {
+		return "InMemorySpidReplayCache [maxEntries=" + (maxEntriesPerStripe * STRIPES) + ", bucketMillis=" + bucketMillis + ", size=" + size()
+				+ ", replays=" + replays + ", rejections=" + rejections + "]";
+	}
+	private static int spread(int h) {
+		return h ^ (h >>> 16);
+	}
+	/**
+	 * Segmento della cache: ID con relativa scadenza e ID raggruppati per intervallo di scadenza
+	 */
+	private final class Stripe {
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Map<String, Long> entries = new HashMap<>();
+		private final TreeMap<Long, List<String>> buckets = new TreeMap<>();
+
+		private void store(String key, long expiresAtMillis, long bucket) {
+			entries.put(key, Long.valueOf(expiresAtMillis));
+			buckets.computeIfAbsent(Long.valueOf(bucket), b -> new ArrayList<>()).add(key);
+		}
+		/**
+		 * Rimuove gli intervalli interamente scaduti
+		 * @param currentBucket -l'intervallo corrente
+		 */
+		private void purge(long currentBucket) {
+			Iterator<Map.Entry<Long, List<String>>> iterator = buckets.headMap(Long.valueOf(currentBucket), false).entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<Long, List<String>> bucket = iterator.next();
+				removeKeys(bucket.getKey().longValue(), bucket.getValue());
+				iterator.remove();
+			}
+		}
+		private void removeKeys(long bucket, List<String> keys) {
+			for (String key : keys) {
+				Long expiry = entries.get(key);
+				//L'ID può essere stato registrato di nuovo in un altro intervallo dopo la scadenza
+				if( expiry != null && expiry.longValue() / bucketMillis == bucket ) {
+					entries.remove(key);
+				}
+			}
+		}
+	}
+}
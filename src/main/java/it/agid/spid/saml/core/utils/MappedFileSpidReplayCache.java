@@ -0,0 +1,191 @@
+package it.agid.spid.saml.core.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link SpidReplayCache} su file mappato in memoria, condivisibile tra più processi dello stesso host che aprono lo stesso file.
+ * Pensata per i test e come riferimento per i backend condivisi: il file è una tabella hash ad indirizzamento aperto con un numero
+ * fisso di posizioni, ognuna contenente il digest SHA-256 di contesto e ID e la relativa scadenza. Le posizioni scadute incontrate durante
+ * la ricerca vengono svuotate compattando la sequenza (cancellazione con spostamento all'indietro), per cui la lunghezza delle ricerche
+ * dipende solo dagli ID non scaduti.
+ * Ogni registrazione è atomica: il lock del file serializza i processi, un lock per file serializza i thread dello stesso processo.
+ * Se la tabella è piena la registrazione fallisce con {@link IllegalStateException}
+ */
+public class MappedFileSpidReplayCache implements SpidReplayCache, Closeable {
+	private static final Logger logger = LoggerFactory.getLogger(MappedFileSpidReplayCache.class.getName());
+	private static final int MAGIC = 0x53504952;
+	private static final int HEADER_SIZE = 16;
+	private static final int DIGEST_SIZE = 32;
+	private static final int SLOT_SIZE = DIGEST_SIZE + Long.BYTES;
+	//FileLock è per processo: i thread (e le istanze) dello stesso processo si serializzano su questo lock
+	private static final ConcurrentHashMap<Path, Object> processLocks = new ConcurrentHashMap<>();
+	private final Path file;
+	private final int slots;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final Object processLock;
+	/**
+	 * Apre il file, creandolo se non esiste
+	 * @param file -il file della cache
+	 * @param slots -numero di ID conservabili. Se il file esiste già deve essere stato creato con lo stesso numero di posizioni
+	 * @throws IOException -sollevata in caso di errore di accesso al file o se il file esistente non è compatibile
+	 */
+	public MappedFileSpidReplayCache(Path file, int slots) throws IOException {
+		if( slots < 1 ) {
+			throw new IllegalArgumentException("Numero di posizioni non valido ["+slots+"]");
+		}
+		this.file = file.toAbsolutePath().normalize();
+		this.slots = slots;
+		this.processLock = processLocks.computeIfAbsent(this.file, f -> new Object());
+		this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		boolean initialized = false;
+		try {
+			long size = HEADER_SIZE + (long) slots * SLOT_SIZE;
+			synchronized (processLock) {
+				FileLock lock = channel.lock();
+				try {
+					this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+					int magic = buffer.getInt(0);
+					if( magic == 0 ) {
+						buffer.putInt(4, slots);
+						buffer.putInt(0, MAGIC);
+						buffer.force();
+					}else if( magic != MAGIC || buffer.getInt(4) != slots ) {
+						throw new IOException("File "+this.file+" non compatibile: magic ["+Integer.toHexString(magic)+"] posizioni ["+buffer.getInt(4)+"] attese ["+slots+"]");
+					}
+				}finally {
+					lock.release();
+				}
+			}
+			initialized = true;
+		}finally {
+			if( !initialized ) {
+				channel.close();
+			}
+		}
+		if( logger.isDebugEnabled() ) {
+			logger.debug("Aperta cache anti replay {} con {} posizioni", this.file, slots);
+		}
+	}
+	@Override
+	public boolean checkAndStore(String context, String id, long expiresAtMillis) throws IOException {
+		byte[] digest = digest(context, id);
+		long now = System.currentTimeMillis();
+		synchronized (processLock) {
+			FileLock lock = channel.lock();
+			try {
+				int slot = homeSlot(digest[0], digest[1], digest[2], digest[3]);
+				int probes = 0;
+				while (probes < slots) {
+					int offset = offset(slot);
+					long expiry = buffer.getLong(offset + DIGEST_SIZE);
+					if( expiry == 0 ) {
+						//Posizione vuota: fine della sequenza di ricerca
+						for (int i = 0; i < DIGEST_SIZE; i++) {
+							buffer.put(offset + i, digest[i]);
+						}
+						//Scadenza mai 0: 0 indica una posizione vuota
+						buffer.putLong(offset + DIGEST_SIZE, Math.max(expiresAtMillis, 1L));
+						return true;
+					}
+					if( expiry < now ) {
+						//La posizione ora contiene un ID spostato o è vuota: va esaminata di nuovo
+						remove(slot);
+						continue;
+					}
+					if( sameDigest(offset, digest) ) {
+						if( logger.isWarnEnabled() ) {
+							logger.warn("ID {} già utilizzato nel contesto {}: possibile replay", id, context);
+						}
+						return false;
+					}
+					slot = (slot + 1) % slots;
+					probes++;
+				}
+				throw new IllegalStateException("Cache anti replay "+file+" piena: "+slots+" ID non scaduti");
+			}finally {
+				lock.release();
+			}
+		}
+	}
+	public Path getFile() {
+		return file;
+	}
+	public int getSlots() {
+		return slots;
+	}
+	@Override
+	public void close() throws IOException {
+		synchronized (processLock) {
+			buffer.force();
+			channel.close();
+		}
+	}
+	@Override
+	public String toString() {
+		return "MappedFileSpidReplayCache [file=" + file + ", slots=" + slots + "]";
+	}
+	/**
+	 * Svuota la posizione e sposta all'indietro gli ID successivi della sequenza che non sarebbero più raggiungibili dalla loro posizione iniziale
+	 * @param hole -la posizione da svuotare
+	 */
+	private void remove(int hole) {
+		buffer.putLong(offset(hole) + DIGEST_SIZE, 0L);
+		int slot = hole;
+		while (true) {
+			slot = (slot + 1) % slots;
+			int offset = offset(slot);
+			if( buffer.getLong(offset + DIGEST_SIZE) == 0 ) {
+				return;
+			}
+			int home = homeSlot(buffer.get(offset), buffer.get(offset + 1), buffer.get(offset + 2), buffer.get(offset + 3));
+			//L'ID resta dov'è se la sua posizione iniziale è (ciclicamente) compresa tra la posizione vuota esclusa e la sua posizione inclusa
+			boolean reachable = hole < slot ? (hole < home && home <= slot) : (hole < home || home <= slot);
+			if( !reachable ) {
+				int holeOffset = offset(hole);
+				for (int i = 0; i < SLOT_SIZE; i++) {
+					buffer.put(holeOffset + i, buffer.get(offset + i));
+				}
+				buffer.putLong(offset + DIGEST_SIZE, 0L);
+				hole = slot;
+			}
+		}
+	}
+	private int homeSlot(byte b0, byte b1, byte b2, byte b3) {
+		return Math.floorMod(((b0 & 0xff) << 24) | ((b1 & 0xff) << 16) | ((b2 & 0xff) << 8) | (b3 & 0xff), slots);
+	}
+	private static int offset(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+	private boolean sameDigest(int offset, byte[] digest) {
+		for (int i = 0; i < DIGEST_SIZE; i++) {
+			if( buffer.get(offset + i) != digest[i] ) {
+				return false;
+			}
+		}
+		return true;
+	}
+	private static byte[] digest(String context, String id) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(context.getBytes(StandardCharsets.UTF_8));
+			md.update((byte) 0);
+			md.update(id.getBytes(StandardCharsets.UTF_8));
+			return md.digest();
+		}catch (Exception e) {
+			throw new IllegalStateException("SHA-256 non disponibile", e);
+		}
+	}
+}
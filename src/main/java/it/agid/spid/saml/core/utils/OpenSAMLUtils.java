@@ -1,29 +1,26 @@
 package it.agid.spid.saml.core.utils;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
 import java.security.PrivateKey;
 import java.security.Provider;
 import java.security.Security;
 import java.security.cert.X509Certificate;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
 import javax.xml.namespace.QName;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 import org.apache.xml.security.Init;
 import org.cryptacular.util.CodecUtil;
 import org.opensaml.core.config.InitializationService;
 import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.XMLObjectBuilder;
 import org.opensaml.core.xml.XMLObjectBuilderFactory;
 import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
 import org.opensaml.core.xml.io.Marshaller;
@@ -56,6 +53,31 @@ import net.shibboleth.utilities.java.support.security.RandomIdentifierGeneration
 public class OpenSAMLUtils {
 	private static Logger logger = LoggerFactory.getLogger(OpenSAMLUtils.class);
 	private static RandomIdentifierGenerationStrategy secureRandomIdGenerator;
+	/**
+	 * System property con cui configurare la dimensione massima in byte di una SAML request decompressa
+	 */
+	public static final String MAX_INFLATED_SIZE_PROPERTY = "spid.saml.inflate.max-size";
+	/**
+	 * Dimensione massima di default in byte di una SAML request decompressa
+	 */
+	public static final int MAX_INFLATED_SIZE = Integer.getInteger(MAX_INFLATED_SIZE_PROPERTY, 512 * 1024);
+	private static final int INFLATER_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+	/**
+	 * {@link Inflater} riutilizzati, con e senza wrap. Le istanze in eccesso rispetto alla dimensione del pool vengono chiuse con {@link Inflater#end()}
+	 */
+	private static final BlockingQueue<Inflater> NOWRAP_INFLATERS = new ArrayBlockingQueue<>(INFLATER_POOL_SIZE);
+	private static final BlockingQueue<Inflater> ZLIB_INFLATERS = new ArrayBlockingQueue<>(INFLATER_POOL_SIZE);
+	private static final ThreadLocal<byte[]> INFLATE_BUFFER = ThreadLocal.withInitial(() -> new byte[8192]);
+	/**
+	 * Cache per classe di DEFAULT_ELEMENT_NAME e builder OpenSAML. Il valore non viene memorizzato se la risoluzione fallisce
+	 * (ad esempio se OpenSAML non è ancora stato inizializzato)
+	 */
+	private static final ClassValue<SamlObjectBuilderHandle<?>> BUILDER_HANDLES = new ClassValue<SamlObjectBuilderHandle<?>>() {
+		@Override
+		protected SamlObjectBuilderHandle<?> computeValue(Class<?> clazz) {
+			return createBuilderHandle(clazz);
+		}
+	};
 
 	static {
 		secureRandomIdGenerator = new RandomIdentifierGenerationStrategy();
@@ -88,20 +110,36 @@ public class OpenSAMLUtils {
 	 * @param clazz: classe del tipo di oggetto da creare
 	 * @return L'oggetto SAML voluto
 	 */
-	@SuppressWarnings("unchecked")
 	public static <T> T buildSAMLObject(final Class<T> clazz) {
-		T object = null;
+		return builderFor(clazz).build();
+	}
+	/**
+	 * Restituisce il {@link SamlObjectBuilderHandle} della classe di oggetti SAML passata in ingresso. Nome dell'elemento e builder vengono
+	 * risolti (tramite reflection e registry OpenSAML) solo alla prima richiesta per ogni classe e poi riutilizzati.
+	 * OpenSAML deve essere già stato inizializzato
+	 * @param <T>: il tipo di oggetto da creare
+	 * @param clazz: classe del tipo di oggetto da creare
+	 * @return -il {@link SamlObjectBuilderHandle} della classe
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> SamlObjectBuilderHandle<T> builderFor(final Class<T> clazz) {
+		return (SamlObjectBuilderHandle<T>) BUILDER_HANDLES.get(clazz);
+	}
+	private static <T> SamlObjectBuilderHandle<T> createBuilderHandle(final Class<T> clazz) {
+		QName defaultElementName = null;
 		try {
-			XMLObjectBuilderFactory builderFactory = XMLObjectProviderRegistrySupport.getBuilderFactory();
-			QName defaultElementName = (QName)clazz.getDeclaredField("DEFAULT_ELEMENT_NAME").get(null);
-			object = (T)builderFactory.getBuilder(defaultElementName).buildObject(defaultElementName);
+			defaultElementName = (QName)clazz.getDeclaredField("DEFAULT_ELEMENT_NAME").get(null);
 		} catch (IllegalAccessException e) {
 			throw new IllegalArgumentException("Could not create SAML object");
 		} catch (NoSuchFieldException e) {
 			throw new IllegalArgumentException("Could not create SAML object");
 		}
-
-		return object;
+		XMLObjectBuilderFactory builderFactory = XMLObjectProviderRegistrySupport.getBuilderFactory();
+		XMLObjectBuilder<? extends XMLObject> builder = builderFactory == null ? null : builderFactory.getBuilder(defaultElementName);
+		if( builder == null ) {
+			throw new IllegalArgumentException("Could not create SAML object. Nessun builder registrato per "+defaultElementName);
+		}
+		return new SamlObjectBuilderHandle<T>(clazz, defaultElementName, builder);
 	}
 	/**
 	 * Genera un ID da utilizzare come ID nelle assertion saml
@@ -132,13 +170,7 @@ public class OpenSAMLUtils {
 		}
 
 		try {
-			Transformer transformer = TransformerFactory.newInstance().newTransformer();
-			transformer.setOutputProperty(OutputKeys.INDENT, "no");
-			StreamResult result = new StreamResult(new StringWriter());
-			DOMSource source = new DOMSource(element);
-			transformer.transform(source, result);
-			String xmlString = result.getWriter().toString();
-			return xmlString;
+			return XmlParserPool.getInstance().toString(element);
 		} catch (Exception e) {
 			logger.error("Errore durante la generazione della stringa XML rappresentante l'oggetto saml passato in ingresso", e);
 			return null;
@@ -155,10 +187,7 @@ public class OpenSAMLUtils {
 		byte[] samlToken = samlRequestString.getBytes(StandardCharsets.UTF_8);
 		ByteArrayInputStream stream = new ByteArrayInputStream(samlToken); 
 		try {
-			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-			factory.setNamespaceAware(true);
-			DocumentBuilder docBuilder = factory.newDocumentBuilder();
-			Document samlDocument = docBuilder.parse(stream);
+			Document samlDocument = XmlParserPool.getInstance().parse(stream);
 			Element samlElem = samlDocument.getDocumentElement();
 			UnmarshallerFactory unmarshallerFactory = XMLObjectProviderRegistrySupport.getUnmarshallerFactory();
 			Unmarshaller unmarshaller = unmarshallerFactory.getUnmarshaller(samlElem);
@@ -182,10 +211,7 @@ public class OpenSAMLUtils {
 	@SuppressWarnings("unchecked")
 	public static <T> T fromInputStreamToSamlObject( final InputStream stream, final Class<T> clazz ) throws Exception{
 		try {
-			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-			factory.setNamespaceAware(true);
-			DocumentBuilder docBuilder = factory.newDocumentBuilder();
-			Document samlDocument = docBuilder.parse(stream);
+			Document samlDocument = XmlParserPool.getInstance().parse(stream);
 			Element samlElem = samlDocument.getDocumentElement();
 			removeRecursively(samlElem, Node.COMMENT_NODE, null);
 			UnmarshallerFactory unmarshallerFactory = XMLObjectProviderRegistrySupport.getUnmarshallerFactory();
@@ -207,19 +233,98 @@ public class OpenSAMLUtils {
 	 * @throws Exception -sollevata in caso di errore.
 	 */
 	public static String getSamlObjectAsString( final String encodedSamlRequest, boolean useWrap ) throws Exception {
-		Inflater decompresser = new Inflater(useWrap);
+		return getSamlObjectAsString(encodedSamlRequest, useWrap, MAX_INFLATED_SIZE);
+	}
+	/**
+	 * Dalla request encodata restituisce l'XML della SAML request, rifiutando le request che una volta decompresse superano la dimensione massima indicata
+	 * @param encodedSamlRequest -la request encodata
+	 * @param useWrap -se utilizzare wrap o meno
+	 * @param maxInflatedSize -dimensione massima in byte dell'XML decompresso
+	 * @return -l'XML della saml request decodificato
+	 * @throws Exception -sollevata in caso di errore o se viene superata la dimensione massima
+	 */
+	public static String getSamlObjectAsString( final String encodedSamlRequest, boolean useWrap, int maxInflatedSize ) throws Exception {
 		byte[] deflatedData = CodecUtil.b64(encodedSamlRequest);
 		try {
-			byte[] inflatedData = new byte[(10 * deflatedData.length)];
-			decompresser.setInput(deflatedData, 0, deflatedData.length);
-			int inflatedBytesLength = decompresser.inflate(inflatedData);
-			return new String(inflatedData, 0, inflatedBytesLength);
+			return inflate(deflatedData, useWrap, maxInflatedSize).toString(StandardCharsets.UTF_8);
 		}catch (DataFormatException dfe) {
 			logger.warn("Errore nel deflating della stringa saml {} Restituisco la stringa generata direttamente dal deflating", dfe.getMessage());
-			return new String(deflatedData);
+			return new String(deflatedData, StandardCharsets.UTF_8);
 		}
-		finally {
-			decompresser.end();
+	}
+	/**
+	 * Dalla request encodata e compressa (HTTP-Redirect binding) costruisce direttamente l'oggetto SAML, passando i byte decompressi
+	 * al parser senza creare la stringa XML intermedia
+	 * @param <T> Il tipo di oggetto SAML da creare
+	 * @param encodedSamlRequest -la request encodata
+	 * @param useWrap -se utilizzare wrap o meno
+	 * @param maxInflatedSize -dimensione massima in byte dell'XML decompresso
+	 * @param clazz -La classe del tipo di oggetto SAML
+	 * @return l'oggetto saml creato
+	 * @throws Exception -sollevata in caso di errore o se viene superata la dimensione massima
+	 */
+	public static <T> T fromEncodedDeflatedStringToSamlObject( final String encodedSamlRequest, boolean useWrap, int maxInflatedSize, final Class<T> clazz ) throws Exception {
+		byte[] deflatedData = CodecUtil.b64(encodedSamlRequest);
+		InflatedBytes inflated;
+		try {
+			inflated = inflate(deflatedData, useWrap, maxInflatedSize);
+		}catch (DataFormatException dfe) {
+			logger.warn("Errore nel deflating della stringa saml {} Utilizzo direttamente i byte decodificati", dfe.getMessage());
+			return fromInputStreamToSamlObject(new ByteArrayInputStream(deflatedData), clazz);
+		}
+		return fromInputStreamToSamlObject(inflated.toInputStream(), clazz);
+	}
+	/**
+	 * Decomprime i dati in ingresso a blocchi, utilizzando {@link Inflater} riutilizzati da un pool limitato e un buffer per thread.
+	 * La dimensione dell'output è limitata per proteggersi da decompression bomb
+	 * @param deflatedData -i dati compressi
+	 * @param useWrap -se utilizzare wrap o meno
+	 * @param maxInflatedSize -dimensione massima in byte dei dati decompressi
+	 * @return -i dati decompressi
+	 * @throws DataFormatException -sollevata se i dati non sono in formato deflate o se lo stream compresso è troncato
+	 * @throws IOException -sollevata se viene superata la dimensione massima
+	 */
+	private static InflatedBytes inflate( byte[] deflatedData, boolean useWrap, int maxInflatedSize ) throws DataFormatException, IOException {
+		if( maxInflatedSize <= 0 ) {
+			throw new IllegalArgumentException("Dimensione massima della SAML request decompressa non valida ["+maxInflatedSize+"]");
+		}
+		BlockingQueue<Inflater> pool = useWrap ? NOWRAP_INFLATERS : ZLIB_INFLATERS;
+		Inflater decompresser = pool.poll();
+		if( decompresser == null ) {
+			decompresser = new Inflater(useWrap);
+		}
+		byte[] chunk = INFLATE_BUFFER.get();
+		try {
+			decompresser.setInput(deflatedData, 0, deflatedData.length);
+			InflatedBytes result = new InflatedBytes(Math.min(maxInflatedSize, Math.max(chunk.length, deflatedData.length * 4)));
+			while (!decompresser.finished()) {
+				int inflatedBytesLength = decompresser.inflate(chunk);
+				if( inflatedBytesLength == 0 && (decompresser.needsInput() || decompresser.needsDictionary()) ) {
+					//Stream troncato: l'XML parziale non deve arrivare al parser
+					throw new DataFormatException("Stream compresso troncato dopo "+result.size()+" byte decompressi");
+				}
+				if( result.size() + inflatedBytesLength > maxInflatedSize ) {
+					throw new IOException("La SAML request decompressa supera la dimensione massima consentita di "+maxInflatedSize+" byte");
+				}
+				result.write(chunk, 0, inflatedBytesLength);
+			}
+			return result;
+		}finally {
+			decompresser.reset();
+			if( !pool.offer(decompresser) ) {
+				decompresser.end();
+			}
+		}
+	}
+	/**
+	 * {@link ByteArrayOutputStream} che espone il buffer interno senza copiarlo
+	 */
+	private static final class InflatedBytes extends ByteArrayOutputStream {
+		private InflatedBytes(int size) {
+			super(size);
+		}
+		private InputStream toInputStream() {
+			return new ByteArrayInputStream(buf, 0, count);
 		}
 	}
 	/**
@@ -257,6 +362,15 @@ public class OpenSAMLUtils {
 		parameters.setKeyInfoGenerator(keyInfoGenerator());
 		SignatureSupport.signObject(signable, parameters);
 	}	
+	/**
+	 * Firma il {@link SignableXMLObject} in ingresso con i parametri di firma già calcolati della {@link SigningCredential}
+	 * @param signable -l'oggetto {@link SignableXMLObject} da firmare
+	 * @param signingCredential -la {@link SigningCredential} da utilizzare per la firma
+	 * @throws Exception -sollevata in caso di errore
+	 */
+	public static void signSamlObj(final SignableXMLObject signable, SigningCredential signingCredential) throws Exception {
+		SignatureSupport.signObject(signable, signingCredential.getSigningParameters());
+	}
 	/**
 	 * Crea l'oggetto {@link KeyInfoGenerator} che si occupa di inserire il tag KeyInfo
 	 * @return -il {@link KeyInfoGenerator} creato
@@ -274,19 +388,73 @@ public class OpenSAMLUtils {
 	 * @return true se la {@link Signature} è valida, false altrimenti
 	 */
 	public static boolean isSignatureValid( Signature signature, List<Credential> credentials ) {
-		for (Credential credential : credentials) {
-			try {
-				SignatureValidator.validate(signature, credential);
-				if( logger.isTraceEnabled() ) {
-					logger.trace("Signature valida ");
+		return isSignatureValid(signature, new TrustedCredentialIndex(credentials));
+	}
+	/**
+	 * Verifica la {@link Signature} selezionando dal {@link TrustedCredentialIndex} la {@link Credential} indicata dal KeyInfo,
+	 * in modo da effettuare una sola verifica crittografica. Solo se il KeyInfo non contiene certificati o chiavi
+	 * vengono provate in sequenza tutte le credenziali
+	 * @param signature -la {@link Signature} da verificare
+	 * @param trustedCredentials -il {@link TrustedCredentialIndex} delle credenziali fidate
+	 * @return true se la {@link Signature} è valida, false altrimenti
+	 */
+	public static boolean isSignatureValid( Signature signature, TrustedCredentialIndex trustedCredentials ) {
+		return isSignatureValid(signature, trustedCredentials, null);
+	}
+	/**
+	 * Verifica la {@link Signature} come {@link #isSignatureValid(Signature, TrustedCredentialIndex)}, evitando di ripetere
+	 * la verifica RSA delle firme già presenti nella {@link SignatureVerificationCache}
+	 * @param signature -la {@link Signature} da verificare
+	 * @param trustedCredentials -il {@link TrustedCredentialIndex} delle credenziali fidate
+	 * @param cache -la {@link SignatureVerificationCache} da utilizzare. Se null la firma viene sempre verificata
+	 * @return true se la {@link Signature} è valida, false altrimenti
+	 */
+	public static boolean isSignatureValid( Signature signature, TrustedCredentialIndex trustedCredentials, SignatureVerificationCache cache ) {
+		if( signature == null ) {
+			if( logger.isTraceEnabled() ) {
+				logger.trace("Signature non presente");
+			}
+			return false;
+		}
+		if( trustedCredentials.hasKeyMaterial(signature) ) {
+			Credential credential = trustedCredentials.resolve(signature);
+			if( credential == null ) {
+				if( logger.isDebugEnabled() ) {
+					logger.debug("Nessuna credenziale fidata corrisponde al KeyInfo della signature");
 				}
+				return false;
+			}
+			return isSignatureValid(signature, credential, cache);
+		}
+		for (Credential credential : trustedCredentials.getCredentials()) {
+			if( isSignatureValid(signature, credential, cache) ) {
 				return true;
-			}catch (Exception e) {
-				if( logger.isTraceEnabled() ) {
-					logger.trace("Signature non valida. ", e);
-				}
 			}
 		}
 		return false;
 	}
-}
\ No newline at end of file
+	/**
+	 * Verifica la {@link Signature} con la singola {@link Credential} passata in ingresso
+	 * @param signature -la {@link Signature} da verificare
+	 * @param credential -la {@link Credential} da utilizzare per la verifica
+	 * @param cache -la {@link SignatureVerificationCache} da utilizzare, può essere null
+	 * @return true se la {@link Signature} è valida, false altrimenti
+	 */
+	private static boolean isSignatureValid( Signature signature, Credential credential, SignatureVerificationCache cache ) {
+		if( cache != null ) {
+			return cache.validate(signature, credential);
+		}
+		try {
+			SignatureValidator.validate(signature, credential);
+			if( logger.isTraceEnabled() ) {
+				logger.trace("Signature valida ");
+			}
+			return true;
+		}catch (Exception e) {
+			if( logger.isTraceEnabled() ) {
+				logger.trace("Signature non valida. ", e);
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package it.agid.spid.saml.core.utils;
+
+import javax.xml.namespace.QName;
+
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.XMLObjectBuilder;
+
+/**
+ * Riferimento tipizzato al builder OpenSAML di una classe di oggetti SAML. Contiene il DEFAULT_ELEMENT_NAME e
+ * l'{@link XMLObjectBuilder} già risolti, per cui la costruzione dell'oggetto non richiede né reflection né accessi al registry.
+ * Si ottiene tramite {@link OpenSAMLUtils#builderFor(Class)} ed è thread safe.
+ * @param <T> -il tipo di oggetto SAML costruito
+ */
+public final class SamlObjectBuilderHandle<T> {
+	private final Class<T> objectClass;
+	private final QName elementName;
+	private final XMLObjectBuilder<? extends XMLObject> builder;
+
+	SamlObjectBuilderHandle(Class<T> objectClass, QName elementName, XMLObjectBuilder<? extends XMLObject> builder) {
+		this.objectClass = objectClass;
+		this.elementName = elementName;
+		this.builder = builder;
+	}
+	/**
+	 * Costruisce un nuovo oggetto SAML con il nome di elemento di default
+	 * @return -l'oggetto SAML creato
+	 */
+	public T build() {
+		return objectClass.cast(builder.buildObject(elementName));
+	}
+	public Class<T> getObjectClass() {
+		return objectClass;
+	}
+	public QName getElementName() {
+		return elementName;
+	}
+	public XMLObjectBuilder<? extends XMLObject> getBuilder() {
+		return builder;
+	}
+	@Override
+	public String toString() {
+		return "SamlObjectBuilderHandle [objectClass=" + objectClass.getName() + ", elementName=" + elementName + "]";
+	}
+}
@@ -0,0 +1,182 @@
+package it.agid.spid.saml.core.utils;
+
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.xml.security.signature.XMLSignature;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.xmlsec.signature.Signature;
+import org.opensaml.xmlsec.signature.support.SignatureValidator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+/**
+ * Cache limitata e con scadenza delle firme già verificate con successo.
+ * La chiave è il digest SHA-256 di SignedInfo canonicalizzato, SignatureValue e chiave pubblica della {@link Credential}:
+ * una firma identica (ad esempio una SAML POST ripetuta dal browser o dal bilanciatore) non richiede una nuova verifica RSA.
+ * In caso di hit vengono comunque ricalcolati i digest delle Reference, per cui un contenuto modificato non viene mai accettato.
+ * Il numero di elementi non supera mai la dimensione massima indicata.
+ */
+public class SignatureVerificationCache {
+	private static final Logger logger = LoggerFactory.getLogger(SignatureVerificationCache.class.getName());
+	private final int maxEntries;
+	private final long ttlMillis;
+	private final Map<String, Long> entries;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	/**
+	 * Crea la cache
+	 * @param maxEntries -numero massimo di firme memorizzate
+	 * @param ttlMillis -tempo di validità in millisecondi di una firma verificata
+	 */
+	public SignatureVerificationCache(int maxEntries, long ttlMillis) {
+		if( maxEntries < 1 ) {
+			throw new IllegalArgumentException("Dimensione massima della cache non valida ["+maxEntries+"]");
+		}
+		if( ttlMillis < 1 ) {
+			throw new IllegalArgumentException("Tempo di validità della cache non valido ["+ttlMillis+"]");
+		}
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+		this.entries = new LinkedHashMap<String, Long>(Math.min(maxEntries, 1024), 0.75f, false) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				if( size() > SignatureVerificationCache.this.maxEntries ) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+	/**
+	 * Verifica la {@link Signature} con la {@link Credential} indicata. Se la stessa firma è già stata verificata con la stessa
+	 * credenziale e non è scaduta vengono controllati solo i digest delle Reference, altrimenti viene effettuata la verifica completa
+	 * @param signature -la {@link Signature} da verificare
+	 * @param credential -la {@link Credential} da utilizzare
+	 * @return true se la firma è valida
+	 */
+	public boolean validate(Signature signature, Credential credential) {
+		XMLSignature xmlSignature = null;
+		String key = null;
+		Element signatureElement = signature.getDOM();
+		if( signatureElement != null && credential.getPublicKey() != null ) {
+			try {
+				xmlSignature = new XMLSignature(signatureElement, "", true);
+				key = entryKey(xmlSignature, credential.getPublicKey());
+			}catch (Exception e) {
+				if( logger.isDebugEnabled() ) {
+					logger.debug("Impossibile calcolare la chiave di cache della signature", e);
+				}
+			}
+		}
+		if( key != null && isFresh(key) ) {
+			try {
+				if( xmlSignature.getSignedInfo().verify(false) ) {
+					hits.incrementAndGet();
+					return true;
+				}
+			}catch (Exception e) {
+				if( logger.isTraceEnabled() ) {
+					logger.trace("Reference della signature in cache non valide", e);
+				}
+			}
+			return false;
+		}
+		misses.incrementAndGet();
+		try {
+			SignatureValidator.validate(signature, credential);
+		}catch (Exception e) {
+			if( logger.isTraceEnabled() ) {
+				logger.trace("Signature non valida. ", e);
+			}
+			return false;
+		}
+		if( key != null ) {
+			synchronized (entries) {
+				entries.put(key, System.currentTimeMillis() + ttlMillis);
+			}
+		}
+		return true;
+	}
+	private boolean isFresh(String key) {
+		synchronized (entries) {
+			Long expiry = entries.get(key);
+			if( expiry == null ) {
+				return false;
+			}
+			if( expiry.longValue() < System.currentTimeMillis() ) {
+				entries.remove(key);
+				return false;
+			}
+			return true;
+		}
+	}
+	/**
+	 * Rimuove le firme scadute
+	 */
+	public void purgeExpired() {
+		long now = System.currentTimeMillis();
+		synchronized (entries) {
+			Iterator<Long> iterator = entries.values().iterator();
+			while (iterator.hasNext()) {
+				if( iterator.next().longValue() < now ) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+	public long getTtlMillis() {
+		return ttlMillis;
+	}
+	public long getHits() {
+		return hits.get();
+	}
+	public long getMisses() {
+		return misses.get();
+	}
+	public long getEvictions() {
+		return evictions.get();
+	}
+	/**
+	 * @return -la percentuale di hit (tra 0 e 1) dall'avvio
+	 */
+	public double getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0d : (double) h / total;
+	}
+	@Override
+	public String toString() {
+		return "SignatureVerificationCache [maxEntries=" + maxEntries + ", ttlMillis=" + ttlMillis + ", size=" + size()
+				+ ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+	}
+	private static String entryKey(XMLSignature xmlSignature, PublicKey publicKey) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		digest.update(xmlSignature.getSignedInfo().getCanonicalizedOctetStream());
+		digest.update(xmlSignature.getSignatureValue());
+		digest.update(publicKey.getEncoded());
+		return Hex.encodeHexString(digest.digest());
+	}
+}
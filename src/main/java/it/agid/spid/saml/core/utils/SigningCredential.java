@@ -0,0 +1,133 @@
+package it.agid.spid.saml.core.utils;
+
+import java.security.PrivateKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import org.opensaml.security.credential.Credential;
+import org.opensaml.security.x509.BasicX509Credential;
+import org.opensaml.xmlsec.SignatureSigningParameters;
+import org.opensaml.xmlsec.keyinfo.KeyInfoGenerator;
+import org.opensaml.xmlsec.signature.KeyInfo;
+import org.opensaml.xmlsec.signature.X509Data;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+
+/**
+ * Chiave privata e catena di certificati usate per firmare metadata e oggetti SAML, con i dati derivati già calcolati:
+ * {@link BasicX509Credential}, {@link SignatureSigningParameters} e codifica Base64 dei certificati inseriti nel blocco KeyInfo/X509Data.
+ * Le firme successive alla prima non ricodificano i certificati né ricreano credenziale e parametri di firma. È immutabile e thread safe
+ * @see SigningCredentialRegistry
+ */
+public final class SigningCredential {
+	private final String alias;
+	private final PrivateKey privateKey;
+	private final X509Certificate certificate;
+	private final List<X509Certificate> certificateChain;
+	private final List<String> base64Certificates;
+	private final BasicX509Credential credential;
+	private final SignatureSigningParameters signingParameters;
+	private final long loadedAtMillis;
+	/**
+	 * Crea la credenziale di firma con il solo certificato dell'entità
+	 * @param privateKey -la {@link PrivateKey} da utilizzare per la firma
+	 * @param certificate -il {@link X509Certificate} da utilizzare per la firma
+	 * @throws CertificateEncodingException -sollevata se il certificato non può essere codificato
+	 */
+	public SigningCredential(PrivateKey privateKey, X509Certificate certificate) throws CertificateEncodingException {
+		this(null, privateKey, Collections.singletonList(certificate));
+	}
+	/**
+	 * Crea la credenziale di firma
+	 * @param alias -l'alias della chiave nel keystore, può essere null
+	 * @param privateKey -la {@link PrivateKey} da utilizzare per la firma
+	 * @param certificateChain -la catena di certificati, a partire dal certificato dell'entità
+	 * @throws CertificateEncodingException -sollevata se un certificato non può essere codificato
+	 */
+	public SigningCredential(String alias, PrivateKey privateKey, List<X509Certificate> certificateChain) throws CertificateEncodingException {
+		if( privateKey == null || certificateChain == null || certificateChain.isEmpty() || certificateChain.get(0) == null ) {
+			throw new IllegalArgumentException("Chiave privata e certificato obbligatori per la credenziale di firma ["+alias+"]");
+		}
+		this.alias = alias;
+		this.privateKey = privateKey;
+		this.certificate = certificateChain.get(0);
+		this.certificateChain = Collections.unmodifiableList(new ArrayList<>(certificateChain));
+		List<String> encoded = new ArrayList<>(certificateChain.size());
+		for (X509Certificate cert : certificateChain) {
+			encoded.add(Base64.getEncoder().encodeToString(cert.getEncoded()));
+		}
+		this.base64Certificates = Collections.unmodifiableList(encoded);
+		this.credential = new BasicX509Credential(certificate, privateKey);
+		this.credential.setEntityCertificateChain(this.certificateChain);
+		this.signingParameters = new SignatureSigningParameters();
+		this.signingParameters.setSigningCredential(credential);
+		this.signingParameters.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA512);
+		this.signingParameters.setSignatureReferenceDigestMethod(SignatureConstants.ALGO_ID_DIGEST_SHA512);
+		this.signingParameters.setSignatureCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_OMIT_COMMENTS);
+		this.signingParameters.setKeyInfoGenerator(new PrecomputedKeyInfoGenerator(base64Certificates));
+		this.loadedAtMillis = System.currentTimeMillis();
+	}
+	public String getAlias() {
+		return alias;
+	}
+	public PrivateKey getPrivateKey() {
+		return privateKey;
+	}
+	/**
+	 * @return -il certificato dell'entità
+	 */
+	public X509Certificate getCertificate() {
+		return certificate;
+	}
+	public List<X509Certificate> getCertificateChain() {
+		return certificateChain;
+	}
+	/**
+	 * @return -i certificati della catena codificati in Base64, nell'ordine in cui vengono inseriti nel blocco X509Data
+	 */
+	public List<String> getBase64Certificates() {
+		return base64Certificates;
+	}
+	public BasicX509Credential getCredential() {
+		return credential;
+	}
+	/**
+	 * @return -i {@link SignatureSigningParameters} (RSA-SHA512, digest SHA512, C14N senza commenti) condivisi da tutte le firme
+	 */
+	public SignatureSigningParameters getSigningParameters() {
+		return signingParameters;
+	}
+	public long getLoadedAtMillis() {
+		return loadedAtMillis;
+	}
+	@Override
+	public String toString() {
+		return "SigningCredential [alias=" + alias + ", subject=" + certificate.getSubjectX500Principal() + ", serialNumber=" + certificate.getSerialNumber()
+				+ ", notAfter=" + certificate.getNotAfter() + ", chainLength=" + certificateChain.size() + ", loadedAtMillis=" + loadedAtMillis + "]";
+	}
+	/**
+	 * {@link KeyInfoGenerator} che crea il KeyInfo/X509Data dai certificati già codificati, con lo stesso contenuto del generatore
+	 * X509 di OpenSAML configurato per emettere certificato dell'entità e catena. Non ha stato e può essere condiviso tra thread
+	 */
+	private static final class PrecomputedKeyInfoGenerator implements KeyInfoGenerator {
+		private final List<String> base64Certificates;
+		private PrecomputedKeyInfoGenerator(List<String> base64Certificates) {
+			this.base64Certificates = base64Certificates;
+		}
+		@Override
+		public KeyInfo generate(Credential credential) {
+			KeyInfo keyInfo = OpenSAMLUtils.buildSAMLObject(KeyInfo.class);
+			X509Data x509Data = OpenSAMLUtils.buildSAMLObject(X509Data.class);
+			for (String base64Certificate : base64Certificates) {
+				org.opensaml.xmlsec.signature.X509Certificate x509Certificate = OpenSAMLUtils.buildSAMLObject(org.opensaml.xmlsec.signature.X509Certificate.class);
+				x509Certificate.setValue(base64Certificate);
+				x509Data.getX509Certificates().add(x509Certificate);
+			}
+			keyInfo.getX509Datas().add(x509Data);
+			return keyInfo;
+		}
+	}
+}
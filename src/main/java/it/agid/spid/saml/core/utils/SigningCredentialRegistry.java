@@ -0,0 +1,212 @@
+package it.agid.spid.saml.core.utils;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registro delle {@link SigningCredential} caricate da keystore PKCS12 o JKS (come quelli della cartella certificate).
+ * Ogni keystore viene letto una sola volta; la {@link #get(String)} restituisce la credenziale corrente con una lettura volatile.
+ * Al più ogni checkIntervalMillis la data di modifica e la dimensione del file vengono confrontate con quelle del caricamento:
+ * se il file è cambiato il keystore viene riletto da un solo thread e la nuova credenziale sostituisce atomicamente la precedente.
+ * Le firme in corso e i thread che non effettuano il controllo continuano ad usare la credenziale precedente, senza attese.
+ * Se il nuovo keystore non è leggibile (ad esempio perché ancora in scrittura) resta in uso la credenziale precedente.
+ * È thread safe
+ */
+public class SigningCredentialRegistry {
+	private static final Logger logger = LoggerFactory.getLogger(SigningCredentialRegistry.class.getName());
+	public static final long DEFAULT_CHECK_INTERVAL_MILLIS = 5000;
+	private static volatile SigningCredentialRegistry _INSTANCE;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private final long checkIntervalMillis;
+	/**
+	 * Crea il registro controllando le modifiche dei keystore ogni {@value #DEFAULT_CHECK_INTERVAL_MILLIS} millisecondi
+	 */
+	public SigningCredentialRegistry() {
+		this(DEFAULT_CHECK_INTERVAL_MILLIS);
+	}
+	/**
+	 * Crea il registro
+	 * @param checkIntervalMillis -intervallo minimo in millisecondi tra due controlli di modifica dello stesso keystore. Se 0 il controllo
+	 * viene effettuato ad ogni {@link #get(String)}, se negativo le credenziali vengono ricaricate solo con {@link #reload(String)}
+	 */
+	public SigningCredentialRegistry(long checkIntervalMillis) {
+		this.checkIntervalMillis = checkIntervalMillis;
+	}
+	public static SigningCredentialRegistry getInstance() {
+		if( _INSTANCE == null ) {
+			synchronized (SigningCredentialRegistry.class) {
+				if( _INSTANCE == null ) {
+					_INSTANCE = new SigningCredentialRegistry();
+				}
+			}
+		}
+		return _INSTANCE;
+	}
+	/**
+	 * Carica il keystore e registra la credenziale con il nome indicato, sostituendo una eventuale registrazione precedente
+	 * @param name -il nome della credenziale
+	 * @param keystore -il {@link Path} del keystore
+	 * @param keystoreType -il tipo di keystore (PKCS12 o JKS)
+	 * @param password -la password del keystore e della chiave
+	 * @param alias -l'alias della chiave. Se null viene usato il primo alias con chiave privata
+	 * @return -la {@link SigningCredential} caricata
+	 * @throws Exception -sollevata se il keystore non può essere letto o non contiene la chiave
+	 */
+	public SigningCredential register(String name, Path keystore, String keystoreType, char[] password, String alias) throws Exception {
+		Entry entry = new Entry(keystore, keystoreType, password, alias);
+		entry.load();
+		entries.put(name, entry);
+		if( logger.isInfoEnabled() ) {
+			logger.info("Registrata la credenziale di firma {}: {}", name, entry.current);
+		}
+		return entry.current;
+	}
+	/**
+	 * @param name -il nome della credenziale
+	 * @return -la {@link SigningCredential} corrente, null se il nome non è registrato
+	 */
+	public SigningCredential get(String name) {
+		Entry entry = entries.get(name);
+		if( entry == null ) {
+			return null;
+		}
+		if( checkIntervalMillis >= 0 ) {
+			entry.reloadIfChanged(checkIntervalMillis);
+		}
+		return entry.current;
+	}
+	/**
+	 * Rilegge il keystore indipendentemente dalla data di modifica
+	 * @param name -il nome della credenziale
+	 * @return -la nuova {@link SigningCredential}
+	 * @throws Exception -sollevata se il nome non è registrato o il keystore non può essere letto. Resta in uso la credenziale precedente
+	 */
+	public SigningCredential reload(String name) throws Exception {
+		Entry entry = entries.get(name);
+		if( entry == null ) {
+			throw new IllegalArgumentException("Credenziale di firma ["+name+"] non registrata");
+		}
+		entry.load();
+		return entry.current;
+	}
+	/**
+	 * @param name -il nome della credenziale
+	 * @return -true se la credenziale era registrata
+	 */
+	public boolean unregister(String name) {
+		Entry entry = entries.remove(name);
+		if( entry != null ) {
+			Arrays.fill(entry.password, '\0');
+		}
+		return entry != null;
+	}
+	public Set<String> getNames() {
+		return Collections.unmodifiableSet(entries.keySet());
+	}
+	/**
+	 * Legge la chiave privata e la catena di certificati dal keystore
+	 * @param keystore -il {@link Path} del keystore
+	 * @param keystoreType -il tipo di keystore (PKCS12 o JKS)
+	 * @param password -la password del keystore e della chiave
+	 * @param alias -l'alias della chiave. Se null viene usato il primo alias con chiave privata
+	 * @return -la {@link SigningCredential} letta
+	 * @throws Exception -sollevata se il keystore non può essere letto o non contiene la chiave
+	 */
+	public static SigningCredential loadFromKeyStore(Path keystore, String keystoreType, char[] password, String alias) throws Exception {
+		KeyStore ks = KeyStore.getInstance(keystoreType);
+		try( InputStream is = Files.newInputStream(keystore) ){
+			ks.load(is, password);
+		}
+		String keyAlias = alias;
+		if( keyAlias == null ) {
+			Enumeration<String> aliases = ks.aliases();
+			while (keyAlias == null && aliases.hasMoreElements()) {
+				String candidate = aliases.nextElement();
+				if( ks.isKeyEntry(candidate) ) {
+					keyAlias = candidate;
+				}
+			}
+		}
+		Key key = keyAlias == null ? null : ks.getKey(keyAlias, password);
+		if( !(key instanceof PrivateKey) ) {
+			throw new IllegalArgumentException("Nessuna chiave privata con alias ["+keyAlias+"] nel keystore ["+keystore+"]");
+		}
+		Certificate[] chain = ks.getCertificateChain(keyAlias);
+		if( chain == null || chain.length == 0 ) {
+			chain = new Certificate[] { ks.getCertificate(keyAlias) };
+		}
+		List<X509Certificate> certificates = new ArrayList<>(chain.length);
+		for (Certificate certificate : chain) {
+			certificates.add((X509Certificate) certificate);
+		}
+		return new SigningCredential(keyAlias, (PrivateKey) key, certificates);
+	}
+	/**
+	 * Keystore registrato con la credenziale corrente e gli attributi del file al momento del caricamento
+	 */
+	private static final class Entry {
+		private final Path keystore;
+		private final String keystoreType;
+		private final char[] password;
+		private final String alias;
+		private final AtomicBoolean reloading = new AtomicBoolean();
+		private volatile SigningCredential current;
+		private volatile long lastModified;
+		private volatile long size;
+		private volatile long lastCheckMillis;
+
+		private Entry(Path keystore, String keystoreType, char[] password, String alias) {
+			this.keystore = keystore;
+			this.keystoreType = keystoreType;
+			this.password = password.clone();
+			this.alias = alias;
+		}
+		private synchronized void load() throws Exception {
+			BasicFileAttributes attributes = Files.readAttributes(keystore, BasicFileAttributes.class);
+			current = loadFromKeyStore(keystore, keystoreType, password, alias);
+			lastModified = attributes.lastModifiedTime().toMillis();
+			size = attributes.size();
+			lastCheckMillis = System.currentTimeMillis();
+		}
+		private void reloadIfChanged(long checkIntervalMillis) {
+			long now = System.currentTimeMillis();
+			if( now - lastCheckMillis < checkIntervalMillis || !reloading.compareAndSet(false, true) ) {
+				return;
+			}
+			try {
+				lastCheckMillis = now;
+				BasicFileAttributes attributes = Files.readAttributes(keystore, BasicFileAttributes.class);
+				if( attributes.lastModifiedTime().toMillis() == lastModified && attributes.size() == size ) {
+					return;
+				}
+				SigningCredential previous = current;
+				load();
+				if( logger.isInfoEnabled() ) {
+					logger.info("Keystore {} modificato: credenziale di firma {} sostituita da {}", keystore, previous, current);
+				}
+			}catch (Exception e) {
+				logger.error("Impossibile ricaricare il keystore "+keystore+"; resta in uso la credenziale corrente", e);
+			}finally {
+				reloading.set(false);
+			}
+		}
+	}
+}
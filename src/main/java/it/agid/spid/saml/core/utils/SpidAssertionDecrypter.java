@@ -0,0 +1,362 @@
+package it.agid.spid.saml.core.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.Unmarshaller;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml.saml2.encryption.Decrypter;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.security.credential.CredentialSupport;
+import org.opensaml.xmlsec.encryption.EncryptedData;
+import org.opensaml.xmlsec.encryption.EncryptedKey;
+import org.opensaml.xmlsec.encryption.support.DecryptionException;
+import org.opensaml.xmlsec.encryption.support.InlineEncryptedKeyResolver;
+import org.opensaml.xmlsec.keyinfo.impl.StaticKeyInfoCredentialResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentFragment;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import it.agid.spid.saml.spid.exception.SpidCheckerException;
+import it.agid.spid.saml.spid.exception.SpidErrorCode;
+
+/**
+ * Decifratura delle {@link EncryptedAssertion} di una SAML Response con la chiave privata dell'SP.
+ * Credenziale, resolver e {@link Decrypter} vengono creati una sola volta per chiave privata ({@link #forKeyPair(KeyPair)});
+ * le assertion di una stessa response vengono decifrate in parallelo su un executor limitato, ognuna su una copia dell'EncryptedData in un proprio documento.
+ * La prima assertion è decifrata dal thread chiamante; se la coda dell'executor è piena anche le altre vengono decifrate dal chiamante.
+ * La chiave di sessione ottenuta dalla decifratura RSA-OAEP di un EncryptedKey viene conservata in una cache limitata, indicizzata
+ * per digest SHA-256 del CipherValue: una response ripetuta non richiede una nuova operazione RSA.
+ * È thread safe.
+ */
+public class SpidAssertionDecrypter {
+	private static final Logger logger = LoggerFactory.getLogger(SpidAssertionDecrypter.class.getName());
+	public static final int DEFAULT_SESSION_KEY_CACHE_SIZE = 256;
+	private static final int MAX_DECRYPTERS = 64;
+	private static volatile ExecutorService _DEFAULT_EXECUTOR;
+	/**
+	 * Decrypter per chiave privata: {@link KeyPair} non ridefinisce equals, per cui KeyPair diversi con la stessa chiave condividono il decrypter.
+	 * Le chiavi usate meno di recente vengono rimosse oltre {@value #MAX_DECRYPTERS} decrypter
+	 */
+	private static final Map<PrivateKey, SpidAssertionDecrypter> decrypters = Collections.synchronizedMap(new LinkedHashMap<PrivateKey, SpidAssertionDecrypter>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<PrivateKey, SpidAssertionDecrypter> eldest) {
+			return size() > MAX_DECRYPTERS;
+		}
+	});
+	private final PrivateKey privateKey;
+	private final ExecutorService executor;
+	private final Decrypter decrypter;
+	private final InlineEncryptedKeyResolver encryptedKeyResolver;
+	private final int maxSessionKeys;
+	private final Map<String, Key> sessionKeys;
+	private final AtomicLong sessionKeyHits = new AtomicLong();
+	private final AtomicLong sessionKeyMisses = new AtomicLong();
+	/**
+	 * Crea il decrypter che decifra in parallelo sul pool condiviso, con un thread per processore disponibile
+	 * @param keyPair -il {@link KeyPair} dell'SP usato per decriptare le assertion
+	 * @param maxSessionKeys -numero massimo di chiavi di sessione conservate. Se 0 la cache non viene usata
+	 */
+	public SpidAssertionDecrypter(KeyPair keyPair, int maxSessionKeys) {
+		this(keyPair, maxSessionKeys, defaultExecutor());
+	}
+	/**
+	 * Crea il decrypter con l'executor indicato, ad esempio un pool limitato dedicato. L'executor non viene chiuso dal decrypter
+	 * @param keyPair -il {@link KeyPair} dell'SP usato per decriptare le assertion
+	 * @param maxSessionKeys -numero massimo di chiavi di sessione conservate. Se 0 la cache non viene usata
+	 * @param executor -l'{@link ExecutorService} su cui decifrare le assertion
+	 */
+	public SpidAssertionDecrypter(KeyPair keyPair, int maxSessionKeys, ExecutorService executor) {
+		if( executor == null ) {
+			throw new IllegalArgumentException("Executor null");
+		}
+		if( keyPair == null || keyPair.getPrivate() == null ) {
+			throw new IllegalArgumentException("KeyPair o chiave privata null");
+		}
+		if( maxSessionKeys < 0 ) {
+			throw new IllegalArgumentException("Dimensione massima della cache delle chiavi di sessione non valida ["+maxSessionKeys+"]");
+		}
+		this.privateKey = keyPair.getPrivate();
+		this.executor = executor;
+		this.maxSessionKeys = maxSessionKeys;
+		Credential spCredentials = CredentialSupport.getSimpleCredential(keyPair.getPublic(), keyPair.getPrivate());
+		this.encryptedKeyResolver = new InlineEncryptedKeyResolver();
+		this.decrypter = new Decrypter(null, new StaticKeyInfoCredentialResolver(spCredentials), encryptedKeyResolver);
+		this.decrypter.setRootInNewDocument(true);
+		this.sessionKeys = new LinkedHashMap<String, Key>(Math.min(Math.max(maxSessionKeys, 1), 1024), 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Key> eldest) {
+				return size() > SpidAssertionDecrypter.this.maxSessionKeys;
+			}
+		};
+	}
+	/**
+	 * Restituisce il decrypter associato alla chiave privata del {@link KeyPair}, creandolo alla prima richiesta con una cache di
+	 * {@value #DEFAULT_SESSION_KEY_CACHE_SIZE} chiavi di sessione
+	 * @param keyPair -il {@link KeyPair} dell'SP
+	 * @return -il {@link SpidAssertionDecrypter}
+	 */
+	public static SpidAssertionDecrypter forKeyPair(KeyPair keyPair) {
+		if( keyPair == null || keyPair.getPrivate() == null ) {
+			throw new IllegalArgumentException("KeyPair o chiave privata null");
+		}
+		return decrypters.computeIfAbsent(keyPair.getPrivate(), pk -> new SpidAssertionDecrypter(keyPair, DEFAULT_SESSION_KEY_CACHE_SIZE));
+	}
+	/**
+	 * Decifra le {@link EncryptedAssertion}. Se sono più di una vengono decifrate in parallelo; l'ordine del risultato è quello di ingresso.
+	 * Il DOM della response non viene mai letto da più thread: ogni EncryptedData viene prima copiato, dal thread chiamante, in un proprio documento
+	 * @param samlResponseId -l'ID della SAML Response, usato nei messaggi di errore
+	 * @param encAssertions -il {@link List} di {@link EncryptedAssertion} da decifrare
+	 * @return -il {@link List} di {@link Assertion} decifrate
+	 * @throws SpidCheckerException -sollevata se una delle assertion non può essere decifrata. In caso di più errori viene riportato quello della prima assertion in ordine
+	 */
+	public List<Assertion> decrypt(String samlResponseId, List<EncryptedAssertion> encAssertions) throws SpidCheckerException {
+		if( encAssertions == null || encAssertions.isEmpty() ) {
+			return new ArrayList<>(0);
+		}
+		List<Assertion> result = new ArrayList<>(encAssertions.size());
+		if( encAssertions.size() == 1 ) {
+			result.add(decrypt(samlResponseId, encAssertions.get(0)));
+			return result;
+		}
+		List<CompletableFuture<Assertion>> futures = new ArrayList<>(encAssertions.size() - 1);
+		for (EncryptedAssertion encAss : encAssertions.subList(1, encAssertions.size())) {
+			EncryptedData encryptedData = detach(samlResponseId, encAss);
+			try {
+				futures.add(CompletableFuture.supplyAsync(() -> {
+					try {
+						return decrypt(samlResponseId, encryptedData);
+					} catch (SpidCheckerException e) {
+						throw new CompletionException(e);
+					}
+				}, executor));
+			}catch (RejectedExecutionException e) {
+				CompletableFuture<Assertion> future = new CompletableFuture<>();
+				try {
+					future.complete(decrypt(samlResponseId, encryptedData));
+				} catch (SpidCheckerException ex) {
+					future.completeExceptionally(ex);
+				}
+				futures.add(future);
+			}
+		}
+		result.add(decrypt(samlResponseId, encAssertions.get(0)));
+		for (CompletableFuture<Assertion> future : futures) {
+			try {
+				result.add(future.join());
+			}catch (CompletionException e) {
+				if( e.getCause() instanceof SpidCheckerException ) {
+					throw (SpidCheckerException) e.getCause();
+				}
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_DECRYPTION_FAILED, e.getCause(), samlResponseId, e.getCause());
+			}
+		}
+		return result;
+	}
+	/**
+	 * Decifra la singola {@link EncryptedAssertion}
+	 * @param samlResponseId -l'ID della SAML Response, usato nei messaggi di errore
+	 * @param encAss -l'{@link EncryptedAssertion} da decifrare
+	 * @return -l'{@link Assertion} decifrata
+	 * @throws SpidCheckerException -sollevata se l'assertion non può essere decifrata
+	 */
+	public Assertion decrypt(String samlResponseId, EncryptedAssertion encAss) throws SpidCheckerException {
+		return decrypt(samlResponseId, encryptedData(samlResponseId, encAss));
+	}
+	private Assertion decrypt(String samlResponseId, EncryptedData encryptedData) throws SpidCheckerException {
+		try {
+			Key sessionKey = sessionKey(encryptedData);
+			DocumentFragment fragment = decrypter.decryptDataToDOM(encryptedData, sessionKey);
+			return toAssertion(samlResponseId, fragment);
+		}catch (DecryptionException e) {
+			if( logger.isDebugEnabled() ) {
+				logger.debug("Errore nella decifratura della assertion della SAML Response {}", samlResponseId, e);
+			}
+			throw new SpidCheckerException(SpidErrorCode.ASSERTION_DECRYPTION_FAILED, e, samlResponseId, e.getMessage());
+		}
+	}
+	private static EncryptedData encryptedData(String samlResponseId, EncryptedAssertion encAss) throws SpidCheckerException {
+		EncryptedData encryptedData = encAss.getEncryptedData();
+		if( encryptedData == null || encryptedData.getEncryptionMethod() == null ) {
+			throw new SpidCheckerException(SpidErrorCode.ASSERTION_DECRYPTION_FAILED, samlResponseId, "EncryptedData o EncryptionMethod non presente nella assertion cifrata");
+		}
+		return encryptedData;
+	}
+	/**
+	 * Copia l'EncryptedData dell'assertion in un proprio {@link Document}, su cui può lavorare un altro thread
+	 * @param samlResponseId -l'ID della SAML Response, usato nei messaggi di errore
+	 * @param encAss -l'{@link EncryptedAssertion} da copiare
+	 * @return -la copia dell'{@link EncryptedData}
+	 * @throws SpidCheckerException -sollevata se l'EncryptedData non è presente o non può essere copiato
+	 */
+	private static EncryptedData detach(String samlResponseId, EncryptedAssertion encAss) throws SpidCheckerException {
+		EncryptedData encryptedData = encryptedData(samlResponseId, encAss);
+		try {
+			Element element = encryptedData.getDOM();
+			if( element == null ) {
+				element = XMLObjectProviderRegistrySupport.getMarshallerFactory().getMarshaller(encryptedData).marshall(encryptedData);
+			}
+			//Non XMLObjectSupport.cloneXMLObject: sposterebbe l'elemento originale fuori dal DOM della response
+			Document doc = XmlParserPool.getInstance().newDocument();
+			Element copy = (Element) doc.importNode(element, true);
+			doc.appendChild(copy);
+			return (EncryptedData) XMLObjectProviderRegistrySupport.getUnmarshallerFactory().getUnmarshaller(copy).unmarshall(copy);
+		}catch (Exception e) {
+			throw new SpidCheckerException(SpidErrorCode.ASSERTION_DECRYPTION_FAILED, e, samlResponseId, "impossibile copiare la assertion cifrata: "+e.getMessage());
+		}
+	}
+	/**
+	 * Restituisce la chiave di sessione dell'{@link EncryptedData}, prendendola dalla cache o decifrando il primo EncryptedKey utilizzabile
+	 * @param encryptedData -l'{@link EncryptedData} dell'assertion
+	 * @return -la chiave di sessione
+	 * @throws DecryptionException -sollevata se nessun EncryptedKey può essere decifrato
+	 */
+	private Key sessionKey(EncryptedData encryptedData) throws DecryptionException {
+		String algorithm = encryptedData.getEncryptionMethod().getAlgorithm();
+		DecryptionException lastError = null;
+		for (EncryptedKey encryptedKey : encryptedKeyResolver.resolve(encryptedData)) {
+			String cacheKey = maxSessionKeys > 0 ? sessionKeyCacheKey(encryptedKey, algorithm) : null;
+			if( cacheKey != null ) {
+				Key cached;
+				synchronized (sessionKeys) {
+					cached = sessionKeys.get(cacheKey);
+				}
+				if( cached != null ) {
+					sessionKeyHits.incrementAndGet();
+					return cached;
+				}
+			}
+			sessionKeyMisses.incrementAndGet();
+			try {
+				Key key = decrypter.decryptKey(encryptedKey, algorithm, privateKey);
+				if( cacheKey != null ) {
+					synchronized (sessionKeys) {
+						sessionKeys.put(cacheKey, key);
+					}
+				}
+				return key;
+			}catch (DecryptionException e) {
+				if( logger.isTraceEnabled() ) {
+					logger.trace("EncryptedKey non decifrabile con la chiave dell'SP", e);
+				}
+				lastError = e;
+			}
+		}
+		if( lastError != null ) {
+			throw lastError;
+		}
+		throw new DecryptionException("Nessun EncryptedKey presente nel KeyInfo dell'EncryptedData");
+	}
+	private Assertion toAssertion(String samlResponseId, DocumentFragment fragment) throws SpidCheckerException, DecryptionException {
+		Element element = null;
+		for (Node child = fragment.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if( child.getNodeType() == Node.ELEMENT_NODE ) {
+				if( element != null ) {
+					throw new SpidCheckerException(SpidErrorCode.ASSERTION_DECRYPTION_FAILED, samlResponseId, "la assertion cifrata contiene più di un elemento");
+				}
+				element = (Element) child;
+			}
+		}
+		if( element == null ) {
+			throw new SpidCheckerException(SpidErrorCode.ASSERTION_DECRYPTION_FAILED, samlResponseId, "la assertion cifrata non contiene alcun elemento");
+		}
+		//Come Decrypter.setRootInNewDocument(true): l'assertion è la radice di un proprio documento
+		try {
+			Document doc = XmlParserPool.getInstance().newDocument();
+			Element root = (Element) doc.adoptNode(element);
+			doc.appendChild(root);
+			Unmarshaller unmarshaller = XMLObjectProviderRegistrySupport.getUnmarshallerFactory().getUnmarshaller(root);
+			if( unmarshaller == null ) {
+				throw new DecryptionException("Nessun unmarshaller per l'elemento decifrato "+root.getLocalName());
+			}
+			XMLObject xmlObject = unmarshaller.unmarshall(root);
+			if( !(xmlObject instanceof Assertion) ) {
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_DECRYPTION_FAILED, samlResponseId, "l'elemento cifrato ["+root.getLocalName()+"] non è una assertion");
+			}
+			return (Assertion) xmlObject;
+		}catch (SpidCheckerException | DecryptionException e) {
+			throw e;
+		}catch (Exception e) {
+			throw new DecryptionException("Errore nell'unmarshalling della assertion decifrata", e);
+		}
+	}
+	private static String sessionKeyCacheKey(EncryptedKey encryptedKey, String dataAlgorithm) {
+		if( encryptedKey.getCipherData() == null || encryptedKey.getCipherData().getCipherValue() == null ) {
+			return null;
+		}
+		String cipherValue = encryptedKey.getCipherData().getCipherValue().getValue();
+		if( StringUtil.isEmptyString(cipherValue) ) {
+			return null;
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(dataAlgorithm.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			//Il base64 può contenere spazi e a capo: li ignoro
+			digest.update(cipherValue.replaceAll("\\s", "").getBytes(StandardCharsets.US_ASCII));
+			return Hex.encodeHexString(digest.digest());
+		}catch (Exception e) {
+			if( logger.isDebugEnabled() ) {
+				logger.debug("Impossibile calcolare la chiave di cache della chiave di sessione", e);
+			}
+			return null;
+		}
+	}
+	private static ExecutorService defaultExecutor() {
+		if( _DEFAULT_EXECUTOR == null ) {
+			synchronized (SpidAssertionDecrypter.class) {
+				if( _DEFAULT_EXECUTOR == null ) {
+					int threads = Runtime.getRuntime().availableProcessors();
+					_DEFAULT_EXECUTOR = SpidSignatureVerifier.newExecutor("spid-assertion-decrypter-", threads, threads * 4);
+				}
+			}
+		}
+		return _DEFAULT_EXECUTOR;
+	}
+	public void clearSessionKeys() {
+		synchronized (sessionKeys) {
+			sessionKeys.clear();
+		}
+	}
+	public int getSessionKeysSize() {
+		synchronized (sessionKeys) {
+			return sessionKeys.size();
+		}
+	}
+	public int getMaxSessionKeys() {
+		return maxSessionKeys;
+	}
+	public long getSessionKeyHits() {
+		return sessionKeyHits.get();
+	}
+	public long getSessionKeyMisses() {
+		return sessionKeyMisses.get();
+	}
+	@Override
+	public String toString() {
+		return "SpidAssertionDecrypter [executor=" + executor + ", maxSessionKeys=" + maxSessionKeys + ", sessionKeys=" + getSessionKeysSize()
+				+ ", sessionKeyHits=" + sessionKeyHits + ", sessionKeyMisses=" + sessionKeyMisses + "]";
+	}
+}
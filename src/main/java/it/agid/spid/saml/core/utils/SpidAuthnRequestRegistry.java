@@ -0,0 +1,290 @@
+package it.agid.spid.saml.core.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.opensaml.saml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.saml.saml2.core.RequestedAuthnContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.agid.spid.saml.core.dto.SpidPendingAuthnRequest;
+
+/**
+ * Registro delle AuthnRequest inviate e non ancora concluse, indicizzate per ID, usato per correlare l'InResponseTo delle SAML Response.
+ * Ogni AuthnRequest scade dopo il TTL indicato calcolato dall'issue instant; la scadenza è gestita con una ruota temporale (time wheel)
+ * di intervalli di ampiezza fissa: ad ogni accesso vengono svuotati solo gli intervalli trascorsi dall'accesso precedente, senza thread dedicati
+ * e senza scorrere l'intero registro. La {@link #consume(String)} rimuove la AuthnRequest in modo atomico: una seconda response con lo stesso
+ * InResponseTo non trova più la richiesta. Per rimuoverla solo dopo aver controllato la response si usano {@link #get(String)} e
+ * {@link #consume(SpidPendingAuthnRequest)}: una response non valida non consuma la richiesta a cui dichiara di rispondere. La ruota ha al più {@value #MAX_WHEEL_SLOTS} intervalli e il registro al più maxPending AuthnRequest
+ * in attesa: oltre questo limite la registrazione fallisce con {@link IllegalStateException}. È thread safe
+ */
+public class SpidAuthnRequestRegistry {
+	private static final Logger logger = LoggerFactory.getLogger(SpidAuthnRequestRegistry.class.getName());
+	public static final long DEFAULT_TTL_MILLIS = 600000;
+	public static final long DEFAULT_TICK_MILLIS = 1000;
+	public static final int DEFAULT_MAX_PENDING = 100000;
+	public static final int MAX_WHEEL_SLOTS = 4096;
+	private final ConcurrentHashMap<String, SpidPendingAuthnRequest> pending = new ConcurrentHashMap<>();
+	private final List<Queue<SpidPendingAuthnRequest>> wheel;
+	private final long ttlMillis;
+	private final long tickMillis;
+	private final int maxPending;
+	private final AtomicInteger pendingCount = new AtomicInteger();
+	private final ReentrantLock expiryLock = new ReentrantLock();
+	private volatile long lastTick;
+	private final AtomicLong registered = new AtomicLong();
+	private final AtomicLong consumed = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+	private final AtomicLong unknown = new AtomicLong();
+	/**
+	 * Crea il registro con TTL di {@value #DEFAULT_TTL_MILLIS} millisecondi, intervalli di {@value #DEFAULT_TICK_MILLIS} millisecondi
+	 * e al più {@value #DEFAULT_MAX_PENDING} AuthnRequest in attesa
+	 */
+	public SpidAuthnRequestRegistry() {
+		this(DEFAULT_TTL_MILLIS, DEFAULT_TICK_MILLIS);
+	}
+	/**
+	 * Crea il registro con al più {@value #DEFAULT_MAX_PENDING} AuthnRequest in attesa
+	 * @see #SpidAuthnRequestRegistry(long, long, int)
+	 */
+	public SpidAuthnRequestRegistry(long ttlMillis, long tickMillis) {
+		this(ttlMillis, tickMillis, DEFAULT_MAX_PENDING);
+	}
+	/**
+	 * Crea il registro
+	 * @param ttlMillis -la validità in millisecondi di una AuthnRequest a partire dal suo issue instant
+	 * @param tickMillis -ampiezza in millisecondi degli intervalli della ruota. Una AuthnRequest scaduta viene rimossa al più tickMillis dopo la scadenza.
+	 * Se il TTL richiederebbe più di {@value #MAX_WHEEL_SLOTS} intervalli l'ampiezza viene arrotondata per eccesso a ttlMillis / ({@value #MAX_WHEEL_SLOTS} - 1)
+	 * @param maxPending -numero massimo di AuthnRequest in attesa, incluse quelle scadute non ancora rimosse
+	 */
+	public SpidAuthnRequestRegistry(long ttlMillis, long tickMillis, int maxPending) {
+		if( tickMillis < 1 ) {
+			throw new IllegalArgumentException("Ampiezza degli intervalli non valida ["+tickMillis+"]");
+		}
+		if( ttlMillis < tickMillis ) {
+			throw new IllegalArgumentException("TTL ["+ttlMillis+"] inferiore all'ampiezza degli intervalli ["+tickMillis+"]");
+		}
+		if( maxPending < 1 ) {
+			throw new IllegalArgumentException("Numero massimo di AuthnRequest in attesa non valido ["+maxPending+"]");
+		}
+		this.ttlMillis = ttlMillis;
+		//Una coda per intervallo: con TTL lunghi e intervalli brevi la ruota verrebbe allocata per intero
+		long minTickMillis = (ttlMillis + MAX_WHEEL_SLOTS - 2) / (MAX_WHEEL_SLOTS - 1);
+		this.tickMillis = Math.max(tickMillis, minTickMillis);
+		this.maxPending = maxPending;
+		int slots = (int) (ttlMillis / this.tickMillis) + 1;
+		this.wheel = new ArrayList<>(slots);
+		for (int i = 0; i < slots; i++) {
+			wheel.add(new ConcurrentLinkedQueue<>());
+		}
+		this.lastTick = System.currentTimeMillis() / this.tickMillis;
+	}
+	/**
+	 * Registra la {@link AuthnRequest} inviata all'IDP. Il livello SPID richiesto è ricavato dal primo AuthnContextClassRef del RequestedAuthnContext
+	 * @param authnRequest -la {@link AuthnRequest} inviata
+	 * @param idpEntityId -l'entity ID dell'IDP destinatario
+	 * @return -la {@link SpidPendingAuthnRequest} registrata
+	 */
+	public SpidPendingAuthnRequest register(AuthnRequest authnRequest, String idpEntityId) {
+		int spidLevel = 0;
+		RequestedAuthnContext requestedAuthnContext = authnRequest.getRequestedAuthnContext();
+		if( requestedAuthnContext != null && !requestedAuthnContext.getAuthnContextClassRefs().isEmpty() ) {
+			AuthnContextClassRef classRef = requestedAuthnContext.getAuthnContextClassRefs().get(0);
+			Integer level = SpidValidationContext.spidLevel(classRef.getAuthnContextClassRef());
+			if( level == null ) {
+				throw new IllegalArgumentException("AuthnRequest ID "+authnRequest.getID()+". AuthnContextClassRef ["+classRef.getAuthnContextClassRef()+"] non previsto");
+			}
+			spidLevel = level.intValue();
+		}
+		long issueInstant = authnRequest.getIssueInstant() == null ? System.currentTimeMillis() : authnRequest.getIssueInstant().getMillis();
+		return register(authnRequest.getID(), authnRequest.getAssertionConsumerServiceURL(), idpEntityId, spidLevel, issueInstant);
+	}
+	/**
+	 * Registra una AuthnRequest inviata all'IDP
+	 * @param id -l'ID della AuthnRequest
+	 * @param assertionConsumerServiceUrl -l'URL dell'AssertionConsumerService atteso come Destination della response. Se null non viene controllato
+	 * @param idpEntityId -l'entity ID dell'IDP destinatario. Se null non viene controllato
+	 * @param spidLevel -il livello SPID richiesto. Se 0 non viene controllato
+	 * @param issueInstantMillis -l'issue instant (millisecondi epoch) della AuthnRequest
+	 * @return -la {@link SpidPendingAuthnRequest} registrata
+	 * @throws IllegalStateException -sollevata se il registro contiene già maxPending AuthnRequest in attesa
+	 */
+	public SpidPendingAuthnRequest register(String id, String assertionConsumerServiceUrl, String idpEntityId, int spidLevel, long issueInstantMillis) {
+		if( StringUtil.isEmptyString(id) ) {
+			throw new IllegalArgumentException("ID della AuthnRequest null o vuoto");
+		}
+		long now = System.currentTimeMillis();
+		expire(now);
+		SpidPendingAuthnRequest request = new SpidPendingAuthnRequest(id, assertionConsumerServiceUrl, idpEntityId, spidLevel, issueInstantMillis,
+				issueInstantMillis + ttlMillis);
+		if( pending.containsKey(id) ) {
+			throw new IllegalArgumentException("AuthnRequest ID "+id+" già registrata");
+		}
+		if( pendingCount.incrementAndGet() > maxPending ) {
+			pendingCount.decrementAndGet();
+			throw new IllegalStateException("Registro pieno: "+maxPending+" AuthnRequest in attesa, AuthnRequest ID "+id+" non registrata");
+		}
+		if( pending.putIfAbsent(id, request) != null ) {
+			pendingCount.decrementAndGet();
+			throw new IllegalArgumentException("AuthnRequest ID "+id+" già registrata");
+		}
+		schedule(request, lastTick + 1);
+		registered.incrementAndGet();
+		return request;
+	}
+	/**
+	 * Rimuove e restituisce la AuthnRequest a cui risponde la SAML Response
+	 * @param inResponseTo -l'InResponseTo della SAML Response
+	 * @return -la {@link SpidPendingAuthnRequest}, null se non è registrata, è scaduta o è già stata consumata
+	 */
+	public SpidPendingAuthnRequest consume(String inResponseTo) {
+		long now = System.currentTimeMillis();
+		expire(now);
+		SpidPendingAuthnRequest request = inResponseTo == null ? null : pending.remove(inResponseTo);
+		if( request == null ) {
+			unknown.incrementAndGet();
+			return null;
+		}
+		pendingCount.decrementAndGet();
+		if( request.getExpiresAtMillis() <= now ) {
+			expired.incrementAndGet();
+			return null;
+		}
+		consumed.incrementAndGet();
+		return request;
+	}
+	/**
+	 * Restituisce, senza rimuoverla, la AuthnRequest a cui risponde la SAML Response
+	 * @param inResponseTo -l'InResponseTo della SAML Response
+	 * @return -la {@link SpidPendingAuthnRequest}, null se non è registrata, è scaduta o è già stata consumata
+	 */
+	public SpidPendingAuthnRequest get(String inResponseTo) {
+		long now = System.currentTimeMillis();
+		expire(now);
+		SpidPendingAuthnRequest request = inResponseTo == null ? null : pending.get(inResponseTo);
+		if( request == null ) {
+			unknown.incrementAndGet();
+			return null;
+		}
+		return request.getExpiresAtMillis() > now ? request : null;
+	}
+	/**
+	 * Rimuove la AuthnRequest ottenuta da {@link #get(String)}, se non è stata nel frattempo consumata da un'altra response
+	 * @param request -la {@link SpidPendingAuthnRequest} da rimuovere
+	 * @return -true se la AuthnRequest è stata rimossa, false se era già stata consumata o è scaduta
+	 */
+	public boolean consume(SpidPendingAuthnRequest request) {
+		if( !pending.remove(request.getId(), request) ) {
+			unknown.incrementAndGet();
+			return false;
+		}
+		pendingCount.decrementAndGet();
+		if( request.getExpiresAtMillis() <= System.currentTimeMillis() ) {
+			expired.incrementAndGet();
+			return false;
+		}
+		consumed.incrementAndGet();
+		return true;
+	}
+	/**
+	 * @param id -l'ID della AuthnRequest
+	 * @return -true se la AuthnRequest è registrata e non scaduta
+	 */
+	public boolean isPending(String id) {
+		SpidPendingAuthnRequest request = id == null ? null : pending.get(id);
+		return request != null && request.getExpiresAtMillis() > System.currentTimeMillis();
+	}
+	/**
+	 * @return -il numero di AuthnRequest registrate, incluse quelle scadute non ancora rimosse
+	 */
+	public int size() {
+		return pending.size();
+	}
+	/**
+	 * @return -l'ampiezza in millisecondi degli intervalli della ruota, eventualmente arrotondata rispetto a quella indicata
+	 */
+	public long getTickMillis() {
+		return tickMillis;
+	}
+	public long getRegistered() {
+		return registered.get();
+	}
+	public long getConsumed() {
+		return consumed.get();
+	}
+	/**
+	 * @return -il numero di AuthnRequest scadute senza aver ricevuto risposta
+	 */
+	public long getExpired() {
+		return expired.get();
+	}
+	/**
+	 * @return -il numero di InResponseTo non corrispondenti ad alcuna AuthnRequest registrata
+	 */
+	public long getUnknown() {
+		return unknown.get();
+	}
+	@Override
+	public String toString() {
+		return "SpidAuthnRequestRegistry [ttlMillis=" + ttlMillis + ", tickMillis=" + tickMillis + ", maxPending=" + maxPending + ", size=" + size() + ", registered=" + registered
+				+ ", consumed=" + consumed + ", expired=" + expired + ", unknown=" + unknown + "]";
+	}
+	private void schedule(SpidPendingAuthnRequest request, long minTick) {
+		long tick = Math.max(request.getExpiresAtMillis() / tickMillis, minTick);
+		wheel.get((int) (tick % wheel.size())).add(request);
+	}
+	/**
+	 * Svuota gli intervalli della ruota trascorsi dall'ultimo accesso. Se un altro thread sta già svuotando la ruota non attende
+	 * @param now -l'istante corrente
+	 */
+	private void expire(long now) {
+		long currentTick = now / tickMillis;
+		if( currentTick <= lastTick || !expiryLock.tryLock() ) {
+			return;
+		}
+		try {
+			long from = lastTick + 1;
+			//Oltre un giro completo ogni intervallo va svuotato una sola volta
+			if( currentTick - from >= wheel.size() ) {
+				from = currentTick - wheel.size() + 1;
+			}
+			List<SpidPendingAuthnRequest> notExpired = new ArrayList<>();
+			int removed = 0;
+			for (long tick = from; tick <= currentTick; tick++) {
+				Queue<SpidPendingAuthnRequest> slot = wheel.get((int) (tick % wheel.size()));
+				SpidPendingAuthnRequest request;
+				while ((request = slot.poll()) != null) {
+					if( request.getExpiresAtMillis() <= now ) {
+						if( pending.remove(request.getId(), request) ) {
+							pendingCount.decrementAndGet();
+							removed++;
+						}
+					}else if( pending.get(request.getId()) == request ) {
+						//Intervallo di un giro successivo della ruota
+						notExpired.add(request);
+					}
+				}
+			}
+			lastTick = currentTick;
+			for (SpidPendingAuthnRequest request : notExpired) {
+				schedule(request, currentTick + 1);
+			}
+			if( removed > 0 ) {
+				expired.addAndGet(removed);
+				if( logger.isDebugEnabled() ) {
+					logger.debug("Rimosse {} AuthnRequest scadute senza risposta", removed);
+				}
+			}
+		}finally {
+			expiryLock.unlock();
+		}
+	}
+}
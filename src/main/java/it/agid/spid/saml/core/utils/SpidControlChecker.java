@@ -3,6 +3,7 @@ package it.agid.spid.saml.core.utils;
 import java.security.KeyPair;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import org.joda.time.DateTime;
 import org.opensaml.saml.common.SAMLVersion;
@@ -26,23 +27,23 @@ import org.opensaml.saml.saml2.core.StatusMessage;
 import org.opensaml.saml.saml2.core.Subject;
 import org.opensaml.saml.saml2.core.SubjectConfirmation;
 import org.opensaml.saml.saml2.core.SubjectConfirmationData;
-import org.opensaml.saml.saml2.encryption.Decrypter;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
 import org.opensaml.security.credential.Credential;
-import org.opensaml.security.credential.CredentialSupport;
-import org.opensaml.xmlsec.encryption.support.DecryptionException;
-import org.opensaml.xmlsec.encryption.support.InlineEncryptedKeyResolver;
-import org.opensaml.xmlsec.keyinfo.impl.StaticKeyInfoCredentialResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import it.agid.spid.saml.core.dto.SamlAttributeDto;
 import it.agid.spid.saml.core.dto.SamlAttributesConsumingServiceDto;
+import it.agid.spid.saml.core.dto.SpidPendingAuthnRequest;
+import it.agid.spid.saml.core.dto.SpidValidationResult;
 import it.agid.spid.saml.spid.exception.SpidCheckerException;
+import it.agid.spid.saml.spid.exception.SpidErrorCode;
 
 public abstract class SpidControlChecker {
 	public static final String BASE_SPID_AUTHN_CONTEXT_CLAS_REF = "https://www.spid.gov.it/SpidL";
 	private static final Logger logger = LoggerFactory.getLogger(SpidControlChecker.class.getName());
+	private static final String REPLAY_CONTEXT_RESPONSE = "response:";
+	private static final String REPLAY_CONTEXT_ASSERTION = "assertion:";
 	/**
 	 * Controlla se la saml response {@link Response} è compliant ai controlli SPID definiti nello spid validator
 	 * @param samlResponse -la {@link Response} da controllare
@@ -68,213 +69,396 @@ public abstract class SpidControlChecker {
 			SamlAttributesConsumingServiceDto attributiRichiesti,
 			KeyPair keyPair,
 			int spLivelloAutenticazioneSpid) throws SpidCheckerException {
-		//Controllo id response
+		verifySamlResponseSpidCompliance(samlResponse, credentials, tolleranceTimeMillisecond, idpDestinationUrl, spidIdpEntityId, spitEnteAggregatoMetadata, attributiRichiesti, keyPair, spLivelloAutenticazioneSpid, null);
+	}
+	/**
+	 * Controlla se la saml response {@link Response} è compliant ai controlli SPID definiti nello spid validator.
+	 * Le firme di response e assertion già verificate con successo e presenti in <code>signatureCache</code> non vengono
+	 * nuovamente verificate con RSA. I controlli vengono eseguiti da {@link SpidRuleEngine#getInstance()} in ordine di costo crescente
+	 * @param samlResponse -la {@link Response} da controllare
+	 * @param credentials -il {@link List} di {@link Credential} da utilizzare per il controllo della firma 
+	 * @param tolleranceTimeMillisecond il tempo di tolleranza in millisecondi
+	 * @param idpDestinationUrl - Destination URL verso cui tutte le SAML Response devono puntare
+	 * @param spidIdpEntityId -IDP Entity ID
+	 * @param spitEnteAggregatoMetadata - {@link EntityDescriptor} contentente le informazioni del metadata dell'ente aggregato
+	 * @param attributiRichiesti -Gli attributi richiesti dall'SP dell'ente
+	 * @param keyPair il {@link KeyPair} usato per decriptare le assertion
+	 * @param spLivelloAutenticazioneSpid il livello di autenticazione SPID richiesto da SP
+	 * @param signatureCache -la {@link SignatureVerificationCache} delle firme già verificate. Se null la cache non viene usata
+	 * @throws SpidCheckerException sollevata se uno dei controlli spid fallisce
+	 */
+	public static void verifySamlResponseSpidCompliance( 	Response samlResponse, 
+			List<Credential> credentials, 
+			int tolleranceTimeMillisecond, 
+			String idpDestinationUrl, 
+			String spidIdpEntityId,
+			EntityDescriptor spitEnteAggregatoMetadata,
+			SamlAttributesConsumingServiceDto attributiRichiesti,
+			KeyPair keyPair,
+			int spLivelloAutenticazioneSpid,
+			SignatureVerificationCache signatureCache) throws SpidCheckerException {
+		verifySamlResponseSpidCompliance(samlResponse, SpidValidationContext.builder().credentials(credentials).tolleranceTimeMillisecond(tolleranceTimeMillisecond)
+				.idpDestinationUrl(idpDestinationUrl).spidIdpEntityId(spidIdpEntityId).spitEnteAggregatoMetadata(spitEnteAggregatoMetadata)
+				.attributiRichiesti(attributiRichiesti).keyPair(keyPair).spLivelloAutenticazioneSpid(spLivelloAutenticazioneSpid)
+				.signatureCache(signatureCache).build());
+	}
+	/**
+	 * Controlla se la saml response {@link Response} è compliant ai controlli SPID definiti nello spid validator, utilizzando
+	 * un {@link SpidValidationContext} costruito una sola volta per la coppia (SP, IDP). I controlli vengono eseguiti dallo {@link SpidRuleEngine}
+	 * del contesto ({@link SpidValidationContext#getRuleEngine()})
+	 * @param samlResponse -la {@link Response} da controllare
+	 * @param context -il {@link SpidValidationContext} con i parametri dei controlli
+	 * @throws SpidCheckerException sollevata se uno dei controlli spid fallisce
+	 */
+	public static void verifySamlResponseSpidCompliance( Response samlResponse, SpidValidationContext context ) throws SpidCheckerException {
+		context.getRuleEngine().verify(context.newValidation(samlResponse));
+	}
+	/**
+	 * Controlla la SAML Response ricevuta come XML: i controlli sull'intestazione (ID, Version, Destination e Issuer) vengono effettuati
+	 * in streaming da {@link SpidResponsePreChecker} prima del parsing, per cui una response malformata o indirizzata ad un altro SP
+	 * viene scartata senza costruire il DOM. Superati i controlli preliminari, la response viene verificata con tutte le regole SPID
+	 * @param samlResponse -i byte XML della SAML Response (già decodificati da base64)
+	 * @param context -il {@link SpidValidationContext} con i parametri dei controlli
+	 * @return -la {@link Response} verificata
+	 * @throws SpidCheckerException sollevata se uno dei controlli spid fallisce o se la response non è leggibile
+	 */
+	public static Response verifySamlResponseSpidCompliance( byte[] samlResponse, SpidValidationContext context ) throws SpidCheckerException {
+		Response response;
+		try {
+			response = SpidResponsePreChecker.preCheckAndParse(samlResponse, context.getIdpDestinationUrl(), context.getSpidIdpEntityId());
+		} catch (SpidCheckerException e) {
+			throw e;
+		} catch (Exception e) {
+			if( logger.isDebugEnabled() ) {
+				logger.debug("SAML Response non leggibile", e);
+			}
+			throw new SpidCheckerException(SpidErrorCode.RESPONSE_MALFORMED, e.getMessage());
+		}
+		verifySamlResponseSpidCompliance(response, context);
+		return response;
+	}
+	/**
+	 * Come {@link #verifySamlResponseSpidCompliance(Response, SpidValidationContext)} ma restituisce l'esito invece di sollevare l'eccezione.
+	 * Il messaggio di errore viene costruito solo se richiesto con {@link SpidValidationResult#getMessage()}
+	 * @param samlResponse -la {@link Response} da controllare
+	 * @param context -il {@link SpidValidationContext} con i parametri dei controlli
+	 * @return -lo {@link SpidValidationResult} dei controlli
+	 */
+	public static SpidValidationResult checkSamlResponseSpidCompliance( Response samlResponse, SpidValidationContext context ) {
+		try {
+			verifySamlResponseSpidCompliance(samlResponse, context);
+			return SpidValidationResult.VALID;
+		} catch (SpidCheckerException e) {
+			return SpidValidationResult.invalid(e);
+		}
+	}
+	/**
+	 * Controlla che l'ID della SAML Response sia valorizzato
+	 * @param samlResponse -la {@link Response} da controllare
+	 * @throws SpidCheckerException -sollevata se il controllo fallisce
+	 */
+	static void checkSamlResponseId(Response samlResponse) throws SpidCheckerException {
 		String responseId = samlResponse.getID();
 		if( StringUtil.isEmptyString(responseId) ) {
-			throw new SpidCheckerException("SAML Response ID non presente o non valorizzato ["+responseId+"] SAML Response non valida");
+			throw new SpidCheckerException(SpidErrorCode.RESPONSE_ID_MISSING, responseId);
 		}
-		//Controllo version
+	}
+	/**
+	 * Controlla la versione SAML della SAML Response
+	 * @param samlResponse -la {@link Response} da controllare
+	 * @throws SpidCheckerException -sollevata se il controllo fallisce
+	 */
+	static void checkSamlResponseVersion(Response samlResponse) throws SpidCheckerException {
 		SAMLVersion version = samlResponse.getVersion();
-		if( !version.equals(SAMLVersion.VERSION_20) ) {
-			throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" SAML Version ["+version+"] differente da ["+SAMLVersion.VERSION_20+"] SAML Response non valida");
+		if( !SAMLVersion.VERSION_20.equals(version) ) {
+			throw new SpidCheckerException(SpidErrorCode.RESPONSE_VERSION_INVALID, samlResponse.getID(), version, SAMLVersion.VERSION_20);
 		}
-		//Controllo firma saml response e assertion
-		//Firma saml response
-		boolean validSign = OpenSAMLUtils.isSignatureValid(samlResponse.getSignature(), credentials);
+	}
+	/**
+	 * Verifica la firma della SAML Response
+	 * @param samlResponse -la {@link Response} da controllare
+	 * @param trustedCredentials -il {@link TrustedCredentialIndex} con cui verificare la firma
+	 * @param signatureCache -la {@link SignatureVerificationCache} delle firme già verificate. Può essere null
+	 * @throws SpidCheckerException -sollevata se la firma non è valida
+	 */
+	static void checkSamlResponseSignature(Response samlResponse, TrustedCredentialIndex trustedCredentials, SignatureVerificationCache signatureCache) throws SpidCheckerException {
+		boolean validSign = OpenSAMLUtils.isSignatureValid(samlResponse.getSignature(), trustedCredentials, signatureCache);
 		if( !validSign ) {
-			throw new SpidCheckerException("Firma SAML Response non valida");
-		}
-		//Controllo su element status
-		checkSamlResponseStatus( samlResponse );
-		//Firma assertion
-		List<Assertion> assertions = samlResponse.getAssertions();
-		if( assertions == null || assertions.isEmpty() ) {
-			assertions = decriptAssertion(samlResponse.getEncryptedAssertions(), keyPair);
+			throw new SpidCheckerException(SpidErrorCode.RESPONSE_SIGNATURE_INVALID);
 		}
+	}
+	/**
+	 * Verifica la firma delle assertion
+	 * @param samlResponse -la {@link Response} a cui appartengono le assertion
+	 * @param assertions -il {@link List} di {@link Assertion} da controllare
+	 * @param trustedCredentials -il {@link TrustedCredentialIndex} con cui verificare la firma
+	 * @param signatureCache -la {@link SignatureVerificationCache} delle firme già verificate. Può essere null
+	 * @throws SpidCheckerException -sollevata se la firma di una assertion non è valida
+	 */
+	static void checkSamlResponseAssertionsSignature(Response samlResponse, List<Assertion> assertions, TrustedCredentialIndex trustedCredentials, SignatureVerificationCache signatureCache) throws SpidCheckerException {
+		for (Assertion assertion : assertions) {
+			boolean validAssSign = OpenSAMLUtils.isSignatureValid(assertion.getSignature(), trustedCredentials, signatureCache);
+			if( !validAssSign ) {
 
-		//Controllo assertion
-		checkSamlResponseAssertions( samlResponse, assertions, credentials, tolleranceTimeMillisecond, idpDestinationUrl, spidIdpEntityId, spitEnteAggregatoMetadata, attributiRichiesti.getAttrs(), spLivelloAutenticazioneSpid );
-		//Controllo response issue instant
-		DateTime responseIssueInstant = samlResponse.getIssueInstant();
-		checkSamlResponseIssueInstant( responseIssueInstant, assertions, tolleranceTimeMillisecond );
-		//Controllo sulla destination
-		checkSamlResponseDestination( samlResponse, idpDestinationUrl );
-
-		//Controlli sullo issuer
-		checkSamlResponseIssuer( samlResponse, spidIdpEntityId );
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_SIGNATURE_INVALID, samlResponse.getID(), assertion.getID());
+			}
+		}
+	}
+	/**
+	 * Registra gli ID della response e delle assertion nella {@link SpidReplayCache}, rifiutando quelli già consumati.
+	 * Le assertion scadute (NotOnOrAfter più il tempo di tolleranza precedente all'istante di riferimento) vengono rifiutate prima della registrazione,
+	 * per cui una response scaduta non può essere accettata neanche dopo la rimozione dei suoi ID dalla cache.
+	 * Gli ID vengono conservati fino al NotOnOrAfter più lontano delle assertion più il tempo di tolleranza, e comunque almeno fino all'istante
+	 * corrente più il tempo di tolleranza
+	 * @param samlResponse -la {@link Response} già verificata
+	 * @param assertions -il {@link List} di {@link Assertion} della response
+	 * @param replayCache -la {@link SpidReplayCache} da utilizzare
+	 * @param spidIdpEntityId -IDP Entity ID, usato come contesto degli ID
+	 * @param tolleranceTimeMillisecond -il tempo di tolleranza in millisecondi
+	 * @param referenceInstant -l'istante rispetto al quale verificare la scadenza. Se null viene usato l'istante corrente
+	 * @throws SpidCheckerException -sollevata se una assertion è scaduta, se la response o una assertion sono già state consumate o in caso di errore della cache
+	 */
+	static void checkSamlResponseReplay(Response samlResponse, List<Assertion> assertions, SpidReplayCache replayCache, String spidIdpEntityId, int tolleranceTimeMillisecond,
+			DateTime referenceInstant) throws SpidCheckerException {
+		long now = System.currentTimeMillis();
+		DateTime riferimento = referenceInstant != null ? referenceInstant : new DateTime(now);
+		long scadenza = samlResponse.getIssueInstant() != null ? samlResponse.getIssueInstant().getMillis() : riferimento.getMillis();
+		for (Assertion assertion : assertions) {
+			Conditions conditions = assertion.getConditions();
+			if( conditions != null && conditions.getNotOnOrAfter() != null ) {
+				checkNotExpired(samlResponse, assertion, conditions.getNotOnOrAfter(), tolleranceTimeMillisecond, riferimento);
+				scadenza = Math.max(scadenza, conditions.getNotOnOrAfter().getMillis());
+			}
+		}
+		long expiresAtMillis = Math.max(scadenza, now) + tolleranceTimeMillisecond;
+		try {
+			if( !replayCache.checkAndStore(REPLAY_CONTEXT_RESPONSE + spidIdpEntityId, samlResponse.getID(), expiresAtMillis) ) {
+				throw new SpidCheckerException(SpidErrorCode.REPLAY_DETECTED, samlResponse.getID());
+			}
+			for (Assertion assertion : assertions) {
+				if( !replayCache.checkAndStore(REPLAY_CONTEXT_ASSERTION + spidIdpEntityId, assertion.getID(), expiresAtMillis) ) {
+					if( logger.isDebugEnabled() ) {
+						logger.debug("SAML Response ID {} Assertion ID {} già ricevuta (replay)", samlResponse.getID(), assertion.getID());
+					}
+					throw new SpidCheckerException(SpidErrorCode.REPLAY_DETECTED, samlResponse.getID());
+				}
+			}
+		}catch (SpidCheckerException e) {
+			throw e;
+		}catch (Exception e) {
+			logger.error("Errore nell'accesso alla cache anti replay", e);
+			throw new SpidCheckerException(SpidErrorCode.REPLAY_CHECK_FAILED, e, samlResponse.getID());
+		}
+	}
+	/**
+	 * Verifica che il NotOnOrAfter dell'assertion, più il tempo di tolleranza, non sia precedente all'istante di riferimento
+	 */
+	private static void checkNotExpired(Response samlResponse, Assertion assertion, DateTime notOnOrAfter, int tolleranceTimeMillisecond, DateTime riferimento) throws SpidCheckerException {
+		if( notOnOrAfter.getMillis() + tolleranceTimeMillisecond < riferimento.getMillis() ) {
+			throw new SpidCheckerException(SpidErrorCode.ASSERTION_EXPIRED, samlResponse.getID(), assertion.getID(), notOnOrAfter, riferimento);
+		}
+	}
+	/**
+	 * Correla la SAML Response con la AuthnRequest a cui risponde: la response deve essere indirizzata all'AssertionConsumerService della richiesta,
+	 * provenire dall'IDP a cui la richiesta è stata inviata e le assertion devono avere un livello SPID non inferiore a quello richiesto.
+	 * La AuthnRequest viene rimossa dallo {@link SpidAuthnRequestRegistry} solo se tutti i controlli sono superati: una response non valida
+	 * non impedisce di ricevere quella corretta
+	 * @param samlResponse -la {@link Response} già verificata
+	 * @param assertions -il {@link List} di {@link Assertion} della response
+	 * @param authnRequestRegistry -lo {@link SpidAuthnRequestRegistry} delle AuthnRequest in attesa
+	 * @param spidIdpEntityId -IDP Entity ID
+	 * @throws SpidCheckerException -sollevata se la AuthnRequest non è in attesa o la response non corrisponde alla richiesta
+	 */
+	static void checkSamlResponseInResponseTo(Response samlResponse, List<Assertion> assertions, SpidAuthnRequestRegistry authnRequestRegistry, String spidIdpEntityId) throws SpidCheckerException {
+		String inResponseTo = samlResponse.getInResponseTo();
+		if( StringUtil.isEmptyString(inResponseTo) ) {
+			throw new SpidCheckerException(SpidErrorCode.IN_RESPONSE_TO_MISSING, samlResponse.getID());
+		}
+		SpidPendingAuthnRequest authnRequest = authnRequestRegistry.get(inResponseTo);
+		if( authnRequest == null ) {
+			throw new SpidCheckerException(SpidErrorCode.IN_RESPONSE_TO_INVALID, samlResponse.getID(), inResponseTo);
+		}
+		if( authnRequest.getIdpEntityId() != null && !authnRequest.getIdpEntityId().equals(spidIdpEntityId) ) {
+			throw new SpidCheckerException(SpidErrorCode.IN_RESPONSE_TO_IDP_MISMATCH, samlResponse.getID(), inResponseTo, authnRequest.getIdpEntityId(), spidIdpEntityId);
+		}
+		if( authnRequest.getAssertionConsumerServiceUrl() != null && !authnRequest.getAssertionConsumerServiceUrl().equals(samlResponse.getDestination()) ) {
+			throw new SpidCheckerException(SpidErrorCode.IN_RESPONSE_TO_DESTINATION_MISMATCH, samlResponse.getID(), samlResponse.getDestination(),
+					authnRequest.getAssertionConsumerServiceUrl());
+		}
+		if( authnRequest.getSpidLevel() > 0 ) {
+			for (Assertion assertion : assertions) {
+				for (AuthnStatement authnStatement : assertion.getAuthnStatements()) {
+					AuthnContext authCtx = authnStatement.getAuthnContext();
+					AuthnContextClassRef classRef = authCtx == null ? null : authCtx.getAuthnContextClassRef();
+					Integer livelloSpid = classRef == null ? null : SpidValidationContext.spidLevel(classRef.getAuthnContextClassRef());
+					if( livelloSpid == null || livelloSpid.intValue() < authnRequest.getSpidLevel() ) {
+						throw new SpidCheckerException(SpidErrorCode.IN_RESPONSE_TO_LEVEL_INSUFFICIENT, samlResponse.getID(), assertion.getID(), livelloSpid,
+								Integer.valueOf(authnRequest.getSpidLevel()));
+					}
+				}
+			}
+		}
+		//Consumata solo ora: se un'altra response l'ha consumata nel frattempo questa è rifiutata
+		if( !authnRequestRegistry.consume(authnRequest) ) {
+			throw new SpidCheckerException(SpidErrorCode.IN_RESPONSE_TO_INVALID, samlResponse.getID(), inResponseTo);
+		}
 	}
 	/**
 	 * Effettuo i controlli sulle assertion
 	 * @param samlResponse la {@link Response} su cui è necessario effettuare i controlli 
 	 * @param assertions -il {@link List} di {@link Assertion} da controllare
-	 * @param credentials -il {@link List} di {@link Credential} con cui verificare la firma delle assertion
-	 * @param tolleranceTimeMillisecond -il tempo di tolleranza in millisecondi
-	 * @param idpDestinationUrl - Destination URL verso chui tutte le SAML Response devono puntare ed è coindidente con AssertionConsumerServiceURL della SAML Request inviata a SPID.
-	 * @param spidIdpEntityId -IDP Entity ID
-	 * @param spitEnteAggregatoMetadata - {@link EntityDescriptor} rappresentante il metadata dell'ente aggregato
-	 * @param attributiRichiesti -Il {@link List} di {@link SamlAttributesConsumingServiceDto} richiesti
-	 * @param spLivelloAutenticazioneSpid -Il livello di autenticazione SPID richiesto dall'SP dell'ente
+	 * @param context -il {@link SpidValidationContext} con i parametri dei controlli
 	 * @throws SpidCheckerException -sollevata se qualche controllo fallisce
 	 */
-	private static void checkSamlResponseAssertions( 	Response samlResponse, 
+	static void checkSamlResponseAssertions( 	Response samlResponse, 
 			List<Assertion> assertions, 
-			List<Credential> credentials, 
-			int tolleranceTimeMillisecond, 
-			String idpDestinationUrl, 
-			String spidIdpEntityId,
-			EntityDescriptor spitEnteAggregatoMetadata,
-			List<SamlAttributeDto> attributiRichiesti,
-			int spLivelloAutenticazioneSpid) throws SpidCheckerException {
+			SpidValidationContext context) throws SpidCheckerException {
+		int tolleranceTimeMillisecond = context.getTolleranceTimeMillisecond();
+		String idpDestinationUrl = context.getIdpDestinationUrl();
+		String spidIdpEntityId = context.getSpidIdpEntityId();
 		if( assertions == null || assertions.isEmpty() ) {
-			throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" nessun tag assertion trovato SAML Response non valida");
+			throw new SpidCheckerException(SpidErrorCode.ASSERTIONS_MISSING, samlResponse.getID());
 		}
 
 		for (Assertion assertion : assertions) {
 			String assertionId = assertion.getID();
 			if( StringUtil.isEmptyString(assertionId) ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" assertion ID non presente o vuoto SAML Response non valida");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_ID_MISSING, samlResponse.getID());
 			}
-			boolean validAssSign = OpenSAMLUtils.isSignatureValid(assertion.getSignature(), credentials);
-			if( !validAssSign ) {
-
-				throw new SpidCheckerException("SAML Response ID ["+samlResponse.getID()+"] Firma Assertion "+assertion.getID()+" non verificata SAML Response non valida");
-			}
-
 			SAMLVersion assertionVersion = assertion.getVersion();
 			if( !assertionVersion.equals(SAMLVersion.VERSION_20) ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" assertion ID ["+assertionId+"] SAML Version ["+assertionVersion+"] differente da ["+SAMLVersion.VERSION_20+"] SAML Response non valida");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_VERSION_INVALID, samlResponse.getID(), assertionId, assertionVersion, SAMLVersion.VERSION_20);
 			}
 			DateTime assertionIssueInstant = null;
 			try {
 				assertionIssueInstant = assertion.getIssueInstant();
 			}catch (Exception e) {
 				logger.error("Errore nel recupero di assertionIssueInstant", e);
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" assertion ID ["+assertionId+"] errore nel recupero dello issue instant SAML Response non valida");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_ISSUE_INSTANT_INVALID, e, samlResponse.getID(), assertionId);
 			}
 			if( assertionIssueInstant == null ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" assertion ID ["+assertionId+"] issue instant non presente SAML Response non valida");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_ISSUE_INSTANT_MISSING, samlResponse.getID(), assertionId);
 			}
 			List<AuthnStatement> statemens = assertion.getAuthnStatements();
 			for (AuthnStatement statement : statemens) {
 				DateTime requestTime = statement.getAuthnInstant();
 				DateTime requestTimeMinus = requestTime.minusMillis(tolleranceTimeMillisecond);
 				if( assertionIssueInstant.isBefore(requestTimeMinus) ) {
-					throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Assertion Issue Instant ["+assertionIssueInstant+"] Request issuer time ["+requestTime+"] SAML Response non valida. Issue Instant della SAML Assertion precedente a quello della request");
+					throw new SpidCheckerException(SpidErrorCode.ASSERTION_ISSUE_INSTANT_BEFORE_REQUEST, samlResponse.getID(), assertion.getID(), assertionIssueInstant, requestTime);
 				}
 				DateTime requestTimePlus = requestTime.plusMillis(tolleranceTimeMillisecond);
 				if( assertionIssueInstant.isAfter(requestTimePlus) ) {
-					throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Assertion Issue Instant ["+assertionIssueInstant+"] Request issuer time ["+requestTime+"] SAML Response non valida. Issue Instant della SAML Assertion successivo a quello della request");
+					throw new SpidCheckerException(SpidErrorCode.ASSERTION_ISSUE_INSTANT_AFTER_REQUEST, samlResponse.getID(), assertion.getID(), assertionIssueInstant, requestTime);
 				}
 			}
 
 			Subject assertionSubject = assertion.getSubject();
 			if( assertionSubject == null || !assertionSubject.hasChildren() ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Subject nullo SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_SUBJECT_MISSING, samlResponse.getID(), assertion.getID());
 			}
 			NameID subjectNameId = assertionSubject.getNameID();
 			if( subjectNameId == null ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Subject Name ID nullo SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_SUBJECT_NAME_ID_MISSING, samlResponse.getID(), assertion.getID());
 			}
 			String subjectNameIdFormat = subjectNameId.getFormat();
 			if( StringUtil.isEmptyString(subjectNameIdFormat) ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Subject Name ID Format nullo o vuoto ["+subjectNameIdFormat+"] SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_SUBJECT_NAME_ID_FORMAT_MISSING, samlResponse.getID(), assertion.getID(), subjectNameIdFormat);
 			}
 			if( !NameIDType.TRANSIENT.equals(subjectNameIdFormat) ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Subject Name ID Format ["+subjectNameIdFormat+"] diverso da "+NameIDType.TRANSIENT+" SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_SUBJECT_NAME_ID_FORMAT_INVALID, samlResponse.getID(), assertion.getID(), subjectNameIdFormat, NameIDType.TRANSIENT);
 			}
 			String subjectNameIdNameQualifier = subjectNameId.getNameQualifier();
 			if( StringUtil.isEmptyString(subjectNameIdNameQualifier) ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Subject Name ID Qualifier nullo o vuoto ["+subjectNameIdNameQualifier+"] SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_SUBJECT_NAME_QUALIFIER_MISSING, samlResponse.getID(), assertion.getID(), subjectNameIdNameQualifier);
 			}
 			List<SubjectConfirmation> subjectConfirmations = assertionSubject.getSubjectConfirmations();
 			if( subjectConfirmations == null || subjectConfirmations.isEmpty() ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". SubjectConfirmation nullo o vuoto SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_SUBJECT_CONFIRMATION_MISSING, samlResponse.getID(), assertion.getID());
 			}
 			checkSamlResponseSubjectConfirmation(samlResponse, assertion.getID(), subjectConfirmations, idpDestinationUrl, assertion.getConditions());
 			Issuer assertionIssuer = assertion.getIssuer();
 			if( assertionIssuer == null ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Issuer nullo o vuoto SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_ISSUER_MISSING, samlResponse.getID(), assertion.getID());
 			}
 			String assertionIssuerValue = assertionIssuer.getValue();
 			if( StringUtil.isEmptyString(assertionIssuerValue) ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Valore Issuer nullo o vuoto "+assertionIssuerValue+" SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_ISSUER_VALUE_MISSING, samlResponse.getID(), assertion.getID(), assertionIssuerValue);
 			}else if( !spidIdpEntityId.equals(assertionIssuerValue) ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Valore Issuer "+assertionIssuerValue+" differente da IDP Entity ID "+spidIdpEntityId+" SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_ISSUER_MISMATCH, samlResponse.getID(), assertion.getID(), assertionIssuerValue, spidIdpEntityId);
 			}
 			String assertionIssuerFormat = assertionIssuer.getFormat();
 			if( StringUtil.isEmptyString(assertionIssuerFormat) ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Attributo Format Issuer nullo o vuoto "+assertionIssuerFormat+" SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_ISSUER_FORMAT_MISSING, samlResponse.getID(), assertion.getID(), assertionIssuerFormat);
 			}else if( !NameIDType.ENTITY.equals(assertionIssuerFormat) ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Attributo Format Issuer ["+assertionIssuerFormat+"] diverso da "+NameIDType.ENTITY+" SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_ISSUER_FORMAT_INVALID, samlResponse.getID(), assertion.getID(), assertionIssuerFormat, NameIDType.ENTITY);
 			}
 			//check condtions
-			checkSamlResponseAssertionConditions( samlResponse, assertion, spitEnteAggregatoMetadata, attributiRichiesti, spLivelloAutenticazioneSpid);
+			checkSamlResponseAssertionConditions( samlResponse, assertion, context);
 		}
 	}
-	private static void checkSamlResponseAssertionConditions(Response samlResponse, Assertion assertion, EntityDescriptor spitEnteAggregatoMetadata,List<SamlAttributeDto> attributiRichiesti, int spLivelloAutenticazioneSpid) throws SpidCheckerException {
+	private static void checkSamlResponseAssertionConditions(Response samlResponse, Assertion assertion, SpidValidationContext context) throws SpidCheckerException {
 		Conditions conditions = assertion.getConditions();
 		if( conditions == null ) {
-			throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Contitions nulle SAML Response non valida.");
+			throw new SpidCheckerException(SpidErrorCode.ASSERTION_CONDITIONS_MISSING, samlResponse.getID(), assertion.getID());
 		}
 		DateTime condNotBefore = null;
 		try {
 			condNotBefore = conditions.getNotBefore();
 		} catch (Exception e) {
 			logger.error("Errore nel recupero di condNotBefore", e);
-			throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Contitions attributo NotBefore formato non corretto SAML Response non valida.");
+			throw new SpidCheckerException(SpidErrorCode.ASSERTION_CONDITIONS_NOT_BEFORE_INVALID, samlResponse.getID(), assertion.getID());
 		}
 		if( condNotBefore == null ) {
-			throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Contitions attributo NotBefore non valorizzato o null SAML Response non valida.");
+			throw new SpidCheckerException(SpidErrorCode.ASSERTION_CONDITIONS_NOT_BEFORE_MISSING, samlResponse.getID(), assertion.getID());
 		}
 		if( condNotBefore.isAfter(samlResponse.getIssueInstant()) ) {
-			throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Contitions attributo NotBefore "+condNotBefore+" saml response issue instant "+samlResponse.getIssueInstant()+" SAML Response non valida.");
+			throw new SpidCheckerException(SpidErrorCode.ASSERTION_CONDITIONS_NOT_BEFORE_MISMATCH, samlResponse.getID(), assertion.getID(), condNotBefore, samlResponse.getIssueInstant());
 		}
 		DateTime condNotOnOrAfter = null;
 		try {
 			condNotOnOrAfter = conditions.getNotOnOrAfter();
 		} catch (Exception e) {
 			logger.error("Errore nel recupero di condNotOnOrAfter", e);
-			throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Contitions attributo NotOnOrAfter formato non corretto SAML Response non valida.");
+			throw new SpidCheckerException(SpidErrorCode.ASSERTION_CONDITIONS_NOT_ON_OR_AFTER_INVALID, samlResponse.getID(), assertion.getID());
 		}
 		if( condNotOnOrAfter == null ) {
-			throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Contitions attributo NotOnOrAfter non valorizzato o null SAML Response non valida.");
+			throw new SpidCheckerException(SpidErrorCode.ASSERTION_CONDITIONS_NOT_ON_OR_AFTER_MISSING, samlResponse.getID(), assertion.getID());
 		}
 		if( condNotOnOrAfter.isBefore(samlResponse.getIssueInstant()) ) {
-			throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Contitions attributo NotOnOrAfter "+condNotOnOrAfter+" saml response issue instant "+samlResponse.getIssueInstant()+" SAML Response non valida.");
+			throw new SpidCheckerException(SpidErrorCode.ASSERTION_CONDITIONS_NOT_ON_OR_AFTER_MISMATCH, samlResponse.getID(), assertion.getID(), condNotOnOrAfter, samlResponse.getIssueInstant());
 		}
+		checkNotExpired(samlResponse, assertion, condNotOnOrAfter, context.getTolleranceTimeMillisecond(),
+				context.getReferenceInstant() != null ? context.getReferenceInstant() : new DateTime());
 		List<AudienceRestriction> condAudienceRestrictions = conditions.getAudienceRestrictions();
 		if( condAudienceRestrictions == null || condAudienceRestrictions.isEmpty() ) {
-			throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Contitions audience restrictions non valorizzato o null SAML Response non valida.");
+			throw new SpidCheckerException(SpidErrorCode.ASSERTION_AUDIENCE_RESTRICTIONS_MISSING, samlResponse.getID(), assertion.getID());
 		}
 
-		checkSamlResponseAssertionConditionsAudiendeRestriction( samlResponse, assertion, condAudienceRestrictions, spitEnteAggregatoMetadata );
-		checkSamlResponseAssertionAuthStatement( samlResponse, assertion, assertion.getAuthnStatements(), spitEnteAggregatoMetadata, spLivelloAutenticazioneSpid );
-		checkSamlResponseAssertionAttributeStatement( samlResponse, assertion, assertion.getAttributeStatements(), spitEnteAggregatoMetadata, attributiRichiesti );
+		checkSamlResponseAssertionConditionsAudiendeRestriction( samlResponse, assertion, condAudienceRestrictions, context.getSpEntityId() );
+		checkSamlResponseAssertionAuthStatement( samlResponse, assertion, assertion.getAuthnStatements(), context.getSpLivelloAutenticazioneSpid() );
+		checkSamlResponseAssertionAttributeStatement( samlResponse, assertion, assertion.getAttributeStatements(), context );
 	}
 	private static void checkSamlResponseAssertionAttributeStatement(	Response samlResponse, 
 			Assertion assertion,
 			List<AttributeStatement> attributeStatements, 
-			EntityDescriptor spitEnteAggregatoMetadata,
-			List<SamlAttributeDto> attributiRichiesti) throws SpidCheckerException {
+			SpidValidationContext context) throws SpidCheckerException {
+		List<SamlAttributeDto> attributiRichiesti = context.getAttributiRichiesti();
+		Set<String> nomiAttributiRichiesti = context.getNomiAttributiRichiesti();
 		if( attributeStatements == null || attributeStatements.isEmpty() ) {
-			throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". AttributeStatemente non valorizzato o null SAML Response non valida.");
+			throw new SpidCheckerException(SpidErrorCode.ASSERTION_ATTRIBUTE_STATEMENT_MISSING, samlResponse.getID(), assertion.getID());
 		}
 		for (AttributeStatement attributeStatement : attributeStatements) {
 			List<Attribute> attributes = attributeStatement.getAttributes();
 			if( attributes == null || attributes.isEmpty() ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Attribute non valorizzato o null SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_ATTRIBUTES_MISSING, samlResponse.getID(), assertion.getID());
 			}
 			if( attributes.size() != attributiRichiesti.size() ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Richiesti "+attributiRichiesti.size()+" attributi al provider SPID. Ricevuti "+attributes.size()+" attributi SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_ATTRIBUTES_COUNT_MISMATCH, samlResponse.getID(), assertion.getID(), Integer.valueOf(attributiRichiesti.size()), Integer.valueOf(attributes.size()));
 			}
-			List<String> nomiAttributiRichiesti = new ArrayList<>(attributiRichiesti.size());
-			attributiRichiesti.forEach(attr->{
-				nomiAttributiRichiesti.add(attr.getName());
-			});
 			for (Attribute attribute : attributes) {
 
 				if( attribute == null || !attribute.hasChildren() ) {
-					throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Attribute null o non specificato SAML Response non valida.");
+					throw new SpidCheckerException(SpidErrorCode.ASSERTION_ATTRIBUTE_MISSING, samlResponse.getID(), assertion.getID());
 				}
 				String attrNameFormat = attribute.getNameFormat();
 				if( StringUtil.isEmptyString(attrNameFormat) ) {
@@ -284,7 +468,7 @@ public abstract class SpidControlChecker {
 
 				}
 				if( !nomiAttributiRichiesti.contains(attribute.getName()) ) {
-					throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Attribute name "+attribute.getName()+" non contenuto nel set di attributi richiesti a SPID "+nomiAttributiRichiesti+" SAML Response non valida.");
+					throw new SpidCheckerException(SpidErrorCode.ASSERTION_ATTRIBUTE_NOT_REQUESTED, samlResponse.getID(), assertion.getID(), attribute.getName(), nomiAttributiRichiesti);
 				}
 			}
 		}
@@ -293,37 +477,34 @@ public abstract class SpidControlChecker {
 	private static void checkSamlResponseAssertionAuthStatement(Response samlResponse, 
 			Assertion assertion,
 			List<AuthnStatement> authnStatements, 
-			EntityDescriptor spitEnteAggregatoMetadata,
 			int spLivelloAutenticazioneSpid) throws SpidCheckerException{
 		if( authnStatements == null || authnStatements.isEmpty() ) {
-			throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". AuthStatement non valorizzato o null SAML Response non valida.");
+			throw new SpidCheckerException(SpidErrorCode.ASSERTION_AUTHN_STATEMENT_MISSING, samlResponse.getID(), assertion.getID());
 		}
 		for (AuthnStatement authnStatement : authnStatements) {
 
 			if( authnStatement == null || !authnStatement.hasChildren() ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". AuthStatement non valorizzato o null SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_AUTHN_STATEMENT_MISSING, samlResponse.getID(), assertion.getID());
 			}
 			AuthnContext authCtx = authnStatement.getAuthnContext();
 			if( authCtx == null || !authCtx.hasChildren() ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". AuthnContext di AuthStatement non valorizzato o null SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_AUTHN_CONTEXT_MISSING, samlResponse.getID(), assertion.getID());
 			}
 			AuthnContextClassRef authnContextClassRef = authCtx.getAuthnContextClassRef();
 			if( authnContextClassRef == null ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". AuthnContextClassRef di AuthnContext di AuthStatement non valorizzato o null SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_AUTHN_CONTEXT_CLASS_REF_MISSING, samlResponse.getID(), assertion.getID());
 			}
 			String authnContextClassRefValue = authnContextClassRef.getAuthnContextClassRef();
 			if( StringUtil.isEmptyString(authnContextClassRefValue) ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Value di AuthnContextClassRef di AuthnContext di AuthStatement non valorizzato o null SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_AUTHN_CONTEXT_CLASS_REF_VALUE_MISSING, samlResponse.getID(), assertion.getID());
 			}
-			if( !authnContextClassRefValue.equals(BASE_SPID_AUTHN_CONTEXT_CLAS_REF+"1") &&
-					!authnContextClassRefValue.equals(BASE_SPID_AUTHN_CONTEXT_CLAS_REF+"2") && 
-					!authnContextClassRefValue.equals(BASE_SPID_AUTHN_CONTEXT_CLAS_REF+"3")) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Value di AuthnContextClassRef di AuthnContext di AuthStatement ["+authnContextClassRefValue+"] non previsto SAML Response non valida.");
+			Integer livelloSpid = SpidValidationContext.spidLevel(authnContextClassRefValue);
+			if( livelloSpid == null ) {
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_AUTHN_CONTEXT_CLASS_REF_INVALID, samlResponse.getID(), assertion.getID(), authnContextClassRefValue);
 			}
 
-			int livelloSpid = Integer.parseInt(authnContextClassRefValue.replaceAll(BASE_SPID_AUTHN_CONTEXT_CLAS_REF, ""));
-			if( livelloSpid < spLivelloAutenticazioneSpid ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Value di AuthnContextClassRef di AuthnContext di AuthStatement ["+authnContextClassRefValue+"] maggiore di https://www.spid.gov.it/SpidL"+spLivelloAutenticazioneSpid+" SAML Response non valida.");
+			if( livelloSpid.intValue() < spLivelloAutenticazioneSpid ) {
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_AUTHN_CONTEXT_CLASS_REF_LEVEL_EXCEEDED, samlResponse.getID(), assertion.getID(), authnContextClassRefValue, spLivelloAutenticazioneSpid);
 			}
 		}
 
@@ -335,21 +516,21 @@ public abstract class SpidControlChecker {
 	 * @param samlResponse -la {@link Response} saml
 	 * @param assertion -la {@link Assertion}
 	 * @param condAudienceRestrictions il {@link List} di {@link AudienceRestriction}
-	 * @param spitEnteAggregatoMetadata {@link EntityDescriptor} rappresentante il metadata dell'ente da creare
+	 * @param spEntityId -l'entity ID dell'SP dell'ente, atteso come audience
 	 * @throws SpidCheckerException sollevata se un controllo va male
 	 */
-	private static void checkSamlResponseAssertionConditionsAudiendeRestriction(Response samlResponse,	Assertion assertion, List<AudienceRestriction> condAudienceRestrictions, EntityDescriptor spitEnteAggregatoMetadata) throws SpidCheckerException {
+	private static void checkSamlResponseAssertionConditionsAudiendeRestriction(Response samlResponse,	Assertion assertion, List<AudienceRestriction> condAudienceRestrictions, String spEntityId) throws SpidCheckerException {
 		for (AudienceRestriction audienceRestriction : condAudienceRestrictions) {
 			List<Audience> audiences = audienceRestriction.getAudiences();
 			if( audiences == null || audiences.isEmpty() ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Audience non valorizzato o null SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_AUDIENCE_MISSING, samlResponse.getID(), assertion.getID());
 			}
 			for (Audience audience : audiences) {
 				String audienceValue = audience.getAudienceURI();
 				if( StringUtil.isEmptyString(audienceValue) ) {
-					throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Audience URI "+audienceValue+" nullo o vuoto SAML Response non valida.");
-				}else if( !audienceValue.equals(spitEnteAggregatoMetadata.getEntityID()) ) {
-					throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertion.getID()+". Audience URI "+audienceValue+" diverso da entity id di SP "+spitEnteAggregatoMetadata.getEntityID()+" SAML Response non valida.");
+					throw new SpidCheckerException(SpidErrorCode.ASSERTION_AUDIENCE_URI_MISSING, samlResponse.getID(), assertion.getID(), audienceValue);
+				}else if( !audienceValue.equals(spEntityId) ) {
+					throw new SpidCheckerException(SpidErrorCode.ASSERTION_AUDIENCE_MISMATCH, samlResponse.getID(), assertion.getID(), audienceValue, spEntityId);
 				}
 			}
 		}
@@ -365,44 +546,44 @@ public abstract class SpidControlChecker {
 	 */
 	private static void checkSamlResponseSubjectConfirmation(Response samlResponse, String assertionId,	List<SubjectConfirmation> subjectConfirmations, String idpDestinationUrl, Conditions conditions) throws SpidCheckerException {
 		if( conditions == null ) {
-			throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertionId+". Conditions nulle SAML Response non valida.");
+			throw new SpidCheckerException(SpidErrorCode.ASSERTION_CONDITIONS_MISSING, samlResponse.getID(), assertionId);
 		}
 		for (SubjectConfirmation subjectConfirmation : subjectConfirmations) {
 			String method = subjectConfirmation.getMethod();
 			if( StringUtil.isEmptyString(method) ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertionId+". SubjectConfirmation method null o vuoto ["+method+"] SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_SUBJECT_CONFIRMATION_METHOD_MISSING, samlResponse.getID(), assertionId, method);
 			}else if( !SubjectConfirmation.METHOD_BEARER.equals(method) ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertionId+". SubjectConfirmation method ["+method+"] differente da ["+SubjectConfirmation.METHOD_BEARER+"] SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_SUBJECT_CONFIRMATION_METHOD_INVALID, samlResponse.getID(), assertionId, method, SubjectConfirmation.METHOD_BEARER);
 			}
 			SubjectConfirmationData scd = subjectConfirmation.getSubjectConfirmationData();
 			if( scd == null ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertionId+". SubjectConfirmationData nullo o vuoto ["+scd+"] SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_SUBJECT_CONFIRMATION_DATA_MISSING, samlResponse.getID(), assertionId, scd);
 			}
 			String scdRecipient = scd.getRecipient();
 			if( StringUtil.isEmptyString(scdRecipient) ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertionId+". SubjectConfirmationData recipient null o vuoto ["+scdRecipient+"] SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_SUBJECT_CONFIRMATION_RECIPIENT_MISSING, samlResponse.getID(), assertionId, scdRecipient);
 			}else if( !idpDestinationUrl.equals(scdRecipient) ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertionId+". SubjectConfirmationData recipient ["+scdRecipient+"] differente da ["+idpDestinationUrl+"] SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_SUBJECT_CONFIRMATION_RECIPIENT_MISMATCH, samlResponse.getID(), assertionId, scdRecipient, idpDestinationUrl);
 			}
 			String scdResponseTo = scd.getInResponseTo();
 			if( StringUtil.isEmptyString(scdResponseTo) ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertionId+". SubjectConfirmationData inResponseTo null o vuoto ["+scdResponseTo+"] SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_SUBJECT_CONFIRMATION_IN_RESPONSE_TO_MISSING, samlResponse.getID(), assertionId, scdResponseTo);
 			}else if( !samlResponse.getInResponseTo().equals(scdResponseTo) ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertionId+". SubjectConfirmationData inResponseTo ["+scdResponseTo+"] differente da ["+samlResponse.getInResponseTo()+"] SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_SUBJECT_CONFIRMATION_IN_RESPONSE_TO_MISMATCH, samlResponse.getID(), assertionId, scdResponseTo, samlResponse.getInResponseTo());
 			}
 			DateTime scdNotOnOrAfter = null;
 			try {
 				scdNotOnOrAfter = scd.getNotOnOrAfter();
 			} catch (Exception e) {
 				logger.error("Errore nel recupero di scdNotOnOrAfter", e);
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertionId+". SubjectConfirmationData NotOnOrAfter con formato non valido SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_SUBJECT_CONFIRMATION_NOT_ON_OR_AFTER_INVALID, samlResponse.getID(), assertionId);
 			}
 			if( scdNotOnOrAfter == null ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertionId+". SubjectConfirmationData NotOnOrAfter null SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_SUBJECT_CONFIRMATION_NOT_ON_OR_AFTER_MISSING, samlResponse.getID(), assertionId);
 			}
 			DateTime condNotOnOrAfter = conditions.getNotOnOrAfter();
 			if( scdNotOnOrAfter.isBefore(condNotOnOrAfter) ) {
-				throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" Assertion ID "+assertionId+". SubjectConfirmationData NotOnOrAfter "+scdNotOnOrAfter+" precedente a NotOnOrAfter della ricezione della response "+condNotOnOrAfter+" SAML Response non valida.");
+				throw new SpidCheckerException(SpidErrorCode.ASSERTION_SUBJECT_CONFIRMATION_NOT_ON_OR_AFTER_MISMATCH, samlResponse.getID(), assertionId, scdNotOnOrAfter, condNotOnOrAfter);
 			}
 		}
 	}
@@ -412,14 +593,14 @@ public abstract class SpidControlChecker {
 	 * @param spidIdpEntityId -l'ID dell'IDP SPID che deve coincidere con il valore dello {@link Issuer} della {@link Response}
 	 * @throws SpidCheckerException -sollevata se qualche controllo fallisce
 	 */
-	private static void checkSamlResponseIssuer(Response samlResponse, String spidIdpEntityId) throws SpidCheckerException {
+	static void checkSamlResponseIssuer(Response samlResponse, String spidIdpEntityId) throws SpidCheckerException {
 		Issuer responseIssuer = samlResponse.getIssuer();
 		if( responseIssuer == null ) {
-			throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" elemento issuer non presente ["+responseIssuer+"] SAML Response non valida");
+			throw new SpidCheckerException(SpidErrorCode.RESPONSE_ISSUER_MISSING, samlResponse.getID(), responseIssuer);
 		}
 		String responseIssuerValue = responseIssuer.getValue();
 		if( !responseIssuerValue.equals(spidIdpEntityId) ) {
-			throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" valore issuer response ["+responseIssuerValue+"] non coincidente con valore IDP selezionato ["+spidIdpEntityId+"] SAML Response non valida");
+			throw new SpidCheckerException(SpidErrorCode.RESPONSE_ISSUER_MISMATCH, samlResponse.getID(), responseIssuerValue, spidIdpEntityId);
 		}
 		String responseIssuerFormat = responseIssuer.getFormat();
 		if( StringUtil.isEmptyString(responseIssuerFormat) ) {
@@ -428,7 +609,7 @@ public abstract class SpidControlChecker {
 				logger.warn("SAML Response ID "+samlResponse.getID()+" format issuer response ["+responseIssuerFormat+"] vuoto o nullo SAML Response non valida");
 			}
 		}else if( !NameIDType.ENTITY.equals(responseIssuerFormat) ) {
-			throw new SpidCheckerException("SAML Response ID "+samlResponse.getID()+" format issuer response ["+responseIssuerFormat+"] non coincidente con ["+NameIDType.ENTITY+"] SAML Response non valida");
+			throw new SpidCheckerException(SpidErrorCode.RESPONSE_ISSUER_FORMAT_INVALID, samlResponse.getID(), responseIssuerFormat, NameIDType.ENTITY);
 		}
 	}
 	/**
@@ -436,23 +617,21 @@ public abstract class SpidControlChecker {
 	 * @param samlResponse - La {@link Response} da controllare
 	 * @throws SpidCheckerException sollevata se uno dei controlli fallisce
 	 */
-	private static void checkSamlResponseStatus(Response samlResponse) throws SpidCheckerException {
+	static void checkSamlResponseStatus(Response samlResponse) throws SpidCheckerException {
 		Status status = samlResponse.getStatus();
 		String responseId = samlResponse.getID();
 		if( status == null || !status.hasChildren() ) {
-			throw new SpidCheckerException("SAML Response ID "+responseId+" elemento status non presente ["+status+"] SAML Response non valida");
+			throw new SpidCheckerException(SpidErrorCode.RESPONSE_STATUS_MISSING, responseId, status);
 		}
 		StatusCode statusCode = status.getStatusCode();
 
 		if( statusCode == null ) {
-			throw new SpidCheckerException("SAML Response ID "+responseId+" elemento status code non presente ["+statusCode+"] SAML Response non valida");
+			throw new SpidCheckerException(SpidErrorCode.RESPONSE_STATUS_CODE_MISSING, responseId, statusCode);
 		}else if( StringUtil.isEmptyString(statusCode.getValue()) ) {
-			throw new SpidCheckerException("SAML Response ID "+responseId+" valude di status code non presente ["+statusCode.getValue()+"] SAML Response non valida");
+			throw new SpidCheckerException(SpidErrorCode.RESPONSE_STATUS_CODE_VALUE_MISSING, responseId, statusCode.getValue());
 		}
 		String statusCodeValue = statusCode.getValue();
-		if( StringUtil.isEmptyString(statusCodeValue) ) {
-			throw new SpidCheckerException("SAML Response ID "+responseId+" elemento value status code non presente o vuoto ["+statusCodeValue+"] SAML Response non valida");
-		}else if( statusCodeValue.equals(StatusCode.RESPONDER) ) {
+		if( statusCodeValue.equals(StatusCode.RESPONDER) ) {
 
 			//Controllo se sono anomalie utente
 			//Gestisco le anomalie SPID Custom
@@ -477,16 +656,28 @@ public abstract class SpidControlChecker {
 							logger.warn("SAML Response ID {} StatusCode {} StatusMessage {}", responseId, statusCodeValue, smValue);
 						}
 
-						if( smValue.indexOf("ErrorCode nr") > -1 ) {
-
-							throw new SpidCheckerException(Integer.parseInt(smValue.replaceAll("ErrorCode nr", "")), "SAML Response ID "+responseId+" elemento value status code  ["+statusCodeValue+"] differente da "+StatusCode.SUCCESS+" SAML Response non valida");
+						int errorCodeIndex = smValue.indexOf("ErrorCode nr");
+						if( errorCodeIndex > -1 ) {
+							int anomaliaUtente;
+							try {
+								anomaliaUtente = Integer.parseInt(smValue.substring(errorCodeIndex + "ErrorCode nr".length()).trim());
+							}catch (NumberFormatException nfe) {
+								throw new SpidCheckerException(SpidErrorCode.RESPONSE_STATUS_NOT_SUCCESS, responseId, statusCodeValue, StatusCode.SUCCESS);
+							}
+							SpidErrorCode errorCode = SpidErrorCode.fromAnomaliaUtente(anomaliaUtente);
+							if( errorCode != null ) {
+								throw new SpidCheckerException(errorCode, responseId);
+							}
+							SpidCheckerException e = new SpidCheckerException(SpidErrorCode.RESPONSE_STATUS_NOT_SUCCESS, responseId, statusCodeValue, StatusCode.SUCCESS);
+							e.setAnomaliaUtente(anomaliaUtente);
+							throw e;
 						}
 					}
 				}
 			}
 		}
 		else if( !statusCodeValue.equals(StatusCode.SUCCESS) ) {
-			throw new SpidCheckerException("SAML Response ID "+responseId+" elemento value status code  ["+statusCodeValue+"] differente da "+StatusCode.SUCCESS+" SAML Response non valida");
+			throw new SpidCheckerException(SpidErrorCode.RESPONSE_STATUS_NOT_SUCCESS, responseId, statusCodeValue, StatusCode.SUCCESS);
 		}
 
 	}
@@ -496,15 +687,15 @@ public abstract class SpidControlChecker {
 	 * @param idpDestinationUrl la destination URL dell'IDP
 	 * @throws SpidCheckerException -sollevata se il controllo va male
 	 */
-	private static void checkSamlResponseDestination(Response samlResponse, String idpDestinationUrl) throws SpidCheckerException {
+	static void checkSamlResponseDestination(Response samlResponse, String idpDestinationUrl) throws SpidCheckerException {
 		String destination = samlResponse.getDestination();
 		String responseId = samlResponse.getID();
 		if( StringUtil.isEmptyString(destination) ) {
-			throw new SpidCheckerException("SAML Response ID "+responseId+" destination non presente ["+destination+"] SAML Response non valida");
+			throw new SpidCheckerException(SpidErrorCode.RESPONSE_DESTINATION_MISSING, responseId, destination);
 		}
 		if( !destination.equals(idpDestinationUrl) ) {
 
-			throw new SpidCheckerException("SAML Response ID "+responseId+" destination ["+destination+"] non coincidente con destination IDP censita ["+idpDestinationUrl+"] SAML Response non valida");
+			throw new SpidCheckerException(SpidErrorCode.RESPONSE_DESTINATION_MISMATCH, responseId, destination, idpDestinationUrl);
 		}
 	}
 	/**
@@ -514,9 +705,9 @@ public abstract class SpidControlChecker {
 	 * @param tolleranceTimeMillisecond -Il tempo di tolleranza in millisecondi entro cui la saml response è considerata corretta 
 	 * @throws SpidCheckerException -sollevata se uno dei controlli fallisce
 	 */
-	private static void checkSamlResponseIssueInstant(final DateTime responseIssueInstant, final List<Assertion> assertions, final int tolleranceTimeMillisecond ) throws SpidCheckerException {
+	static void checkSamlResponseIssueInstant(final DateTime responseIssueInstant, final List<Assertion> assertions, final int tolleranceTimeMillisecond ) throws SpidCheckerException {
 		if( responseIssueInstant == null ) {
-			throw new SpidCheckerException("SAML Response issue instant non presente ["+responseIssueInstant+"] SAML Response non valida");
+			throw new SpidCheckerException(SpidErrorCode.RESPONSE_ISSUE_INSTANT_MISSING);
 		}
 		//Check se issue instant è precedente o successivo a quello della saml request
 		for (Assertion assertion : assertions) {
@@ -527,29 +718,31 @@ public abstract class SpidControlChecker {
 				DateTime authnIssueInstant = statement.getAuthnInstant();
 				DateTime authnIssueInstantRangeMinus = authnIssueInstant.minusMillis(tolleranceTimeMillisecond);
 				if( authnIssueInstantRangeMinus.isAfter(responseIssueInstant) ) {
-					throw new SpidCheckerException("Assertion ID "+assertion.getID()+". Response Issue Instant ["+responseIssueInstant+"] AuthnIssueInstant ["+authnIssueInstantRangeMinus+"] SAML Response non valida. Issue Instant della SAML Response precedente a quello della request");
+					throw new SpidCheckerException(SpidErrorCode.RESPONSE_ISSUE_INSTANT_BEFORE_AUTHN_INSTANT, assertion.getID(), responseIssueInstant, authnIssueInstantRangeMinus);
 				}
 				DateTime authnIssueInstantRangePlus = authnIssueInstant.plusMillis(tolleranceTimeMillisecond);
 				if( authnIssueInstantRangePlus.isBefore(responseIssueInstant) ) {
-					throw new SpidCheckerException("Assertion ID "+assertion.getID()+". Response Issue Instant ["+responseIssueInstant+"] AuthnIssueInstant ["+authnIssueInstantRangePlus+"] SAML Response non valida. Issue Instant della SAML Response successivo a quello della request");
+					throw new SpidCheckerException(SpidErrorCode.RESPONSE_ISSUE_INSTANT_AFTER_AUTHN_INSTANT, assertion.getID(), responseIssueInstant, authnIssueInstantRangePlus);
 				}
 			}
 		}
 	}
-	private static List<Assertion> decriptAssertion( List<EncryptedAssertion> encAssertions, KeyPair keyPair ){
-		List<Assertion> result = new ArrayList<>(encAssertions.size());
-		Credential spCredentials = CredentialSupport.getSimpleCredential(keyPair.getPublic(), keyPair.getPrivate());
-		encAssertions.forEach(encAss ->{
-			StaticKeyInfoCredentialResolver keyInfoCredentialResolver = new StaticKeyInfoCredentialResolver(spCredentials);
-			Decrypter decrypter = new Decrypter(null, keyInfoCredentialResolver, new InlineEncryptedKeyResolver());
-			decrypter.setRootInNewDocument(true);
-			try {
-				result.add(decrypter.decrypt(encAss));
-			} catch (DecryptionException e) {
-				throw new RuntimeException(e);
-			}
-		});
-		return result;
+	/**
+	 * Decifra le assertion cifrate tramite lo {@link SpidAssertionDecrypter} dell'SP
+	 * @param samlResponse -la {@link Response} contenente le assertion cifrate
+	 * @param decrypter -lo {@link SpidAssertionDecrypter} del {@link KeyPair} dell'SP
+	 * @return -il {@link List} di {@link Assertion} decifrate
+	 * @throws SpidCheckerException -sollevata se una assertion non può essere decifrata
+	 */
+	static List<Assertion> decriptAssertion( Response samlResponse, SpidAssertionDecrypter decrypter ) throws SpidCheckerException {
+		List<EncryptedAssertion> encAssertions = samlResponse.getEncryptedAssertions();
+		if( encAssertions == null || encAssertions.isEmpty() ) {
+			return new ArrayList<>(0);
+		}
+		if( decrypter == null ) {
+			throw new SpidCheckerException(SpidErrorCode.ASSERTION_DECRYPTION_KEY_MISSING, samlResponse.getID());
+		}
+		return decrypter.decrypt(samlResponse.getID(), encAssertions);
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,138 @@
+package it.agid.spid.saml.core.utils;
+
+import org.opensaml.saml.saml2.core.Response;
+
+import it.agid.spid.saml.spid.exception.SpidCheckerException;
+import it.agid.spid.saml.spid.exception.SpidErrorCode;
+
+/**
+ * Controlli SPID standard sulla SAML {@link Response}, eseguiti da {@link SpidRuleEngine#getInstance()} o dallo {@link SpidRuleEngine} del {@link SpidValidationContext}.
+ * Possono essere disabilitati per IDP solo i controlli formali su ID, Version e IssueInstant della response: destinatario, emittente, esito,
+ * assertion, firme, decifratura e controlli con stato restano sempre attivi
+ */
+public enum SpidControlRule implements SpidResponseRule {
+	RESPONSE_ID(SpidRuleCost.CHEAP, false, true, SpidErrorCode.RESPONSE_ID_MISSING) {
+		@Override
+		public void check(SpidResponseValidation validation) throws SpidCheckerException {
+			SpidControlChecker.checkSamlResponseId(validation.getSamlResponse());
+		}
+	},
+	RESPONSE_VERSION(SpidRuleCost.CHEAP, false, true, SpidErrorCode.RESPONSE_VERSION_INVALID) {
+		@Override
+		public void check(SpidResponseValidation validation) throws SpidCheckerException {
+			SpidControlChecker.checkSamlResponseVersion(validation.getSamlResponse());
+		}
+	},
+	RESPONSE_DESTINATION(SpidRuleCost.CHEAP, false, false, SpidErrorCode.RESPONSE_DESTINATION_MISMATCH) {
+		@Override
+		public void check(SpidResponseValidation validation) throws SpidCheckerException {
+			SpidControlChecker.checkSamlResponseDestination(validation.getSamlResponse(), validation.getIdpDestinationUrl());
+		}
+	},
+	RESPONSE_ISSUER(SpidRuleCost.CHEAP, false, false, SpidErrorCode.RESPONSE_ISSUER_MISMATCH) {
+		@Override
+		public void check(SpidResponseValidation validation) throws SpidCheckerException {
+			SpidControlChecker.checkSamlResponseIssuer(validation.getSamlResponse(), validation.getSpidIdpEntityId());
+		}
+	},
+	RESPONSE_STATUS(SpidRuleCost.CHEAP, false, false, SpidErrorCode.RESPONSE_STATUS_NOT_SUCCESS) {
+		@Override
+		public void check(SpidResponseValidation validation) throws SpidCheckerException {
+			try {
+				SpidControlChecker.checkSamlResponseStatus(validation.getSamlResponse());
+			}catch (SpidCheckerException e) {
+				//L'anomalia utente viene comunicata solo se lo StatusMessage è firmato dall'IDP
+				if( e.getAnomaliaUtente() > 0 ) {
+					SpidControlChecker.checkSamlResponseSignature(validation.getSamlResponse(), validation.getTrustedCredentials(), validation.getSignatureCache());
+				}
+				throw e;
+			}
+		}
+	},
+	RESPONSE_SIGNATURE(SpidRuleCost.SIGNATURE, false, false, SpidErrorCode.RESPONSE_SIGNATURE_INVALID) {
+		@Override
+		public void check(SpidResponseValidation validation) throws SpidCheckerException {
+			SpidControlChecker.checkSamlResponseSignature(validation.getSamlResponse(), validation.getTrustedCredentials(), validation.getSignatureCache());
+		}
+	},
+	ASSERTION_DECRYPTION(SpidRuleCost.DECRYPTION, false, false, SpidErrorCode.ASSERTION_DECRYPTION_FAILED) {
+		@Override
+		public void check(SpidResponseValidation validation) throws SpidCheckerException {
+			validation.getAssertions();
+		}
+	},
+	RESPONSE_ISSUE_INSTANT(SpidRuleCost.CHEAP, true, true, SpidErrorCode.RESPONSE_ISSUE_INSTANT_INVALID) {
+		@Override
+		public void check(SpidResponseValidation validation) throws SpidCheckerException {
+			SpidControlChecker.checkSamlResponseIssueInstant(validation.getSamlResponse().getIssueInstant(), validation.getAssertions(), validation.getTolleranceTimeMillisecond());
+		}
+	},
+	ASSERTIONS(SpidRuleCost.CHEAP, true, false, SpidErrorCode.ASSERTION_INVALID) {
+		@Override
+		public void check(SpidResponseValidation validation) throws SpidCheckerException {
+			SpidControlChecker.checkSamlResponseAssertions(validation.getSamlResponse(), validation.getAssertions(), validation.getContext());
+		}
+	},
+	ASSERTION_SIGNATURE(SpidRuleCost.SIGNATURE, true, false, SpidErrorCode.ASSERTION_SIGNATURE_INVALID) {
+		@Override
+		public void check(SpidResponseValidation validation) throws SpidCheckerException {
+			SpidSignatureVerifier signatureVerifier = validation.getContext().getSignatureVerifier();
+			if( signatureVerifier != null ) {
+				signatureVerifier.verifyAssertions(validation.getSamlResponse(), validation.getAssertions(), validation.getTrustedCredentials(), validation.getSignatureCache());
+			}else {
+				SpidControlChecker.checkSamlResponseAssertionsSignature(validation.getSamlResponse(), validation.getAssertions(), validation.getTrustedCredentials(), validation.getSignatureCache());
+			}
+		}
+	},
+	IN_RESPONSE_TO(SpidRuleCost.STATEFUL, true, false, SpidErrorCode.IN_RESPONSE_TO_INVALID) {
+		@Override
+		public void check(SpidResponseValidation validation) throws SpidCheckerException {
+			SpidAuthnRequestRegistry authnRequestRegistry = validation.getContext().getAuthnRequestRegistry();
+			if( authnRequestRegistry != null ) {
+				SpidControlChecker.checkSamlResponseInResponseTo(validation.getSamlResponse(), validation.getAssertions(), authnRequestRegistry,
+						validation.getSpidIdpEntityId());
+			}
+		}
+	},
+	REPLAY(SpidRuleCost.STATEFUL, true, false, SpidErrorCode.REPLAY_DETECTED) {
+		@Override
+		public void check(SpidResponseValidation validation) throws SpidCheckerException {
+			SpidReplayCache replayCache = validation.getContext().getReplayCache();
+			if( replayCache != null ) {
+				SpidControlChecker.checkSamlResponseReplay(validation.getSamlResponse(), validation.getAssertions(), replayCache,
+						validation.getSpidIdpEntityId(), validation.getTolleranceTimeMillisecond(), validation.getContext().getReferenceInstant());
+			}
+		}
+	};
+
+	private final SpidRuleCost cost;
+	private final boolean requiresAssertions;
+	private final boolean disableable;
+	private final SpidErrorCode errorCode;
+	private SpidControlRule(SpidRuleCost cost, boolean requiresAssertions, boolean disableable, SpidErrorCode errorCode) {
+		this.cost = cost;
+		this.requiresAssertions = requiresAssertions;
+		this.disableable = disableable;
+		this.errorCode = errorCode;
+	}
+	@Override
+	public String getName() {
+		return name();
+	}
+	@Override
+	public SpidRuleCost getCost() {
+		return cost;
+	}
+	@Override
+	public boolean requiresAssertions() {
+		return requiresAssertions;
+	}
+	@Override
+	public boolean isDisableable() {
+		return disableable;
+	}
+	@Override
+	public SpidErrorCode getErrorCode() {
+		return errorCode;
+	}
+}
@@ -0,0 +1,356 @@
+package it.agid.spid.saml.core.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.binary.Hex;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Server HTTP embedded (JDK {@link HttpServer}) per la pubblicazione dei metadata generati, secondo il protocollo Metadata Query (MDQ):
+ * il metadata di una entità è disponibile su <code>{contextPath}{entityID codificato}</code> e su <code>{contextPath}{sha1}hex</code>,
+ * dove hex è lo SHA-1 esadecimale dell'entityID.
+ * Il metadata viene serializzato una sola volta alla pubblicazione: le richieste vengono servite da array di byte precalcolati,
+ * in chiaro o compressi gzip se il client li accetta, con ETag e Last-Modified per le richieste condizionali (304 Not Modified).
+ * Le due rappresentazioni hanno ETag forti distinti: la versione gzip ha il suffisso {@value #GZIP_ETAG_SUFFIX}.
+ * Le entità pubblicate sono uno snapshot immutabile, indicizzato per entityID e per {sha1}hex, letto senza lock dalle richieste e
+ * sostituito per intero ad ogni pubblicazione: una nuova pubblicazione della stessa entità sostituisce atomicamente la precedente
+ * in entrambe le forme. Per pubblicare molte entità, ad esempio all'avvio, {@link #publish(Collection)} sostituisce lo snapshot una sola volta.
+ * È thread safe
+ */
+public class SpidMetadataPublisher {
+	private static final Logger logger = LoggerFactory.getLogger(SpidMetadataPublisher.class.getName());
+	public static final String DEFAULT_CONTEXT_PATH = "/entities/";
+	public static final String CONTENT_TYPE = "application/samlmetadata+xml";
+	public static final String GZIP_ETAG_SUFFIX = "-gzip";
+	private static final String SHA1_PREFIX = "{sha1}";
+	private final HttpServer server;
+	private final String contextPath;
+	private final ExecutorService ownedExecutor;
+	private final Object publishLock = new Object();
+	private volatile Map<String, PublishedMetadata> metadata = Collections.emptyMap();
+	/**
+	 * Crea il server con un pool di thread di dimensione fissa e il context path {@value #DEFAULT_CONTEXT_PATH}
+	 * @param address -l'indirizzo su cui accettare le connessioni
+	 * @param threads -numero di thread che servono le richieste
+	 * @throws IOException -sollevata se non è possibile aprire la porta
+	 */
+	public SpidMetadataPublisher(InetSocketAddress address, int threads) throws IOException {
+		this(address, DEFAULT_CONTEXT_PATH, Executors.newFixedThreadPool(threads), true);
+	}
+	/**
+	 * Crea il server con l'executor indicato, ad esempio un executor di virtual thread. L'executor non viene chiuso dal server
+	 * @param address -l'indirizzo su cui accettare le connessioni
+	 * @param contextPath -il path sotto cui pubblicare i metadata, deve iniziare e terminare con '/'
+	 * @param executor -l'{@link Executor} su cui servire le richieste
+	 * @throws IOException -sollevata se non è possibile aprire la porta
+	 */
+	public SpidMetadataPublisher(InetSocketAddress address, String contextPath, Executor executor) throws IOException {
+		this(address, contextPath, executor, false);
+	}
+	private SpidMetadataPublisher(InetSocketAddress address, String contextPath, Executor executor, boolean ownsExecutor) throws IOException {
+		if( contextPath == null || !contextPath.startsWith("/") || !contextPath.endsWith("/") ) {
+			throw new IllegalArgumentException("Context path non valido ["+contextPath+"]");
+		}
+		this.contextPath = contextPath;
+		this.ownedExecutor = ownsExecutor ? (ExecutorService) executor : null;
+		this.server = HttpServer.create(address, 0);
+		this.server.setExecutor(executor);
+		this.server.createContext(contextPath, this::handle);
+	}
+	public void start() {
+		server.start();
+		if( logger.isInfoEnabled() ) {
+			logger.info("Pubblicazione metadata avviata su {}{}", server.getAddress(), contextPath);
+		}
+	}
+	/**
+	 * Arresta il server
+	 * @param delaySeconds -secondi massimi di attesa per il completamento delle richieste in corso
+	 */
+	public void stop(int delaySeconds) {
+		server.stop(delaySeconds);
+		if( ownedExecutor != null ) {
+			ownedExecutor.shutdown();
+		}
+	}
+	/**
+	 * @return -l'indirizzo su cui il server accetta le connessioni, con la porta effettiva se creato sulla porta 0
+	 */
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+	/**
+	 * Pubblica il metadata firmato dell'entità, serializzandolo una sola volta
+	 * @param entityDescriptor -l'{@link EntityDescriptor} da pubblicare, già firmato
+	 * @throws IOException -sollevata in caso di errore nella compressione del metadata
+	 */
+	public void publish(EntityDescriptor entityDescriptor) throws IOException {
+		String xml = OpenSAMLUtils.samlObjectToString(entityDescriptor);
+		if( xml == null ) {
+			throw new IllegalArgumentException("Impossibile serializzare il metadata dell'entità "+entityDescriptor.getEntityID());
+		}
+		publish(entityDescriptor.getEntityID(), xml.getBytes(StandardCharsets.UTF_8));
+	}
+	/**
+	 * Pubblica i metadata firmati delle entità, serializzandoli una sola volta e sostituendo lo snapshot una sola volta per tutte
+	 * @param entityDescriptors -gli {@link EntityDescriptor} da pubblicare, già firmati
+	 * @throws IOException -sollevata in caso di errore nella compressione dei metadata
+	 */
+	public void publish(Collection<EntityDescriptor> entityDescriptors) throws IOException {
+		List<PublishedMetadata> published = new ArrayList<>(entityDescriptors.size());
+		for (EntityDescriptor entityDescriptor : entityDescriptors) {
+			String xml = OpenSAMLUtils.samlObjectToString(entityDescriptor);
+			if( xml == null ) {
+				throw new IllegalArgumentException("Impossibile serializzare il metadata dell'entità "+entityDescriptor.getEntityID());
+			}
+			published.add(new PublishedMetadata(entityDescriptor.getEntityID(), xml.getBytes(StandardCharsets.UTF_8)));
+		}
+		publish(published);
+	}
+	/**
+	 * Pubblica il metadata già serializzato dell'entità
+	 * @param entityId -l'entityID dell'entità
+	 * @param xml -il metadata in UTF-8
+	 * @throws IOException -sollevata in caso di errore nella compressione del metadata
+	 */
+	public void publish(String entityId, byte[] xml) throws IOException {
+		publish(Collections.singletonList(new PublishedMetadata(entityId, xml.clone())));
+	}
+	private void publish(List<PublishedMetadata> published) {
+		List<PublishedMetadata> changed = new ArrayList<>(published.size());
+		synchronized (publishLock) {
+			Map<String, PublishedMetadata> snapshot = null;
+			for (PublishedMetadata entity : published) {
+				PublishedMetadata previous = snapshot != null ? snapshot.get(entity.entityId) : metadata.get(entity.entityId);
+				if( previous != null && previous.etag.equals(entity.etag) ) {
+					//Contenuto invariato: ETag e Last-Modified restano quelli già noti ai client
+					continue;
+				}
+				if( snapshot == null ) {
+					snapshot = new HashMap<>(metadata);
+				}
+				snapshot.put(entity.entityId, entity);
+				snapshot.put(SHA1_PREFIX + entity.sha1EntityId, entity);
+				changed.add(entity);
+			}
+			if( snapshot != null ) {
+				metadata = Collections.unmodifiableMap(snapshot);
+			}
+		}
+		if( logger.isDebugEnabled() ) {
+			for (PublishedMetadata entity : changed) {
+				logger.debug("Metadata pubblicato per l'entità {} ETag {}", entity.entityId, entity.etag);
+			}
+		}
+	}
+	/**
+	 * Rimuove il metadata dell'entità
+	 * @param entityId -l'entityID dell'entità
+	 * @return -true se l'entità era pubblicata
+	 */
+	public boolean unpublish(String entityId) {
+		synchronized (publishLock) {
+			PublishedMetadata published = metadata.get(entityId);
+			if( published == null || !published.entityId.equals(entityId) ) {
+				return false;
+			}
+			Map<String, PublishedMetadata> snapshot = new HashMap<>(metadata);
+			snapshot.remove(entityId);
+			snapshot.remove(SHA1_PREFIX + published.sha1EntityId);
+			metadata = Collections.unmodifiableMap(snapshot);
+			return true;
+		}
+	}
+	/**
+	 * @return -gli entityID pubblicati
+	 */
+	public Set<String> getPublishedEntityIds() {
+		Set<String> entityIds = new HashSet<>();
+		metadata.values().forEach(published -> entityIds.add(published.entityId));
+		return Collections.unmodifiableSet(entityIds);
+	}
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String method = exchange.getRequestMethod();
+			boolean head = "HEAD".equals(method);
+			if( !head && !"GET".equals(method) ) {
+				exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			PublishedMetadata published = metadata.get(identifier(exchange.getRequestURI().getRawPath()));
+			if( published == null ) {
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+			Headers requestHeaders = exchange.getRequestHeaders();
+			Headers responseHeaders = exchange.getResponseHeaders();
+			boolean gzip = acceptsGzip(requestHeaders.getFirst("Accept-Encoding"));
+			String etag = gzip ? published.gzipEtag : published.etag;
+			responseHeaders.set("ETag", etag);
+			responseHeaders.set("Last-Modified", published.lastModified);
+			responseHeaders.set("Vary", "Accept-Encoding");
+			if( isNotModified(etag, published.lastModifiedInstant, requestHeaders) ) {
+				exchange.sendResponseHeaders(304, -1);
+				return;
+			}
+			byte[] body = published.xml;
+			if( gzip ) {
+				body = published.gzip;
+				responseHeaders.set("Content-Encoding", "gzip");
+			}
+			responseHeaders.set("Content-Type", CONTENT_TYPE);
+			if( head ) {
+				responseHeaders.set("Content-Length", String.valueOf(body.length));
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+			exchange.sendResponseHeaders(200, body.length);
+			try( OutputStream out = exchange.getResponseBody() ){
+				out.write(body);
+			}
+		}finally {
+			exchange.close();
+		}
+	}
+	/**
+	 * @return -l'identificativo dell'entità richiesta: l'entityID decodificato o la forma {sha1}hex
+	 */
+	private String identifier(String rawPath) throws UnsupportedEncodingException {
+		if( rawPath == null || !rawPath.startsWith(contextPath) ) {
+			return "";
+		}
+		//Nella forma MDQ il '+' dell'entityID è codificato come %2B: non va interpretato come spazio
+		return URLDecoder.decode(rawPath.substring(contextPath.length()).replace("+", "%2B"), StandardCharsets.UTF_8.name());
+	}
+	/**
+	 * @return -true se l'Accept-Encoding accetta gzip con q-value maggiore di 0, esplicitamente o tramite '*'
+	 */
+	private static boolean acceptsGzip(String acceptEncoding) {
+		if( acceptEncoding == null ) {
+			return false;
+		}
+		float gzip = -1;
+		float any = -1;
+		for (String element : acceptEncoding.split(",")) {
+			String[] parts = element.split(";");
+			String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+			if( !"gzip".equals(coding) && !"x-gzip".equals(coding) && !"*".equals(coding) ) {
+				continue;
+			}
+			float q = 1;
+			for (int i = 1; i < parts.length; i++) {
+				String parameter = parts[i].trim();
+				if( parameter.length() > 2 && (parameter.charAt(0) == 'q' || parameter.charAt(0) == 'Q') && parameter.charAt(1) == '=' ) {
+					try {
+						q = Float.parseFloat(parameter.substring(2).trim());
+					}catch (NumberFormatException e) {
+						q = 0;
+					}
+				}
+			}
+			if( "*".equals(coding) ) {
+				any = Math.max(any, q);
+			}else {
+				gzip = Math.max(gzip, q);
+			}
+		}
+		//Una codifica indicata esplicitamente prevale su '*'
+		return gzip >= 0 ? gzip > 0 : any > 0;
+	}
+	private static boolean isNotModified(String etag, Instant lastModifiedInstant, Headers requestHeaders) {
+		String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+		if( ifNoneMatch != null ) {
+			for (String candidate : ifNoneMatch.split(",")) {
+				candidate = candidate.trim();
+				//If-None-Match usa il confronto debole: W/"x" corrisponde a "x"
+				if( candidate.startsWith("W/") ) {
+					candidate = candidate.substring(2);
+				}
+				if( candidate.equals("*") || candidate.equals(etag) ) {
+					return true;
+				}
+			}
+			return false;
+		}
+		String ifModifiedSince = requestHeaders.getFirst("If-Modified-Since");
+		if( ifModifiedSince != null ) {
+			try {
+				Instant since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+				return !lastModifiedInstant.isAfter(since);
+			}catch (DateTimeParseException e) {
+				return false;
+			}
+		}
+		return false;
+	}
+	/**
+	 * Metadata pubblicato con le rappresentazioni e le intestazioni precalcolate
+	 */
+	private static final class PublishedMetadata {
+		private final String entityId;
+		private final String sha1EntityId;
+		private final byte[] xml;
+		private final byte[] gzip;
+		private final String etag;
+		private final String gzipEtag;
+		private final Instant lastModifiedInstant;
+		private final String lastModified;
+		private PublishedMetadata(String entityId, byte[] xml) throws IOException {
+			this.entityId = entityId;
+			this.sha1EntityId = Hex.encodeHexString(digest("SHA-1", entityId.getBytes(StandardCharsets.UTF_8)));
+			this.xml = xml;
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(xml.length / 4 + 64);
+			try( GZIPOutputStream out = new GZIPOutputStream(compressed) ){
+				out.write(xml);
+			}
+			this.gzip = compressed.toByteArray();
+			String hash = Hex.encodeHexString(digest("SHA-256", xml));
+			this.etag = "\"" + hash + "\"";
+			this.gzipEtag = "\"" + hash + GZIP_ETAG_SUFFIX + "\"";
+			//Last-Modified ha la precisione del secondo
+			this.lastModifiedInstant = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+			this.lastModified = DateTimeFormatter.RFC_1123_DATE_TIME.format(lastModifiedInstant.atZone(ZoneOffset.UTC));
+		}
+		private static byte[] digest(String algorithm, byte[] data) {
+			try {
+				return MessageDigest.getInstance(algorithm).digest(data);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("Algoritmo "+algorithm+" non disponibile", e);
+			}
+		}
+	}
+}
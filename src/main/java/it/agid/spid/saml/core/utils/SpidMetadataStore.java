@@ -0,0 +1,287 @@
+package it.agid.spid.saml.core.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.security.credential.UsageType;
+import org.opensaml.security.x509.BasicX509Credential;
+import org.opensaml.xmlsec.signature.Signature;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import it.agid.spid.saml.spid.exception.SpidCheckerException;
+import it.agid.spid.saml.spid.exception.SpidErrorCode;
+
+/**
+ * Archivio dei metadata SAML ricevuti (registro SPID degli IDP, metadata degli enti aggregati).
+ * Il metadata, un {@link EntitiesDescriptor} aggregato o un singolo {@link EntityDescriptor}, viene letto una sola volta: la firma
+ * sull'elemento radice viene verificata una volta per l'intero documento, gli {@link EntityDescriptor} vengono indicizzati per entityID
+ * e i certificati di firma dei KeyDescriptor vengono estratti direttamente dal DOM in un {@link TrustedCredentialIndex} per entità,
+ * da passare al {@link SpidValidationContext} usato da {@link SpidControlChecker}.
+ * Gli {@link EntityDescriptor} OpenSAML vengono costruiti solo alla prima {@link #getEntityDescriptor(String)}, per cui caricare un
+ * aggregato con migliaia di entità non costa l'albero di oggetti OpenSAML di tutte le entità.
+ * Un nuovo caricamento sostituisce atomicamente il precedente solo se il metadata è valido. È thread safe
+ */
+public class SpidMetadataStore {
+	private static final Logger logger = LoggerFactory.getLogger(SpidMetadataStore.class.getName());
+	private static final String KEY_DESCRIPTOR = "KeyDescriptor";
+	private static final String USE_SIGNING = "signing";
+	private static final String VALID_UNTIL = "validUntil";
+	private final TrustedCredentialIndex metadataSigners;
+	private volatile Snapshot snapshot = new Snapshot(Collections.emptyMap(), null);
+	/**
+	 * Crea l'archivio
+	 * @param metadataSigners -il {@link List} di {@link Credential} fidate per la firma dei metadata (ad esempio il certificato AgID del registro SPID)
+	 */
+	public SpidMetadataStore(List<Credential> metadataSigners) {
+		this(metadataSigners == null ? null : new TrustedCredentialIndex(metadataSigners));
+	}
+	/**
+	 * Crea l'archivio
+	 * @param metadataSigners -il {@link TrustedCredentialIndex} delle credenziali fidate per la firma dei metadata. Se null la firma non viene
+	 * verificata: da usare solo per metadata letti da una fonte già fidata
+	 */
+	public SpidMetadataStore(TrustedCredentialIndex metadataSigners) {
+		this.metadataSigners = metadataSigners;
+	}
+	/**
+	 * Carica il metadata dal file indicato
+	 * @param metadata -il {@link Path} del metadata
+	 * @return -il numero di entità caricate
+	 * @throws Exception -sollevata se il metadata non è leggibile; {@link SpidCheckerException} se la firma non è valida o il metadata è scaduto
+	 */
+	public int load(Path metadata) throws Exception {
+		try( InputStream stream = Files.newInputStream(metadata) ){
+			return load(stream, metadata.toString());
+		}
+	}
+	/**
+	 * Carica il metadata dallo {@link InputStream} indicato
+	 * @param stream -lo {@link InputStream} del metadata. Non viene chiuso
+	 * @param source -il nome della sorgente, usato nei messaggi di errore
+	 * @return -il numero di entità caricate
+	 * @throws Exception -sollevata se il metadata non è leggibile; {@link SpidCheckerException} se la firma non è valida o il metadata è scaduto
+	 */
+	public int load(InputStream stream, String source) throws Exception {
+		long start = System.nanoTime();
+		Document document = XmlParserPool.getInstance().parse(stream);
+		Element root = document.getDocumentElement();
+		OpenSAMLUtils.removeRecursively(root, Node.COMMENT_NODE, null);
+		if( !isMetadataElement(root, EntitiesDescriptor.DEFAULT_ELEMENT_LOCAL_NAME) && !isMetadataElement(root, EntityDescriptor.DEFAULT_ELEMENT_LOCAL_NAME) ) {
+			throw new IllegalArgumentException("Metadata "+source+" non valido: elemento radice "+root.getNodeName()+" non previsto");
+		}
+		if( metadataSigners != null ) {
+			verifySignature(root, source);
+		}
+		DateTime validUntil = validUntil(root);
+		if( validUntil != null && validUntil.isBeforeNow() ) {
+			throw new SpidCheckerException(SpidErrorCode.METADATA_EXPIRED, source, validUntil);
+		}
+		Map<String, Entry> entries = new HashMap<>();
+		CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+		index(root, entries, certificateFactory, source);
+		Snapshot loaded = new Snapshot(Collections.unmodifiableMap(entries), validUntil);
+		snapshot = loaded;
+		if( logger.isInfoEnabled() ) {
+			logger.info("Metadata {} caricato: {} entità in {} ms", source, entries.size(), (System.nanoTime() - start) / 1000000);
+		}
+		return entries.size();
+	}
+	/**
+	 * @param entityId -l'entityID dell'entità
+	 * @return -l'{@link EntityDescriptor} dell'entità, null se l'entità non è presente nel metadata caricato
+	 * @throws Exception -sollevata in caso di errore nella costruzione dell'{@link EntityDescriptor}
+	 */
+	public EntityDescriptor getEntityDescriptor(String entityId) throws Exception {
+		Snapshot current = snapshot;
+		Entry entry = current.entries.get(entityId);
+		if( entry == null ) {
+			return null;
+		}
+		EntityDescriptor descriptor = entry.descriptor;
+		if( descriptor == null ) {
+			//Le entità dello snapshot condividono lo stesso DOM: vengono costruite una alla volta
+			synchronized (current) {
+				descriptor = entry.descriptor;
+				if( descriptor == null ) {
+					descriptor = (EntityDescriptor) XMLObjectProviderRegistrySupport.getUnmarshallerFactory().getUnmarshaller(entry.element).unmarshall(entry.element);
+					entry.descriptor = descriptor;
+				}
+			}
+		}
+		return descriptor;
+	}
+	/**
+	 * @param entityId -l'entityID dell'entità
+	 * @return -il {@link TrustedCredentialIndex} dei certificati di firma dell'entità, null se l'entità non è presente nel metadata caricato
+	 */
+	public TrustedCredentialIndex getSigningCredentials(String entityId) {
+		Entry entry = snapshot.entries.get(entityId);
+		return entry == null ? null : entry.signingCredentials;
+	}
+	public boolean contains(String entityId) {
+		return snapshot.entries.containsKey(entityId);
+	}
+	/**
+	 * @return -gli entityID delle entità del metadata caricato
+	 */
+	public Set<String> getEntityIds() {
+		return snapshot.entries.keySet();
+	}
+	public int size() {
+		return snapshot.entries.size();
+	}
+	/**
+	 * @return -il validUntil dell'elemento radice del metadata caricato, null se non presente
+	 */
+	public DateTime getValidUntil() {
+		return snapshot.validUntil;
+	}
+	/**
+	 * Verifica la firma dell'elemento radice: la firma deve avere un solo riferimento, all'intero documento o all'ID della radice
+	 */
+	private void verifySignature(Element root, String source) throws Exception {
+		Element signatureElement = firstChild(root, SignatureConstants.XMLSIG_NS, Signature.DEFAULT_ELEMENT_LOCAL_NAME);
+		if( signatureElement == null ) {
+			throw new SpidCheckerException(SpidErrorCode.METADATA_SIGNATURE_MISSING, source);
+		}
+		String id = root.getAttributeNS(null, "ID");
+		if( !id.isEmpty() ) {
+			root.setIdAttributeNS(null, "ID", true);
+		}
+		Element signedInfo = firstChild(signatureElement, SignatureConstants.XMLSIG_NS, "SignedInfo");
+		NodeList references = signedInfo == null ? null : signedInfo.getElementsByTagNameNS(SignatureConstants.XMLSIG_NS, "Reference");
+		if( references == null || references.getLength() != 1 ) {
+			throw new SpidCheckerException(SpidErrorCode.METADATA_SIGNATURE_INVALID, source);
+		}
+		String uri = ((Element) references.item(0)).getAttributeNS(null, "URI");
+		if( !uri.isEmpty() && (id.isEmpty() || !uri.equals("#"+id)) ) {
+			throw new SpidCheckerException(SpidErrorCode.METADATA_SIGNATURE_INVALID, source);
+		}
+		Signature signature = (Signature) XMLObjectProviderRegistrySupport.getUnmarshallerFactory().getUnmarshaller(signatureElement).unmarshall(signatureElement);
+		if( !OpenSAMLUtils.isSignatureValid(signature, metadataSigners) ) {
+			throw new SpidCheckerException(SpidErrorCode.METADATA_SIGNATURE_INVALID, source);
+		}
+	}
+	/**
+	 * Indicizza gli {@link EntityDescriptor} dell'elemento, anche se contenuti in {@link EntitiesDescriptor} annidati.
+	 * Le entità scadute vengono scartate; per entityID duplicati viene mantenuta la prima entità
+	 */
+	private static void index(Element element, Map<String, Entry> entries, CertificateFactory certificateFactory, String source) {
+		if( isMetadataElement(element, EntityDescriptor.DEFAULT_ELEMENT_LOCAL_NAME) ) {
+			String entityId = element.getAttributeNS(null, EntityDescriptor.ENTITY_ID_ATTRIB_NAME);
+			DateTime validUntil = validUntil(element);
+			if( entityId.isEmpty() || (validUntil != null && validUntil.isBeforeNow()) ) {
+				if( logger.isWarnEnabled() ) {
+					logger.warn("Metadata {}: entità [{}] senza entityID o scaduta, ignorata", source, entityId);
+				}
+			}else if( entries.containsKey(entityId) ) {
+				if( logger.isWarnEnabled() ) {
+					logger.warn("Metadata {}: entityID [{}] duplicato, ignorato", source, entityId);
+				}
+			}else {
+				entries.put(entityId, new Entry(element, signingCredentials(element, entityId, certificateFactory, source)));
+			}
+			return;
+		}
+		for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if( child.getNodeType() == Node.ELEMENT_NODE && (isMetadataElement((Element) child, EntitiesDescriptor.DEFAULT_ELEMENT_LOCAL_NAME)
+					|| isMetadataElement((Element) child, EntityDescriptor.DEFAULT_ELEMENT_LOCAL_NAME)) ) {
+				index((Element) child, entries, certificateFactory, source);
+			}
+		}
+	}
+	/**
+	 * @return -il {@link TrustedCredentialIndex} dei certificati dei KeyDescriptor con use signing o senza use
+	 */
+	private static TrustedCredentialIndex signingCredentials(Element entity, String entityId, CertificateFactory certificateFactory, String source) {
+		Set<X509Certificate> certificates = new LinkedHashSet<>();
+		NodeList keyDescriptors = entity.getElementsByTagNameNS(SAMLConstants.SAML20MD_NS, KEY_DESCRIPTOR);
+		for (int i = 0; i < keyDescriptors.getLength(); i++) {
+			Element keyDescriptor = (Element) keyDescriptors.item(i);
+			String use = keyDescriptor.getAttributeNS(null, "use");
+			if( !use.isEmpty() && !USE_SIGNING.equals(use) ) {
+				continue;
+			}
+			NodeList x509Certificates = keyDescriptor.getElementsByTagNameNS(SignatureConstants.XMLSIG_NS, "X509Certificate");
+			for (int j = 0; j < x509Certificates.getLength(); j++) {
+				String value = x509Certificates.item(j).getTextContent();
+				if( StringUtil.isEmptyString(value) ) {
+					continue;
+				}
+				try {
+					certificates.add((X509Certificate) certificateFactory.generateCertificate(new ByteArrayInputStream(Base64.getMimeDecoder().decode(value.trim()))));
+				} catch (CertificateException | IllegalArgumentException e) {
+					logger.warn("Metadata {}: certificato non valido per l'entità [{}]", source, entityId, e);
+				}
+			}
+		}
+		List<Credential> credentials = new ArrayList<>(certificates.size());
+		for (X509Certificate certificate : certificates) {
+			BasicX509Credential credential = new BasicX509Credential(certificate);
+			credential.setEntityId(entityId);
+			credential.setUsageType(UsageType.SIGNING);
+			credentials.add(credential);
+		}
+		return new TrustedCredentialIndex(credentials);
+	}
+	private static DateTime validUntil(Element element) {
+		String value = element.getAttributeNS(null, VALID_UNTIL);
+		return value.isEmpty() ? null : new DateTime(value);
+	}
+	private static boolean isMetadataElement(Element element, String localName) {
+		return SAMLConstants.SAML20MD_NS.equals(element.getNamespaceURI()) && localName.equals(element.getLocalName());
+	}
+	private static Element firstChild(Element parent, String namespace, String localName) {
+		for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if( child.getNodeType() == Node.ELEMENT_NODE && namespace.equals(child.getNamespaceURI()) && localName.equals(child.getLocalName()) ) {
+				return (Element) child;
+			}
+		}
+		return null;
+	}
+	/**
+	 * Metadata caricato: gli elementi delle entità mantengono il {@link Document} per costruire gli {@link EntityDescriptor} su richiesta
+	 */
+	private static final class Snapshot {
+		private final Map<String, Entry> entries;
+		private final DateTime validUntil;
+		private Snapshot(Map<String, Entry> entries, DateTime validUntil) {
+			this.entries = entries;
+			this.validUntil = validUntil;
+		}
+	}
+	private static final class Entry {
+		private final Element element;
+		private final TrustedCredentialIndex signingCredentials;
+		private volatile EntityDescriptor descriptor;
+		private Entry(Element element, TrustedCredentialIndex signingCredentials) {
+			this.element = element;
+			this.signingCredentials = signingCredentials;
+		}
+	}
+}
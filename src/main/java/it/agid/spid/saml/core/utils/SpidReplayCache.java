@@ -0,0 +1,20 @@
+package it.agid.spid.saml.core.utils;
+
+/**
+ * SPI della cache degli ID di SAML Response e Assertion già consumati, usata per rifiutare le response ripetute (replay)
+ * all'interno della finestra di validità. Le implementazioni condivise tra più nodi (database, cache distribuite) devono
+ * garantire che il controllo e la registrazione dell'ID siano atomici. Le implementazioni devono essere thread safe
+ * @see InMemorySpidReplayCache
+ * @see MappedFileSpidReplayCache
+ */
+public interface SpidReplayCache {
+	/**
+	 * Registra l'ID se non è già presente o se la registrazione precedente è scaduta
+	 * @param context -il contesto dell'ID (ad esempio tipo di oggetto ed entity ID dell'IDP): ID uguali in contesti diversi sono distinti
+	 * @param id -l'ID da registrare
+	 * @param expiresAtMillis -l'istante (millisecondi epoch) fino al quale l'ID va conservato
+	 * @return -true se l'ID è stato registrato, false se era già presente (replay)
+	 * @throws Exception -sollevata in caso di errore del backend
+	 */
+	boolean checkAndStore(String context, String id, long expiresAtMillis) throws Exception;
+}
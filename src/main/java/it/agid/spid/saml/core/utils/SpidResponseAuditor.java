@@ -0,0 +1,249 @@
+package it.agid.spid.saml.core.utils;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.opensaml.saml.saml2.core.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.agid.spid.saml.core.dto.SpidAuditSummary;
+import it.agid.spid.saml.spid.exception.SpidCheckerException;
+
+/**
+ * Validazione massiva di SAML Response archiviate con i controlli di {@link SpidControlChecker}.
+ * Le response vengono lette da una cartella (un file per response) o da un archivio con una response per riga, in XML su singola riga
+ * o in Base64 come il parametro SAMLResponse del binding HTTP-POST. Lettura, parsing e validazione avvengono su un pool di thread;
+ * il numero di record letti e non ancora validati è limitato, per cui la memoria usata non dipende dalla dimensione dell'archivio.
+ * Per ogni response viene scritta una riga di esito nel report (separatore tab): progressivo, origine, ID della response, OK o KO e
+ * motivo del KO. L'ordine delle righe è quello di completamento.
+ * I controlli temporali confrontano tra loro gli istanti della response (issue instant, AuthnInstant, Conditions) e non dipendono dall'età
+ * dell'archivio; dove serve un istante corrente, i contesti restituiti dal resolver possono indicarne uno di riferimento con
+ * {@link SpidValidationContext.Builder#referenceInstant(org.joda.time.DateTime)}. Cache anti replay e registro delle AuthnRequest non vanno
+ * indicati nei contesti della validazione massiva. Per escludere delle regole i contesti vanno costruiti con un proprio {@link SpidRuleEngine}
+ * ({@link SpidValidationContext.Builder#ruleEngine(SpidRuleEngine)}) su cui disabilitarle: le regole disabilitate su {@link SpidRuleEngine#getInstance()}
+ * valgono per tutte le validazioni della JVM
+ */
+public class SpidResponseAuditor {
+	private static final Logger logger = LoggerFactory.getLogger(SpidResponseAuditor.class.getName());
+	public static final String OK = "OK";
+	public static final String KO = "KO";
+	private final Function<Response, SpidValidationContext> contextResolver;
+	private final int threads;
+	private final int maxInFlight;
+	/**
+	 * Crea il validatore con un thread per processore disponibile
+	 * @param contextResolver -restituisce il {@link SpidValidationContext} con cui validare la {@link Response}, tipicamente in base all'issuer
+	 */
+	public SpidResponseAuditor(Function<Response, SpidValidationContext> contextResolver) {
+		this(contextResolver, Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors() * 16);
+	}
+	/**
+	 * Crea il validatore
+	 * @param contextResolver -restituisce il {@link SpidValidationContext} con cui validare la {@link Response}, tipicamente in base all'issuer.
+	 * Se restituisce null la response è considerata non valida
+	 * @param threads -numero di thread di validazione
+	 * @param maxInFlight -numero massimo di record letti e non ancora validati
+	 */
+	public SpidResponseAuditor(Function<Response, SpidValidationContext> contextResolver, int threads, int maxInFlight) {
+		if( threads < 1 || maxInFlight < threads ) {
+			throw new IllegalArgumentException("Numero di thread ["+threads+"] o di record in elaborazione ["+maxInFlight+"] non validi");
+		}
+		this.contextResolver = contextResolver;
+		this.threads = threads;
+		this.maxInFlight = maxInFlight;
+	}
+	/**
+	 * Valida tutti i file regolari della cartella e delle sue sottocartelle
+	 * @param directory -la cartella delle response, un file per response
+	 * @param report -il {@link Path} del report da scrivere
+	 * @return -lo {@link SpidAuditSummary} della validazione
+	 * @throws Exception -sollevata in caso di errore di lettura della cartella o di scrittura del report
+	 */
+	public SpidAuditSummary auditDirectory(Path directory, Path report) throws Exception {
+		try( Stream<Path> files = Files.walk(directory); Writer writer = Files.newBufferedWriter(report, StandardCharsets.UTF_8) ){
+			Iterator<Path> iterator = files.filter(Files::isRegularFile).iterator();
+			return audit(new Iterator<AuditRecord>() {
+				@Override
+				public boolean hasNext() {
+					return iterator.hasNext();
+				}
+				@Override
+				public AuditRecord next() {
+					Path file = iterator.next();
+					//La lettura del file avviene nel thread di validazione
+					return new AuditRecord(directory.relativize(file).toString(), file, null);
+				}
+			}, writer);
+		}
+	}
+	/**
+	 * Valida le response di un archivio con una response per riga. Le righe vuote vengono ignorate
+	 * @param archive -il {@link Path} dell'archivio
+	 * @param report -il {@link Path} del report da scrivere
+	 * @return -lo {@link SpidAuditSummary} della validazione
+	 * @throws Exception -sollevata in caso di errore di lettura dell'archivio o di scrittura del report
+	 */
+	public SpidAuditSummary auditArchive(Path archive, Path report) throws Exception {
+		try( BufferedReader reader = Files.newBufferedReader(archive, StandardCharsets.UTF_8); Writer writer = Files.newBufferedWriter(report, StandardCharsets.UTF_8) ){
+			String name = archive.getFileName().toString();
+			return audit(new Iterator<AuditRecord>() {
+				private long lineNumber;
+				private String nextLine = readRecord();
+				private String readRecord() {
+					try {
+						String line;
+						do {
+							line = reader.readLine();
+							lineNumber++;
+						} while (line != null && line.trim().isEmpty());
+						return line;
+					} catch (IOException e) {
+						throw new IllegalStateException("Errore nella lettura dell'archivio "+archive, e);
+					}
+				}
+				@Override
+				public boolean hasNext() {
+					return nextLine != null;
+				}
+				@Override
+				public AuditRecord next() {
+					AuditRecord record = new AuditRecord(name+":"+lineNumber, null, nextLine.trim().getBytes(StandardCharsets.UTF_8));
+					nextLine = readRecord();
+					return record;
+				}
+			}, writer);
+		}
+	}
+	/**
+	 * Valida i record con il pool di thread e scrive l'esito sul report
+	 * @param records -i record da validare
+	 * @param writer -il {@link Writer} del report
+	 * @return -lo {@link SpidAuditSummary} della validazione
+	 * @throws Exception -sollevata in caso di errore di lettura dei record o di scrittura del report
+	 */
+	private SpidAuditSummary audit(Iterator<AuditRecord> records, Writer writer) throws Exception {
+		long start = System.nanoTime();
+		AtomicLong sequence = new AtomicLong();
+		AtomicLong valid = new AtomicLong();
+		AtomicLong invalid = new AtomicLong();
+		AtomicLong unreadable = new AtomicLong();
+		AtomicReference<IOException> writeError = new AtomicReference<>();
+		Semaphore inFlight = new Semaphore(maxInFlight);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			while (records.hasNext() && writeError.get() == null) {
+				AuditRecord record = records.next();
+				long progressivo = sequence.incrementAndGet();
+				//Backpressure: la lettura si ferma finché i record in elaborazione sono maxInFlight
+				inFlight.acquire();
+				pool.execute(() -> {
+					try {
+						String verdict = validate(record, valid, invalid, unreadable);
+						synchronized (writer) {
+							writer.write(progressivo + "\t" + record.source + "\t" + verdict + "\n");
+						}
+					} catch (IOException e) {
+						writeError.compareAndSet(null, e);
+					} finally {
+						inFlight.release();
+					}
+				});
+			}
+		}finally {
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		if( writeError.get() != null ) {
+			throw writeError.get();
+		}
+		writer.flush();
+		SpidAuditSummary summary = new SpidAuditSummary(sequence.get(), valid.get(), invalid.get(), unreadable.get(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		if( logger.isInfoEnabled() ) {
+			logger.info("Validazione massiva completata: {}", summary);
+		}
+		return summary;
+	}
+	/**
+	 * @return -l'esito della validazione nel formato del report: ID della response, OK o KO e motivo
+	 */
+	private String validate(AuditRecord record, AtomicLong valid, AtomicLong invalid, AtomicLong unreadable) {
+		Response response;
+		try {
+			byte[] content = record.file != null ? Files.readAllBytes(record.file) : record.content;
+			response = OpenSAMLUtils.fromInputStreamToSamlObject(new ByteArrayInputStream(decode(content)), Response.class);
+		} catch (Exception e) {
+			if( logger.isDebugEnabled() ) {
+				logger.debug("Record "+record.source+" non leggibile come SAML Response", e);
+			}
+			unreadable.incrementAndGet();
+			return "-\t" + KO + "\tResponse non leggibile: " + sanitize(e.toString());
+		}
+		try {
+			SpidValidationContext context = contextResolver.apply(response);
+			if( context == null ) {
+				invalid.incrementAndGet();
+				return sanitize(response.getID()) + "\t" + KO + "\tNessun contesto di validazione per l'issuer";
+			}
+			SpidControlChecker.verifySamlResponseSpidCompliance(response, context);
+			valid.incrementAndGet();
+			return sanitize(response.getID()) + "\t" + OK + "\t";
+		} catch (SpidCheckerException e) {
+			invalid.incrementAndGet();
+			return sanitize(response.getID()) + "\t" + KO + "\t" + sanitize(e.getMessage());
+		} catch (RuntimeException e) {
+			logger.error("Errore nella validazione del record "+record.source, e);
+			invalid.incrementAndGet();
+			return sanitize(response.getID()) + "\t" + KO + "\t" + sanitize(e.toString());
+		}
+	}
+	/**
+	 * @return -il contenuto XML del record: se non inizia con '&lt;' viene decodificato da Base64
+	 */
+	private static byte[] decode(byte[] content) {
+		for (byte b : content) {
+			if( b == '<' ) {
+				return content;
+			}
+			if( !Character.isWhitespace(b) && b != (byte) 0xEF && b != (byte) 0xBB && b != (byte) 0xBF ) {
+				break;
+			}
+		}
+		return Base64.getMimeDecoder().decode(content);
+	}
+	private static String sanitize(String value) {
+		if( value == null ) {
+			return "-";
+		}
+		return value.replace('\t', ' ').replace('\r', ' ').replace('\n', ' ');
+	}
+	/**
+	 * Response da validare: il file da leggere o il contenuto già letto
+	 */
+	private static final class AuditRecord {
+		private final String source;
+		private final Path file;
+		private final byte[] content;
+		private AuditRecord(String source, Path file, byte[] content) {
+			this.source = source;
+			this.file = file;
+			this.content = content;
+		}
+	}
+}
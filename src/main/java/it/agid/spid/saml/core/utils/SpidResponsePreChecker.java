@@ -0,0 +1,134 @@
+package it.agid.spid.saml.core.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.opensaml.saml.common.SAMLVersion;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.NameIDType;
+import org.opensaml.saml.saml2.core.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.agid.spid.saml.spid.exception.SpidCheckerException;
+import it.agid.spid.saml.spid.exception.SpidErrorCode;
+
+/**
+ * Controlli SPID preliminari sull'intestazione della SAML {@link Response} effettuati in streaming (StAX), prima della costruzione
+ * del DOM e dell'unmarshalling OpenSAML. Vengono verificati elemento radice, ID, Version, Destination e Issuer: una response
+ * malformata, ostile o indirizzata ad un altro SP viene scartata leggendo solo i primi byte del documento.
+ * I controlli non sostituiscono quelli di {@link SpidControlChecker}, che vanno comunque effettuati: i messaggi di errore sono gli stessi
+ * ({@link SpidErrorCode}). {@link SpidControlChecker#verifySamlResponseSpidCompliance(byte[], SpidValidationContext)} esegue entrambi.
+ */
+public abstract class SpidResponsePreChecker {
+	private static final Logger logger = LoggerFactory.getLogger(SpidResponsePreChecker.class.getName());
+	private static final XMLInputFactory inputFactory = createInputFactory();
+	/**
+	 * Effettua i controlli preliminari sulla response e, se superati, costruisce l'oggetto {@link Response}
+	 * @param samlResponse -i byte XML della SAML Response (già decodificati da base64)
+	 * @param idpDestinationUrl -Destination URL attesa
+	 * @param spidIdpEntityId -IDP Entity ID atteso come issuer
+	 * @return -la {@link Response} creata
+	 * @throws SpidCheckerException -sollevata se uno dei controlli preliminari fallisce
+	 * @throws Exception -sollevata in caso di errore nella costruzione dell'oggetto
+	 */
+	public static Response preCheckAndParse( byte[] samlResponse, String idpDestinationUrl, String spidIdpEntityId ) throws SpidCheckerException, Exception {
+		preCheck(new ByteArrayInputStream(samlResponse), idpDestinationUrl, spidIdpEntityId);
+		return OpenSAMLUtils.fromInputStreamToSamlObject(new ByteArrayInputStream(samlResponse), Response.class);
+	}
+	/**
+	 * Effettua in streaming i controlli SPID preliminari sull'intestazione della response. La lettura si ferma all'elemento Issuer
+	 * @param stream -lo {@link InputStream} contenente l'XML della SAML Response. Non viene chiuso
+	 * @param idpDestinationUrl -Destination URL attesa
+	 * @param spidIdpEntityId -IDP Entity ID atteso come issuer
+	 * @throws SpidCheckerException -sollevata se uno dei controlli preliminari fallisce
+	 */
+	public static void preCheck( InputStream stream, String idpDestinationUrl, String spidIdpEntityId ) throws SpidCheckerException {
+		XMLStreamReader reader = null;
+		try {
+			reader = inputFactory.createXMLStreamReader(stream);
+			if( !nextElement(reader) ) {
+				throw new XMLStreamException("Elemento radice non presente");
+			}
+			if( !SAMLConstants.SAML20P_NS.equals(reader.getNamespaceURI()) || !Response.DEFAULT_ELEMENT_LOCAL_NAME.equals(reader.getLocalName()) ) {
+				throw new SpidCheckerException(SpidErrorCode.RESPONSE_ROOT_INVALID, reader.getName(), Response.DEFAULT_ELEMENT_NAME);
+			}
+			String responseId = reader.getAttributeValue(null, Response.ID_ATTRIB_NAME);
+			if( StringUtil.isEmptyString(responseId) ) {
+				throw new SpidCheckerException(SpidErrorCode.RESPONSE_ID_MISSING, responseId);
+			}
+			String version = reader.getAttributeValue(null, Response.VERSION_ATTRIB_NAME);
+			if( !SAMLVersion.VERSION_20.toString().equals(version) ) {
+				throw new SpidCheckerException(SpidErrorCode.RESPONSE_VERSION_INVALID, responseId, version, SAMLVersion.VERSION_20);
+			}
+			String destination = reader.getAttributeValue(null, Response.DESTINATION_ATTRIB_NAME);
+			if( StringUtil.isEmptyString(destination) ) {
+				throw new SpidCheckerException(SpidErrorCode.RESPONSE_DESTINATION_MISSING, responseId, destination);
+			}
+			if( !destination.equals(idpDestinationUrl) ) {
+				throw new SpidCheckerException(SpidErrorCode.RESPONSE_DESTINATION_MISMATCH, responseId, destination, idpDestinationUrl);
+			}
+			//Lo Issuer, se presente, è il primo figlio della Response
+			if( !nextElement(reader) || !SAMLConstants.SAML20_NS.equals(reader.getNamespaceURI()) || !Issuer.DEFAULT_ELEMENT_LOCAL_NAME.equals(reader.getLocalName()) ) {
+				throw new SpidCheckerException(SpidErrorCode.RESPONSE_ISSUER_MISSING, responseId, null);
+			}
+			String issuerFormat = reader.getAttributeValue(null, Issuer.FORMAT_ATTRIB_NAME);
+			String issuerValue = reader.getElementText();
+			issuerValue = issuerValue == null ? null : issuerValue.trim();
+			if( StringUtil.isEmptyString(issuerValue) || !issuerValue.equals(spidIdpEntityId) ) {
+				throw new SpidCheckerException(SpidErrorCode.RESPONSE_ISSUER_MISMATCH, responseId, issuerValue, spidIdpEntityId);
+			}
+			if( !StringUtil.isEmptyString(issuerFormat) && !NameIDType.ENTITY.equals(issuerFormat) ) {
+				throw new SpidCheckerException(SpidErrorCode.RESPONSE_ISSUER_FORMAT_INVALID, responseId, issuerFormat, NameIDType.ENTITY);
+			}
+		}catch (XMLStreamException e) {
+			if( logger.isDebugEnabled() ) {
+				logger.debug("SAML Response non leggibile", e);
+			}
+			throw new SpidCheckerException(SpidErrorCode.RESPONSE_MALFORMED, e.getMessage());
+		}finally {
+			if( reader != null ) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					logger.trace("Errore nella chiusura dello stream reader", e);
+				}
+			}
+		}
+	}
+	/**
+	 * Avanza fino al prossimo START_ELEMENT figlio dell'elemento corrente, rifiutando DTD ed entità
+	 * @param reader -lo {@link XMLStreamReader}
+	 * @return -true se è stato trovato un elemento, false se l'elemento corrente o il documento terminano prima
+	 * @throws XMLStreamException -sollevata se il documento è malformato o contiene una DTD
+	 */
+	private static boolean nextElement(XMLStreamReader reader) throws XMLStreamException {
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if( event == XMLStreamConstants.START_ELEMENT ) {
+				return true;
+			}
+			if( event == XMLStreamConstants.DTD || event == XMLStreamConstants.ENTITY_REFERENCE ) {
+				throw new XMLStreamException("DTD o entità non ammesse nella SAML Response");
+			}
+			if( event == XMLStreamConstants.END_ELEMENT || event == XMLStreamConstants.END_DOCUMENT ) {
+				return false;
+			}
+		}
+		return false;
+	}
+	private static XMLInputFactory createInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		return factory;
+	}
+}
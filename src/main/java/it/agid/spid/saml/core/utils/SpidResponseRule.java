@@ -0,0 +1,42 @@
+package it.agid.spid.saml.core.utils;
+
+import it.agid.spid.saml.spid.exception.SpidCheckerException;
+import it.agid.spid.saml.spid.exception.SpidErrorCode;
+
+/**
+ * Singolo controllo SPID su una SAML Response, eseguito dallo {@link SpidRuleEngine}.
+ * Le implementazioni devono essere thread safe
+ */
+public interface SpidResponseRule {
+	/**
+	 * @return -il nome univoco della regola, usato per abilitarla o disabilitarla per IDP e nelle statistiche
+	 */
+	String getName();
+	/**
+	 * @return -la classe di costo della regola
+	 */
+	SpidRuleCost getCost();
+	/**
+	 * @return -true se la regola controlla le assertion: viene eseguita dopo tutte le regole sulla sola response
+	 */
+	boolean requiresAssertions();
+	/**
+	 * @return -true se la regola può essere disabilitata per singolo IDP ({@link SpidRuleEngine#disableRule(String, String)}).
+	 * Di default false: una regola che protegge la sicurezza della validazione non va resa disabilitabile
+	 */
+	default boolean isDisableable() {
+		return false;
+	}
+	/**
+	 * @return -lo {@link SpidErrorCode} assegnato dallo {@link SpidRuleEngine} alle {@link SpidCheckerException} della regola prive di codice
+	 */
+	default SpidErrorCode getErrorCode() {
+		return SpidErrorCode.RESPONSE_INVALID;
+	}
+	/**
+	 * Effettua il controllo
+	 * @param validation -la {@link SpidResponseValidation} con la response e i parametri del controllo
+	 * @throws SpidCheckerException -sollevata se il controllo fallisce
+	 */
+	void check(SpidResponseValidation validation) throws SpidCheckerException;
+}
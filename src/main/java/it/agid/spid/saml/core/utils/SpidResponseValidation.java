@@ -0,0 +1,105 @@
+package it.agid.spid.saml.core.utils;
+
+import java.security.KeyPair;
+import java.util.List;
+
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.security.credential.Credential;
+
+import it.agid.spid.saml.core.dto.SamlAttributeDto;
+import it.agid.spid.saml.core.dto.SamlAttributesConsumingServiceDto;
+import it.agid.spid.saml.spid.exception.SpidCheckerException;
+import it.agid.spid.saml.spid.exception.SpidErrorCode;
+
+/**
+ * SAML Response da controllare con il relativo {@link SpidValidationContext}, condivisa dalle {@link SpidResponseRule} di una singola verifica.
+ * Le assertion cifrate vengono decifrate una sola volta, alla prima richiesta. Non è thread safe: va creata per ogni response
+ */
+public class SpidResponseValidation {
+	private final Response samlResponse;
+	private final SpidValidationContext context;
+	private List<Assertion> assertions;
+	/**
+	 * Crea la validazione della response con un {@link SpidValidationContext} già costruito
+	 * @param samlResponse -la {@link Response} da controllare
+	 * @param context -il {@link SpidValidationContext} della coppia (SP, IDP)
+	 */
+	public SpidResponseValidation(Response samlResponse, SpidValidationContext context) {
+		this.samlResponse = samlResponse;
+		this.context = context;
+	}
+	/**
+	 * Crea la validazione costruendo un nuovo {@link SpidValidationContext}
+	 * @param samlResponse -la {@link Response} da controllare
+	 * @param credentials -il {@link List} di {@link Credential} da utilizzare per il controllo della firma
+	 * @param tolleranceTimeMillisecond -il tempo di tolleranza in millisecondi
+	 * @param idpDestinationUrl -Destination URL verso cui tutte le SAML Response devono puntare
+	 * @param spidIdpEntityId -IDP Entity ID
+	 * @param spitEnteAggregatoMetadata -{@link EntityDescriptor} contentente le informazioni del metadata dell'ente aggregato
+	 * @param attributiRichiesti -Gli attributi richiesti dall'SP dell'ente
+	 * @param keyPair -il {@link KeyPair} usato per decriptare le assertion
+	 * @param spLivelloAutenticazioneSpid -il livello di autenticazione SPID richiesto da SP
+	 * @param signatureCache -la {@link SignatureVerificationCache} delle firme già verificate. Se null la cache non viene usata
+	 */
+	public SpidResponseValidation(Response samlResponse, List<Credential> credentials, int tolleranceTimeMillisecond, String idpDestinationUrl,
+			String spidIdpEntityId, EntityDescriptor spitEnteAggregatoMetadata, SamlAttributesConsumingServiceDto attributiRichiesti, KeyPair keyPair,
+			int spLivelloAutenticazioneSpid, SignatureVerificationCache signatureCache) {
+		this(samlResponse, SpidValidationContext.builder().credentials(credentials).tolleranceTimeMillisecond(tolleranceTimeMillisecond)
+				.idpDestinationUrl(idpDestinationUrl).spidIdpEntityId(spidIdpEntityId).spitEnteAggregatoMetadata(spitEnteAggregatoMetadata)
+				.attributiRichiesti(attributiRichiesti).keyPair(keyPair).spLivelloAutenticazioneSpid(spLivelloAutenticazioneSpid)
+				.signatureCache(signatureCache).build());
+	}
+	/**
+	 * Restituisce le assertion della response, decifrandole alla prima richiesta se cifrate
+	 * @return -il {@link List} di {@link Assertion}, mai vuoto
+	 * @throws SpidCheckerException -sollevata se la response non contiene assertion o se non possono essere decifrate
+	 */
+	public List<Assertion> getAssertions() throws SpidCheckerException {
+		if( assertions == null ) {
+			List<Assertion> result = samlResponse.getAssertions();
+			if( result == null || result.isEmpty() ) {
+				result = SpidControlChecker.decriptAssertion(samlResponse, context.getAssertionDecrypter());
+			}
+			if( result == null || result.isEmpty() ) {
+				throw new SpidCheckerException(SpidErrorCode.ASSERTIONS_MISSING, samlResponse.getID());
+			}
+			assertions = result;
+		}
+		return assertions;
+	}
+	public Response getSamlResponse() {
+		return samlResponse;
+	}
+	public SpidValidationContext getContext() {
+		return context;
+	}
+	public TrustedCredentialIndex getTrustedCredentials() {
+		return context.getTrustedCredentials();
+	}
+	public int getTolleranceTimeMillisecond() {
+		return context.getTolleranceTimeMillisecond();
+	}
+	public String getIdpDestinationUrl() {
+		return context.getIdpDestinationUrl();
+	}
+	public String getSpidIdpEntityId() {
+		return context.getSpidIdpEntityId();
+	}
+	public EntityDescriptor getSpitEnteAggregatoMetadata() {
+		return context.getSpitEnteAggregatoMetadata();
+	}
+	public List<SamlAttributeDto> getAttributiRichiesti() {
+		return context.getAttributiRichiesti();
+	}
+	public KeyPair getKeyPair() {
+		return context.getKeyPair();
+	}
+	public int getSpLivelloAutenticazioneSpid() {
+		return context.getSpLivelloAutenticazioneSpid();
+	}
+	public SignatureVerificationCache getSignatureCache() {
+		return context.getSignatureCache();
+	}
+}
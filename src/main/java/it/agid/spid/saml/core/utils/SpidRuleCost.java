@@ -0,0 +1,25 @@
+package it.agid.spid.saml.core.utils;
+
+/**
+ * Classe di costo di un {@link SpidResponseRule}. Lo {@link SpidRuleEngine} esegue prima le regole meno costose,
+ * in modo da scartare una response malformata o indirizzata ad un altro SP prima di qualsiasi operazione RSA
+ */
+public enum SpidRuleCost {
+	/**
+	 * Confronti su valori già presenti nell'oggetto OpenSAML
+	 */
+	CHEAP,
+	/**
+	 * Verifica di una firma XML (digest e RSA con chiave pubblica)
+	 */
+	SIGNATURE,
+	/**
+	 * Decifratura con la chiave privata dell'SP (RSA con chiave privata)
+	 */
+	DECRYPTION,
+	/**
+	 * Regole che aggiornano uno stato condiviso (ad esempio la {@link SpidReplayCache}): vengono eseguite per ultime, dopo tutte
+	 * le verifiche di firma, in modo che una response non autentica non possa alterarlo
+	 */
+	STATEFUL;
+}
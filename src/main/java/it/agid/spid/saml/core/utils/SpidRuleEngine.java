@@ -0,0 +1,193 @@
+package it.agid.spid.saml.core.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.agid.spid.saml.core.dto.SpidRuleStatistics;
+import it.agid.spid.saml.spid.exception.SpidCheckerException;
+
+/**
+ * Esegue i controlli SPID ({@link SpidResponseRule}) su una SAML Response fermandosi al primo errore.
+ * Le regole vengono ordinate una sola volta: prima quelle sulla sola response, poi quelle sulle assertion, e all'interno di
+ * ciascun gruppo per {@link SpidRuleCost} crescente mantenendo l'ordine di dichiarazione. In questo modo una response malformata
+ * o indirizzata ad un altro SP viene scartata senza verifiche di firma né decifrature.
+ * Per ogni regola vengono conteggiati esecuzioni, errori e tempo di esecuzione; le regole disabilitabili ({@link SpidResponseRule#isDisableable()}) possono essere disabilitate per singolo IDP.
+ * È thread safe.
+ */
+public class SpidRuleEngine {
+	private static final Logger logger = LoggerFactory.getLogger(SpidRuleEngine.class.getName());
+	private static volatile SpidRuleEngine _INSTANCE;
+	private final List<RuleExecution> rules;
+	private final Map<String, Set<String>> disabledRules = new ConcurrentHashMap<>();
+	/**
+	 * Crea il motore con le regole indicate
+	 * @param rules -le {@link SpidResponseRule} da eseguire. I nomi devono essere univoci
+	 */
+	public SpidRuleEngine(List<? extends SpidResponseRule> rules) {
+		List<RuleExecution> ordered = new ArrayList<>(rules.size());
+		Set<String> names = new HashSet<>();
+		for (SpidResponseRule rule : rules) {
+			if( !names.add(rule.getName()) ) {
+				throw new IllegalArgumentException("Regola SPID duplicata ["+rule.getName()+"]");
+			}
+			ordered.add(new RuleExecution(rule));
+		}
+		//Ordinamento stabile: a parità di costo resta l'ordine di dichiarazione
+		ordered.sort(Comparator.comparing((RuleExecution re) -> re.rule.requiresAssertions()).thenComparing(re -> re.rule.getCost()));
+		this.rules = Collections.unmodifiableList(ordered);
+		if( logger.isDebugEnabled() ) {
+			logger.debug("Ordine di esecuzione delle regole SPID {}", getRuleNames());
+		}
+	}
+	/**
+	 * @return -il motore con le regole SPID standard ({@link SpidControlRule}), usato da {@link SpidControlChecker}
+	 */
+	public static SpidRuleEngine getInstance() {
+		if( _INSTANCE == null ) {
+			synchronized (SpidRuleEngine.class) {
+				if( _INSTANCE == null ) {
+					_INSTANCE = new SpidRuleEngine(Arrays.asList(SpidControlRule.values()));
+				}
+			}
+		}
+		return _INSTANCE;
+	}
+	/**
+	 * Esegue le regole abilitate per l'IDP della validazione, nell'ordine di costo
+	 * @param validation -la {@link SpidResponseValidation} da controllare
+	 * @throws SpidCheckerException -sollevata dalla prima regola che fallisce
+	 */
+	public void verify(SpidResponseValidation validation) throws SpidCheckerException {
+		Set<String> disabled = validation.getSpidIdpEntityId() == null ? null : disabledRules.get(validation.getSpidIdpEntityId());
+		for (RuleExecution execution : rules) {
+			if( disabled != null && disabled.contains(execution.rule.getName()) ) {
+				if( logger.isTraceEnabled() ) {
+					logger.trace("Regola {} disabilitata per l'IDP {}", execution.rule.getName(), validation.getSpidIdpEntityId());
+				}
+				continue;
+			}
+			execution.run(validation);
+		}
+	}
+	/**
+	 * Disabilita una regola per le response dell'IDP indicato. Possono essere disabilitate solo le regole che lo dichiarano
+	 * ({@link SpidResponseRule#isDisableable()}), indipendentemente dal loro costo
+	 * @param spidIdpEntityId -l'entity ID dell'IDP
+	 * @param ruleName -il nome della regola
+	 * @throws IllegalArgumentException -sollevata se la regola non esiste o non è disabilitabile
+	 */
+	public void disableRule(String spidIdpEntityId, String ruleName) {
+		RuleExecution execution = find(ruleName);
+		if( !execution.rule.isDisableable() ) {
+			throw new IllegalArgumentException("La regola "+ruleName+" non può essere disabilitata");
+		}
+		if( logger.isInfoEnabled() ) {
+			logger.info("Disabilitata la regola {} per l'IDP {}", ruleName, spidIdpEntityId);
+		}
+		disabledRules.computeIfAbsent(spidIdpEntityId, k -> ConcurrentHashMap.newKeySet()).add(ruleName);
+	}
+	/**
+	 * Riabilita una regola per le response dell'IDP indicato
+	 * @param spidIdpEntityId -l'entity ID dell'IDP
+	 * @param ruleName -il nome della regola
+	 */
+	public void enableRule(String spidIdpEntityId, String ruleName) {
+		find(ruleName);
+		Set<String> disabled = disabledRules.get(spidIdpEntityId);
+		if( disabled != null ) {
+			disabled.remove(ruleName);
+		}
+	}
+	public boolean isRuleEnabled(String spidIdpEntityId, String ruleName) {
+		Set<String> disabled = disabledRules.get(spidIdpEntityId);
+		return disabled == null || !disabled.contains(ruleName);
+	}
+	/**
+	 * @return -i nomi delle regole nell'ordine di esecuzione
+	 */
+	public List<String> getRuleNames() {
+		List<String> names = new ArrayList<>(rules.size());
+		rules.forEach(re -> names.add(re.rule.getName()));
+		return names;
+	}
+	/**
+	 * @return -le statistiche di esecuzione di ogni regola, nell'ordine di esecuzione
+	 */
+	public Map<String, SpidRuleStatistics> getStatistics() {
+		Map<String, SpidRuleStatistics> result = new LinkedHashMap<>();
+		for (RuleExecution execution : rules) {
+			result.put(execution.rule.getName(), execution.statistics());
+		}
+		return result;
+	}
+	/**
+	 * Azzera le statistiche di esecuzione
+	 */
+	public void resetStatistics() {
+		rules.forEach(RuleExecution::reset);
+	}
+	@Override
+	public String toString() {
+		return "SpidRuleEngine [rules=" + getRuleNames() + ", disabledRules=" + disabledRules + "]";
+	}
+	private RuleExecution find(String ruleName) {
+		for (RuleExecution execution : rules) {
+			if( execution.rule.getName().equals(ruleName) ) {
+				return execution;
+			}
+		}
+		throw new IllegalArgumentException("Regola SPID non presente ["+ruleName+"]");
+	}
+	/**
+	 * Regola con i relativi contatori
+	 */
+	private static final class RuleExecution {
+		private final SpidResponseRule rule;
+		private final LongAdder executions = new LongAdder();
+		private final LongAdder failures = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+
+		private RuleExecution(SpidResponseRule rule) {
+			this.rule = rule;
+		}
+		private void run(SpidResponseValidation validation) throws SpidCheckerException {
+			long start = System.nanoTime();
+			boolean failed = true;
+			try {
+				rule.check(validation);
+				failed = false;
+			}catch (SpidCheckerException e) {
+				if( e.getErrorCode() == null ) {
+					e.setErrorCode(rule.getErrorCode());
+				}
+				throw e;
+			}finally {
+				totalNanos.add(System.nanoTime() - start);
+				executions.increment();
+				if( failed ) {
+					failures.increment();
+				}
+			}
+		}
+		private SpidRuleStatistics statistics() {
+			return new SpidRuleStatistics(rule.getName(), executions.sum(), failures.sum(), totalNanos.sum());
+		}
+		private void reset() {
+			executions.reset();
+			failures.reset();
+			totalNanos.reset();
+		}
+	}
+}
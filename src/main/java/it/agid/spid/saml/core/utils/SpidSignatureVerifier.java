@@ -0,0 +1,187 @@
+package it.agid.spid.saml.core.utils;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.xmlsec.signature.SignableXMLObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import it.agid.spid.saml.spid.exception.SpidCheckerException;
+import it.agid.spid.saml.spid.exception.SpidErrorCode;
+
+/**
+ * Verifica in parallelo le firme di SAML Response e Assertion su un executor limitato.
+ * Il DOM non è thread safe neanche in sola lettura, per cui le firme sono raggruppate per {@link Document}: firme dello stesso documento
+ * vengono verificate in sequenza dallo stesso thread, documenti diversi (ad esempio le assertion decifrate, ognuna nel proprio documento)
+ * vengono verificati contemporaneamente. Il primo gruppo è verificato dal thread chiamante; se la coda dell'executor è piena anche gli altri
+ * gruppi vengono verificati dal chiamante, senza accodare lavoro oltre il limite.
+ * L'errore riportato è sempre quello della prima firma non valida nell'ordine response, assertion: lo stesso della verifica sequenziale.
+ * È thread safe
+ */
+public class SpidSignatureVerifier {
+	private static final Logger logger = LoggerFactory.getLogger(SpidSignatureVerifier.class.getName());
+	private static volatile SpidSignatureVerifier _INSTANCE;
+	private final ExecutorService executor;
+	/**
+	 * Crea il verificatore con un pool di thread daemon
+	 * @param threads -numero di thread del pool
+	 * @param queueCapacity -numero massimo di gruppi di firme in attesa di un thread
+	 */
+	public SpidSignatureVerifier(int threads, int queueCapacity) {
+		this(newExecutor("spid-signature-verifier-", threads, queueCapacity));
+	}
+	/**
+	 * Crea il verificatore con l'executor indicato, ad esempio un executor di virtual thread. L'executor non viene chiuso dal verificatore
+	 * @param executor -l'{@link ExecutorService} su cui verificare le firme
+	 */
+	public SpidSignatureVerifier(ExecutorService executor) {
+		this.executor = executor;
+	}
+	/**
+	 * @return -il verificatore condiviso, con un thread per processore disponibile
+	 */
+	public static SpidSignatureVerifier getInstance() {
+		if( _INSTANCE == null ) {
+			synchronized (SpidSignatureVerifier.class) {
+				if( _INSTANCE == null ) {
+					int threads = Runtime.getRuntime().availableProcessors();
+					_INSTANCE = new SpidSignatureVerifier(threads, threads * 4);
+				}
+			}
+		}
+		return _INSTANCE;
+	}
+	/**
+	 * Verifica la firma della response e quelle delle assertion
+	 * @param samlResponse -la {@link Response} da verificare
+	 * @param assertions -il {@link List} di {@link Assertion} della response
+	 * @param trustedCredentials -il {@link TrustedCredentialIndex} con cui verificare le firme
+	 * @param signatureCache -la {@link SignatureVerificationCache} delle firme già verificate. Può essere null
+	 * @throws SpidCheckerException -sollevata per la prima firma non valida
+	 */
+	public void verify(Response samlResponse, List<Assertion> assertions, TrustedCredentialIndex trustedCredentials, SignatureVerificationCache signatureCache) throws SpidCheckerException {
+		List<SignableXMLObject> signables = new ArrayList<>(assertions.size() + 1);
+		signables.add(samlResponse);
+		signables.addAll(assertions);
+		int firstInvalid = firstInvalid(signables, trustedCredentials, signatureCache);
+		if( firstInvalid == 0 ) {
+			throw new SpidCheckerException(SpidErrorCode.RESPONSE_SIGNATURE_INVALID);
+		}else if( firstInvalid > 0 ) {
+			throw assertionSignatureException(samlResponse, assertions.get(firstInvalid - 1));
+		}
+	}
+	/**
+	 * Verifica le firme delle assertion
+	 * @param samlResponse -la {@link Response} a cui appartengono le assertion
+	 * @param assertions -il {@link List} di {@link Assertion} da verificare
+	 * @param trustedCredentials -il {@link TrustedCredentialIndex} con cui verificare le firme
+	 * @param signatureCache -la {@link SignatureVerificationCache} delle firme già verificate. Può essere null
+	 * @throws SpidCheckerException -sollevata per la prima assertion con firma non valida
+	 */
+	public void verifyAssertions(Response samlResponse, List<Assertion> assertions, TrustedCredentialIndex trustedCredentials, SignatureVerificationCache signatureCache) throws SpidCheckerException {
+		int firstInvalid = firstInvalid(new ArrayList<SignableXMLObject>(assertions), trustedCredentials, signatureCache);
+		if( firstInvalid >= 0 ) {
+			throw assertionSignatureException(samlResponse, assertions.get(firstInvalid));
+		}
+	}
+	public void shutdown() {
+		executor.shutdown();
+	}
+	@Override
+	public String toString() {
+		return "SpidSignatureVerifier [executor=" + executor + "]";
+	}
+	private static SpidCheckerException assertionSignatureException(Response samlResponse, Assertion assertion) {
+		return new SpidCheckerException(SpidErrorCode.ASSERTION_SIGNATURE_INVALID, samlResponse.getID(), assertion.getID());
+	}
+	/**
+	 * @return -l'indice della prima firma non valida, -1 se sono tutte valide
+	 */
+	private int firstInvalid(List<SignableXMLObject> signables, TrustedCredentialIndex trustedCredentials, SignatureVerificationCache signatureCache) throws SpidCheckerException {
+		if( signables.isEmpty() ) {
+			return -1;
+		}
+		Map<Object, List<Integer>> groups = new IdentityHashMap<>();
+		List<List<Integer>> ordered = new ArrayList<>();
+		for (int i = 0; i < signables.size(); i++) {
+			Element dom = signables.get(i).getDOM();
+			Object owner = dom == null ? signables.get(i) : dom.getOwnerDocument();
+			List<Integer> group = groups.get(owner);
+			if( group == null ) {
+				group = new ArrayList<>();
+				groups.put(owner, group);
+				ordered.add(group);
+			}
+			group.add(Integer.valueOf(i));
+		}
+		boolean[] valid = new boolean[signables.size()];
+		List<CompletableFuture<Void>> futures = new ArrayList<>(ordered.size() - 1);
+		for (int g = 1; g < ordered.size(); g++) {
+			List<Integer> group = ordered.get(g);
+			Runnable task = () -> verifyGroup(group, signables, valid, trustedCredentials, signatureCache);
+			try {
+				futures.add(CompletableFuture.runAsync(task, executor));
+			}catch (RejectedExecutionException e) {
+				task.run();
+			}
+		}
+		verifyGroup(ordered.get(0), signables, valid, trustedCredentials, signatureCache);
+		for (CompletableFuture<Void> future : futures) {
+			try {
+				future.join();
+			}catch (CompletionException e) {
+				logger.error("Errore nella verifica parallela delle firme", e.getCause());
+				throw new SpidCheckerException(SpidErrorCode.SIGNATURE_VERIFICATION_FAILED, e.getCause());
+			}
+		}
+		if( logger.isTraceEnabled() ) {
+			logger.trace("Verificate {} firme in {} gruppi", signables.size(), ordered.size());
+		}
+		for (int i = 0; i < valid.length; i++) {
+			if( !valid[i] ) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	private static void verifyGroup(List<Integer> group, List<SignableXMLObject> signables, boolean[] valid, TrustedCredentialIndex trustedCredentials, SignatureVerificationCache signatureCache) {
+		for (Integer index : group) {
+			valid[index.intValue()] = OpenSAMLUtils.isSignatureValid(signables.get(index.intValue()).getSignature(), trustedCredentials, signatureCache);
+		}
+	}
+	/**
+	 * Crea un pool limitato di thread daemon che rifiuta i task oltre la capacità della coda: il chiamante esegue allora il lavoro nel proprio thread
+	 * @param threadNamePrefix -il prefisso del nome dei thread
+	 * @param threads -numero di thread del pool
+	 * @param queueCapacity -numero massimo di task in attesa di un thread
+	 * @return -l'{@link ExecutorService} creato
+	 */
+	static ExecutorService newExecutor(String threadNamePrefix, int threads, int queueCapacity) {
+		if( threads < 1 || queueCapacity < 1 ) {
+			throw new IllegalArgumentException("Numero di thread ["+threads+"] o dimensione della coda ["+queueCapacity+"] non validi");
+		}
+		AtomicInteger counter = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), r -> {
+			Thread t = new Thread(r, threadNamePrefix + counter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}, new ThreadPoolExecutor.AbortPolicy());
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+}
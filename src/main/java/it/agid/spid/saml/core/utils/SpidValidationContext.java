@@ -0,0 +1,377 @@
+package it.agid.spid.saml.core.utils;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.security.credential.Credential;
+
+import it.agid.spid.saml.core.dto.SamlAttributeDto;
+import it.agid.spid.saml.core.dto.SamlAttributesConsumingServiceDto;
+
+/**
+ * Parametri dei controlli SPID per una coppia (SP, IDP), con i dati derivati già calcolati: indice delle credenziali dell'IDP,
+ * insieme dei nomi degli attributi richiesti, entity ID dell'SP, livelli SPID ammessi per AuthnContextClassRef e decrypter delle assertion.
+ * Va costruito una sola volta con il {@link Builder} ({@link #builder()}) e riutilizzato per tutte le SAML Response della coppia (SP, IDP):
+ * il controllo della singola response effettua solo ricerche.
+ * I dati derivati e gli attributi richiesti vengono copiati alla costruzione; l'{@link EntityDescriptor} dell'SP e il {@link KeyPair}
+ * vengono invece conservati per riferimento e non vanno modificati dopo la costruzione. A questa condizione il contesto è thread safe
+ */
+public final class SpidValidationContext {
+	private static final int MAX_SPID_LEVEL = 3;
+	private static final Map<String, Integer> SPID_LEVELS = spidLevels();
+	private final TrustedCredentialIndex trustedCredentials;
+	private final int tolleranceTimeMillisecond;
+	private final String idpDestinationUrl;
+	private final String spidIdpEntityId;
+	private final EntityDescriptor spitEnteAggregatoMetadata;
+	private final String spEntityId;
+	private final List<SamlAttributeDto> attributiRichiesti;
+	private final Set<String> nomiAttributiRichiesti;
+	private final KeyPair keyPair;
+	private final SpidAssertionDecrypter assertionDecrypter;
+	private final int spLivelloAutenticazioneSpid;
+	private final SignatureVerificationCache signatureCache;
+	private final SpidReplayCache replayCache;
+	private final SpidAuthnRequestRegistry authnRequestRegistry;
+	private final SpidSignatureVerifier signatureVerifier;
+	private final SpidRuleEngine ruleEngine;
+	private final DateTime referenceInstant;
+	private SpidValidationContext(Builder builder) {
+		this.trustedCredentials = builder.trustedCredentials;
+		this.tolleranceTimeMillisecond = builder.tolleranceTimeMillisecond;
+		this.idpDestinationUrl = builder.idpDestinationUrl == null ? null : builder.idpDestinationUrl.intern();
+		this.spidIdpEntityId = builder.spidIdpEntityId == null ? null : builder.spidIdpEntityId.intern();
+		this.spitEnteAggregatoMetadata = builder.spitEnteAggregatoMetadata;
+		this.spEntityId = spitEnteAggregatoMetadata == null || spitEnteAggregatoMetadata.getEntityID() == null ? null : spitEnteAggregatoMetadata.getEntityID().intern();
+		List<SamlAttributeDto> attrs = builder.attributiRichiesti == null || builder.attributiRichiesti.getAttrs() == null ? Collections.emptyList() : builder.attributiRichiesti.getAttrs();
+		this.attributiRichiesti = Collections.unmodifiableList(new ArrayList<>(attrs));
+		Set<String> nomi = new LinkedHashSet<>(attrs.size() * 2);
+		attrs.forEach(attr -> nomi.add(attr.getName()));
+		this.nomiAttributiRichiesti = Collections.unmodifiableSet(nomi);
+		this.keyPair = builder.keyPair;
+		if( builder.assertionDecrypter != null ) {
+			this.assertionDecrypter = builder.assertionDecrypter;
+		}else {
+			this.assertionDecrypter = keyPair == null ? null : SpidAssertionDecrypter.forKeyPair(keyPair);
+		}
+		this.spLivelloAutenticazioneSpid = builder.spLivelloAutenticazioneSpid;
+		this.signatureCache = builder.signatureCache;
+		this.replayCache = builder.replayCache;
+		this.authnRequestRegistry = builder.authnRequestRegistry;
+		this.signatureVerifier = builder.signatureVerifier;
+		this.ruleEngine = builder.ruleEngine;
+		this.referenceInstant = builder.referenceInstant;
+	}
+	private SpidValidationContext(SpidValidationContext source, SpidSignatureVerifier signatureVerifier) {
+		this.trustedCredentials = source.trustedCredentials;
+		this.tolleranceTimeMillisecond = source.tolleranceTimeMillisecond;
+		this.idpDestinationUrl = source.idpDestinationUrl;
+		this.spidIdpEntityId = source.spidIdpEntityId;
+		this.spitEnteAggregatoMetadata = source.spitEnteAggregatoMetadata;
+		this.spEntityId = source.spEntityId;
+		this.attributiRichiesti = source.attributiRichiesti;
+		this.nomiAttributiRichiesti = source.nomiAttributiRichiesti;
+		this.keyPair = source.keyPair;
+		this.assertionDecrypter = source.assertionDecrypter;
+		this.spLivelloAutenticazioneSpid = source.spLivelloAutenticazioneSpid;
+		this.signatureCache = source.signatureCache;
+		this.replayCache = source.replayCache;
+		this.authnRequestRegistry = source.authnRequestRegistry;
+		this.signatureVerifier = signatureVerifier;
+		this.ruleEngine = source.ruleEngine;
+		this.referenceInstant = source.referenceInstant;
+	}
+	/**
+	 * @return -un nuovo {@link Builder} del contesto di validazione
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+	/**
+	 * Restituisce una copia del contesto che verifica in parallelo le firme delle assertion con lo {@link SpidSignatureVerifier} indicato.
+	 * La firma della response continua ad essere verificata prima della decifratura delle assertion
+	 * @param signatureVerifier -lo {@link SpidSignatureVerifier} da utilizzare. Se null le firme vengono verificate in sequenza
+	 * @return -il nuovo {@link SpidValidationContext}
+	 */
+	public SpidValidationContext withSignatureVerifier(SpidSignatureVerifier signatureVerifier) {
+		return new SpidValidationContext(this, signatureVerifier);
+	}
+	/**
+	 * Restituisce il livello SPID corrispondente al valore di AuthnContextClassRef
+	 * @param authnContextClassRef -il valore di AuthnContextClassRef
+	 * @return -il livello SPID, null se il valore non è previsto
+	 */
+	public static Integer spidLevel(String authnContextClassRef) {
+		return authnContextClassRef == null ? null : SPID_LEVELS.get(authnContextClassRef);
+	}
+	/**
+	 * @param samlResponse -la {@link Response} da controllare
+	 * @return -la {@link SpidResponseValidation} della response con questo contesto
+	 */
+	public SpidResponseValidation newValidation(Response samlResponse) {
+		return new SpidResponseValidation(samlResponse, this);
+	}
+	public TrustedCredentialIndex getTrustedCredentials() {
+		return trustedCredentials;
+	}
+	public int getTolleranceTimeMillisecond() {
+		return tolleranceTimeMillisecond;
+	}
+	public String getIdpDestinationUrl() {
+		return idpDestinationUrl;
+	}
+	public String getSpidIdpEntityId() {
+		return spidIdpEntityId;
+	}
+	public EntityDescriptor getSpitEnteAggregatoMetadata() {
+		return spitEnteAggregatoMetadata;
+	}
+	/**
+	 * @return -l'entity ID dell'SP, atteso come Audience delle assertion
+	 */
+	public String getSpEntityId() {
+		return spEntityId;
+	}
+	public List<SamlAttributeDto> getAttributiRichiesti() {
+		return attributiRichiesti;
+	}
+	/**
+	 * @return -i nomi degli attributi richiesti, nell'ordine di richiesta
+	 */
+	public Set<String> getNomiAttributiRichiesti() {
+		return nomiAttributiRichiesti;
+	}
+	public KeyPair getKeyPair() {
+		return keyPair;
+	}
+	/**
+	 * @return -lo {@link SpidAssertionDecrypter} indicato nel {@link Builder} o, se non indicato, quello condiviso del {@link KeyPair};
+	 * null se nessuno dei due è stato indicato
+	 */
+	public SpidAssertionDecrypter getAssertionDecrypter() {
+		return assertionDecrypter;
+	}
+	public int getSpLivelloAutenticazioneSpid() {
+		return spLivelloAutenticazioneSpid;
+	}
+	public SignatureVerificationCache getSignatureCache() {
+		return signatureCache;
+	}
+	/**
+	 * @return -la {@link SpidReplayCache}, null se il controllo anti replay non è attivo
+	 */
+	public SpidReplayCache getReplayCache() {
+		return replayCache;
+	}
+	/**
+	 * @return -lo {@link SpidAuthnRequestRegistry}, null se l'InResponseTo non viene correlato con le AuthnRequest inviate
+	 */
+	public SpidAuthnRequestRegistry getAuthnRequestRegistry() {
+		return authnRequestRegistry;
+	}
+	/**
+	 * @return -lo {@link SpidSignatureVerifier} per la verifica parallela delle firme, null se le firme vengono verificate in sequenza
+	 */
+	public SpidSignatureVerifier getSignatureVerifier() {
+		return signatureVerifier;
+	}
+	/**
+	 * @return -lo {@link SpidRuleEngine} che esegue i controlli: quello indicato nel {@link Builder} o, se non indicato, {@link SpidRuleEngine#getInstance()}
+	 */
+	public SpidRuleEngine getRuleEngine() {
+		return ruleEngine == null ? SpidRuleEngine.getInstance() : ruleEngine;
+	}
+	/**
+	 * @return -l'istante di riferimento dei controlli, null se viene usato l'istante corrente
+	 */
+	public DateTime getReferenceInstant() {
+		return referenceInstant;
+	}
+	@Override
+	public String toString() {
+		return "SpidValidationContext [spEntityId=" + spEntityId + ", spidIdpEntityId=" + spidIdpEntityId + ", idpDestinationUrl=" + idpDestinationUrl
+				+ ", tolleranceTimeMillisecond=" + tolleranceTimeMillisecond + ", nomiAttributiRichiesti=" + nomiAttributiRichiesti
+				+ ", spLivelloAutenticazioneSpid=" + spLivelloAutenticazioneSpid + "]";
+	}
+	/**
+	 * Costruisce lo {@link SpidValidationContext}. Le credenziali dell'IDP sono obbligatorie;
+	 * cache, registro delle AuthnRequest e verificatore parallelo delle firme sono facoltativi e, se non indicati, i relativi controlli
+	 * non vengono effettuati. Non è thread safe
+	 */
+	public static final class Builder {
+		private TrustedCredentialIndex trustedCredentials;
+		private int tolleranceTimeMillisecond;
+		private String idpDestinationUrl;
+		private String spidIdpEntityId;
+		private EntityDescriptor spitEnteAggregatoMetadata;
+		private SamlAttributesConsumingServiceDto attributiRichiesti;
+		private KeyPair keyPair;
+		private SpidAssertionDecrypter assertionDecrypter;
+		private int spLivelloAutenticazioneSpid;
+		private SignatureVerificationCache signatureCache;
+		private SpidReplayCache replayCache;
+		private SpidAuthnRequestRegistry authnRequestRegistry;
+		private SpidSignatureVerifier signatureVerifier;
+		private SpidRuleEngine ruleEngine;
+		private DateTime referenceInstant;
+		private Builder() {
+		}
+		/**
+		 * @param credentials -il {@link List} di {@link Credential} dell'IDP da utilizzare per il controllo della firma
+		 * @return -il {@link Builder}
+		 */
+		public Builder credentials(List<Credential> credentials) {
+			this.trustedCredentials = new TrustedCredentialIndex(credentials);
+			return this;
+		}
+		/**
+		 * @param trustedCredentials -le credenziali dell'IDP già indicizzate, ad esempio da {@link SpidMetadataStore#getSigningCredentials(String)}
+		 * @return -il {@link Builder}
+		 */
+		public Builder trustedCredentials(TrustedCredentialIndex trustedCredentials) {
+			this.trustedCredentials = trustedCredentials;
+			return this;
+		}
+		/**
+		 * @param tolleranceTimeMillisecond -il tempo di tolleranza in millisecondi
+		 * @return -il {@link Builder}
+		 */
+		public Builder tolleranceTimeMillisecond(int tolleranceTimeMillisecond) {
+			this.tolleranceTimeMillisecond = tolleranceTimeMillisecond;
+			return this;
+		}
+		/**
+		 * @param idpDestinationUrl -Destination URL verso cui tutte le SAML Response devono puntare
+		 * @return -il {@link Builder}
+		 */
+		public Builder idpDestinationUrl(String idpDestinationUrl) {
+			this.idpDestinationUrl = idpDestinationUrl;
+			return this;
+		}
+		/**
+		 * @param spidIdpEntityId -IDP Entity ID
+		 * @return -il {@link Builder}
+		 */
+		public Builder spidIdpEntityId(String spidIdpEntityId) {
+			this.spidIdpEntityId = spidIdpEntityId;
+			return this;
+		}
+		/**
+		 * @param spitEnteAggregatoMetadata -{@link EntityDescriptor} contentente le informazioni del metadata dell'ente aggregato. Non viene copiato
+		 * @return -il {@link Builder}
+		 */
+		public Builder spitEnteAggregatoMetadata(EntityDescriptor spitEnteAggregatoMetadata) {
+			this.spitEnteAggregatoMetadata = spitEnteAggregatoMetadata;
+			return this;
+		}
+		/**
+		 * @param attributiRichiesti -Gli attributi richiesti dall'SP dell'ente
+		 * @return -il {@link Builder}
+		 */
+		public Builder attributiRichiesti(SamlAttributesConsumingServiceDto attributiRichiesti) {
+			this.attributiRichiesti = attributiRichiesti;
+			return this;
+		}
+		/**
+		 * @param keyPair -il {@link KeyPair} usato per decriptare le assertion. Può essere null se le assertion non sono cifrate
+		 * @return -il {@link Builder}
+		 */
+		public Builder keyPair(KeyPair keyPair) {
+			this.keyPair = keyPair;
+			return this;
+		}
+		/**
+		 * @param assertionDecrypter -lo {@link SpidAssertionDecrypter} con cui decriptare le assertion, ad esempio uno creato con un executor dedicato.
+		 * Se null viene usato {@link SpidAssertionDecrypter#forKeyPair(KeyPair)}
+		 * @return -il {@link Builder}
+		 */
+		public Builder assertionDecrypter(SpidAssertionDecrypter assertionDecrypter) {
+			this.assertionDecrypter = assertionDecrypter;
+			return this;
+		}
+		/**
+		 * @param spLivelloAutenticazioneSpid -il livello di autenticazione SPID richiesto da SP
+		 * @return -il {@link Builder}
+		 */
+		public Builder spLivelloAutenticazioneSpid(int spLivelloAutenticazioneSpid) {
+			this.spLivelloAutenticazioneSpid = spLivelloAutenticazioneSpid;
+			return this;
+		}
+		/**
+		 * @param signatureCache -la {@link SignatureVerificationCache} delle firme già verificate. Se null la cache non viene usata
+		 * @return -il {@link Builder}
+		 */
+		public Builder signatureCache(SignatureVerificationCache signatureCache) {
+			this.signatureCache = signatureCache;
+			return this;
+		}
+		/**
+		 * @param replayCache -la {@link SpidReplayCache} degli ID di response e assertion già consumati. Se null il controllo anti replay non viene effettuato
+		 * @return -il {@link Builder}
+		 */
+		public Builder replayCache(SpidReplayCache replayCache) {
+			this.replayCache = replayCache;
+			return this;
+		}
+		/**
+		 * @param authnRequestRegistry -lo {@link SpidAuthnRequestRegistry} delle AuthnRequest in attesa di risposta. Se null l'InResponseTo non viene correlato
+		 * @return -il {@link Builder}
+		 */
+		public Builder authnRequestRegistry(SpidAuthnRequestRegistry authnRequestRegistry) {
+			this.authnRequestRegistry = authnRequestRegistry;
+			return this;
+		}
+		/**
+		 * @param signatureVerifier -lo {@link SpidSignatureVerifier} per la verifica parallela delle firme delle assertion. Se null le firme vengono verificate in sequenza
+		 * @return -il {@link Builder}
+		 */
+		public Builder signatureVerifier(SpidSignatureVerifier signatureVerifier) {
+			this.signatureVerifier = signatureVerifier;
+			return this;
+		}
+		/**
+		 * @param ruleEngine -lo {@link SpidRuleEngine} che esegue i controlli, ad esempio un'istanza con regole disabilitate solo per questo contesto.
+		 * Se null vengono usati {@link SpidRuleEngine#getInstance()} e le regole disabilitate su di esso
+		 * @return -il {@link Builder}
+		 */
+		public Builder ruleEngine(SpidRuleEngine ruleEngine) {
+			this.ruleEngine = ruleEngine;
+			return this;
+		}
+		/**
+		 * @param referenceInstant -l'istante rispetto al quale effettuare i controlli, ad esempio l'istante di ricezione di una response archiviata.
+		 * Se null viene usato l'istante corrente
+		 * @return -il {@link Builder}
+		 */
+		public Builder referenceInstant(DateTime referenceInstant) {
+			this.referenceInstant = referenceInstant;
+			return this;
+		}
+		/**
+		 * @return -il nuovo {@link SpidValidationContext}
+		 * @throws IllegalStateException -sollevata se le credenziali dell'IDP non sono state indicate
+		 */
+		public SpidValidationContext build() {
+			if( trustedCredentials == null ) {
+				throw new IllegalStateException("Credenziali dell'IDP non indicate");
+			}
+			return new SpidValidationContext(this);
+		}
+	}
+	private static Map<String, Integer> spidLevels() {
+		Map<String, Integer> levels = new HashMap<>();
+		for (int level = 1; level <= MAX_SPID_LEVEL; level++) {
+			levels.put((SpidControlChecker.BASE_SPID_AUTHN_CONTEXT_CLAS_REF + level).intern(), Integer.valueOf(level));
+		}
+		return Collections.unmodifiableMap(levels);
+	}
+}
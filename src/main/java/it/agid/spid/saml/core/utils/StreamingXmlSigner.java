@@ -0,0 +1,190 @@
+package it.agid.spid.saml.core.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Base64;
+
+import javax.xml.crypto.dsig.XMLSignature;
+
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+
+/**
+ * Firma XML-Sig enveloped calcolata sui byte già canonici prodotti da un {@link CanonicalXmlWriter}: il digest SHA-512 del documento
+ * viene aggiornato durante la scrittura (Exclusive C14N e trasformata enveloped), per cui la firma non richiede un DOM né una seconda
+ * canonicalizzazione del documento. Gli algoritmi sono quelli usati per i metadata SPID: RSA-SHA512 e digest SHA-512.
+ * Il blocco Signature prodotto ha una lunghezza che dipende solo dal riferimento e dalla chiave ({@link #signatureLength(String)}),
+ * per cui può essere scritto in uno spazio riservato in anticipo. Con {@link #writeSigned(String, InsertBeforeElementEnum, SignedContent, OutputStream)}
+ * il documento viene scritto, canonicalizzato e firmato in una sola passata, con la firma nella posizione indicata da {@link InsertBeforeElementEnum}.
+ * È immutabile e thread safe
+ */
+public class StreamingXmlSigner {
+	private static final String DS_PREFIX = "ds";
+	private static final String JCA_SIGNATURE_ALGORITHM = "SHA512withRSA";
+	private static final String JCA_DIGEST_ALGORITHM = "SHA-512";
+	private static final int DIGEST_LENGTH = 64;
+	private static final byte[] XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>".getBytes(StandardCharsets.UTF_8);
+	private final SigningCredential signingCredential;
+	private final int signatureValueLength;
+	/**
+	 * @param signingCredential -la {@link SigningCredential} con chiave RSA con cui firmare
+	 */
+	public StreamingXmlSigner(SigningCredential signingCredential) {
+		if( !(signingCredential.getCertificate().getPublicKey() instanceof RSAPublicKey) ) {
+			throw new IllegalArgumentException("La firma in streaming richiede una chiave RSA ["+signingCredential+"]");
+		}
+		this.signingCredential = signingCredential;
+		this.signatureValueLength = (((RSAPublicKey) signingCredential.getCertificate().getPublicKey()).getModulus().bitLength() + 7) / 8;
+	}
+	/**
+	 * @return -un nuovo {@link MessageDigest} da aggiornare con i byte canonici del documento, ad esempio con {@link CanonicalXmlWriter#setDigest(MessageDigest)}
+	 */
+	public MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(JCA_DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Algoritmo "+JCA_DIGEST_ALGORITHM+" non disponibile", e);
+		}
+	}
+	/**
+	 * Firma il documento e restituisce l'elemento ds:Signature in forma canonica, con la dichiarazione del namespace ds
+	 * @param referenceUri -l'URI del riferimento, "#ID" dell'elemento firmato
+	 * @param digest -il {@link MessageDigest} ottenuto da {@link #newDigest()} e aggiornato con i byte canonici dell'elemento firmato, firma esclusa
+	 * @return -i byte UTF-8 dell'elemento ds:Signature
+	 * @throws GeneralSecurityException -sollevata in caso di errore nella firma
+	 * @throws IOException -sollevata in caso di errore nella scrittura
+	 */
+	public byte[] sign(String referenceUri, MessageDigest digest) throws GeneralSecurityException, IOException {
+		String digestValue = Base64.getEncoder().encodeToString(digest.digest());
+		ByteArrayOutputStream signedInfo = new ByteArrayOutputStream(1024);
+		CanonicalXmlWriter writer = new CanonicalXmlWriter(signedInfo);
+		//SignedInfo viene canonicalizzato come elemento radice: la dichiarazione del namespace ds finisce su SignedInfo come nella verifica
+		writeSignedInfo(writer, referenceUri, digestValue);
+		writer.flush();
+		Signature signature = Signature.getInstance(JCA_SIGNATURE_ALGORITHM);
+		signature.initSign(signingCredential.getPrivateKey());
+		signature.update(signedInfo.toByteArray());
+		return signatureElement(referenceUri, digestValue, signature.sign());
+	}
+	/**
+	 * Scrive il documento e lo firma in una sola passata: il digest viene calcolato durante la scrittura e il blocco Signature viene inserito
+	 * prima del primo figlio dell'elemento radice indicato da inserBefore, senza costruire né ricanonicalizzare un DOM.
+	 * Il documento viene mantenuto in memoria come byte fino alla scrittura della firma
+	 * @param id -il valore dell'attributo ID dell'elemento radice scritto da content, riferito dalla firma
+	 * @param inserBefore -l'elemento prima del quale inserire la firma. Può assumere uno dei valori dell'enum {@link InsertBeforeElementEnum}
+	 * @param content -il {@link SignedContent} che scrive l'elemento radice, ad esempio con {@link it.agid.spid.saml.core.MetadataStreamSerializer}
+	 * @param out -l'{@link OutputStream} su cui scrivere il documento firmato (UTF-8). Non viene chiuso
+	 * @throws Exception -sollevata in caso di errore nella scrittura o nella firma, o se l'elemento inserBefore non è stato scritto
+	 */
+	public void writeSigned(String id, InsertBeforeElementEnum inserBefore, SignedContent content, OutputStream out) throws Exception {
+		String referenceUri = "#" + id;
+		int signatureLength = signatureLength(referenceUri);
+		PatchableBuffer buffer = new PatchableBuffer(16 * 1024);
+		CanonicalXmlWriter writer = new CanonicalXmlWriter(buffer);
+		writer.writeRaw(XML_DECLARATION);
+		writer.reserveBefore(inserBefore.getNameSpace(), inserBefore.getElementName(), signatureLength);
+		MessageDigest digest = newDigest();
+		writer.setDigest(digest);
+		content.write(writer);
+		writer.flush();
+		if( writer.getDepth() != 0 ) {
+			throw new IllegalStateException("Documento incompleto: "+writer.getDepth()+" elementi non chiusi");
+		}
+		if( writer.getReservedPosition() < 0 ) {
+			throw new IllegalStateException("Elemento "+inserBefore.getElementName()+" non presente: impossibile inserire la firma");
+		}
+		byte[] signature = sign(referenceUri, digest);
+		if( signature.length != signatureLength ) {
+			throw new IllegalStateException("Lunghezza firma "+signature.length+" differente dallo spazio riservato "+signatureLength);
+		}
+		buffer.patch((int) writer.getReservedPosition(), signature);
+		buffer.writeTo(out);
+		out.flush();
+	}
+	/**
+	 * Scrive e firma il documento in una sola passata
+	 * @see #writeSigned(String, InsertBeforeElementEnum, SignedContent, OutputStream)
+	 * @return -i byte UTF-8 del documento firmato
+	 */
+	public byte[] writeSigned(String id, InsertBeforeElementEnum inserBefore, SignedContent content) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+		writeSigned(id, inserBefore, content, out);
+		return out.toByteArray();
+	}
+	/**
+	 * @param referenceUri -l'URI del riferimento, "#ID" dell'elemento firmato
+	 * @return -la lunghezza in byte dell'elemento ds:Signature che {@link #sign(String, MessageDigest)} produrrà per il riferimento
+	 * @throws IOException -sollevata in caso di errore nella scrittura
+	 */
+	public int signatureLength(String referenceUri) throws IOException {
+		String digestValue = Base64.getEncoder().encodeToString(new byte[DIGEST_LENGTH]);
+		return signatureElement(referenceUri, digestValue, new byte[signatureValueLength]).length;
+	}
+	private byte[] signatureElement(String referenceUri, String digestValue, byte[] signatureValue) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+		CanonicalXmlWriter writer = new CanonicalXmlWriter(out);
+		writer.startElement(DS_PREFIX, XMLSignature.XMLNS, "Signature");
+		writeSignedInfo(writer, referenceUri, digestValue);
+		//Il valore di firma RSA ha la lunghezza del modulo: la sua codifica Base64 non dipende dal contenuto
+		writeTextElement(writer, "SignatureValue", Base64.getEncoder().encodeToString(signatureValue));
+		writer.startElement(DS_PREFIX, XMLSignature.XMLNS, "KeyInfo");
+		writer.startElement(DS_PREFIX, XMLSignature.XMLNS, "X509Data");
+		for (String certificate : signingCredential.getBase64Certificates()) {
+			writeTextElement(writer, "X509Certificate", certificate);
+		}
+		writer.endElement();
+		writer.endElement();
+		writer.endElement();
+		writer.flush();
+		return out.toByteArray();
+	}
+	private static void writeSignedInfo(CanonicalXmlWriter writer, String referenceUri, String digestValue) throws IOException {
+		writer.startElement(DS_PREFIX, XMLSignature.XMLNS, "SignedInfo");
+		writeAlgorithmElement(writer, "CanonicalizationMethod", SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+		writeAlgorithmElement(writer, "SignatureMethod", SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA512);
+		writer.startElement(DS_PREFIX, XMLSignature.XMLNS, "Reference");
+		writer.attribute("URI", referenceUri);
+		writer.startElement(DS_PREFIX, XMLSignature.XMLNS, "Transforms");
+		writeAlgorithmElement(writer, "Transform", SignatureConstants.TRANSFORM_ENVELOPED_SIGNATURE);
+		writeAlgorithmElement(writer, "Transform", SignatureConstants.TRANSFORM_C14N_EXCL_OMIT_COMMENTS);
+		writer.endElement();
+		writeAlgorithmElement(writer, "DigestMethod", SignatureConstants.ALGO_ID_DIGEST_SHA512);
+		writeTextElement(writer, "DigestValue", digestValue);
+		writer.endElement();
+		writer.endElement();
+	}
+	private static void writeAlgorithmElement(CanonicalXmlWriter writer, String localName, String algorithm) throws IOException {
+		writer.startElement(DS_PREFIX, XMLSignature.XMLNS, localName);
+		writer.attribute("Algorithm", algorithm);
+		writer.endElement();
+	}
+	private static void writeTextElement(CanonicalXmlWriter writer, String localName, String text) throws IOException {
+		writer.startElement(DS_PREFIX, XMLSignature.XMLNS, localName);
+		writer.characters(text);
+		writer.endElement();
+	}
+	/**
+	 * Contenuto da firmare: scrive sul {@link CanonicalXmlWriter} l'elemento radice del documento
+	 */
+	@FunctionalInterface
+	public interface SignedContent {
+		void write(CanonicalXmlWriter writer) throws Exception;
+	}
+	/**
+	 * Buffer in memoria in cui sovrascrivere lo spazio riservato alla firma
+	 */
+	private static final class PatchableBuffer extends ByteArrayOutputStream {
+		private PatchableBuffer(int size) {
+			super(size);
+		}
+		private void patch(int position, byte[] bytes) {
+			System.arraycopy(bytes, 0, buf, position, bytes.length);
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package it.agid.spid.saml.core.utils;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.commons.codec.binary.Hex;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.security.x509.X509Credential;
+import org.opensaml.xmlsec.keyinfo.KeyInfoSupport;
+import org.opensaml.xmlsec.signature.KeyInfo;
+import org.opensaml.xmlsec.signature.Signature;
+import org.opensaml.xmlsec.signature.X509Certificate;
+import org.opensaml.xmlsec.signature.X509Data;
+import org.opensaml.xmlsec.signature.X509IssuerSerial;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Indice immutabile delle {@link Credential} fidate, utilizzato per selezionare la credenziale corretta a partire dal KeyInfo
+ * della {@link Signature}. Le credenziali sono indicizzate per digest SHA-256 del certificato X.509, per issuer/serial
+ * e per digest SHA-256 della chiave pubblica, in modo da effettuare una sola verifica crittografica per firma.
+ * È thread safe e può essere costruito una sola volta per IDP e riutilizzato.
+ */
+public class TrustedCredentialIndex {
+	private static final Logger logger = LoggerFactory.getLogger(TrustedCredentialIndex.class.getName());
+	private static final String CERT_PREFIX = "x509:";
+	private static final String ISSUER_SERIAL_PREFIX = "is:";
+	private static final String PUBLIC_KEY_PREFIX = "pk:";
+
+	private final List<Credential> credentials;
+	private final Map<String, Credential> index;
+	/**
+	 * Costruisce l'indice partendo dal {@link List} di {@link Credential} fidate
+	 * @param credentials -il {@link List} di {@link Credential} da indicizzare
+	 */
+	public TrustedCredentialIndex(List<Credential> credentials) {
+		this.credentials = Collections.unmodifiableList(new ArrayList<>(credentials));
+		Map<String, Credential> keys = new HashMap<>(credentials.size() * 4);
+		for (Credential credential : credentials) {
+			if( credential instanceof X509Credential && ((X509Credential)credential).getEntityCertificate() != null ) {
+				java.security.cert.X509Certificate cert = ((X509Credential)credential).getEntityCertificate();
+				try {
+					keys.putIfAbsent(CERT_PREFIX+sha256(cert.getEncoded()), credential);
+				} catch (CertificateEncodingException e) {
+					logger.warn("Impossibile indicizzare il certificato {}", cert.getSubjectX500Principal(), e);
+				}
+				keys.putIfAbsent(issuerSerialKey(cert.getIssuerX500Principal(), cert.getSerialNumber()), credential);
+			}
+			PublicKey publicKey = credential.getPublicKey();
+			if( publicKey != null ) {
+				keys.putIfAbsent(PUBLIC_KEY_PREFIX+sha256(publicKey.getEncoded()), credential);
+			}
+		}
+		this.index = Collections.unmodifiableMap(keys);
+	}
+	/**
+	 * Cerca la {@link Credential} fidata corrispondente al KeyInfo della {@link Signature}
+	 * @param signature -la {@link Signature} di cui cercare la credenziale
+	 * @return -la {@link Credential} trovata, null se nessuna credenziale fidata corrisponde al KeyInfo
+	 */
+	public Credential resolve(Signature signature) {
+		KeyInfo keyInfo = signature.getKeyInfo();
+		if( keyInfo == null ) {
+			return null;
+		}
+		List<byte[]> derCertificates = new ArrayList<>(2);
+		for (X509Data x509Data : keyInfo.getX509Datas()) {
+			for (X509Certificate x509Certificate : x509Data.getX509Certificates()) {
+				if( StringUtil.isEmptyString(x509Certificate.getValue()) ) {
+					continue;
+				}
+				byte[] der = Base64.getMimeDecoder().decode(x509Certificate.getValue());
+				Credential found = index.get(CERT_PREFIX+sha256(der));
+				if( found != null ) {
+					return found;
+				}
+				derCertificates.add(der);
+			}
+			for (X509IssuerSerial issuerSerial : x509Data.getX509IssuerSerials()) {
+				if( issuerSerial.getX509IssuerName() == null || issuerSerial.getX509SerialNumber() == null ) {
+					continue;
+				}
+				try {
+					Credential found = index.get(issuerSerialKey(new X500Principal(issuerSerial.getX509IssuerName().getValue()), issuerSerial.getX509SerialNumber().getValue()));
+					if( found != null ) {
+						return found;
+					}
+				}catch (IllegalArgumentException e) {
+					if( logger.isDebugEnabled() ) {
+						logger.debug("Issuer name non valido nel KeyInfo {}", issuerSerial.getX509IssuerName().getValue());
+					}
+				}
+			}
+		}
+		//Certificato non noto: potrebbe essere stato riemesso con la stessa chiave pubblica
+		try {
+			CertificateFactory factory = derCertificates.isEmpty() ? null : CertificateFactory.getInstance("X.509");
+			for (byte[] der : derCertificates) {
+				PublicKey publicKey = factory.generateCertificate(new ByteArrayInputStream(der)).getPublicKey();
+				Credential found = index.get(PUBLIC_KEY_PREFIX+sha256(publicKey.getEncoded()));
+				if( found != null ) {
+					return found;
+				}
+			}
+			if( !keyInfo.getKeyValues().isEmpty() ) {
+				for (PublicKey publicKey : KeyInfoSupport.getPublicKeys(keyInfo)) {
+					Credential found = index.get(PUBLIC_KEY_PREFIX+sha256(publicKey.getEncoded()));
+					if( found != null ) {
+						return found;
+					}
+				}
+			}
+		}catch (Exception e) {
+			if( logger.isDebugEnabled() ) {
+				logger.debug("Errore nella lettura delle chiavi del KeyInfo", e);
+			}
+		}
+		return null;
+	}
+	/**
+	 * Indica se il KeyInfo della {@link Signature} contiene informazioni utilizzabili per la ricerca nell'indice
+	 * @param signature -la {@link Signature} da controllare
+	 * @return true se sono presenti certificati, issuer/serial o chiavi pubbliche
+	 */
+	public boolean hasKeyMaterial(Signature signature) {
+		KeyInfo keyInfo = signature.getKeyInfo();
+		if( keyInfo == null ) {
+			return false;
+		}
+		if( !keyInfo.getKeyValues().isEmpty() ) {
+			return true;
+		}
+		for (X509Data x509Data : keyInfo.getX509Datas()) {
+			if( !x509Data.getX509Certificates().isEmpty() || !x509Data.getX509IssuerSerials().isEmpty() ) {
+				return true;
+			}
+		}
+		return false;
+	}
+	/**
+	 * @return -il {@link List} non modificabile delle {@link Credential} indicizzate, nell'ordine originale
+	 */
+	public List<Credential> getCredentials() {
+		return credentials;
+	}
+	public boolean isEmpty() {
+		return credentials.isEmpty();
+	}
+	private static String issuerSerialKey(X500Principal issuer, BigInteger serial) {
+		return ISSUER_SERIAL_PREFIX+issuer.getName(X500Principal.CANONICAL)+"|"+serial;
+	}
+	private static String sha256(byte[] data) {
+		try {
+			return Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(data));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Algoritmo SHA-256 non disponibile", e);
+		}
+	}
+}
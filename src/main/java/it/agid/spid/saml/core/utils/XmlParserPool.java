@@ -0,0 +1,259 @@
+package it.agid.spid.saml.core.utils;
+
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Result;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+
+/**
+ * Pool thread safe e limitato di {@link DocumentBuilder} e {@link Transformer}.
+ * Le factory vengono create e configurate (secure processing, niente DTD ed entità esterne) una sola volta;
+ * i parser e i serializzatori vengono riutilizzati tra le invocazioni invece di essere ricreati ad ogni chiamata.
+ * Espone i contatori di hit/miss per monitorare l'efficacia del pool.
+ */
+public class XmlParserPool {
+	private static final Logger logger = LoggerFactory.getLogger(XmlParserPool.class.getName());
+	/**
+	 * System property con cui configurare la dimensione del pool condiviso
+	 */
+	public static final String POOL_SIZE_PROPERTY = "spid.xml.pool.size";
+	private static final int DEFAULT_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+
+	private final DocumentBuilderFactory documentBuilderFactory;
+	private final TransformerFactory transformerFactory;
+	private final int poolSize;
+	private final BlockingQueue<DocumentBuilder> documentBuilders;
+	private final BlockingQueue<Transformer> transformers;
+	private final AtomicLong documentBuilderHits = new AtomicLong();
+	private final AtomicLong documentBuilderMisses = new AtomicLong();
+	private final AtomicLong transformerHits = new AtomicLong();
+	private final AtomicLong transformerMisses = new AtomicLong();
+	/**
+	 * Crea un pool con il numero massimo di istanze inattive indicato
+	 * @param poolSize -numero massimo di {@link DocumentBuilder} e di {@link Transformer} mantenuti nel pool
+	 */
+	public XmlParserPool(int poolSize) {
+		if( poolSize < 1 ) {
+			throw new IllegalArgumentException("Dimensione del pool non valida ["+poolSize+"]");
+		}
+		this.poolSize = poolSize;
+		this.documentBuilders = new ArrayBlockingQueue<>(poolSize);
+		this.transformers = new ArrayBlockingQueue<>(poolSize);
+		this.documentBuilderFactory = createDocumentBuilderFactory();
+		this.transformerFactory = createTransformerFactory();
+	}
+	/**
+	 * Recupera il pool condiviso. La dimensione può essere impostata con la system property {@value #POOL_SIZE_PROPERTY}
+	 * @return -l'istanza condivisa
+	 */
+	public static XmlParserPool getInstance() {
+		return Holder.INSTANCE;
+	}
+	/**
+	 * Effettua il parsing namespace aware dello {@link InputStream} in ingresso
+	 * @param stream -lo {@link InputStream} da leggere. Non viene chiuso
+	 * @return -il {@link Document} creato
+	 * @throws Exception -sollevata in caso di errore
+	 */
+	public Document parse(InputStream stream) throws Exception {
+		return parse(new InputSource(stream));
+	}
+	/**
+	 * Effettua il parsing namespace aware dell'{@link InputSource} in ingresso
+	 * @param source -l'{@link InputSource} da leggere
+	 * @return -il {@link Document} creato
+	 * @throws Exception -sollevata in caso di errore
+	 */
+	public Document parse(InputSource source) throws Exception {
+		DocumentBuilder builder = borrowDocumentBuilder();
+		try {
+			return builder.parse(source);
+		}finally {
+			returnDocumentBuilder(builder);
+		}
+	}
+	/**
+	 * Crea un nuovo {@link Document} vuoto
+	 * @return -il {@link Document} creato
+	 * @throws ParserConfigurationException -sollevata in caso di errore
+	 */
+	public Document newDocument() throws ParserConfigurationException {
+		DocumentBuilder builder = borrowDocumentBuilder();
+		try {
+			return builder.newDocument();
+		}finally {
+			returnDocumentBuilder(builder);
+		}
+	}
+	/**
+	 * Serializza il {@link Node} in ingresso sul {@link Result} indicato, senza indentazione
+	 * @param node -il {@link Node} da serializzare
+	 * @param result -il {@link Result} di destinazione
+	 * @throws TransformerException -sollevata in caso di errore
+	 */
+	public void transform(Node node, Result result) throws TransformerException {
+		Transformer transformer = borrowTransformer();
+		try {
+			transformer.transform(new DOMSource(node), result);
+		}finally {
+			returnTransformer(transformer);
+		}
+	}
+	/**
+	 * Serializza il {@link Node} in ingresso in una stringa XML
+	 * @param node -il {@link Node} da serializzare
+	 * @return -la stringa XML
+	 * @throws TransformerException -sollevata in caso di errore
+	 */
+	public String toString(Node node) throws TransformerException {
+		StringWriter writer = new StringWriter();
+		transform(node, new StreamResult(writer));
+		return writer.toString();
+	}
+	/**
+	 * Recupera un {@link DocumentBuilder} dal pool, creandone uno nuovo se il pool è vuoto.
+	 * Il chiamante deve restituirlo con {@link #returnDocumentBuilder(DocumentBuilder)}
+	 * @return -il {@link DocumentBuilder}
+	 * @throws ParserConfigurationException -sollevata in caso di errore nella creazione
+	 */
+	public DocumentBuilder borrowDocumentBuilder() throws ParserConfigurationException {
+		DocumentBuilder builder = documentBuilders.poll();
+		if( builder != null ) {
+			documentBuilderHits.incrementAndGet();
+			return builder;
+		}
+		documentBuilderMisses.incrementAndGet();
+		synchronized (documentBuilderFactory) {
+			return documentBuilderFactory.newDocumentBuilder();
+		}
+	}
+	/**
+	 * Restituisce al pool il {@link DocumentBuilder}. Se il pool è pieno l'istanza viene scartata
+	 * @param builder -il {@link DocumentBuilder} da restituire
+	 */
+	public void returnDocumentBuilder(DocumentBuilder builder) {
+		if( builder == null ) {
+			return;
+		}
+		builder.reset();
+		documentBuilders.offer(builder);
+	}
+	/**
+	 * Recupera un {@link Transformer} dal pool, creandone uno nuovo se il pool è vuoto.
+	 * Il chiamante deve restituirlo con {@link #returnTransformer(Transformer)}
+	 * @return -il {@link Transformer}
+	 * @throws TransformerConfigurationException -sollevata in caso di errore nella creazione
+	 */
+	public Transformer borrowTransformer() throws TransformerConfigurationException {
+		Transformer transformer = transformers.poll();
+		if( transformer != null ) {
+			transformerHits.incrementAndGet();
+			return transformer;
+		}
+		transformerMisses.incrementAndGet();
+		synchronized (transformerFactory) {
+			transformer = transformerFactory.newTransformer();
+		}
+		transformer.setOutputProperty(OutputKeys.INDENT, "no");
+		return transformer;
+	}
+	/**
+	 * Restituisce al pool il {@link Transformer}. Se il pool è pieno l'istanza viene scartata
+	 * @param transformer -il {@link Transformer} da restituire
+	 */
+	public void returnTransformer(Transformer transformer) {
+		if( transformer == null ) {
+			return;
+		}
+		transformer.reset();
+		transformer.setOutputProperty(OutputKeys.INDENT, "no");
+		transformers.offer(transformer);
+	}
+	public int getPoolSize() {
+		return poolSize;
+	}
+	public int getIdleDocumentBuilders() {
+		return documentBuilders.size();
+	}
+	public int getIdleTransformers() {
+		return transformers.size();
+	}
+	public long getDocumentBuilderHits() {
+		return documentBuilderHits.get();
+	}
+	public long getDocumentBuilderMisses() {
+		return documentBuilderMisses.get();
+	}
+	public long getTransformerHits() {
+		return transformerHits.get();
+	}
+	public long getTransformerMisses() {
+		return transformerMisses.get();
+	}
+	@Override
+	public String toString() {
+		return "XmlParserPool [poolSize=" + poolSize + ", idleDocumentBuilders=" + documentBuilders.size()
+				+ ", idleTransformers=" + transformers.size() + ", documentBuilderHits=" + documentBuilderHits
+				+ ", documentBuilderMisses=" + documentBuilderMisses + ", transformerHits=" + transformerHits
+				+ ", transformerMisses=" + transformerMisses + "]";
+	}
+	private static DocumentBuilderFactory createDocumentBuilderFactory() {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		factory.setXIncludeAware(false);
+		factory.setExpandEntityReferences(false);
+		try {
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+			factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+			factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+			factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+		} catch (ParserConfigurationException e) {
+			throw new IllegalStateException("Impossibile configurare il DocumentBuilderFactory in modalità sicura", e);
+		}
+		return factory;
+	}
+	private static TransformerFactory createTransformerFactory() {
+		TransformerFactory factory = TransformerFactory.newInstance();
+		try {
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+		} catch (TransformerConfigurationException e) {
+			throw new IllegalStateException("Impossibile configurare il TransformerFactory in modalità sicura", e);
+		}
+		try {
+			factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+			factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_STYLESHEET, "");
+		} catch (IllegalArgumentException e) {
+			if( logger.isWarnEnabled() ) {
+				logger.warn("Il TransformerFactory {} non supporta la restrizione degli accessi esterni", factory.getClass().getName());
+			}
+		}
+		return factory;
+	}
+	/**
+	 * Inizializzazione lazy e senza lock dell'istanza condivisa: getInstance() è nel percorso di ogni parsing
+	 */
+	private static final class Holder {
+		private static final XmlParserPool INSTANCE = new XmlParserPool(Integer.getInteger(POOL_SIZE_PROPERTY, DEFAULT_POOL_SIZE));
+	}
+}
@@ -3,6 +3,9 @@
  */
 package it.agid.spid.saml.spid.exception;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
 /**
  * @author angelo
  *
@@ -10,12 +13,44 @@ package it.agid.spid.saml.spid.exception;
 public class SpidCheckerException extends Exception {
 	
 	private static final long serialVersionUID = 4360100887757501911L;
+	/**
+	 * Proprietà di sistema che, se true, disabilita lo stack trace delle eccezioni costruite con un {@link SpidErrorCode}
+	 */
+	public static final String STACKLESS_PROPERTY = "spid.checker.stackless";
+	private static volatile boolean stackTraceEnabled = !Boolean.getBoolean(STACKLESS_PROPERTY);
 	private int anomaliaUtente;
+	private SpidErrorCode errorCode;
+	private transient Object[] arguments;
+	private String formattedMessage;
 	/**
 	 * {@inheritDoc}
 	 */
 	public SpidCheckerException() {
 		
+	}
+	/**
+	 * Crea l'eccezione con il codice di errore. Il messaggio viene costruito solo alla prima {@link #getMessage()};
+	 * lo stack trace non viene valorizzato se disabilitato con {@link #setStackTraceEnabled(boolean)} o {@value #STACKLESS_PROPERTY}
+	 * @param errorCode -lo {@link SpidErrorCode} dell'errore
+	 * @param arguments -gli argomenti del messaggio
+	 */
+	public SpidCheckerException(SpidErrorCode errorCode, Object... arguments) {
+		super(null, null, true, stackTraceEnabled);
+		this.errorCode = errorCode;
+		this.arguments = arguments;
+		this.anomaliaUtente = errorCode.getAnomaliaUtente();
+	}
+	/**
+	 * Crea l'eccezione con il codice di errore e la causa, come {@link #SpidCheckerException(SpidErrorCode, Object...)}
+	 * @param errorCode -lo {@link SpidErrorCode} dell'errore
+	 * @param cause -la causa dell'errore
+	 * @param arguments -gli argomenti del messaggio
+	 */
+	public SpidCheckerException(SpidErrorCode errorCode, Throwable cause, Object... arguments) {
+		super(null, cause, true, stackTraceEnabled);
+		this.errorCode = errorCode;
+		this.arguments = arguments;
+		this.anomaliaUtente = errorCode.getAnomaliaUtente();
 	}
 	public SpidCheckerException(int anomaliaUtente, String message) {
 		super(message);
@@ -53,9 +88,48 @@ public class SpidCheckerException extends Exception {
 		super(message, cause, enableSuppression, writableStackTrace);
 		
 	}
+	@Override
+	public String getMessage() {
+		String message = super.getMessage();
+		if( message == null && errorCode != null ) {
+			if( formattedMessage == null ) {
+				formattedMessage = errorCode.format(arguments);
+			}
+			message = formattedMessage;
+		}
+		return message;
+	}
 	public int getAnomaliaUtente() {
 		return anomaliaUtente;
 	}
+	/**
+	 * @return -lo {@link SpidErrorCode} dell'errore, null se l'eccezione è stata creata con il solo messaggio
+	 */
+	public SpidErrorCode getErrorCode() {
+		return errorCode;
+	}
+	public void setErrorCode(SpidErrorCode errorCode) {
+		this.errorCode = errorCode;
+	}
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		//Gli argomenti non vengono serializzati: il messaggio va costruito prima
+		getMessage();
+		out.defaultWriteObject();
+	}
+	/**
+	 * @return -true se le eccezioni costruite con un {@link SpidErrorCode} valorizzano lo stack trace
+	 */
+	public static boolean isStackTraceEnabled() {
+		return stackTraceEnabled;
+	}
+	/**
+	 * Abilita o disabilita lo stack trace delle eccezioni costruite con un {@link SpidErrorCode}. Disabilitarlo rende economico
+	 * scartare le response non valide, ad esempio in caso di traffico malevolo
+	 * @param enabled -true per valorizzare lo stack trace
+	 */
+	public static void setStackTraceEnabled(boolean enabled) {
+		stackTraceEnabled = enabled;
+	}
 	public void setAnomaliaUtente(int anomaliaUtente) {
 		this.anomaliaUtente = anomaliaUtente;
 	}
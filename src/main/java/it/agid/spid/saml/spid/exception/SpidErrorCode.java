@@ -0,0 +1,162 @@
+package it.agid.spid.saml.spid.exception;
+
+/**
+ * Codici di errore dei controlli SPID sulle SAML Response. Il messaggio di errore viene costruito dal modello solo quando
+ * richiesto ({@link SpidCheckerException#getMessage()}), per cui scartare una response non costa la concatenazione di stringhe.
+ * I codici con {@link #getAnomaliaUtente()} maggiore di 0 corrispondono alle anomalie utente SPID comunicate dall'IDP
+ * nello StatusMessage (ErrorCode nrXX)
+ */
+public enum SpidErrorCode {
+	RESPONSE_INVALID("SAML Response non valida"),
+	RESPONSE_MALFORMED("SAML Response non leggibile o malformata: {0}"),
+	RESPONSE_ROOT_INVALID("Elemento radice [{0}] differente da {1} SAML Response non valida"),
+	RESPONSE_ID_MISSING("SAML Response ID non presente o non valorizzato [{0}] SAML Response non valida"),
+	RESPONSE_VERSION_INVALID("SAML Response ID {0} SAML Version [{1}] differente da [{2}] SAML Response non valida"),
+	RESPONSE_DESTINATION_MISSING("SAML Response ID {0} destination non presente [{1}] SAML Response non valida"),
+	RESPONSE_DESTINATION_MISMATCH("SAML Response ID {0} destination [{1}] non coincidente con destination IDP censita [{2}] SAML Response non valida"),
+	RESPONSE_ISSUER_MISSING("SAML Response ID {0} elemento issuer non presente [{1}] SAML Response non valida"),
+	RESPONSE_ISSUER_MISMATCH("SAML Response ID {0} valore issuer response [{1}] non coincidente con valore IDP selezionato [{2}] SAML Response non valida"),
+	RESPONSE_ISSUER_FORMAT_INVALID("SAML Response ID {0} format issuer response [{1}] non coincidente con [{2}] SAML Response non valida"),
+	RESPONSE_STATUS_MISSING("SAML Response ID {0} elemento status non presente [{1}] SAML Response non valida"),
+	RESPONSE_STATUS_CODE_MISSING("SAML Response ID {0} elemento status code non presente [{1}] SAML Response non valida"),
+	RESPONSE_STATUS_CODE_VALUE_MISSING("SAML Response ID {0} valude di status code non presente [{1}] SAML Response non valida"),
+	RESPONSE_STATUS_NOT_SUCCESS("SAML Response ID {0} elemento value status code  [{1}] differente da {2} SAML Response non valida"),
+	RESPONSE_SIGNATURE_INVALID("Firma SAML Response non valida"),
+	RESPONSE_ISSUE_INSTANT_INVALID("SAML Response issue instant non valido SAML Response non valida"),
+	RESPONSE_ISSUE_INSTANT_MISSING("SAML Response issue instant non presente SAML Response non valida"),
+	RESPONSE_ISSUE_INSTANT_BEFORE_AUTHN_INSTANT("Assertion ID {0}. Response Issue Instant [{1}] AuthnIssueInstant [{2}] SAML Response non valida. Issue Instant della SAML Response precedente a quello della request"),
+	RESPONSE_ISSUE_INSTANT_AFTER_AUTHN_INSTANT("Assertion ID {0}. Response Issue Instant [{1}] AuthnIssueInstant [{2}] SAML Response non valida. Issue Instant della SAML Response successivo a quello della request"),
+	SIGNATURE_VERIFICATION_FAILED("Errore nella verifica delle firme SAML Response non valida"),
+	ASSERTION_DECRYPTION_FAILED("SAML Response ID {0} impossibile decifrare le assertion: {1} SAML Response non valida"),
+	ASSERTION_DECRYPTION_KEY_MISSING("SAML Response ID {0} assertion cifrate ma nessun KeyPair indicato per decifrarle SAML Response non valida"),
+	ASSERTIONS_MISSING("SAML Response ID {0} nessun tag assertion trovato SAML Response non valida"),
+	ASSERTION_INVALID("SAML Response ID {0} assertion non valida SAML Response non valida"),
+	ASSERTION_ID_MISSING("SAML Response ID {0} assertion ID non presente o vuoto SAML Response non valida"),
+	ASSERTION_VERSION_INVALID("SAML Response ID {0} assertion ID [{1}] SAML Version [{2}] differente da [{3}] SAML Response non valida"),
+	ASSERTION_ISSUE_INSTANT_INVALID("SAML Response ID {0} assertion ID [{1}] errore nel recupero dello issue instant SAML Response non valida"),
+	ASSERTION_ISSUE_INSTANT_MISSING("SAML Response ID {0} assertion ID [{1}] issue instant non presente SAML Response non valida"),
+	ASSERTION_ISSUE_INSTANT_BEFORE_REQUEST("SAML Response ID {0} Assertion ID {1}. Assertion Issue Instant [{2}] Request issuer time [{3}] SAML Response non valida. Issue Instant della SAML Assertion precedente a quello della request"),
+	ASSERTION_ISSUE_INSTANT_AFTER_REQUEST("SAML Response ID {0} Assertion ID {1}. Assertion Issue Instant [{2}] Request issuer time [{3}] SAML Response non valida. Issue Instant della SAML Assertion successivo a quello della request"),
+	ASSERTION_SUBJECT_MISSING("SAML Response ID {0} Assertion ID {1}. Subject nullo SAML Response non valida."),
+	ASSERTION_SUBJECT_NAME_ID_MISSING("SAML Response ID {0} Assertion ID {1}. Subject Name ID nullo SAML Response non valida."),
+	ASSERTION_SUBJECT_NAME_ID_FORMAT_MISSING("SAML Response ID {0} Assertion ID {1}. Subject Name ID Format nullo o vuoto [{2}] SAML Response non valida."),
+	ASSERTION_SUBJECT_NAME_ID_FORMAT_INVALID("SAML Response ID {0} Assertion ID {1}. Subject Name ID Format [{2}] diverso da {3} SAML Response non valida."),
+	ASSERTION_SUBJECT_NAME_QUALIFIER_MISSING("SAML Response ID {0} Assertion ID {1}. Subject Name ID Qualifier nullo o vuoto [{2}] SAML Response non valida."),
+	ASSERTION_SUBJECT_CONFIRMATION_MISSING("SAML Response ID {0} Assertion ID {1}. SubjectConfirmation nullo o vuoto SAML Response non valida."),
+	ASSERTION_SUBJECT_CONFIRMATION_METHOD_MISSING("SAML Response ID {0} Assertion ID {1}. SubjectConfirmation method null o vuoto [{2}] SAML Response non valida."),
+	ASSERTION_SUBJECT_CONFIRMATION_METHOD_INVALID("SAML Response ID {0} Assertion ID {1}. SubjectConfirmation method [{2}] differente da [{3}] SAML Response non valida."),
+	ASSERTION_SUBJECT_CONFIRMATION_DATA_MISSING("SAML Response ID {0} Assertion ID {1}. SubjectConfirmationData nullo o vuoto [{2}] SAML Response non valida."),
+	ASSERTION_SUBJECT_CONFIRMATION_RECIPIENT_MISSING("SAML Response ID {0} Assertion ID {1}. SubjectConfirmationData recipient null o vuoto [{2}] SAML Response non valida."),
+	ASSERTION_SUBJECT_CONFIRMATION_RECIPIENT_MISMATCH("SAML Response ID {0} Assertion ID {1}. SubjectConfirmationData recipient [{2}] differente da [{3}] SAML Response non valida."),
+	ASSERTION_SUBJECT_CONFIRMATION_IN_RESPONSE_TO_MISSING("SAML Response ID {0} Assertion ID {1}. SubjectConfirmationData inResponseTo null o vuoto [{2}] SAML Response non valida."),
+	ASSERTION_SUBJECT_CONFIRMATION_IN_RESPONSE_TO_MISMATCH("SAML Response ID {0} Assertion ID {1}. SubjectConfirmationData inResponseTo [{2}] differente da [{3}] SAML Response non valida."),
+	ASSERTION_SUBJECT_CONFIRMATION_NOT_ON_OR_AFTER_INVALID("SAML Response ID {0} Assertion ID {1}. SubjectConfirmationData NotOnOrAfter con formato non valido SAML Response non valida."),
+	ASSERTION_SUBJECT_CONFIRMATION_NOT_ON_OR_AFTER_MISSING("SAML Response ID {0} Assertion ID {1}. SubjectConfirmationData NotOnOrAfter null SAML Response non valida."),
+	ASSERTION_SUBJECT_CONFIRMATION_NOT_ON_OR_AFTER_MISMATCH("SAML Response ID {0} Assertion ID {1}. SubjectConfirmationData NotOnOrAfter {2} precedente a NotOnOrAfter della ricezione della response {3} SAML Response non valida."),
+	ASSERTION_ISSUER_MISSING("SAML Response ID {0} Assertion ID {1}. Issuer nullo o vuoto SAML Response non valida."),
+	ASSERTION_ISSUER_VALUE_MISSING("SAML Response ID {0} Assertion ID {1}. Valore Issuer nullo o vuoto {2} SAML Response non valida."),
+	ASSERTION_ISSUER_MISMATCH("SAML Response ID {0} Assertion ID {1}. Valore Issuer {2} differente da IDP Entity ID {3} SAML Response non valida."),
+	ASSERTION_ISSUER_FORMAT_MISSING("SAML Response ID {0} Assertion ID {1}. Attributo Format Issuer nullo o vuoto {2} SAML Response non valida."),
+	ASSERTION_ISSUER_FORMAT_INVALID("SAML Response ID {0} Assertion ID {1}. Attributo Format Issuer [{2}] diverso da {3} SAML Response non valida."),
+	ASSERTION_CONDITIONS_MISSING("SAML Response ID {0} Assertion ID {1}. Conditions nulle SAML Response non valida."),
+	ASSERTION_CONDITIONS_NOT_BEFORE_INVALID("SAML Response ID {0} Assertion ID {1}. Conditions attributo NotBefore formato non corretto SAML Response non valida."),
+	ASSERTION_CONDITIONS_NOT_BEFORE_MISSING("SAML Response ID {0} Assertion ID {1}. Conditions attributo NotBefore non valorizzato o null SAML Response non valida."),
+	ASSERTION_CONDITIONS_NOT_BEFORE_MISMATCH("SAML Response ID {0} Assertion ID {1}. Conditions attributo NotBefore {2} saml response issue instant {3} SAML Response non valida."),
+	ASSERTION_CONDITIONS_NOT_ON_OR_AFTER_INVALID("SAML Response ID {0} Assertion ID {1}. Conditions attributo NotOnOrAfter formato non corretto SAML Response non valida."),
+	ASSERTION_CONDITIONS_NOT_ON_OR_AFTER_MISSING("SAML Response ID {0} Assertion ID {1}. Conditions attributo NotOnOrAfter non valorizzato o null SAML Response non valida."),
+	ASSERTION_CONDITIONS_NOT_ON_OR_AFTER_MISMATCH("SAML Response ID {0} Assertion ID {1}. Conditions attributo NotOnOrAfter {2} saml response issue instant {3} SAML Response non valida."),
+	ASSERTION_AUDIENCE_RESTRICTIONS_MISSING("SAML Response ID {0} Assertion ID {1}. Conditions audience restrictions non valorizzato o null SAML Response non valida."),
+	ASSERTION_AUDIENCE_MISSING("SAML Response ID {0} Assertion ID {1}. Audience non valorizzato o null SAML Response non valida."),
+	ASSERTION_AUDIENCE_URI_MISSING("SAML Response ID {0} Assertion ID {1}. Audience URI {2} nullo o vuoto SAML Response non valida."),
+	ASSERTION_AUDIENCE_MISMATCH("SAML Response ID {0} Assertion ID {1}. Audience URI {2} diverso da entity id di SP {3} SAML Response non valida."),
+	ASSERTION_ATTRIBUTE_STATEMENT_MISSING("SAML Response ID {0} Assertion ID {1}. AttributeStatement non valorizzato o null SAML Response non valida."),
+	ASSERTION_ATTRIBUTES_MISSING("SAML Response ID {0} Assertion ID {1}. Attribute non valorizzato o null SAML Response non valida."),
+	ASSERTION_ATTRIBUTES_COUNT_MISMATCH("SAML Response ID {0} Assertion ID {1}. Richiesti {2} attributi al provider SPID. Ricevuti {3} attributi SAML Response non valida."),
+	ASSERTION_ATTRIBUTE_MISSING("SAML Response ID {0} Assertion ID {1}. Attribute null o non specificato SAML Response non valida."),
+	ASSERTION_ATTRIBUTE_NOT_REQUESTED("SAML Response ID {0} Assertion ID {1}. Attribute name {2} non contenuto nel set di attributi richiesti a SPID {3} SAML Response non valida."),
+	ASSERTION_AUTHN_STATEMENT_MISSING("SAML Response ID {0} Assertion ID {1}. AuthStatement non valorizzato o null SAML Response non valida."),
+	ASSERTION_AUTHN_CONTEXT_MISSING("SAML Response ID {0} Assertion ID {1}. AuthnContext di AuthStatement non valorizzato o null SAML Response non valida."),
+	ASSERTION_AUTHN_CONTEXT_CLASS_REF_MISSING("SAML Response ID {0} Assertion ID {1}. AuthnContextClassRef di AuthnContext di AuthStatement non valorizzato o null SAML Response non valida."),
+	ASSERTION_AUTHN_CONTEXT_CLASS_REF_VALUE_MISSING("SAML Response ID {0} Assertion ID {1}. Value di AuthnContextClassRef di AuthnContext di AuthStatement non valorizzato o null SAML Response non valida."),
+	ASSERTION_AUTHN_CONTEXT_CLASS_REF_INVALID("SAML Response ID {0} Assertion ID {1}. Value di AuthnContextClassRef di AuthnContext di AuthStatement [{2}] non previsto SAML Response non valida."),
+	ASSERTION_AUTHN_CONTEXT_CLASS_REF_LEVEL_EXCEEDED("SAML Response ID {0} Assertion ID {1}. Value di AuthnContextClassRef di AuthnContext di AuthStatement [{2}] maggiore di https://www.spid.gov.it/SpidL{3} SAML Response non valida."),
+	ASSERTION_EXPIRED("SAML Response ID {0} Assertion ID {1} scaduta: NotOnOrAfter [{2}] precedente all'istante di riferimento [{3}] SAML Response non valida"),
+	ASSERTION_SIGNATURE_INVALID("SAML Response ID [{0}] Firma Assertion {1} non verificata SAML Response non valida"),
+	IN_RESPONSE_TO_MISSING("SAML Response ID {0} InResponseTo null o vuoto SAML Response non valida"),
+	IN_RESPONSE_TO_IDP_MISMATCH("SAML Response ID {0} AuthnRequest [{1}] inviata all'IDP [{2}] e non a [{3}] SAML Response non valida"),
+	IN_RESPONSE_TO_DESTINATION_MISMATCH("SAML Response ID {0} destination [{1}] differente dall'AssertionConsumerServiceURL [{2}] della AuthnRequest SAML Response non valida"),
+	IN_RESPONSE_TO_LEVEL_INSUFFICIENT("SAML Response ID {0} Assertion ID {1}. Livello SPID [{2}] inferiore a quello richiesto dalla AuthnRequest [{3}] SAML Response non valida"),
+	IN_RESPONSE_TO_INVALID("SAML Response ID {0} InResponseTo [{1}] non corrisponde ad alcuna AuthnRequest in attesa SAML Response non valida"),
+	REPLAY_DETECTED("SAML Response ID {0} già ricevuta (replay) SAML Response non valida"),
+	REPLAY_CHECK_FAILED("SAML Response ID {0} impossibile effettuare il controllo anti replay SAML Response non valida"),
+	METADATA_SIGNATURE_MISSING("Metadata {0} privo di firma sull'elemento radice"),
+	METADATA_SIGNATURE_INVALID("Metadata {0} firma non valida o non effettuata da un certificato fidato"),
+	METADATA_EXPIRED("Metadata {0} scaduto: validUntil [{1}]"),
+	ANOMALIA_CREDENZIALI_ERRATE(19, "SAML Response ID {0} anomalia utente 19: autenticazione fallita per ripetuta sottomissione di credenziali errate"),
+	ANOMALIA_LIVELLO_NON_COMPATIBILE(20, "SAML Response ID {0} anomalia utente 20: utente privo di credenziali compatibili con il livello richiesto"),
+	ANOMALIA_TIMEOUT(21, "SAML Response ID {0} anomalia utente 21: timeout durante l'autenticazione"),
+	ANOMALIA_CONSENSO_NEGATO(22, "SAML Response ID {0} anomalia utente 22: l'utente ha negato il consenso all'invio dei dati all'SP"),
+	ANOMALIA_CREDENZIALI_SOSPESE(23, "SAML Response ID {0} anomalia utente 23: identità sospesa o revocata o credenziali bloccate"),
+	ANOMALIA_AUTENTICAZIONE_ANNULLATA(25, "SAML Response ID {0} anomalia utente 25: processo di autenticazione annullato dall'utente");
+
+	private static final SpidErrorCode[] VALUES = values();
+	private final int anomaliaUtente;
+	private final String pattern;
+	private SpidErrorCode(String pattern) {
+		this(0, pattern);
+	}
+	private SpidErrorCode(int anomaliaUtente, String pattern) {
+		this.anomaliaUtente = anomaliaUtente;
+		this.pattern = pattern;
+	}
+	/**
+	 * @return -il codice di anomalia utente SPID, 0 se l'errore non è una anomalia comunicata dall'IDP
+	 */
+	public int getAnomaliaUtente() {
+		return anomaliaUtente;
+	}
+	/**
+	 * @return -il modello del messaggio: i segnaposto {0}, {1}... vengono sostituiti dagli argomenti
+	 */
+	public String getPattern() {
+		return pattern;
+	}
+	/**
+	 * Costruisce il messaggio sostituendo i segnaposto con gli argomenti. Non interpreta apici e formati come {@link java.text.MessageFormat}
+	 * @param arguments -gli argomenti del messaggio
+	 * @return -il messaggio
+	 */
+	public String format(Object... arguments) {
+		if( arguments == null || arguments.length == 0 ) {
+			return pattern;
+		}
+		StringBuilder sb = new StringBuilder(pattern.length() + 64);
+		int length = pattern.length();
+		for (int i = 0; i < length; i++) {
+			char c = pattern.charAt(i);
+			if( c == '{' && i + 2 < length && pattern.charAt(i + 2) == '}' && Character.isDigit(pattern.charAt(i + 1)) ) {
+				int index = pattern.charAt(i + 1) - '0';
+				sb.append(index < arguments.length ? arguments[index] : null);
+				i += 2;
+			}else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+	/**
+	 * @param anomaliaUtente -il codice di anomalia utente SPID
+	 * @return -il {@link SpidErrorCode} dell'anomalia, null se il codice non è previsto
+	 */
+	public static SpidErrorCode fromAnomaliaUtente(int anomaliaUtente) {
+		if( anomaliaUtente <= 0 ) {
+			return null;
+		}
+		for (SpidErrorCode code : VALUES) {
+			if( code.anomaliaUtente == anomaliaUtente ) {
+				return code;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,107 @@
+package it.agid.spid.saml.test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.encryption.Encrypter;
+import org.opensaml.saml.saml2.encryption.Encrypter.KeyPlacement;
+import org.opensaml.security.credential.CredentialSupport;
+import org.opensaml.xmlsec.encryption.support.DataEncryptionParameters;
+import org.opensaml.xmlsec.encryption.support.EncryptionConstants;
+import org.opensaml.xmlsec.encryption.support.KeyEncryptionParameters;
+
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SigningCredential;
+import it.agid.spid.saml.core.utils.SpidAssertionDecrypter;
+import it.agid.spid.saml.spid.exception.SpidCheckerException;
+import it.agid.spid.saml.spid.exception.SpidErrorCode;
+
+public class AssertionDecryptionTest {
+	private KeyPair keyPair;
+
+	@BeforeEach
+	public void init() throws Exception {
+		OpenSAMLUtils.openSamlBootstrap();
+		SigningCredential credential = TestFixtures.signingCredential();
+		keyPair = new KeyPair(credential.getCertificate().getPublicKey(), credential.getPrivateKey());
+	}
+	private Response encryptedResponse(String... assertionIds) throws Exception {
+		DataEncryptionParameters dataParameters = new DataEncryptionParameters();
+		dataParameters.setAlgorithm(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES128);
+		KeyEncryptionParameters keyParameters = new KeyEncryptionParameters();
+		keyParameters.setEncryptionCredential(CredentialSupport.getSimpleCredential(keyPair.getPublic(), null));
+		keyParameters.setAlgorithm(EncryptionConstants.ALGO_ID_KEYTRANSPORT_RSAOAEP);
+		Encrypter encrypter = new Encrypter(dataParameters, keyParameters);
+		encrypter.setKeyPlacement(KeyPlacement.INLINE);
+		Response response = OpenSAMLUtils.buildSAMLObject(Response.class);
+		response.setID(OpenSAMLUtils.generateSecureRandomId());
+		for (String assertionId : assertionIds) {
+			Assertion assertion = OpenSAMLUtils.buildSAMLObject(Assertion.class);
+			assertion.setID(assertionId);
+			Issuer issuer = OpenSAMLUtils.buildSAMLObject(Issuer.class);
+			issuer.setValue("https://sample-idp-entity-id/");
+			assertion.setIssuer(issuer);
+			response.getEncryptedAssertions().add(encrypter.encrypt(assertion));
+		}
+		String xml = OpenSAMLUtils.samlObjectToString(response);
+		return OpenSAMLUtils.fromInputStreamToSamlObject(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), Response.class);
+	}
+	@Test
+	public void decifraAssertionConCacheChiaviDiSessione() throws Exception {
+		SpidAssertionDecrypter decrypter = new SpidAssertionDecrypter(keyPair, 16);
+		Response response = encryptedResponse("_prima", "_seconda", "_terza");
+		List<Assertion> assertions = decrypter.decrypt(response.getID(), response.getEncryptedAssertions());
+		Assertions.assertEquals(3, assertions.size());
+		Assertions.assertEquals("_prima", assertions.get(0).getID());
+		Assertions.assertEquals("_seconda", assertions.get(1).getID());
+		Assertions.assertEquals("_terza", assertions.get(2).getID());
+		Assertions.assertEquals("https://sample-idp-entity-id/", assertions.get(1).getIssuer().getValue());
+		Assertions.assertSame(assertions.get(0).getDOM().getOwnerDocument().getDocumentElement(), assertions.get(0).getDOM());
+		Assertions.assertEquals(0, decrypter.getSessionKeyHits());
+		Assertions.assertEquals(3, decrypter.getSessionKeyMisses());
+		//Response ripetuta: le chiavi di sessione sono in cache
+		assertions = decrypter.decrypt(response.getID(), response.getEncryptedAssertions());
+		Assertions.assertEquals("_terza", assertions.get(2).getID());
+		Assertions.assertEquals(3, decrypter.getSessionKeyHits());
+		Assertions.assertEquals(3, decrypter.getSessionKeysSize());
+		Assertions.assertSame(SpidAssertionDecrypter.forKeyPair(keyPair), SpidAssertionDecrypter.forKeyPair(keyPair));
+		//KeyPair non ridefinisce equals: il decrypter è associato alla chiave privata
+		Assertions.assertSame(SpidAssertionDecrypter.forKeyPair(keyPair), SpidAssertionDecrypter.forKeyPair(new KeyPair(keyPair.getPublic(), keyPair.getPrivate())));
+		//Il DOM della response non viene modificato dalla decifratura parallela
+		Assertions.assertEquals(3, response.getDOM().getElementsByTagNameNS("http://www.w3.org/2001/04/xmlenc#", "EncryptedData").getLength());
+	}
+	@Test
+	public void chiaveErrataSollevaSpidCheckerException() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		SpidAssertionDecrypter decrypter = new SpidAssertionDecrypter(generator.generateKeyPair(), 16);
+		Response response = encryptedResponse("_prima", "_seconda");
+		SpidCheckerException e = Assertions.assertThrows(SpidCheckerException.class, () -> decrypter.decrypt(response.getID(), response.getEncryptedAssertions()));
+		Assertions.assertEquals(SpidErrorCode.ASSERTION_DECRYPTION_FAILED, e.getErrorCode());
+		Assertions.assertTrue(e.getMessage().contains(response.getID()), e.getMessage());
+		Assertions.assertNotNull(e.getCause());
+	}
+	@Test
+	public void executorSaturoDecifraNelThreadChiamante() throws Exception {
+		//Un executor chiuso rifiuta ogni task: tutte le assertion vengono decifrate dal chiamante
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		executor.shutdown();
+		SpidAssertionDecrypter decrypter = new SpidAssertionDecrypter(keyPair, 0, executor);
+		Response response = encryptedResponse("_prima", "_seconda", "_terza");
+		List<Assertion> assertions = decrypter.decrypt(response.getID(), response.getEncryptedAssertions());
+		Assertions.assertEquals(3, assertions.size());
+		Assertions.assertEquals("_prima", assertions.get(0).getID());
+		Assertions.assertEquals("_terza", assertions.get(2).getID());
+	}
+}
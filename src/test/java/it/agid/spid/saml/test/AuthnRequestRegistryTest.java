@@ -0,0 +1,121 @@
+package it.agid.spid.saml.test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.joda.time.DateTime;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.saml.saml2.core.RequestedAuthnContext;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+
+import it.agid.spid.saml.core.dto.SamlAttributesConsumingServiceDto;
+import it.agid.spid.saml.core.dto.SpidPendingAuthnRequest;
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SpidAuthnRequestRegistry;
+import it.agid.spid.saml.core.utils.SpidControlChecker;
+import it.agid.spid.saml.core.utils.SpidControlRule;
+import it.agid.spid.saml.core.utils.SpidRuleEngine;
+import it.agid.spid.saml.core.utils.SpidValidationContext;
+import it.agid.spid.saml.spid.exception.SpidCheckerException;
+import it.agid.spid.saml.spid.exception.SpidErrorCode;
+
+public class AuthnRequestRegistryTest {
+	private static final String IDP_ENTITY_ID = "https://sample-idp-entity-id/";
+	private static final String ACS_URL = "https://assertion-consumer-binding-post";
+
+	@BeforeEach
+	public void init() throws Exception {
+		OpenSAMLUtils.openSamlBootstrap();
+	}
+	@Test
+	public void registrazioneConsumoEScadenza() throws Exception {
+		SpidAuthnRequestRegistry registry = new SpidAuthnRequestRegistry(60000, 10);
+		AuthnRequest authnRequest = OpenSAMLUtils.buildSAMLObject(AuthnRequest.class);
+		authnRequest.setID(OpenSAMLUtils.generateSecureRandomId());
+		authnRequest.setIssueInstant(new DateTime());
+		authnRequest.setAssertionConsumerServiceURL(ACS_URL);
+		RequestedAuthnContext requestedAuthnContext = OpenSAMLUtils.buildSAMLObject(RequestedAuthnContext.class);
+		AuthnContextClassRef classRef = OpenSAMLUtils.buildSAMLObject(AuthnContextClassRef.class);
+		classRef.setAuthnContextClassRef(SpidControlChecker.BASE_SPID_AUTHN_CONTEXT_CLAS_REF+"2");
+		requestedAuthnContext.getAuthnContextClassRefs().add(classRef);
+		authnRequest.setRequestedAuthnContext(requestedAuthnContext);
+		SpidPendingAuthnRequest registrata = registry.register(authnRequest, IDP_ENTITY_ID);
+		Assertions.assertEquals(2, registrata.getSpidLevel());
+		Assertions.assertTrue(registry.isPending(authnRequest.getID()));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> registry.register(authnRequest, IDP_ENTITY_ID));
+		//Consumo una sola volta
+		Assertions.assertEquals(ACS_URL, registry.consume(authnRequest.getID()).getAssertionConsumerServiceUrl());
+		Assertions.assertNull(registry.consume(authnRequest.getID()));
+		//AuthnRequest già scaduta
+		registry.register("_scaduta", ACS_URL, IDP_ENTITY_ID, 1, System.currentTimeMillis() - 120000);
+		Assertions.assertFalse(registry.isPending("_scaduta"));
+		Thread.sleep(30);
+		registry.register("_nuova", ACS_URL, IDP_ENTITY_ID, 1, System.currentTimeMillis());
+		Assertions.assertEquals(1, registry.size());
+		Assertions.assertEquals(1, registry.getExpired());
+		Assertions.assertEquals(1, registry.getConsumed());
+		Assertions.assertEquals(1, registry.getUnknown());
+	}
+	@Test
+	public void ruotaERegistroLimitati() {
+		//TTL lungo con intervalli di 1 ms: l'ampiezza viene arrotondata invece di allocare una coda per millisecondo
+		SpidAuthnRequestRegistry lungo = new SpidAuthnRequestRegistry(Integer.MAX_VALUE * 4L, 1);
+		Assertions.assertTrue(lungo.getTickMillis() * (SpidAuthnRequestRegistry.MAX_WHEEL_SLOTS - 1) >= Integer.MAX_VALUE * 4L);
+		Assertions.assertEquals(100, new SpidAuthnRequestRegistry(60000, 100).getTickMillis());
+		Assertions.assertThrows(IllegalArgumentException.class, () -> new SpidAuthnRequestRegistry(60000, 10, 0));
+
+		SpidAuthnRequestRegistry registry = new SpidAuthnRequestRegistry(60000, 10, 2);
+		registry.register("_1", ACS_URL, IDP_ENTITY_ID, 1, System.currentTimeMillis());
+		registry.register("_2", ACS_URL, IDP_ENTITY_ID, 1, System.currentTimeMillis());
+		Assertions.assertThrows(IllegalStateException.class, () -> registry.register("_3", ACS_URL, IDP_ENTITY_ID, 1, System.currentTimeMillis()));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> registry.register("_2", ACS_URL, IDP_ENTITY_ID, 1, System.currentTimeMillis()));
+		//Una AuthnRequest consumata libera il posto
+		Assertions.assertNotNull(registry.consume("_1"));
+		registry.register("_3", ACS_URL, IDP_ENTITY_ID, 1, System.currentTimeMillis());
+		Assertions.assertEquals(2, registry.size());
+	}
+	@Test
+	public void correlazioneInResponseTo() throws Exception {
+		SpidAuthnRequestRegistry registry = new SpidAuthnRequestRegistry();
+		registry.register("_richiesta", ACS_URL, IDP_ENTITY_ID, 1, System.currentTimeMillis());
+		registry.register("_altro_idp", ACS_URL, "https://altro-idp/", 1, System.currentTimeMillis());
+		SamlAttributesConsumingServiceDto attributi = new SamlAttributesConsumingServiceDto();
+		attributi.setAttrs(Collections.emptyList());
+		SpidValidationContext context = SpidValidationContext.builder().credentials(Collections.emptyList()).tolleranceTimeMillisecond(180000)
+				.idpDestinationUrl(ACS_URL).spidIdpEntityId(IDP_ENTITY_ID).spitEnteAggregatoMetadata(OpenSAMLUtils.buildSAMLObject(EntityDescriptor.class))
+				.attributiRichiesti(attributi).spLivelloAutenticazioneSpid(1).authnRequestRegistry(registry).build();
+		SpidRuleEngine engine = new SpidRuleEngine(Arrays.asList(SpidControlRule.IN_RESPONSE_TO));
+		engine.verify(context.newValidation(response("_richiesta")));
+		SpidCheckerException e = Assertions.assertThrows(SpidCheckerException.class, () -> engine.verify(context.newValidation(response("_richiesta"))));
+		Assertions.assertTrue(e.getMessage().contains("non corrisponde ad alcuna AuthnRequest in attesa"));
+		e = Assertions.assertThrows(SpidCheckerException.class, () -> engine.verify(context.newValidation(response("_altro_idp"))));
+		Assertions.assertTrue(e.getMessage().contains("https://altro-idp/"));
+		Assertions.assertEquals(SpidErrorCode.IN_RESPONSE_TO_IDP_MISMATCH, e.getErrorCode());
+		//Una response non valida non consuma la AuthnRequest: la response corretta viene ancora accettata
+		registry.register("_seconda", ACS_URL, IDP_ENTITY_ID, 1, System.currentTimeMillis());
+		e = Assertions.assertThrows(SpidCheckerException.class, () -> engine.verify(context.newValidation(response("_seconda", "https://altro-sp/acs"))));
+		Assertions.assertEquals(SpidErrorCode.IN_RESPONSE_TO_DESTINATION_MISMATCH, e.getErrorCode());
+		Assertions.assertTrue(registry.isPending("_seconda"));
+		engine.verify(context.newValidation(response("_seconda")));
+		Assertions.assertFalse(registry.isPending("_seconda"));
+	}
+	private Response response(String inResponseTo) {
+		return response(inResponseTo, ACS_URL);
+	}
+	private Response response(String inResponseTo, String destination) {
+		Response response = OpenSAMLUtils.buildSAMLObject(Response.class);
+		response.setID(OpenSAMLUtils.generateSecureRandomId());
+		response.setInResponseTo(inResponseTo);
+		response.setDestination(destination);
+		Assertion assertion = OpenSAMLUtils.buildSAMLObject(Assertion.class);
+		assertion.setID(OpenSAMLUtils.generateSecureRandomId());
+		response.getAssertions().add(assertion);
+		return response;
+	}
+}
@@ -0,0 +1,119 @@
+package it.agid.spid.saml.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.stream.Stream;
+
+import org.apache.xml.security.c14n.Canonicalizer;
+import org.joda.time.DateTime;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.security.x509.BasicX509Credential;
+import org.opensaml.xmlsec.SignatureSigningParameters;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+import org.opensaml.xmlsec.signature.support.SignatureSupport;
+import org.opensaml.xmlsec.signature.support.SignatureValidator;
+import org.w3c.dom.Element;
+
+import it.agid.spid.saml.core.EntitiesDescriptorStreamWriter;
+import it.agid.spid.saml.core.utils.CanonicalXmlWriter;
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SigningCredential;
+import it.agid.spid.saml.core.utils.SpidMetadataStore;
+import it.agid.spid.saml.spid.exception.SpidCheckerException;
+
+public class EntitiesDescriptorStreamWriterTest {
+	private SigningCredential credential;
+	@TempDir
+	Path directory;
+
+	@BeforeEach
+	public void init() throws Exception {
+		OpenSAMLUtils.openSamlBootstrap();
+		credential = TestFixtures.signingCredential();
+	}
+	@Test
+	public void formaCanonicaComeSantuario() throws Exception {
+		EntityDescriptor entity = TestFixtures.idp("https://idp-uno/", credential);
+		Element element = XMLObjectProviderRegistrySupport.getMarshallerFactory().getMarshaller(entity).marshall(entity);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		Canonicalizer.getInstance(Canonicalizer.ALGO_ID_C14N_EXCL_OMIT_COMMENTS).canonicalizeSubtree(element, expected);
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		CanonicalXmlWriter writer = new CanonicalXmlWriter(actual);
+		writer.writeNode(element);
+		writer.flush();
+		Assertions.assertEquals(expected.toString("UTF-8"), actual.toString("UTF-8"));
+	}
+	@Test
+	public void aggregatoFirmatoInStreaming() throws Exception {
+		Path target = directory.resolve("aggregato.xml");
+		try( EntitiesDescriptorStreamWriter aggregate = new EntitiesDescriptorStreamWriter(target, "aggregato", new DateTime().plusDays(1), credential) ){
+			for (int i = 0; i < 50; i++) {
+				aggregate.write(TestFixtures.idp("https://idp-" + i + "/", credential));
+			}
+			Assertions.assertEquals(50, aggregate.getEntities());
+		}
+		SpidMetadataStore store = new SpidMetadataStore(Collections.singletonList(new BasicX509Credential(credential.getCertificate())));
+		Assertions.assertEquals(50, store.load(target));
+		Assertions.assertEquals("https://idp-7/", store.getEntityDescriptor("https://idp-7/").getEntityID());
+		Assertions.assertEquals("Ente \"di prova\" & <associati>", store.getEntityDescriptor("https://idp-7/").getOrganization().getOrganizationNames().get(0).getValue());
+		//Qualsiasi alterazione del contenuto invalida la firma
+		Path tampered = directory.resolve("alterato.xml");
+		Files.write(tampered, new String(Files.readAllBytes(target), "UTF-8").replace("https://idp-7/", "https://idp-x/").getBytes("UTF-8"));
+		Assertions.assertThrows(SpidCheckerException.class, () -> store.load(tampered));
+	}
+	@Test
+	public void firmaDegliEntityDescriptorSoloExclusiveC14N() throws Exception {
+		EntityDescriptor inclusiva = TestFixtures.idp("https://idp-inclusiva/", credential);
+		OpenSAMLUtils.signSamlObj(inclusiva, credential);
+		EntityDescriptor esclusiva = TestFixtures.idp("https://idp-esclusiva/", credential);
+		SignatureSigningParameters parameters = new SignatureSigningParameters();
+		parameters.setSigningCredential(credential.getSigningParameters().getSigningCredential());
+		parameters.setSignatureAlgorithm(credential.getSigningParameters().getSignatureAlgorithm());
+		parameters.setSignatureReferenceDigestMethod(credential.getSigningParameters().getSignatureReferenceDigestMethod());
+		parameters.setSignatureCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+		SignatureSupport.signObject(esclusiva, parameters);
+		Path target = directory.resolve("aggregato.xml");
+		try( EntitiesDescriptorStreamWriter aggregate = new EntitiesDescriptorStreamWriter(target, "aggregato", null, credential) ){
+			//La firma con C14N inclusiva non resterebbe valida: l'EntityDescriptor viene rifiutato senza compromettere l'aggregato
+			IllegalArgumentException e = Assertions.assertThrows(IllegalArgumentException.class, () -> aggregate.write(inclusiva));
+			Assertions.assertTrue(e.getMessage().contains(SignatureConstants.ALGO_ID_C14N_OMIT_COMMENTS), e.getMessage());
+			aggregate.write(esclusiva);
+		}
+		SpidMetadataStore store = new SpidMetadataStore(Collections.singletonList(new BasicX509Credential(credential.getCertificate())));
+		Assertions.assertEquals(1, store.load(target));
+		//La firma dell'EntityDescriptor resta valida nell'aggregato
+		SignatureValidator.validate(store.getEntityDescriptor("https://idp-esclusiva/").getSignature(), new BasicX509Credential(credential.getCertificate()));
+	}
+	@Test
+	public void scritturaFallitaNonSostituisceLaDestinazione() throws Exception {
+		Path target = directory.resolve("aggregato.xml");
+		Files.write(target, "precedente".getBytes("UTF-8"));
+		EntityDescriptor entity = TestFixtures.idp("https://idp-uno/", credential);
+		Element element = XMLObjectProviderRegistrySupport.getMarshallerFactory().getMarshaller(entity).marshall(entity);
+		//Elemento che fallisce dopo l'apertura del tag: il documento resta incompleto
+		Element guasto = (Element) Proxy.newProxyInstance(Element.class.getClassLoader(), new Class<?>[] { Element.class }, (proxy, method, args) -> {
+			if( "getFirstChild".equals(method.getName()) ) {
+				throw new IllegalStateException("errore simulato");
+			}
+			return method.invoke(element, args);
+		});
+		EntitiesDescriptorStreamWriter aggregate = new EntitiesDescriptorStreamWriter(target, "aggregato", null, credential);
+		aggregate.write(TestFixtures.idp("https://idp-due/", credential));
+		Assertions.assertThrows(IllegalStateException.class, () -> aggregate.write(guasto));
+		Assertions.assertThrows(IllegalStateException.class, () -> aggregate.write(TestFixtures.idp("https://idp-tre/", credential)));
+		Assertions.assertThrows(IOException.class, aggregate::close);
+		Assertions.assertEquals("precedente", new String(Files.readAllBytes(target), "UTF-8"));
+		try( Stream<Path> files = Files.list(directory) ){
+			Assertions.assertEquals(1, files.count());
+		}
+	}
+}
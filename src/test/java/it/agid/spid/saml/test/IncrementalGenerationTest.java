@@ -0,0 +1,103 @@
+package it.agid.spid.saml.test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opensaml.saml.saml2.core.NameIDType;
+
+import it.agid.spid.saml.core.SpSoggettoAggregatoreIncrementalGenerator;
+import it.agid.spid.saml.core.dto.SamlAssertionConsumerServiceUtil;
+import it.agid.spid.saml.core.dto.SamlBindingUtils;
+import it.agid.spid.saml.core.dto.SamlIncrementalGenerationResult;
+import it.agid.spid.saml.core.dto.SamlOrganizationDto;
+import it.agid.spid.saml.core.dto.SamlOtherContactPerson;
+import it.agid.spid.saml.core.dto.SamlSoggettoAggregatoDto;
+import it.agid.spid.saml.core.dto.SamlSoggettoAggregatoreDto;
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SamlBindingTypes;
+import it.agid.spid.saml.core.utils.SigningCredential;
+import it.agid.spid.saml.spid.utils.AgidUtils;
+
+public class IncrementalGenerationTest {
+
+	private static SamlSoggettoAggregatoDto aggregato(int i) {
+		SamlBindingUtils acsBinding = new SamlBindingUtils();
+		acsBinding.setBindingType(SamlBindingTypes.POST);
+		acsBinding.setLocation("https://aggregato-"+i+"/acs");
+		SamlAssertionConsumerServiceUtil acs = new SamlAssertionConsumerServiceUtil();
+		acs.setDefaultElement(true);
+		acs.setIndex(0);
+		acs.setSamlBinding(acsBinding);
+		SamlOtherContactPerson informazioniSoggettoAggregato = new SamlOtherContactPerson();
+		informazioniSoggettoAggregato.setIpaCode("aggr_"+i);
+		SamlSoggettoAggregatoDto aggregato = new SamlSoggettoAggregatoDto();
+		aggregato.setEntityId("https://entity-id-aggregatore/aggregato-"+i);
+		aggregato.setInformazioniSoggettoAggregato(informazioniSoggettoAggregato);
+		aggregato.setAssertionConsumerServices(Collections.singletonList(acs));
+		return aggregato;
+	}
+	@Test
+	public void rigenerazioneSoloDegliAggregatiModificati(@TempDir Path dir) throws Exception {
+		OpenSAMLUtils.openSamlBootstrap();
+		SigningCredential credential = TestFixtures.signingCredential();
+		SamlOrganizationDto organization = new SamlOrganizationDto();
+		organization.setOrganizationDisplayName("Organization Display Name");
+		organization.setOrganizationName("Organization Name");
+		organization.setOrganizationUrl("https://organization-url/");
+		SamlOtherContactPerson informazioniSoggettoAggregatore = new SamlOtherContactPerson();
+		informazioniSoggettoAggregatore.setCompanyName("Company name");
+		informazioniSoggettoAggregatore.setIpaCode("ipa");
+		informazioniSoggettoAggregatore.setVatNumber("vat_number");
+		informazioniSoggettoAggregatore.setEmailAddress("spid@spid2.it");
+		SamlSoggettoAggregatoreDto aggregatore = new SamlSoggettoAggregatoreDto();
+		aggregatore.setWantAuthnRequestSigned(true);
+		aggregatore.setWantAssertionsSigned(true);
+		aggregatore.setSupportedProtocol("urn:oasis:names:tc:SAML:2.0:protocol");
+		aggregatore.setBase64SigningCertificate(credential.getBase64Certificates());
+		aggregatore.setBase64EncryptionCertificate(credential.getBase64Certificates());
+		aggregatore.setNameIds(Collections.singletonList(NameIDType.TRANSIENT));
+		aggregatore.setOrganization(organization);
+		aggregatore.setInformazioniSoggettoAggregatore(informazioniSoggettoAggregatore);
+		aggregatore.setAcss(AgidUtils.agidSpidEidasAttributes());
+		aggregatore.setEntePrivato(true);
+		List<SamlSoggettoAggregatoDto> aggregati = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			aggregati.add(aggregato(i));
+		}
+		SpSoggettoAggregatoreIncrementalGenerator generator = new SpSoggettoAggregatoreIncrementalGenerator(dir, 0);
+		SamlIncrementalGenerationResult result = generator.generate(aggregatore, aggregati, credential.getPrivateKey(), credential.getCertificate(), 2);
+		Assertions.assertEquals(4, result.getRegenerated().size());
+		Assertions.assertEquals(0, result.getFailed());
+		byte[] primo = Files.readAllBytes(generator.getMetadataPath(aggregati.get(0).getEntityId()));
+
+		//Stessi input con liste di tipo diverso: nessuna rigenerazione
+		aggregati.get(0).setAssertionConsumerServices(new ArrayList<>(aggregati.get(0).getAssertionConsumerServices()));
+		aggregatore.setNameIds(Arrays.asList(NameIDType.TRANSIENT));
+		result = generator.generate(aggregatore, aggregati, credential.getPrivateKey(), credential.getCertificate(), 2);
+		Assertions.assertEquals(4, result.getUnchangedEntityIds().size());
+		Assertions.assertTrue(result.getRegenerated().isEmpty());
+
+		//Modifica di un solo soggetto aggregato
+		aggregati.get(2).getInformazioniSoggettoAggregato().setIpaCode("aggr_modificato");
+		result = generator.generate(aggregatore, aggregati, credential.getPrivateKey(), credential.getCertificate(), 2);
+		Assertions.assertEquals(1, result.getRegenerated().size());
+		Assertions.assertEquals(aggregati.get(2).getEntityId(), result.getRegenerated().get(0).getEntityId());
+		Assertions.assertArrayEquals(primo, Files.readAllBytes(generator.getMetadataPath(aggregati.get(0).getEntityId())));
+
+		//Modifica delle parti comuni: tutti i soggetti aggregati vengono rigenerati
+		organization.setOrganizationName("Nuovo nome");
+		result = generator.generate(aggregatore, aggregati, credential.getPrivateKey(), credential.getCertificate(), 2);
+		Assertions.assertEquals(4, result.getRegenerated().size());
+
+		//Età massima superata
+		result = new SpSoggettoAggregatoreIncrementalGenerator(dir, 1).generate(aggregatore, aggregati, credential.getPrivateKey(), credential.getCertificate(), 2);
+		Assertions.assertEquals(4, result.getRegenerated().size());
+	}
+}
@@ -0,0 +1,62 @@
+package it.agid.spid.saml.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.Deflater;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+
+public class InflateTest {
+	private static final String XML = "<samlp:AuthnRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"_1\" Version=\"2.0\" "
+			+ "IssueInstant=\"2026-01-01T10:00:00Z\" Destination=\"https://idp/sso\"/>";
+
+	@BeforeEach
+	public void init() throws Exception {
+		OpenSAMLUtils.openSamlBootstrap();
+	}
+	private static byte[] deflate(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+			return out.toByteArray();
+		}finally {
+			deflater.end();
+		}
+	}
+	@Test
+	public void requestCompressaEDimensioneMassima() throws Exception {
+		String encoded = Base64.getEncoder().encodeToString(deflate(XML.getBytes(StandardCharsets.UTF_8)));
+		Assertions.assertEquals(XML, OpenSAMLUtils.getSamlObjectAsString(encoded, true));
+		Assertions.assertEquals("_1", OpenSAMLUtils.fromEncodedDeflatedStringToSamlObject(encoded, true, 1024, AuthnRequest.class).getID());
+
+		//Decompression bomb: pochi byte compressi, molti decompressi
+		byte[] bomb = new byte[64 * 1024];
+		Arrays.fill(bomb, (byte) 'a');
+		String encodedBomb = Base64.getEncoder().encodeToString(deflate(bomb));
+		Assertions.assertThrows(IOException.class, () -> OpenSAMLUtils.getSamlObjectAsString(encodedBomb, true, 16 * 1024));
+		Assertions.assertEquals(bomb.length, OpenSAMLUtils.getSamlObjectAsString(encodedBomb, true, bomb.length).length());
+		Assertions.assertThrows(IllegalArgumentException.class, () -> OpenSAMLUtils.getSamlObjectAsString(encoded, true, 0));
+	}
+	@Test
+	public void streamTroncatoNonRestituisceXmlParziale() throws Exception {
+		byte[] deflated = deflate(XML.getBytes(StandardCharsets.UTF_8));
+		String encoded = Base64.getEncoder().encodeToString(Arrays.copyOf(deflated, deflated.length / 2));
+		String xml = OpenSAMLUtils.getSamlObjectAsString(encoded, true);
+		Assertions.assertFalse(XML.startsWith(xml), xml);
+		Assertions.assertThrows(Exception.class, () -> OpenSAMLUtils.fromEncodedDeflatedStringToSamlObject(encoded, true, 1024, AuthnRequest.class));
+	}
+}
@@ -0,0 +1,115 @@
+package it.agid.spid.saml.test;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SpidMetadataPublisher;
+
+public class MetadataPublisherTest {
+	private static final String ENTITY_ID = "https://ente-aggregato.it/sp?a=1+2";
+	//Forma MDQ {sha1} con le parentesi graffe codificate
+	private static final String SHA1 = "%7Bsha1%7D";
+
+	private static HttpURLConnection open(SpidMetadataPublisher publisher, String identifier) throws Exception {
+		URL url = new URL("http://127.0.0.1:" + publisher.getAddress().getPort() + SpidMetadataPublisher.DEFAULT_CONTEXT_PATH + identifier);
+		return (HttpURLConnection) url.openConnection();
+	}
+	private static byte[] read(InputStream in) throws Exception {
+		try( InputStream stream = in ){
+			return stream.readAllBytes();
+		}
+	}
+	@Test
+	public void pubblicazioneMdq() throws Exception {
+		OpenSAMLUtils.openSamlBootstrap();
+		EntityDescriptor entity = OpenSAMLUtils.buildSAMLObject(EntityDescriptor.class);
+		entity.setEntityID(ENTITY_ID);
+		SpidMetadataPublisher publisher = new SpidMetadataPublisher(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2);
+		publisher.start();
+		try {
+			publisher.publish(entity);
+			HttpURLConnection connection = open(publisher, URLEncoder.encode(ENTITY_ID, StandardCharsets.UTF_8.name()));
+			Assertions.assertEquals(200, connection.getResponseCode());
+			Assertions.assertEquals(SpidMetadataPublisher.CONTENT_TYPE, connection.getContentType());
+			String etag = connection.getHeaderField("ETag");
+			String lastModified = connection.getHeaderField("Last-Modified");
+			byte[] xml = read(connection.getInputStream());
+			Assertions.assertTrue(new String(xml, StandardCharsets.UTF_8).contains(ENTITY_ID.replace("&", "&amp;")));
+
+			connection = open(publisher, SHA1 + DigestUtils.sha1Hex(ENTITY_ID));
+			connection.setRequestProperty("Accept-Encoding", "gzip");
+			Assertions.assertEquals(200, connection.getResponseCode());
+			Assertions.assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+			String gzipEtag = connection.getHeaderField("ETag");
+			Assertions.assertEquals(etag.substring(0, etag.length() - 1) + SpidMetadataPublisher.GZIP_ETAG_SUFFIX + "\"", gzipEtag);
+			Assertions.assertArrayEquals(xml, read(new GZIPInputStream(connection.getInputStream())));
+			//L'ETag della versione in chiaro non vale per quella compressa
+			connection = open(publisher, SHA1 + DigestUtils.sha1Hex(ENTITY_ID));
+			connection.setRequestProperty("Accept-Encoding", "deflate, gzip;q=0.5");
+			connection.setRequestProperty("If-None-Match", etag);
+			Assertions.assertEquals(200, connection.getResponseCode());
+			Assertions.assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+			connection = open(publisher, SHA1 + DigestUtils.sha1Hex(ENTITY_ID));
+			connection.setRequestProperty("Accept-Encoding", "gzip");
+			connection.setRequestProperty("If-None-Match", "\"altro\", " + gzipEtag);
+			Assertions.assertEquals(304, connection.getResponseCode());
+			//gzip;q=0 rifiuta gzip, anche se '*' è accettato
+			connection = open(publisher, SHA1 + DigestUtils.sha1Hex(ENTITY_ID));
+			connection.setRequestProperty("Accept-Encoding", "gzip;q=0, *");
+			Assertions.assertEquals(200, connection.getResponseCode());
+			Assertions.assertNull(connection.getHeaderField("Content-Encoding"));
+			Assertions.assertEquals(etag, connection.getHeaderField("ETag"));
+			Assertions.assertArrayEquals(xml, read(connection.getInputStream()));
+
+			connection = open(publisher, SHA1 + DigestUtils.sha1Hex(ENTITY_ID));
+			connection.setRequestProperty("If-None-Match", etag);
+			Assertions.assertEquals(304, connection.getResponseCode());
+			connection = open(publisher, SHA1 + DigestUtils.sha1Hex(ENTITY_ID));
+			connection.setRequestProperty("If-Modified-Since", lastModified);
+			Assertions.assertEquals(304, connection.getResponseCode());
+
+			//Stesso contenuto: l'ETag non cambia
+			publisher.publish(ENTITY_ID, xml);
+			connection = open(publisher, SHA1 + DigestUtils.sha1Hex(ENTITY_ID));
+			connection.setRequestProperty("If-None-Match", etag);
+			Assertions.assertEquals(304, connection.getResponseCode());
+
+			//Contenuto modificato: entrambe le forme servono la nuova versione
+			publisher.publish(ENTITY_ID, "<md:EntityDescriptor/>".getBytes(StandardCharsets.UTF_8));
+			String nuovoEtag = open(publisher, URLEncoder.encode(ENTITY_ID, StandardCharsets.UTF_8.name())).getHeaderField("ETag");
+			Assertions.assertNotEquals(etag, nuovoEtag);
+			Assertions.assertEquals(nuovoEtag, open(publisher, SHA1 + DigestUtils.sha1Hex(ENTITY_ID)).getHeaderField("ETag"));
+			Assertions.assertEquals(Collections.singleton(ENTITY_ID), publisher.getPublishedEntityIds());
+
+			Assertions.assertTrue(publisher.unpublish(ENTITY_ID));
+			Assertions.assertFalse(publisher.unpublish(ENTITY_ID));
+			Assertions.assertEquals(404, open(publisher, SHA1 + DigestUtils.sha1Hex(ENTITY_ID)).getResponseCode());
+			Assertions.assertTrue(publisher.getPublishedEntityIds().isEmpty());
+
+			//Pubblicazione di più entità con un solo snapshot
+			EntityDescriptor altra = OpenSAMLUtils.buildSAMLObject(EntityDescriptor.class);
+			altra.setEntityID("https://altro-ente.it/sp");
+			publisher.publish(Arrays.asList(entity, altra));
+			Assertions.assertEquals(new HashSet<>(Arrays.asList(ENTITY_ID, "https://altro-ente.it/sp")), publisher.getPublishedEntityIds());
+			Assertions.assertEquals(200, open(publisher, SHA1 + DigestUtils.sha1Hex("https://altro-ente.it/sp")).getResponseCode());
+			Assertions.assertEquals(etag, open(publisher, SHA1 + DigestUtils.sha1Hex(ENTITY_ID)).getHeaderField("ETag"));
+		}finally {
+			publisher.stop(0);
+		}
+	}
+}
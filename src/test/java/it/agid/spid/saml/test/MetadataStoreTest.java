@@ -0,0 +1,64 @@
+package it.agid.spid.saml.test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.security.x509.BasicX509Credential;
+
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SigningCredential;
+import it.agid.spid.saml.core.utils.SpidMetadataStore;
+import it.agid.spid.saml.spid.exception.SpidCheckerException;
+import it.agid.spid.saml.spid.exception.SpidErrorCode;
+
+public class MetadataStoreTest {
+	private SigningCredential credential;
+
+	@BeforeEach
+	public void init() throws Exception {
+		OpenSAMLUtils.openSamlBootstrap();
+		credential = TestFixtures.signingCredential();
+	}
+	private String signedAggregate() throws Exception {
+		EntitiesDescriptor aggregate = OpenSAMLUtils.buildSAMLObject(EntitiesDescriptor.class);
+		aggregate.setID(OpenSAMLUtils.generateSecureRandomId());
+		aggregate.getEntityDescriptors().add(TestFixtures.idp("https://idp-uno/", credential));
+		aggregate.getEntityDescriptors().add(TestFixtures.idp("https://idp-due/", credential));
+		OpenSAMLUtils.signSamlObj(aggregate, credential);
+		return OpenSAMLUtils.samlObjectToString(aggregate);
+	}
+	@Test
+	public void caricamentoAggregatoFirmato() throws Exception {
+		String xml = signedAggregate();
+		SpidMetadataStore store = new SpidMetadataStore(Collections.singletonList(new BasicX509Credential(credential.getCertificate())));
+		Assertions.assertEquals(2, store.load(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), "aggregato"));
+		Assertions.assertEquals("https://idp-due/", store.getEntityDescriptor("https://idp-due/").getEntityID());
+		Assertions.assertNull(store.getEntityDescriptor("https://idp-sconosciuto/"));
+		//Le credenziali estratte verificano la firma di una response dell'IDP
+		Response response = OpenSAMLUtils.buildSAMLObject(Response.class);
+		response.setID(OpenSAMLUtils.generateSecureRandomId());
+		OpenSAMLUtils.signSamlObj(response, credential);
+		Assertions.assertTrue(OpenSAMLUtils.isSignatureValid(response.getSignature(), store.getSigningCredentials("https://idp-uno/")));
+	}
+	@Test
+	public void aggregatoAlteratoONonFidato() throws Exception {
+		String xml = signedAggregate();
+		SpidMetadataStore store = new SpidMetadataStore(Collections.singletonList(new BasicX509Credential(credential.getCertificate())));
+		store.load(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), "aggregato");
+		String alterato = xml.replace("https://idp-due/", "https://idp-malevolo/");
+		SpidCheckerException e = Assertions.assertThrows(SpidCheckerException.class,
+				() -> store.load(new ByteArrayInputStream(alterato.getBytes(StandardCharsets.UTF_8)), "alterato"));
+		Assertions.assertEquals(SpidErrorCode.METADATA_SIGNATURE_INVALID, e.getErrorCode());
+		//Il metadata precedente resta in uso
+		Assertions.assertTrue(store.contains("https://idp-due/"));
+		Assertions.assertFalse(store.contains("https://idp-malevolo/"));
+		SpidMetadataStore nonFidato = new SpidMetadataStore(Collections.emptyList());
+		Assertions.assertThrows(SpidCheckerException.class, () -> nonFidato.load(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), "aggregato"));
+	}
+}
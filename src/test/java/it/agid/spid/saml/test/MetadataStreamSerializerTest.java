@@ -0,0 +1,177 @@
+package it.agid.spid.saml.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.PrivateKey;
+import java.util.Collections;
+
+import org.apache.xml.security.c14n.Canonicalizer;
+import org.apache.xml.security.utils.Constants;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.saml.saml2.core.NameIDType;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import it.agid.spid.saml.core.IdpMetadataBuilder;
+import it.agid.spid.saml.core.MetadataStreamSerializer;
+import it.agid.spid.saml.core.SpMetadataBuilder;
+import it.agid.spid.saml.core.SpSoggettoAggregatoreMetadataBuilder;
+import it.agid.spid.saml.core.dto.SamlAssertionConsumerServiceUtil;
+import it.agid.spid.saml.core.dto.SamlBindingUtils;
+import it.agid.spid.saml.core.dto.SamlFpaCessionarioCommittente;
+import it.agid.spid.saml.core.dto.SamlFpaDatiAnagraficiConcessionario;
+import it.agid.spid.saml.core.dto.SamlFpaFiscaleIva;
+import it.agid.spid.saml.core.dto.SamlFpaSede;
+import it.agid.spid.saml.core.dto.SamlMetadataBatchResult;
+import it.agid.spid.saml.core.dto.SamlOrganizationDto;
+import it.agid.spid.saml.core.dto.SamlOtherContactPerson;
+import it.agid.spid.saml.core.dto.SamlSoggettoAggregatoDto;
+import it.agid.spid.saml.core.dto.SamlSoggettoAggregatoreDto;
+import it.agid.spid.saml.core.utils.CanonicalXmlWriter;
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SamlBindingTypes;
+import it.agid.spid.saml.core.utils.SigningCredential;
+import it.agid.spid.saml.spid.utils.AgidUtils;
+
+public class MetadataStreamSerializerTest {
+	private SigningCredential credential;
+	private SamlBindingUtils singleLogout;
+	private SamlAssertionConsumerServiceUtil assertionConsumer;
+	private SamlOrganizationDto organization;
+
+	@BeforeEach
+	public void init() throws Exception {
+		OpenSAMLUtils.openSamlBootstrap();
+		credential = TestFixtures.signingCredential();
+		singleLogout = new SamlBindingUtils();
+		singleLogout.setBindingType(SamlBindingTypes.POST);
+		singleLogout.setLocation("https://sp/slo");
+		singleLogout.setResponseLocation("https://sp/slo/response");
+		SamlBindingUtils acsBinding = new SamlBindingUtils();
+		acsBinding.setBindingType(SamlBindingTypes.POST);
+		acsBinding.setLocation("https://sp/acs?a=1&b=2");
+		assertionConsumer = new SamlAssertionConsumerServiceUtil();
+		assertionConsumer.setDefaultElement(true);
+		assertionConsumer.setIndex(0);
+		assertionConsumer.setSamlBinding(acsBinding);
+		organization = new SamlOrganizationDto();
+		organization.setOrganizationDisplayName("Ente \"di prova\"");
+		organization.setOrganizationName("Ente & <associati>");
+		organization.setOrganizationUrl("https://organization-url/");
+	}
+	private static String canonical(Element element) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		Canonicalizer.getInstance(Canonicalizer.ALGO_ID_C14N_EXCL_OMIT_COMMENTS).canonicalizeSubtree(element, baos);
+		return baos.toString("UTF-8");
+	}
+	private static String canonical(EntityDescriptor ed) throws Exception {
+		return canonical(XMLObjectProviderRegistrySupport.getMarshallerFactory().getMarshaller(ed).marshall(ed));
+	}
+	private static SamlFpaCessionarioCommittente cessionarioCommittente() {
+		SamlFpaFiscaleIva fiscaleIva = new SamlFpaFiscaleIva();
+		fiscaleIva.setIdCodice("id codice");
+		fiscaleIva.setIdPaese("IT");
+		SamlFpaDatiAnagraficiConcessionario datiAnagrafici = new SamlFpaDatiAnagraficiConcessionario();
+		datiAnagrafici.setDenominazione("Denominazione");
+		datiAnagrafici.setFiscaleIva(fiscaleIva);
+		SamlFpaSede sede = new SamlFpaSede();
+		sede.setCap("cap");
+		sede.setComune("comune");
+		sede.setIndrizzo("indirizzo");
+		sede.setNazione("nazione");
+		sede.setNumeroCivico("civico");
+		sede.setProvincia("provincia");
+		SamlFpaCessionarioCommittente cessionarioCommittente = new SamlFpaCessionarioCommittente();
+		cessionarioCommittente.setCompany("Company fatturazione");
+		cessionarioCommittente.setDatiAnagrafici(datiAnagrafici);
+		cessionarioCommittente.setSede(sede);
+		cessionarioCommittente.setMail("fatturazione@test.it");
+		return cessionarioCommittente;
+	}
+	@Test
+	public void metadataSpPrivatoIdenticoAlBuilder() throws Exception {
+		SamlOtherContactPerson otherContactPerson = new SamlOtherContactPerson();
+		otherContactPerson.setSpPubblico(false);
+		otherContactPerson.setEmailAddress("mail@test.it");
+		otherContactPerson.setFiscalCode("fiscal code");
+		otherContactPerson.setVatNumber("IT0123456789");
+		otherContactPerson.setTelephoneNumber("telefono");
+		EntityDescriptor ed = SpMetadataBuilder.getInstance().buildSpMetadata("https://sp/", true, true, "urn:oasis:names:tc:SAML:2.0:protocol",
+				credential.getBase64Certificates(), credential.getBase64Certificates(), Collections.singletonList(singleLogout),
+				Collections.singletonList(NameIDType.TRANSIENT), Collections.singletonList(assertionConsumer), organization, otherContactPerson,
+				cessionarioCommittente(), AgidUtils.agidSpidEidasAttributes());
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		CanonicalXmlWriter writer = new CanonicalXmlWriter(baos);
+		MetadataStreamSerializer.getInstance().writeSpMetadata(writer, ed.getID(), "https://sp/", true, true, "urn:oasis:names:tc:SAML:2.0:protocol",
+				credential.getBase64Certificates(), credential.getBase64Certificates(), Collections.singletonList(singleLogout),
+				Collections.singletonList(NameIDType.TRANSIENT), Collections.singletonList(assertionConsumer), organization, otherContactPerson,
+				cessionarioCommittente(), AgidUtils.agidSpidEidasAttributes());
+		writer.flush();
+		Assertions.assertEquals(canonical(ed), baos.toString("UTF-8"));
+	}
+	@Test
+	public void metadataSoggettoAggregatoIdenticoAlBuilder() throws Exception {
+		SamlOtherContactPerson informazioniSoggettoAggregatore = new SamlOtherContactPerson();
+		informazioniSoggettoAggregatore.setSpPubblico(false);
+		informazioniSoggettoAggregatore.setCompanyName("Company name");
+		informazioniSoggettoAggregatore.setIpaCode("ipa");
+		informazioniSoggettoAggregatore.setVatNumber("vat_number");
+		informazioniSoggettoAggregatore.setFiscalCode("fiscal_code");
+		informazioniSoggettoAggregatore.setEmailAddress("spid@aggregatore.it");
+		SamlSoggettoAggregatoreDto aggregatore = new SamlSoggettoAggregatoreDto();
+		aggregatore.setWantAuthnRequestSigned(true);
+		aggregatore.setWantAssertionsSigned(true);
+		aggregatore.setSupportedProtocol("urn:oasis:names:tc:SAML:2.0:protocol");
+		aggregatore.setBase64SigningCertificate(credential.getBase64Certificates());
+		aggregatore.setBase64EncryptionCertificate(credential.getBase64Certificates());
+		aggregatore.setNameIds(Collections.singletonList(NameIDType.TRANSIENT));
+		aggregatore.setOrganization(organization);
+		aggregatore.setInformazioniSoggettoAggregatore(informazioniSoggettoAggregatore);
+		aggregatore.setCessionarioCommittente(cessionarioCommittente());
+		aggregatore.setAcss(AgidUtils.agidSpidEidasAttributes());
+		aggregatore.setEntePrivato(true);
+		SamlOtherContactPerson informazioniSoggettoAggregato = new SamlOtherContactPerson();
+		informazioniSoggettoAggregato.setIpaCode("aggr_1");
+		informazioniSoggettoAggregato.setTelephoneNumber("0123");
+		SamlSoggettoAggregatoDto aggregato = new SamlSoggettoAggregatoDto();
+		aggregato.setEntityId("https://aggregatore/aggregato-1");
+		aggregato.setInformazioniSoggettoAggregato(informazioniSoggettoAggregato);
+		aggregato.setSingleLogoutService(Collections.singletonList(singleLogout));
+		aggregato.setAssertionConsumerServices(Collections.singletonList(assertionConsumer));
+		PrivateKey privateKey = credential.getPrivateKey();
+		SamlMetadataBatchResult batchResult = SpSoggettoAggregatoreMetadataBuilder.getInstance()
+				.buildSignedSpMetadata(aggregatore, Collections.singletonList(aggregato), privateKey, credential.getCertificate(), 1).get(0);
+		Assertions.assertNull(batchResult.getError());
+		Element root = OpenSAMLUtils.fromInputStreamToSamlObject(new ByteArrayInputStream(batchResult.getSignedMetadata()), EntityDescriptor.class).getDOM();
+		Node signature = root.getElementsByTagNameNS(Constants.SignatureSpecNS, Constants._TAG_SIGNATURE).item(0);
+		root.removeChild(signature);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		CanonicalXmlWriter writer = new CanonicalXmlWriter(baos);
+		MetadataStreamSerializer.getInstance().writeSoggettoAggregatoMetadata(writer, root.getAttribute("ID"), aggregatore, aggregato);
+		writer.flush();
+		Assertions.assertEquals(canonical(root), baos.toString("UTF-8"));
+	}
+	@Test
+	public void metadataIdpIdenticoAlBuilder() throws Exception {
+		SamlBindingUtils singleSignOn = new SamlBindingUtils();
+		singleSignOn.setBindingType(SamlBindingTypes.REDIRECT);
+		singleSignOn.setLocation("https://idp/sso");
+		DateTime validUntil = new DateTime(2030, 1, 1, 10, 30, DateTimeZone.forID("Europe/Rome"));
+		EntityDescriptor ed = IdpMetadataBuilder.getInstance().buildIdpMetadata("https://idp/", validUntil, Boolean.TRUE, "urn:oasis:names:tc:SAML:2.0:protocol",
+				credential.getBase64Certificates(), null, Collections.singletonList(NameIDType.TRANSIENT), Collections.singletonList(singleSignOn),
+				Collections.singletonList(singleLogout));
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		CanonicalXmlWriter writer = new CanonicalXmlWriter(baos);
+		MetadataStreamSerializer.getInstance().writeIdpMetadata(writer, ed.getID(), "https://idp/", validUntil, Boolean.TRUE, "urn:oasis:names:tc:SAML:2.0:protocol",
+				credential.getBase64Certificates(), null, Collections.singletonList(NameIDType.TRANSIENT), Collections.singletonList(singleSignOn),
+				Collections.singletonList(singleLogout));
+		writer.flush();
+		Assertions.assertEquals(canonical(ed), baos.toString("UTF-8"));
+	}
+}
@@ -0,0 +1,70 @@
+package it.agid.spid.saml.test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.security.x509.BasicX509Credential;
+
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SigningCredential;
+import it.agid.spid.saml.core.utils.SpidSignatureVerifier;
+import it.agid.spid.saml.core.utils.TrustedCredentialIndex;
+import it.agid.spid.saml.spid.exception.SpidCheckerException;
+
+public class ParallelSignatureVerificationTest {
+	private SigningCredential credential;
+	private TrustedCredentialIndex trusted;
+
+	@BeforeEach
+	public void init() throws Exception {
+		OpenSAMLUtils.openSamlBootstrap();
+		credential = TestFixtures.signingCredential();
+		trusted = new TrustedCredentialIndex(Collections.singletonList(new BasicX509Credential(credential.getCertificate())));
+	}
+	/**
+	 * Assertion firmata e riletta nel proprio documento, come una assertion decifrata. Se alterata l'issuer viene modificato dopo la firma
+	 */
+	private Assertion signedAssertion(String id, boolean alterata) throws Exception {
+		Assertion assertion = OpenSAMLUtils.buildSAMLObject(Assertion.class);
+		assertion.setID(id);
+		Issuer issuer = OpenSAMLUtils.buildSAMLObject(Issuer.class);
+		issuer.setValue("https://sample-idp-entity-id/");
+		assertion.setIssuer(issuer);
+		OpenSAMLUtils.signSamlObj(assertion, credential);
+		String xml = OpenSAMLUtils.samlObjectToString(assertion);
+		if( alterata ) {
+			xml = xml.replace("https://sample-idp-entity-id/", "https://altro-idp/");
+		}
+		return OpenSAMLUtils.fromInputStreamToSamlObject(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), Assertion.class);
+	}
+	@Test
+	public void primoErroreInOrdine() throws Exception {
+		SpidSignatureVerifier verifier = new SpidSignatureVerifier(2, 1);
+		try {
+			Response response = OpenSAMLUtils.buildSAMLObject(Response.class);
+			response.setID(OpenSAMLUtils.generateSecureRandomId());
+			OpenSAMLUtils.signSamlObj(response, credential);
+			String xml = OpenSAMLUtils.samlObjectToString(response);
+			Response signed = OpenSAMLUtils.fromInputStreamToSamlObject(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), Response.class);
+			List<Assertion> valide = Arrays.asList(signedAssertion("_a1", false), signedAssertion("_a2", false), signedAssertion("_a3", false), signedAssertion("_a4", false));
+			verifier.verify(signed, valide, trusted, null);
+			List<Assertion> alterate = Arrays.asList(signedAssertion("_a1", false), signedAssertion("_a2", true), signedAssertion("_a3", true), signedAssertion("_a4", false));
+			for (int i = 0; i < 5; i++) {
+				SpidCheckerException e = Assertions.assertThrows(SpidCheckerException.class, () -> verifier.verifyAssertions(signed, alterate, trusted, null));
+				Assertions.assertTrue(e.getMessage().contains("Firma Assertion _a2 "), e.getMessage());
+			}
+			Assertions.assertThrows(SpidCheckerException.class, () -> verifier.verify(OpenSAMLUtils.buildSAMLObject(Response.class), valide, trusted, null));
+		}finally {
+			verifier.shutdown();
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package it.agid.spid.saml.test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Conditions;
+import org.opensaml.saml.saml2.core.Response;
+
+import it.agid.spid.saml.core.utils.InMemorySpidReplayCache;
+import it.agid.spid.saml.core.utils.MappedFileSpidReplayCache;
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SpidControlRule;
+import it.agid.spid.saml.core.utils.SpidReplayCache;
+import it.agid.spid.saml.core.utils.SpidRuleEngine;
+import it.agid.spid.saml.core.utils.SpidValidationContext;
+import it.agid.spid.saml.spid.exception.SpidCheckerException;
+import it.agid.spid.saml.spid.exception.SpidErrorCode;
+
+public class ReplayCacheTest {
+	private static final String IDP = "response:https://sample-idp-entity-id/";
+
+	private void verificaReplay(SpidReplayCache cache) throws Exception {
+		long futuro = System.currentTimeMillis() + 60000;
+		Assertions.assertTrue(cache.checkAndStore(IDP, "_response1", futuro));
+		Assertions.assertFalse(cache.checkAndStore(IDP, "_response1", futuro));
+		//Stesso ID in un altro contesto
+		Assertions.assertTrue(cache.checkAndStore("assertion:https://sample-idp-entity-id/", "_response1", futuro));
+		//ID scaduto: può essere registrato di nuovo
+		Assertions.assertTrue(cache.checkAndStore(IDP, "_scaduto", System.currentTimeMillis() - 1000));
+		Assertions.assertTrue(cache.checkAndStore(IDP, "_scaduto", futuro));
+		Assertions.assertFalse(cache.checkAndStore(IDP, "_scaduto", futuro));
+	}
+	@Test
+	public void cacheInMemoria() throws Exception {
+		InMemorySpidReplayCache cache = new InMemorySpidReplayCache(64, 10);
+		verificaReplay(cache);
+		Assertions.assertEquals(2, cache.getReplays());
+		int rifiutati = 0;
+		for (int i = 0; i < 200; i++) {
+			try {
+				Assertions.assertTrue(cache.checkAndStore(IDP, "_id"+i, System.currentTimeMillis() + 60000));
+			}catch (IllegalStateException e) {
+				rifiutati++;
+			}
+		}
+		Assertions.assertTrue(cache.size() <= 64);
+		Assertions.assertEquals(rifiutati, cache.getRejections());
+		Assertions.assertTrue(rifiutati > 0);
+		//Cache piena: gli ID non scaduti non vengono rimossi, il replay resta rilevato
+		Assertions.assertFalse(cache.checkAndStore(IDP, "_response1", System.currentTimeMillis() + 60000));
+	}
+	@Test
+	public void cacheSuFileCondivisa(@TempDir Path dir) throws Exception {
+		Path file = dir.resolve("replay.cache");
+		try( MappedFileSpidReplayCache nodo1 = new MappedFileSpidReplayCache(file, 128);
+				MappedFileSpidReplayCache nodo2 = new MappedFileSpidReplayCache(file, 128) ){
+			verificaReplay(nodo1);
+			//Il secondo nodo vede gli ID registrati dal primo
+			Assertions.assertFalse(nodo2.checkAndStore(IDP, "_response1", System.currentTimeMillis() + 60000));
+			Assertions.assertTrue(nodo2.checkAndStore(IDP, "_response2", System.currentTimeMillis() + 60000));
+			Assertions.assertFalse(nodo1.checkAndStore(IDP, "_response2", System.currentTimeMillis() + 60000));
+		}
+		Assertions.assertTrue(Files.exists(file));
+		Assertions.assertThrows(java.io.IOException.class, () -> new MappedFileSpidReplayCache(file, 64));
+	}
+	@Test
+	public void posizioniScaduteSvuotate(@TempDir Path dir) throws Exception {
+		try( MappedFileSpidReplayCache cache = new MappedFileSpidReplayCache(dir.resolve("replay.cache"), 16) ){
+			long futuro = System.currentTimeMillis() + 60000;
+			List<String> validi = new ArrayList<>();
+			for (int i = 0; i < 500; i++) {
+				Assertions.assertTrue(cache.checkAndStore(IDP, "_scaduto"+i, System.currentTimeMillis() - 1000));
+				if( i % 50 == 0 ) {
+					Assertions.assertTrue(cache.checkAndStore(IDP, "_valido"+i, futuro));
+					validi.add("_valido"+i);
+				}
+			}
+			//Gli ID spostati compattando le sequenze restano raggiungibili
+			for (String id : validi) {
+				Assertions.assertFalse(cache.checkAndStore(IDP, id, futuro));
+			}
+			for (int i = validi.size(); i < 16; i++) {
+				Assertions.assertTrue(cache.checkAndStore(IDP, "_riempimento"+i, futuro));
+			}
+			Assertions.assertThrows(IllegalStateException.class, () -> cache.checkAndStore(IDP, "_oltre", futuro));
+		}
+	}
+	@Test
+	public void responseScadutaRifiutataAncheSeRipetuta() throws Exception {
+		OpenSAMLUtils.openSamlBootstrap();
+		DateTime notOnOrAfter = new DateTime().minusMinutes(10);
+		Response response = OpenSAMLUtils.buildSAMLObject(Response.class);
+		response.setID(OpenSAMLUtils.generateSecureRandomId());
+		response.setIssueInstant(notOnOrAfter.minusMinutes(5));
+		Assertion assertion = OpenSAMLUtils.buildSAMLObject(Assertion.class);
+		assertion.setID(OpenSAMLUtils.generateSecureRandomId());
+		Conditions conditions = OpenSAMLUtils.buildSAMLObject(Conditions.class);
+		conditions.setNotOnOrAfter(notOnOrAfter);
+		assertion.setConditions(conditions);
+		response.getAssertions().add(assertion);
+		SpidRuleEngine engine = new SpidRuleEngine(Collections.singletonList(SpidControlRule.REPLAY));
+		InMemorySpidReplayCache cache = new InMemorySpidReplayCache(64, 10);
+		SpidValidationContext context = SpidValidationContext.builder().credentials(Collections.emptyList()).tolleranceTimeMillisecond(1000)
+				.spidIdpEntityId("https://sample-idp-entity-id/").replayCache(cache).ruleEngine(engine).build();
+		for (int i = 0; i < 2; i++) {
+			SpidCheckerException e = Assertions.assertThrows(SpidCheckerException.class, () -> engine.verify(context.newValidation(response)));
+			Assertions.assertEquals(SpidErrorCode.ASSERTION_EXPIRED, e.getErrorCode());
+		}
+		//Valida all'istante di riferimento: gli ID sono conservati almeno fino all'istante corrente più la tolleranza
+		SpidValidationContext archivio = SpidValidationContext.builder().credentials(Collections.emptyList()).tolleranceTimeMillisecond(1000)
+				.spidIdpEntityId("https://sample-idp-entity-id/").replayCache(cache).ruleEngine(engine).referenceInstant(notOnOrAfter.minusMinutes(1)).build();
+		engine.verify(archivio.newValidation(response));
+		SpidCheckerException e = Assertions.assertThrows(SpidCheckerException.class, () -> engine.verify(archivio.newValidation(response)));
+		Assertions.assertEquals(SpidErrorCode.REPLAY_DETECTED, e.getErrorCode());
+		//Stessa assertion in una response con un nuovo ID
+		response.setID(OpenSAMLUtils.generateSecureRandomId());
+		e = Assertions.assertThrows(SpidCheckerException.class, () -> engine.verify(archivio.newValidation(response)));
+		Assertions.assertEquals(SpidErrorCode.REPLAY_DETECTED, e.getErrorCode());
+		Assertions.assertTrue(e.getMessage().contains(response.getID()), e.getMessage());
+	}
+}
@@ -0,0 +1,107 @@
+package it.agid.spid.saml.test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opensaml.saml.common.SAMLVersion;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+
+import it.agid.spid.saml.core.dto.SamlAttributesConsumingServiceDto;
+import it.agid.spid.saml.core.dto.SpidAuditSummary;
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SpidControlRule;
+import it.agid.spid.saml.core.utils.SpidResponseAuditor;
+import it.agid.spid.saml.core.utils.SpidRuleEngine;
+import it.agid.spid.saml.core.utils.SpidValidationContext;
+
+public class ResponseAuditTest {
+	private static final String ACS_URL = "https://assertion-consumer-binding-post";
+	private static final String IDP = "https://sample-idp-entity-id/";
+	private SamlAttributesConsumingServiceDto attributi;
+	private SpidValidationContext context;
+
+	@BeforeEach
+	public void init() throws Exception {
+		OpenSAMLUtils.openSamlBootstrap();
+		attributi = new SamlAttributesConsumingServiceDto();
+		attributi.setAttrs(Collections.emptyList());
+		context = SpidValidationContext.builder().credentials(Collections.emptyList()).tolleranceTimeMillisecond(180000).idpDestinationUrl(ACS_URL)
+				.spidIdpEntityId(IDP).spitEnteAggregatoMetadata(OpenSAMLUtils.buildSAMLObject(EntityDescriptor.class))
+				.attributiRichiesti(attributi).spLivelloAutenticazioneSpid(1).build();
+	}
+	private String responseXml(String destination) {
+		return responseXml(destination, SAMLVersion.VERSION_20);
+	}
+	private String responseXml(String destination, SAMLVersion version) {
+		Response response = OpenSAMLUtils.buildSAMLObject(Response.class);
+		response.setID(OpenSAMLUtils.generateSecureRandomId());
+		response.setVersion(version);
+		response.setDestination(destination);
+		return OpenSAMLUtils.samlObjectToString(response).replace("\n", "").replace("\r", "");
+	}
+	@Test
+	public void validazioneCartellaEArchivio(@TempDir Path dir) throws Exception {
+		Path responses = Files.createDirectories(dir.resolve("responses"));
+		for (int i = 0; i < 20; i++) {
+			Files.write(responses.resolve("response"+i+".xml"), responseXml(ACS_URL).getBytes(StandardCharsets.UTF_8));
+		}
+		Files.write(responses.resolve("illeggibile.xml"), "non xml".getBytes(StandardCharsets.UTF_8));
+		SpidResponseAuditor auditor = new SpidResponseAuditor(r -> context, 4, 4);
+		Path report = dir.resolve("report.tsv");
+		SpidAuditSummary summary = auditor.auditDirectory(responses, report);
+		Assertions.assertEquals(21, summary.getTotal());
+		Assertions.assertEquals(20, summary.getInvalid());
+		Assertions.assertEquals(1, summary.getUnreadable());
+		List<String> righe = Files.readAllLines(report, StandardCharsets.UTF_8);
+		Assertions.assertEquals(21, righe.size());
+		for (String riga : righe) {
+			Assertions.assertEquals(5, riga.split("\t", -1).length, riga);
+			Assertions.assertTrue(riga.contains("\t" + SpidResponseAuditor.KO + "\t"), riga);
+		}
+		//Archivio: XML su singola riga e Base64, righe vuote ignorate
+		Path archive = dir.resolve("archivio.txt");
+		String xml = responseXml("https://altro-sp/acs");
+		String base64 = Base64.getEncoder().encodeToString(responseXml(ACS_URL).getBytes(StandardCharsets.UTF_8));
+		Files.write(archive, Arrays.asList(xml, "", base64), StandardCharsets.UTF_8);
+		summary = new SpidResponseAuditor(r -> null, 1, 1).auditArchive(archive, report);
+		Assertions.assertEquals(2, summary.getTotal());
+		Assertions.assertEquals(2, summary.getInvalid());
+		righe = Files.readAllLines(report, StandardCharsets.UTF_8);
+		Assertions.assertTrue(righe.get(0).startsWith("1\tarchivio.txt:1\t"));
+		Assertions.assertTrue(righe.get(1).startsWith("2\tarchivio.txt:3\t"));
+		Assertions.assertTrue(summary.getResponsesPerSecond() > 0);
+	}
+	@Test
+	public void regoleDisabilitateSoloPerLaValidazioneMassiva(@TempDir Path dir) throws Exception {
+		SpidRuleEngine engine = new SpidRuleEngine(Arrays.asList(SpidControlRule.values()));
+		engine.disableRule(IDP, SpidControlRule.RESPONSE_VERSION.name());
+		Assertions.assertThrows(IllegalArgumentException.class, () -> engine.disableRule(IDP, SpidControlRule.RESPONSE_DESTINATION.name()));
+		SpidValidationContext auditContext = SpidValidationContext.builder().credentials(Collections.emptyList()).tolleranceTimeMillisecond(180000)
+				.idpDestinationUrl(ACS_URL).spidIdpEntityId(IDP).spitEnteAggregatoMetadata(OpenSAMLUtils.buildSAMLObject(EntityDescriptor.class))
+				.attributiRichiesti(attributi).spLivelloAutenticazioneSpid(1).ruleEngine(engine).referenceInstant(new DateTime(2020, 1, 1, 0, 0)).build();
+		Assertions.assertSame(engine, auditContext.getRuleEngine());
+		Assertions.assertSame(SpidRuleEngine.getInstance(), context.getRuleEngine());
+		Path archive = dir.resolve("archivio.txt");
+		Files.write(archive, Collections.singletonList(responseXml(ACS_URL, SAMLVersion.VERSION_11)), StandardCharsets.UTF_8);
+		Path report = dir.resolve("report.tsv");
+		new SpidResponseAuditor(r -> auditContext, 1, 1).auditArchive(archive, report);
+		String riga = Files.readAllLines(report, StandardCharsets.UTF_8).get(0);
+		//La Version non viene controllata solo con lo SpidRuleEngine del contesto della validazione massiva
+		Assertions.assertFalse(riga.contains("SAML Version"), riga);
+		Assertions.assertTrue(SpidRuleEngine.getInstance().isRuleEnabled(IDP, SpidControlRule.RESPONSE_VERSION.name()));
+		new SpidResponseAuditor(r -> context, 1, 1).auditArchive(archive, report);
+		riga = Files.readAllLines(report, StandardCharsets.UTF_8).get(0);
+		Assertions.assertTrue(riga.contains("SAML Version"), riga);
+	}
+}
@@ -0,0 +1,102 @@
+package it.agid.spid.saml.test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.saml.common.SAMLVersion;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.NameIDType;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+
+import it.agid.spid.saml.core.dto.SamlAttributesConsumingServiceDto;
+import it.agid.spid.saml.core.dto.SpidValidationResult;
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SpidControlChecker;
+import it.agid.spid.saml.core.utils.SpidResponsePreChecker;
+import it.agid.spid.saml.core.utils.SpidValidationContext;
+import it.agid.spid.saml.core.utils.XmlParserPool;
+import it.agid.spid.saml.spid.exception.SpidCheckerException;
+import it.agid.spid.saml.spid.exception.SpidErrorCode;
+
+public class ResponsePreCheckTest {
+	private static final String ACS_URL = "https://assertion-consumer-binding-post";
+	private static final String IDP = "https://sample-idp-entity-id/";
+	private SpidValidationContext context;
+
+	@BeforeEach
+	public void init() throws Exception {
+		OpenSAMLUtils.openSamlBootstrap();
+		SamlAttributesConsumingServiceDto attributi = new SamlAttributesConsumingServiceDto();
+		attributi.setAttrs(Collections.emptyList());
+		context = SpidValidationContext.builder().credentials(Collections.emptyList()).tolleranceTimeMillisecond(180000).idpDestinationUrl(ACS_URL)
+				.spidIdpEntityId(IDP).spitEnteAggregatoMetadata(OpenSAMLUtils.buildSAMLObject(EntityDescriptor.class)).attributiRichiesti(attributi)
+				.spLivelloAutenticazioneSpid(1).build();
+	}
+	private static Response response(String destination, String issuerValue) {
+		Response response = OpenSAMLUtils.buildSAMLObject(Response.class);
+		response.setID(OpenSAMLUtils.generateSecureRandomId());
+		response.setVersion(SAMLVersion.VERSION_20);
+		response.setDestination(destination);
+		if( issuerValue != null ) {
+			Issuer issuer = OpenSAMLUtils.buildSAMLObject(Issuer.class);
+			issuer.setValue(issuerValue);
+			issuer.setFormat(NameIDType.ENTITY);
+			response.setIssuer(issuer);
+		}
+		return response;
+	}
+	private static byte[] xml(Response response) throws Exception {
+		return XmlParserPool.getInstance().toString(XMLObjectProviderRegistrySupport.getMarshallerFactory().getMarshaller(response).marshall(response))
+				.getBytes(StandardCharsets.UTF_8);
+	}
+	private static SpidCheckerException preCheck(byte[] xml) {
+		return Assertions.assertThrows(SpidCheckerException.class, () -> SpidResponsePreChecker.preCheck(new ByteArrayInputStream(xml), ACS_URL, IDP));
+	}
+	@Test
+	public void stessiErroriDelControlloSulDom() throws Exception {
+		//Issuer assente: stesso codice e stesso messaggio del controllo sulla Response già costruita
+		Response senzaIssuer = response(ACS_URL, null);
+		SpidCheckerException e = preCheck(xml(senzaIssuer));
+		SpidValidationResult result = SpidControlChecker.checkSamlResponseSpidCompliance(senzaIssuer, context);
+		Assertions.assertEquals(SpidErrorCode.RESPONSE_ISSUER_MISSING, e.getErrorCode());
+		Assertions.assertEquals(result.getErrorCode(), e.getErrorCode());
+		Assertions.assertEquals(result.getMessage(), e.getMessage());
+
+		Response altroSp = response("https://altro-sp/acs", IDP);
+		e = preCheck(xml(altroSp));
+		result = SpidControlChecker.checkSamlResponseSpidCompliance(altroSp, context);
+		Assertions.assertEquals(SpidErrorCode.RESPONSE_DESTINATION_MISMATCH, e.getErrorCode());
+		Assertions.assertEquals(result.getMessage(), e.getMessage());
+
+		e = preCheck(xml(response(ACS_URL, "https://altro-idp/")));
+		Assertions.assertEquals(SpidErrorCode.RESPONSE_ISSUER_MISMATCH, e.getErrorCode());
+
+		Response senzaVersione = response(ACS_URL, IDP);
+		senzaVersione.setVersion(null);
+		Assertions.assertEquals(SpidErrorCode.RESPONSE_VERSION_INVALID, preCheck(xml(senzaVersione)).getErrorCode());
+
+		//Intestazione corretta: i controlli preliminari passano e la response viene verificata con le altre regole
+		Response valida = response(ACS_URL, IDP);
+		Assertions.assertDoesNotThrow(() -> SpidResponsePreChecker.preCheck(new ByteArrayInputStream(xml(valida)), ACS_URL, IDP));
+		e = Assertions.assertThrows(SpidCheckerException.class, () -> SpidControlChecker.verifySamlResponseSpidCompliance(xml(valida), context));
+		Assertions.assertEquals(SpidControlChecker.checkSamlResponseSpidCompliance(valida, context).getErrorCode(), e.getErrorCode());
+	}
+	@Test
+	public void responseMalformataOOstile() {
+		String root = "<samlp:AuthnRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"_1\" Version=\"2.0\"/>";
+		Assertions.assertEquals(SpidErrorCode.RESPONSE_ROOT_INVALID, preCheck(root.getBytes(StandardCharsets.UTF_8)).getErrorCode());
+		String troncata = "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"_1\" Version=\"2.0\" Destination=\""+ACS_URL+"\"><saml:Iss";
+		Assertions.assertEquals(SpidErrorCode.RESPONSE_MALFORMED, preCheck(troncata.getBytes(StandardCharsets.UTF_8)).getErrorCode());
+		String doctype = "<!DOCTYPE foo [<!ENTITY xxe SYSTEM \"file:///etc/passwd\">]><foo>&xxe;</foo>";
+		Assertions.assertEquals(SpidErrorCode.RESPONSE_MALFORMED, preCheck(doctype.getBytes(StandardCharsets.UTF_8)).getErrorCode());
+		SpidCheckerException e = Assertions.assertThrows(SpidCheckerException.class,
+				() -> SpidControlChecker.verifySamlResponseSpidCompliance(troncata.getBytes(StandardCharsets.UTF_8), context));
+		Assertions.assertEquals(SpidErrorCode.RESPONSE_MALFORMED, e.getErrorCode());
+	}
+}
@@ -0,0 +1,73 @@
+package it.agid.spid.saml.test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.security.credential.CredentialSupport;
+import org.opensaml.security.x509.BasicX509Credential;
+
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SigningCredential;
+import it.agid.spid.saml.core.utils.SignatureVerificationCache;
+import it.agid.spid.saml.core.utils.TrustedCredentialIndex;
+
+public class SignatureVerificationTest {
+	private X509Certificate cert;
+	private PrivateKey privateKey;
+
+	@BeforeEach
+	public void init() throws Exception {
+		OpenSAMLUtils.openSamlBootstrap();
+		SigningCredential credential = TestFixtures.signingCredential();
+		cert = credential.getCertificate();
+		privateKey = credential.getPrivateKey();
+	}
+	private EntityDescriptor signedMetadata() throws Exception {
+		EntityDescriptor ed = OpenSAMLUtils.buildSAMLObject(EntityDescriptor.class);
+		ed.setID(OpenSAMLUtils.generateSecureRandomId());
+		ed.setEntityID("https://sample-entity-id/");
+		OpenSAMLUtils.signSamlObj(ed, privateKey, cert);
+		String xml = OpenSAMLUtils.samlObjectToString(ed);
+		return OpenSAMLUtils.fromInputStreamToSamlObject(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), EntityDescriptor.class);
+	}
+	@Test
+	public void risolveCredenzialeDaKeyInfo() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		KeyPair other = generator.generateKeyPair();
+		Credential rotated = CredentialSupport.getSimpleCredential(other.getPublic(), null);
+		Credential trusted = new BasicX509Credential(cert);
+		TrustedCredentialIndex index = new TrustedCredentialIndex(Arrays.asList(rotated, trusted));
+		EntityDescriptor ed = signedMetadata();
+		Assertions.assertSame(trusted, index.resolve(ed.getSignature()));
+		Assertions.assertTrue(OpenSAMLUtils.isSignatureValid(ed.getSignature(), index));
+		Assertions.assertFalse(OpenSAMLUtils.isSignatureValid(ed.getSignature(), Collections.singletonList(rotated)));
+	}
+	@Test
+	public void firmaVerificataInCache() throws Exception {
+		TrustedCredentialIndex index = new TrustedCredentialIndex(Collections.singletonList(new BasicX509Credential(cert)));
+		SignatureVerificationCache cache = new SignatureVerificationCache(16, 60000);
+		Assertions.assertTrue(OpenSAMLUtils.isSignatureValid(signedMetadata().getSignature(), index, cache));
+		EntityDescriptor replay = OpenSAMLUtils.fromInputStreamToSamlObject(new ByteArrayInputStream(OpenSAMLUtils.samlObjectToString(signedMetadata()).getBytes(StandardCharsets.UTF_8)), EntityDescriptor.class);
+		Assertions.assertTrue(OpenSAMLUtils.isSignatureValid(replay.getSignature(), index, cache));
+		Assertions.assertTrue(OpenSAMLUtils.isSignatureValid(replay.getSignature(), index, cache));
+		Assertions.assertEquals(1, cache.getHits());
+		Assertions.assertEquals(2, cache.getMisses());
+		Assertions.assertEquals(2, cache.size());
+		//Contenuto modificato: SignedInfo in cache ma digest della reference non valido
+		replay.getDOM().setAttributeNS(null, "entityID", "https://altro-entity-id/");
+		Assertions.assertFalse(OpenSAMLUtils.isSignatureValid(replay.getSignature(), index, cache));
+		Assertions.assertEquals(1, cache.getHits());
+	}
+}
@@ -0,0 +1,65 @@
+package it.agid.spid.saml.test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.security.x509.BasicX509Credential;
+
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SigningCredential;
+import it.agid.spid.saml.core.utils.SigningCredentialRegistry;
+
+public class SigningCredentialRegistryTest {
+	private static final char[] PWD = TestFixtures.KEYSTORE_PASSWORD.toCharArray();
+
+	@BeforeEach
+	public void init() throws Exception {
+		OpenSAMLUtils.openSamlBootstrap();
+	}
+	@Test
+	public void firmaConCredenzialeRegistrata() throws Exception {
+		SigningCredentialRegistry registry = new SigningCredentialRegistry(-1);
+		SigningCredential credential = registry.register("metadata", TestFixtures.KEYSTORE, TestFixtures.KEYSTORE_TYPE, PWD, null);
+		Assertions.assertSame(credential, registry.get("metadata"));
+		Assertions.assertEquals(1, credential.getBase64Certificates().size());
+		EntityDescriptor ed = OpenSAMLUtils.buildSAMLObject(EntityDescriptor.class);
+		ed.setID(OpenSAMLUtils.generateSecureRandomId());
+		ed.setEntityID("https://sample-entity-id/");
+		OpenSAMLUtils.signSamlObj(ed, credential);
+		String xml = OpenSAMLUtils.samlObjectToString(ed);
+		Assertions.assertTrue(xml.contains(credential.getBase64Certificates().get(0)));
+		EntityDescriptor parsed = OpenSAMLUtils.fromInputStreamToSamlObject(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), EntityDescriptor.class);
+		Assertions.assertTrue(OpenSAMLUtils.isSignatureValid(parsed.getSignature(), Collections.singletonList(new BasicX509Credential(credential.getCertificate()))));
+	}
+	@Test
+	public void rotazioneSuModificaDelKeystore(@TempDir Path dir) throws Exception {
+		Path keystore = dir.resolve("firma.p12");
+		Files.copy(TestFixtures.KEYSTORE, keystore);
+		SigningCredentialRegistry registry = new SigningCredentialRegistry(0);
+		SigningCredential iniziale = registry.register("metadata", keystore, TestFixtures.KEYSTORE_TYPE, PWD, null);
+		Assertions.assertSame(iniziale, registry.get("metadata"));
+		//Keystore sostituito: stessa chiave in un file diverso
+		Files.copy(Paths.get("certificate/esempio.jks"), keystore, StandardCopyOption.REPLACE_EXISTING);
+		Files.setLastModifiedTime(keystore, FileTime.fromMillis(System.currentTimeMillis() + 60000));
+		SigningCredential ruotata = registry.get("metadata");
+		Assertions.assertNotSame(iniziale, ruotata);
+		Assertions.assertEquals(iniziale.getCertificate(), ruotata.getCertificate());
+		Assertions.assertSame(ruotata, registry.get("metadata"));
+		//Keystore non valido: resta in uso la credenziale corrente
+		Files.write(keystore, new byte[] { 1, 2, 3 });
+		Assertions.assertSame(ruotata, registry.get("metadata"));
+		Assertions.assertTrue(registry.unregister("metadata"));
+		Assertions.assertNull(registry.get("metadata"));
+	}
+}
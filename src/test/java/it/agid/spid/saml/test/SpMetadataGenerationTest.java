@@ -0,0 +1,202 @@
+package it.agid.spid.saml.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.xml.security.c14n.Canonicalizer;
+import org.apache.xml.security.signature.XMLSignature;
+import org.apache.xml.security.utils.Constants;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.saml.saml2.core.NameIDType;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.w3c.dom.Element;
+
+import it.agid.spid.saml.core.SpMetadataBuilder;
+import it.agid.spid.saml.core.SpMetadataTemplate;
+import it.agid.spid.saml.core.SpSoggettoAggregatoreMetadataBuilder;
+import it.agid.spid.saml.core.dto.SamlAssertionConsumerServiceUtil;
+import it.agid.spid.saml.core.dto.SamlBindingUtils;
+import it.agid.spid.saml.core.dto.SamlFpaCessionarioCommittente;
+import it.agid.spid.saml.core.dto.SamlFpaDatiAnagraficiConcessionario;
+import it.agid.spid.saml.core.dto.SamlFpaFiscaleIva;
+import it.agid.spid.saml.core.dto.SamlFpaSede;
+import it.agid.spid.saml.core.dto.SamlMetadataBatchResult;
+import it.agid.spid.saml.core.dto.SamlOrganizationDto;
+import it.agid.spid.saml.core.dto.SamlOtherContactPerson;
+import it.agid.spid.saml.core.dto.SamlSoggettoAggregatoDto;
+import it.agid.spid.saml.core.dto.SamlSoggettoAggregatoreDto;
+import it.agid.spid.saml.core.utils.AgidUtils;
+import it.agid.spid.saml.core.utils.InsertBeforeElementEnum;
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SamlBindingTypes;
+import it.agid.spid.saml.core.utils.SigningCredential;
+
+public class SpMetadataGenerationTest {
+	private SigningCredential credential;
+	private SamlBindingUtils singleLogout;
+	private SamlAssertionConsumerServiceUtil acs;
+	private SamlOtherContactPerson otherContactPerson;
+
+	@BeforeEach
+	public void init() throws Exception {
+		OpenSAMLUtils.openSamlBootstrap();
+		credential = TestFixtures.signingCredential();
+		singleLogout = TestFixtures.binding(SamlBindingTypes.POST, "https://single-logout-url-post");
+		acs = TestFixtures.assertionConsumerService(0, true, TestFixtures.binding(SamlBindingTypes.POST, "https://assertion-consumer-binding-post"));
+		otherContactPerson = new SamlOtherContactPerson();
+		otherContactPerson.setSpPubblico(true);
+		otherContactPerson.setEmailAddress("email@email.it");
+		otherContactPerson.setIpaCode("ipa code");
+	}
+	@Test
+	public void firmaSpMetadataDom() throws Exception {
+		List<String> certs = credential.getBase64Certificates();
+		SpMetadataBuilder spBuilder = SpMetadataBuilder.getInstance();
+		EntityDescriptor spEntityDescr = spBuilder.buildSpMetadata("https://sample-entity-id/", true, true, "urn:oasis:names:tc:SAML:2.0:protocol",
+				certs, certs, Collections.singletonList(singleLogout), Collections.singletonList(NameIDType.TRANSIENT), Collections.singletonList(acs),
+				TestFixtures.organization(), otherContactPerson, null, AgidUtils.agidSpidEidasAttributes());
+		Element root = spBuilder.signMetadata(spEntityDescr, credential.getPrivateKey(), credential.getCertificate(), "", InsertBeforeElementEnum.SP_TAG);
+		Element sigElement = (Element) root.getElementsByTagNameNS(Constants.SignatureSpecNS, Constants._TAG_SIGNATURE).item(0);
+		Assertions.assertNotNull(sigElement);
+		Assertions.assertEquals("SPSSODescriptor", sigElement.getNextSibling().getLocalName());
+		XMLSignature signature = new XMLSignature(sigElement, "");
+		Assertions.assertTrue(signature.checkSignatureValue(credential.getCertificate()));
+		String xmlSpFirmato = OpenSAMLUtils.samlObjectToString(spEntityDescr);
+		Assertions.assertTrue(xmlSpFirmato.contains("SignatureValue"));
+	}
+	@Test
+	public void creaSpMetadataAggregatiBatch() throws Exception {
+		List<String> certs = credential.getBase64Certificates();
+		SamlOrganizationDto organization = TestFixtures.organization();
+		SamlOtherContactPerson informazioniSoggettoAggregatore = new SamlOtherContactPerson();
+		informazioniSoggettoAggregatore.setCompanyName("Company name");
+		informazioniSoggettoAggregatore.setSpPubblico(false);
+		informazioniSoggettoAggregatore.setIpaCode("ipa");
+		informazioniSoggettoAggregatore.setVatNumber("vat_number");
+		informazioniSoggettoAggregatore.setEmailAddress("spid@spid2.it");
+		SamlFpaCessionarioCommittente cessionarioCommittente = new SamlFpaCessionarioCommittente();
+		cessionarioCommittente.setCompany("Company name");
+		SamlFpaDatiAnagraficiConcessionario datiAnagrafici = new SamlFpaDatiAnagraficiConcessionario();
+		datiAnagrafici.setDenominazione("Denominazione datiAnagrafici");
+		SamlFpaFiscaleIva fiscaleIva = new SamlFpaFiscaleIva();
+		fiscaleIva.setIdCodice("id codice");
+		fiscaleIva.setIdPaese("IT");
+		datiAnagrafici.setFiscaleIva(fiscaleIva);
+		cessionarioCommittente.setDatiAnagrafici(datiAnagrafici);
+		cessionarioCommittente.setMail("email_aziendale@test.it");
+		SamlFpaSede sede = new SamlFpaSede();
+		sede.setCap("cap");
+		sede.setComune("comune");
+		sede.setIndrizzo("indirizzo");
+		sede.setNazione("IT");
+		sede.setNumeroCivico("civico");
+		sede.setProvincia("provincia");
+		cessionarioCommittente.setSede(sede);
+		SamlSoggettoAggregatoreDto aggregatore = new SamlSoggettoAggregatoreDto();
+		aggregatore.setWantAuthnRequestSigned(true);
+		aggregatore.setWantAssertionsSigned(true);
+		aggregatore.setSupportedProtocol("urn:oasis:names:tc:SAML:2.0:protocol");
+		aggregatore.setBase64SigningCertificate(certs);
+		aggregatore.setBase64EncryptionCertificate(certs);
+		aggregatore.setNameIds(Collections.singletonList(NameIDType.TRANSIENT));
+		aggregatore.setOrganization(organization);
+		aggregatore.setInformazioniSoggettoAggregatore(informazioniSoggettoAggregatore);
+		aggregatore.setCessionarioCommittente(cessionarioCommittente);
+		aggregatore.setAcss(AgidUtils.agidSpidEidasAttributes());
+		aggregatore.setEntePrivato(true);
+		List<SamlSoggettoAggregatoDto> aggregati = new ArrayList<SamlSoggettoAggregatoDto>();
+		for (int i = 0; i < 8; i++) {
+			SamlOtherContactPerson informazioniSoggettoAggregato = new SamlOtherContactPerson();
+			informazioniSoggettoAggregato.setIpaCode("aggr_"+i);
+			SamlSoggettoAggregatoDto aggregato = new SamlSoggettoAggregatoDto();
+			aggregato.setEntityId("https://entity-id-aggregatore/pri-ag-full/aggregato-"+i);
+			aggregato.setInformazioniSoggettoAggregato(informazioniSoggettoAggregato);
+			aggregato.setSingleLogoutService(Collections.singletonList(TestFixtures.binding(SamlBindingTypes.POST, "https://aggregato-"+i+"/logout")));
+			aggregato.setAssertionConsumerServices(Collections.singletonList(
+					TestFixtures.assertionConsumerService(0, true, TestFixtures.binding(SamlBindingTypes.POST, "https://aggregato-"+i+"/acs"))));
+			aggregati.add(aggregato);
+		}
+		//Soggetto aggregato senza assertion consumer service: deve fallire senza interrompere gli altri
+		SamlSoggettoAggregatoDto errato = new SamlSoggettoAggregatoDto();
+		errato.setEntityId("https://entity-id-aggregatore/pri-ag-full/errato");
+		errato.setInformazioniSoggettoAggregato(aggregati.get(0).getInformazioniSoggettoAggregato());
+		aggregati.add(3, errato);
+		SpSoggettoAggregatoreMetadataBuilder spBuilder = SpSoggettoAggregatoreMetadataBuilder.getInstance();
+		List<SamlMetadataBatchResult> results = spBuilder.buildSignedSpMetadata(aggregatore, aggregati, credential.getPrivateKey(), credential.getCertificate(), 4);
+		Assertions.assertEquals(aggregati.size(), results.size());
+		Assertions.assertFalse(results.get(3).isSuccess());
+		Assertions.assertNull(results.get(3).getSignedMetadata());
+		for (int i = 0; i < aggregati.size(); i++) {
+			SamlSoggettoAggregatoDto aggregato = aggregati.get(i);
+			SamlMetadataBatchResult batchResult = results.get(i);
+			Assertions.assertEquals(aggregato.getEntityId(), batchResult.getEntityId());
+			if( i == 3 ) {
+				continue;
+			}
+			Assertions.assertTrue(batchResult.isSuccess(), () -> String.valueOf(batchResult.getError()));
+			EntityDescriptor ed = spBuilder.buildSpMetadata(aggregato.getEntityId(), true, true, aggregatore.getSupportedProtocol(), certs, certs,
+					aggregato.getSingleLogoutService(), aggregatore.getNameIds(), aggregato.getAssertionConsumerServices(), organization,
+					informazioniSoggettoAggregatore, aggregato.getInformazioniSoggettoAggregato(), cessionarioCommittente, aggregatore.getAcss(), true);
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			spBuilder.signMetadata(ed, credential.getPrivateKey(), credential.getCertificate(), "", InsertBeforeElementEnum.SP_TAG, baos);
+			Assertions.assertEquals(senzaFirma(baos.toString(StandardCharsets.UTF_8)), senzaFirma(batchResult.getSignedMetadataAsString()));
+			Element sigElement = (Element) OpenSAMLUtils.fromInputStreamToSamlObject(new ByteArrayInputStream(batchResult.getSignedMetadata()), EntityDescriptor.class)
+					.getDOM().getElementsByTagNameNS(Constants.SignatureSpecNS, Constants._TAG_SIGNATURE).item(0);
+			Assertions.assertTrue(new XMLSignature(sigElement, "").checkSignatureValue(credential.getCertificate()));
+		}
+		Assertions.assertEquals(aggregati.size(), results.stream().map(SamlMetadataBatchResult::getEntityId).distinct().count());
+	}
+	@Test
+	public void creaSpMetadataDaTemplate() throws Exception {
+		List<String> certs = credential.getBase64Certificates();
+		SamlOrganizationDto organization = TestFixtures.organization();
+		SpMetadataBuilder spBuilder = SpMetadataBuilder.getInstance();
+		SpMetadataTemplate template = spBuilder.compileSpMetadata("https://sample-entity-id/", true, true, "urn:oasis:names:tc:SAML:2.0:protocol",
+				certs, certs, Collections.singletonList(singleLogout), Collections.singletonList(NameIDType.TRANSIENT), Collections.singletonList(acs),
+				organization, otherContactPerson, null, AgidUtils.agidSpidEidasAttributes());
+		DateTime validUntil = new DateTime(2030, 1, 1, 0, 0, DateTimeZone.UTC);
+		//Endpoint modificati rispetto al template
+		SamlBindingUtils newBu = TestFixtures.binding(SamlBindingTypes.REDIRECT, "https://new-single-logout-url");
+		newBu.setResponseLocation("https://new-single-logout-url/response-location");
+		List<SamlAssertionConsumerServiceUtil> acss = new ArrayList<SamlAssertionConsumerServiceUtil>();
+		acss.add(acs);
+		acss.add(TestFixtures.assertionConsumerService(1, false, newBu));
+		ByteArrayOutputStream renderizzato = new ByteArrayOutputStream();
+		template.renderSigned(validUntil, Collections.singletonList(newBu), acss, credential.getPrivateKey(), credential.getCertificate(), renderizzato);
+		EntityDescriptor ed = spBuilder.buildSpMetadata("https://sample-entity-id/", true, true, "urn:oasis:names:tc:SAML:2.0:protocol",
+				certs, certs, Collections.singletonList(newBu), Collections.singletonList(NameIDType.TRANSIENT), acss,
+				organization, otherContactPerson, null, AgidUtils.agidSpidEidasAttributes());
+		EntityDescriptor letto = OpenSAMLUtils.fromInputStreamToSamlObject(new ByteArrayInputStream(renderizzato.toByteArray()), EntityDescriptor.class);
+		Element sigElement = (Element) letto.getDOM().getElementsByTagNameNS(Constants.SignatureSpecNS, Constants._TAG_SIGNATURE).item(0);
+		Assertions.assertTrue(new XMLSignature(sigElement, "").checkSignatureValue(credential.getCertificate()));
+		//Senza firma il metadata renderizzato è la forma canonica di quello costruito con lo stesso ID e validUntil
+		ed.setID(letto.getID());
+		ed.setValidUntil(validUntil);
+		letto.getDOM().removeChild(sigElement);
+		Assertions.assertEquals(canonical(XMLObjectProviderRegistrySupport.getMarshallerFactory().getMarshaller(ed).marshall(ed)), canonical(letto.getDOM()));
+		//Ogni istanza ha un nuovo ID e, senza validUntil, l'attributo è assente
+		ByteArrayOutputStream senzaValidUntil = new ByteArrayOutputStream();
+		String id = template.render(null, senzaValidUntil);
+		Assertions.assertNotEquals(id, letto.getID());
+		Element root = OpenSAMLUtils.fromInputStreamToSamlObject(new ByteArrayInputStream(senzaValidUntil.toByteArray()), EntityDescriptor.class).getDOM();
+		Assertions.assertEquals(id, root.getAttribute("ID"));
+		Assertions.assertNull(root.getAttributeNode("validUntil"));
+	}
+	private static String canonical(Element element) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		Canonicalizer.getInstance(Canonicalizer.ALGO_ID_C14N_EXCL_OMIT_COMMENTS).canonicalizeSubtree(element, baos);
+		return baos.toString(StandardCharsets.UTF_8);
+	}
+	private static String senzaFirma(String metadata) {
+		return metadata.replaceAll("(?s)<ds:Signature .*</ds:Signature>", "").replaceAll("ID=\"[^\"]*\"", "ID=\"\"");
+	}
+}
@@ -0,0 +1,99 @@
+package it.agid.spid.saml.test;
+
+import java.util.Collections;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.opensaml.saml.common.SAMLVersion;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.NameIDType;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.core.Status;
+import org.opensaml.saml.saml2.core.StatusCode;
+import org.opensaml.saml.saml2.core.StatusMessage;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.security.x509.BasicX509Credential;
+
+import it.agid.spid.saml.core.dto.SamlAttributesConsumingServiceDto;
+import it.agid.spid.saml.core.dto.SpidValidationResult;
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SigningCredential;
+import it.agid.spid.saml.core.utils.SpidControlChecker;
+import it.agid.spid.saml.core.utils.SpidValidationContext;
+import it.agid.spid.saml.spid.exception.SpidCheckerException;
+import it.agid.spid.saml.spid.exception.SpidErrorCode;
+
+public class SpidErrorCodeTest {
+	private static final String ACS_URL = "https://assertion-consumer-binding-post";
+	private static final String IDP = "https://sample-idp-entity-id/";
+
+	@Test
+	public void messaggioDifferitoESenzaStackTrace() {
+		SpidCheckerException e = new SpidCheckerException(SpidErrorCode.RESPONSE_DESTINATION_MISMATCH, "_id", "https://a", "https://b");
+		Assertions.assertEquals("SAML Response ID _id destination [https://a] non coincidente con destination IDP censita [https://b] SAML Response non valida", e.getMessage());
+		Assertions.assertSame(e.getMessage(), e.getMessage());
+		Assertions.assertEquals(SpidErrorCode.ANOMALIA_CONSENSO_NEGATO, SpidErrorCode.fromAnomaliaUtente(22));
+		Assertions.assertNull(SpidErrorCode.fromAnomaliaUtente(99));
+		boolean enabled = SpidCheckerException.isStackTraceEnabled();
+		try {
+			SpidCheckerException.setStackTraceEnabled(false);
+			Assertions.assertEquals(0, new SpidCheckerException(SpidErrorCode.REPLAY_DETECTED, "_id").getStackTrace().length);
+		}finally {
+			SpidCheckerException.setStackTraceEnabled(enabled);
+		}
+	}
+	@Test
+	public void esitoConAnomaliaUtente() throws Exception {
+		OpenSAMLUtils.openSamlBootstrap();
+		SigningCredential idp = TestFixtures.signingCredential();
+		SamlAttributesConsumingServiceDto attributi = new SamlAttributesConsumingServiceDto();
+		attributi.setAttrs(Collections.emptyList());
+		SpidValidationContext context = SpidValidationContext.builder().credentials(Collections.singletonList(new BasicX509Credential(idp.getCertificate())))
+				.tolleranceTimeMillisecond(180000).idpDestinationUrl(ACS_URL).spidIdpEntityId(IDP)
+				.spitEnteAggregatoMetadata(OpenSAMLUtils.buildSAMLObject(EntityDescriptor.class)).attributiRichiesti(attributi).spLivelloAutenticazioneSpid(1).build();
+		Response response = OpenSAMLUtils.buildSAMLObject(Response.class);
+		response.setID(OpenSAMLUtils.generateSecureRandomId());
+		response.setVersion(SAMLVersion.VERSION_20);
+		response.setDestination(ACS_URL);
+		SpidValidationResult result = SpidControlChecker.checkSamlResponseSpidCompliance(response, context);
+		Assertions.assertFalse(result.isValid());
+		Assertions.assertEquals(SpidErrorCode.RESPONSE_ISSUER_MISSING, result.getErrorCode());
+
+		Issuer issuer = OpenSAMLUtils.buildSAMLObject(Issuer.class);
+		issuer.setValue(IDP);
+		issuer.setFormat(NameIDType.ENTITY);
+		response.setIssuer(issuer);
+		response.setStatus(authnFailed(" ErrorCode nr22 "));
+		//Response non firmata: l'anomalia utente non viene comunicata
+		result = SpidControlChecker.checkSamlResponseSpidCompliance(response, context);
+		Assertions.assertEquals(SpidErrorCode.RESPONSE_SIGNATURE_INVALID, result.getErrorCode());
+		Assertions.assertEquals(0, result.getAnomaliaUtente());
+
+		OpenSAMLUtils.signSamlObj(response, idp);
+		result = SpidControlChecker.checkSamlResponseSpidCompliance(response, context);
+		Assertions.assertEquals(SpidErrorCode.ANOMALIA_CONSENSO_NEGATO, result.getErrorCode());
+		Assertions.assertEquals(22, result.getAnomaliaUtente());
+		Assertions.assertTrue(result.getMessage().contains(response.getID()), result.getMessage());
+
+		//Codice non numerico: status non di successo, senza anomalia
+		response.setSignature(null);
+		response.releaseDOM();
+		response.setStatus(authnFailed("ErrorCode nrXYZ"));
+		result = SpidControlChecker.checkSamlResponseSpidCompliance(response, context);
+		Assertions.assertEquals(SpidErrorCode.RESPONSE_STATUS_NOT_SUCCESS, result.getErrorCode());
+		Assertions.assertEquals(0, result.getAnomaliaUtente());
+	}
+	private static Status authnFailed(String statusMessage) {
+		Status status = OpenSAMLUtils.buildSAMLObject(Status.class);
+		StatusCode responder = OpenSAMLUtils.buildSAMLObject(StatusCode.class);
+		responder.setValue(StatusCode.RESPONDER);
+		StatusCode authnFailed = OpenSAMLUtils.buildSAMLObject(StatusCode.class);
+		authnFailed.setValue(StatusCode.AUTHN_FAILED);
+		responder.setStatusCode(authnFailed);
+		status.setStatusCode(responder);
+		StatusMessage message = OpenSAMLUtils.buildSAMLObject(StatusMessage.class);
+		message.setMessage(statusMessage);
+		status.setStatusMessage(message);
+		return status;
+	}
+}
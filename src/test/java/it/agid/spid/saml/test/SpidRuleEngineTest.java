@@ -0,0 +1,108 @@
+package it.agid.spid.saml.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opensaml.saml.common.SAMLVersion;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.NameIDType;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.core.Status;
+import org.opensaml.saml.saml2.core.StatusCode;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+
+import it.agid.spid.saml.core.dto.SamlAttributeDto;
+import it.agid.spid.saml.core.dto.SamlAttributesConsumingServiceDto;
+import it.agid.spid.saml.core.dto.SpidRuleStatistics;
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SpidControlChecker;
+import it.agid.spid.saml.core.utils.SpidControlRule;
+import it.agid.spid.saml.core.utils.SpidResponseValidation;
+import it.agid.spid.saml.core.utils.SpidRuleEngine;
+import it.agid.spid.saml.core.utils.SpidValidationContext;
+import it.agid.spid.saml.spid.exception.SpidCheckerException;
+
+public class SpidRuleEngineTest {
+	private static final String IDP_ENTITY_ID = "https://sample-idp-entity-id/";
+	private static final String ACS_URL = "https://assertion-consumer-binding-post";
+
+	@BeforeEach
+	public void init() throws Exception {
+		OpenSAMLUtils.openSamlBootstrap();
+	}
+	private SpidResponseValidation validation(String destination) {
+		return validation(destination, SAMLVersion.VERSION_20);
+	}
+	private SpidResponseValidation validation(String destination, SAMLVersion version) {
+		Response response = OpenSAMLUtils.buildSAMLObject(Response.class);
+		response.setID(OpenSAMLUtils.generateSecureRandomId());
+		response.setVersion(version);
+		response.setIssueInstant(new DateTime());
+		response.setDestination(destination);
+		Issuer issuer = OpenSAMLUtils.buildSAMLObject(Issuer.class);
+		issuer.setFormat(NameIDType.ENTITY);
+		issuer.setValue(IDP_ENTITY_ID);
+		response.setIssuer(issuer);
+		Status status = OpenSAMLUtils.buildSAMLObject(Status.class);
+		StatusCode statusCode = OpenSAMLUtils.buildSAMLObject(StatusCode.class);
+		statusCode.setValue(StatusCode.SUCCESS);
+		status.setStatusCode(statusCode);
+		response.setStatus(status);
+		SamlAttributesConsumingServiceDto attributi = new SamlAttributesConsumingServiceDto();
+		attributi.setAttrs(Collections.emptyList());
+		return new SpidResponseValidation(response, Collections.emptyList(), 180000, ACS_URL, IDP_ENTITY_ID,
+				OpenSAMLUtils.buildSAMLObject(EntityDescriptor.class), attributi, null, 1, null);
+	}
+	@Test
+	public void regoleEconomichePrimaDellaFirma() throws Exception {
+		SpidRuleEngine engine = new SpidRuleEngine(Arrays.asList(SpidControlRule.values()));
+		Assertions.assertEquals(Arrays.asList("RESPONSE_ID", "RESPONSE_VERSION", "RESPONSE_DESTINATION", "RESPONSE_ISSUER", "RESPONSE_STATUS",
+				"RESPONSE_SIGNATURE", "ASSERTION_DECRYPTION", "RESPONSE_ISSUE_INSTANT", "ASSERTIONS", "ASSERTION_SIGNATURE", "IN_RESPONSE_TO", "REPLAY"), engine.getRuleNames());
+		//Response indirizzata ad un altro SP: scartata prima della verifica di firma
+		SpidCheckerException e = Assertions.assertThrows(SpidCheckerException.class, () -> engine.verify(validation("https://altro-sp/acs")));
+		Assertions.assertTrue(e.getMessage().contains("destination"));
+		Map<String, SpidRuleStatistics> statistics = engine.getStatistics();
+		Assertions.assertEquals(1, statistics.get("RESPONSE_DESTINATION").getFailures());
+		Assertions.assertEquals(0, statistics.get("RESPONSE_SIGNATURE").getExecutions());
+		//Regola disabilitata per l'IDP: il primo errore è la firma mancante
+		engine.disableRule(IDP_ENTITY_ID, "RESPONSE_VERSION");
+		Assertions.assertFalse(engine.isRuleEnabled(IDP_ENTITY_ID, "RESPONSE_VERSION"));
+		e = Assertions.assertThrows(SpidCheckerException.class, () -> engine.verify(validation(ACS_URL, SAMLVersion.VERSION_11)));
+		Assertions.assertEquals("Firma SAML Response non valida", e.getMessage());
+		statistics = engine.getStatistics();
+		Assertions.assertEquals(1, statistics.get("RESPONSE_VERSION").getExecutions());
+		Assertions.assertEquals(1, statistics.get("RESPONSE_SIGNATURE").getFailures());
+		engine.enableRule(IDP_ENTITY_ID, "RESPONSE_VERSION");
+		Assertions.assertTrue(engine.isRuleEnabled(IDP_ENTITY_ID, "RESPONSE_VERSION"));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> engine.disableRule(IDP_ENTITY_ID, "REGOLA_INESISTENTE"));
+		//Destinatario, emittente, esito, assertion, firme, decifratura e controlli con stato non possono essere disabilitati
+		for (String regola : Arrays.asList("RESPONSE_DESTINATION", "RESPONSE_ISSUER", "RESPONSE_STATUS", "ASSERTIONS", "RESPONSE_SIGNATURE", "ASSERTION_SIGNATURE",
+				"ASSERTION_DECRYPTION", "IN_RESPONSE_TO", "REPLAY")) {
+			Assertions.assertThrows(IllegalArgumentException.class, () -> engine.disableRule(IDP_ENTITY_ID, regola));
+			Assertions.assertTrue(engine.isRuleEnabled(IDP_ENTITY_ID, regola));
+		}
+	}
+	@Test
+	public void contestoDiValidazionePrecalcolato() throws Exception {
+		EntityDescriptor sp = OpenSAMLUtils.buildSAMLObject(EntityDescriptor.class);
+		sp.setEntityID("https://sample-entity-id/");
+		SamlAttributesConsumingServiceDto attributi = new SamlAttributesConsumingServiceDto();
+		attributi.setAttrs(Arrays.asList(new SamlAttributeDto("Nome", "name"), new SamlAttributeDto("Cognome", "familyName")));
+		SpidValidationContext context = SpidValidationContext.builder().credentials(Collections.emptyList()).tolleranceTimeMillisecond(180000)
+				.idpDestinationUrl(ACS_URL).spidIdpEntityId(IDP_ENTITY_ID).spitEnteAggregatoMetadata(sp).attributiRichiesti(attributi)
+				.spLivelloAutenticazioneSpid(2).build();
+		Assertions.assertThrows(IllegalStateException.class, () -> SpidValidationContext.builder().idpDestinationUrl(ACS_URL).build());
+		Assertions.assertEquals("https://sample-entity-id/", context.getSpEntityId());
+		Assertions.assertEquals(Arrays.asList("name", "familyName"), new ArrayList<>(context.getNomiAttributiRichiesti()));
+		Assertions.assertEquals(Integer.valueOf(2), SpidValidationContext.spidLevel(SpidControlChecker.BASE_SPID_AUTHN_CONTEXT_CLAS_REF+"2"));
+		Assertions.assertNull(SpidValidationContext.spidLevel(SpidControlChecker.BASE_SPID_AUTHN_CONTEXT_CLAS_REF+"4"));
+		Assertions.assertNull(context.getAssertionDecrypter());
+		Assertions.assertThrows(UnsupportedOperationException.class, () -> context.getNomiAttributiRichiesti().add("email"));
+	}
+}
@@ -0,0 +1,84 @@
+package it.agid.spid.saml.test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+
+import org.apache.xml.security.signature.XMLSignature;
+import org.apache.xml.security.utils.Constants;
+import org.joda.time.DateTime;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opensaml.saml.saml2.core.NameIDType;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.security.x509.BasicX509Credential;
+import org.w3c.dom.Element;
+
+import it.agid.spid.saml.core.MetadataStreamSerializer;
+import it.agid.spid.saml.core.dto.SamlAssertionConsumerServiceUtil;
+import it.agid.spid.saml.core.dto.SamlBindingUtils;
+import it.agid.spid.saml.core.dto.SamlOrganizationDto;
+import it.agid.spid.saml.core.dto.SamlOtherContactPerson;
+import it.agid.spid.saml.core.utils.InsertBeforeElementEnum;
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SamlBindingTypes;
+import it.agid.spid.saml.core.utils.SigningCredential;
+import it.agid.spid.saml.core.utils.StreamingXmlSigner;
+import it.agid.spid.saml.spid.utils.AgidUtils;
+
+public class StreamingSignatureTest {
+	private SigningCredential credential;
+	private StreamingXmlSigner signer;
+	private SamlBindingUtils binding;
+
+	@BeforeEach
+	public void init() throws Exception {
+		OpenSAMLUtils.openSamlBootstrap();
+		credential = TestFixtures.signingCredential();
+		signer = new StreamingXmlSigner(credential);
+		binding = new SamlBindingUtils();
+		binding.setBindingType(SamlBindingTypes.POST);
+		binding.setLocation("https://sample/binding-post");
+	}
+	private byte[] spFirmato(String id, InsertBeforeElementEnum inserBefore) throws Exception {
+		SamlAssertionConsumerServiceUtil acs = new SamlAssertionConsumerServiceUtil();
+		acs.setDefaultElement(true);
+		acs.setIndex(0);
+		acs.setSamlBinding(binding);
+		SamlOrganizationDto organization = new SamlOrganizationDto();
+		organization.setOrganizationDisplayName("Organization Display Name");
+		organization.setOrganizationName("Organization Name");
+		organization.setOrganizationUrl("https://organization-url/");
+		SamlOtherContactPerson otherContactPerson = new SamlOtherContactPerson();
+		otherContactPerson.setSpPubblico(true);
+		otherContactPerson.setIpaCode("ipa");
+		otherContactPerson.setEmailAddress("mail@test.it");
+		return signer.writeSigned(id, inserBefore, writer -> MetadataStreamSerializer.getInstance().writeSpMetadata(writer, id, "https://sample-entity-id/",
+				true, true, "urn:oasis:names:tc:SAML:2.0:protocol", credential.getBase64Certificates(), credential.getBase64Certificates(),
+				Collections.singletonList(binding), Collections.singletonList(NameIDType.TRANSIENT), Collections.singletonList(acs), organization,
+				otherContactPerson, null, AgidUtils.agidSpidEidasAttributes()));
+	}
+	private void verificaFirma(byte[] metadata, String nextElementName) throws Exception {
+		EntityDescriptor ed = OpenSAMLUtils.fromInputStreamToSamlObject(new ByteArrayInputStream(metadata), EntityDescriptor.class);
+		Element sigElement = (Element) ed.getDOM().getElementsByTagNameNS(Constants.SignatureSpecNS, Constants._TAG_SIGNATURE).item(0);
+		Assertions.assertNotNull(sigElement);
+		Assertions.assertEquals(nextElementName, sigElement.getNextSibling().getLocalName());
+		Assertions.assertTrue(new XMLSignature(sigElement, "").checkSignatureValue(credential.getCertificate()));
+		Assertions.assertTrue(OpenSAMLUtils.isSignatureValid(ed.getSignature(), Collections.singletonList(new BasicX509Credential(credential.getCertificate()))));
+	}
+	@Test
+	public void firmaSpInUnaSolaPassata() throws Exception {
+		String id = OpenSAMLUtils.generateSecureRandomId();
+		verificaFirma(spFirmato(id, InsertBeforeElementEnum.SP_TAG), "SPSSODescriptor");
+		//Elemento di inserimento assente: la firma non può essere posizionata
+		Assertions.assertThrows(IllegalStateException.class, () -> spFirmato(id, InsertBeforeElementEnum.IDP_TAG));
+	}
+	@Test
+	public void firmaIdpInUnaSolaPassata() throws Exception {
+		String id = OpenSAMLUtils.generateSecureRandomId();
+		byte[] metadata = signer.writeSigned(id, InsertBeforeElementEnum.IDP_TAG, writer -> MetadataStreamSerializer.getInstance().writeIdpMetadata(writer, id,
+				"https://sample-idp/", new DateTime().plusYears(1), Boolean.TRUE, "urn:oasis:names:tc:SAML:2.0:protocol", credential.getBase64Certificates(),
+				null, Collections.singletonList(NameIDType.TRANSIENT), Collections.singletonList(binding), null));
+		verificaFirma(metadata, "IDPSSODescriptor");
+	}
+}
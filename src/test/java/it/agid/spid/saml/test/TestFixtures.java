@@ -0,0 +1,108 @@
+package it.agid.spid.saml.test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml.saml2.metadata.KeyDescriptor;
+import org.opensaml.saml.saml2.metadata.Organization;
+import org.opensaml.saml.saml2.metadata.OrganizationName;
+import org.opensaml.security.credential.UsageType;
+import org.opensaml.xmlsec.signature.KeyInfo;
+import org.opensaml.xmlsec.signature.X509Certificate;
+import org.opensaml.xmlsec.signature.X509Data;
+
+import it.agid.spid.saml.core.dto.SamlAssertionConsumerServiceUtil;
+import it.agid.spid.saml.core.dto.SamlBindingUtils;
+import it.agid.spid.saml.core.dto.SamlOrganizationDto;
+import it.agid.spid.saml.core.utils.OpenSAMLUtils;
+import it.agid.spid.saml.core.utils.SamlBindingTypes;
+import it.agid.spid.saml.core.utils.SigningCredential;
+import it.agid.spid.saml.core.utils.SigningCredentialRegistry;
+
+/**
+ * Dati di prova condivisi dai test: il keystore di esempio, i DTO ricorrenti dei metadata SP e gli EntityDescriptor di IDP firmati con il suo certificato
+ */
+final class TestFixtures {
+	static final Path KEYSTORE = Paths.get("certificate/esempio.pfx");
+	static final String KEYSTORE_TYPE = "PKCS12";
+	static final String KEYSTORE_PASSWORD = "esempio.certificato";
+
+	private TestFixtures() {
+	}
+	/**
+	 * @return -la {@link SigningCredential} del keystore di esempio
+	 * @throws Exception -sollevata in caso di errore nella lettura del keystore
+	 */
+	static SigningCredential signingCredential() throws Exception {
+		return SigningCredentialRegistry.loadFromKeyStore(KEYSTORE, KEYSTORE_TYPE, KEYSTORE_PASSWORD.toCharArray(), null);
+	}
+	/**
+	 * Costruisce l'EntityDescriptor di un IDP con il certificato di firma della credenziale e un nome di organizzazione
+	 * con caratteri da sottoporre ad escape
+	 * @param entityId -l'entityID dell'IDP
+	 * @param credential -la {@link SigningCredential} il cui certificato viene pubblicato come chiave di firma
+	 * @return -l'{@link EntityDescriptor} non firmato
+	 */
+	static EntityDescriptor idp(String entityId, SigningCredential credential) {
+		EntityDescriptor entity = OpenSAMLUtils.buildSAMLObject(EntityDescriptor.class);
+		entity.setID(OpenSAMLUtils.generateSecureRandomId());
+		entity.setEntityID(entityId);
+		IDPSSODescriptor idpDescriptor = OpenSAMLUtils.buildSAMLObject(IDPSSODescriptor.class);
+		idpDescriptor.addSupportedProtocol(SAMLConstants.SAML20P_NS);
+		KeyDescriptor keyDescriptor = OpenSAMLUtils.buildSAMLObject(KeyDescriptor.class);
+		keyDescriptor.setUse(UsageType.SIGNING);
+		KeyInfo keyInfo = OpenSAMLUtils.buildSAMLObject(KeyInfo.class);
+		X509Data x509Data = OpenSAMLUtils.buildSAMLObject(X509Data.class);
+		X509Certificate x509Certificate = OpenSAMLUtils.buildSAMLObject(X509Certificate.class);
+		x509Certificate.setValue(credential.getBase64Certificates().get(0));
+		x509Data.getX509Certificates().add(x509Certificate);
+		keyInfo.getX509Datas().add(x509Data);
+		keyDescriptor.setKeyInfo(keyInfo);
+		idpDescriptor.getKeyDescriptors().add(keyDescriptor);
+		entity.getRoleDescriptors().add(idpDescriptor);
+		Organization organization = OpenSAMLUtils.buildSAMLObject(Organization.class);
+		OrganizationName organizationName = OpenSAMLUtils.buildSAMLObject(OrganizationName.class);
+		organizationName.setXMLLang("it");
+		organizationName.setValue("Ente \"di prova\" & <associati>");
+		organization.getOrganizationNames().add(organizationName);
+		entity.setOrganization(organization);
+		return entity;
+	}
+	/**
+	 * @param bindingType -il tipo di binding
+	 * @param location -la location del binding
+	 * @return -il {@link SamlBindingUtils}
+	 */
+	static SamlBindingUtils binding(SamlBindingTypes bindingType, String location) {
+		SamlBindingUtils binding = new SamlBindingUtils();
+		binding.setBindingType(bindingType);
+		binding.setLocation(location);
+		return binding;
+	}
+	/**
+	 * @param index -l'indice dell'AssertionConsumerService
+	 * @param defaultElement -true se è l'AssertionConsumerService di default
+	 * @param binding -il {@link SamlBindingUtils} dell'AssertionConsumerService
+	 * @return -il {@link SamlAssertionConsumerServiceUtil}
+	 */
+	static SamlAssertionConsumerServiceUtil assertionConsumerService(int index, boolean defaultElement, SamlBindingUtils binding) {
+		SamlAssertionConsumerServiceUtil acs = new SamlAssertionConsumerServiceUtil();
+		acs.setDefaultElement(defaultElement);
+		acs.setIndex(index);
+		acs.setSamlBinding(binding);
+		return acs;
+	}
+	/**
+	 * @return -l'organizzazione di esempio dei metadata SP
+	 */
+	static SamlOrganizationDto organization() {
+		SamlOrganizationDto organization = new SamlOrganizationDto();
+		organization.setOrganizationDisplayName("Organization Display Name");
+		organization.setOrganizationName("Organization Name");
+		organization.setOrganizationUrl("https://organization-url/");
+		return organization;
+	}
+}
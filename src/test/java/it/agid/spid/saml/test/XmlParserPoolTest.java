@@ -0,0 +1,58 @@
+package it.agid.spid.saml.test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.Transformer;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+
+import it.agid.spid.saml.core.utils.XmlParserPool;
+
+public class XmlParserPoolTest {
+	private static final String XML = "<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" entityID=\"https://sp/\"/>";
+
+	@Test
+	public void riusoDelleIstanzeEContatori() throws Exception {
+		XmlParserPool pool = new XmlParserPool(1);
+		Document document = pool.parse(new ByteArrayInputStream(XML.getBytes(StandardCharsets.UTF_8)));
+		Assertions.assertEquals("urn:oasis:names:tc:SAML:2.0:metadata", document.getDocumentElement().getNamespaceURI());
+		Assertions.assertEquals(0, pool.getDocumentBuilderHits());
+		Assertions.assertEquals(1, pool.getDocumentBuilderMisses());
+		Assertions.assertEquals(1, pool.getIdleDocumentBuilders());
+		pool.newDocument();
+		Assertions.assertEquals(1, pool.getDocumentBuilderHits());
+		Assertions.assertEquals(1, pool.getDocumentBuilderMisses());
+
+		//Pool pieno: la seconda istanza restituita viene scartata
+		DocumentBuilder primo = pool.borrowDocumentBuilder();
+		DocumentBuilder secondo = pool.borrowDocumentBuilder();
+		Assertions.assertNotSame(primo, secondo);
+		Assertions.assertEquals(2, pool.getDocumentBuilderMisses());
+		pool.returnDocumentBuilder(primo);
+		pool.returnDocumentBuilder(secondo);
+		pool.returnDocumentBuilder(null);
+		Assertions.assertEquals(1, pool.getIdleDocumentBuilders());
+		Assertions.assertSame(primo, pool.borrowDocumentBuilder());
+
+		Assertions.assertTrue(pool.toString(document).contains("entityID=\"https://sp/\""));
+		Transformer transformer = pool.borrowTransformer();
+		Assertions.assertEquals(1, pool.getTransformerHits());
+		Assertions.assertEquals(1, pool.getTransformerMisses());
+		pool.returnTransformer(transformer);
+		Assertions.assertEquals(1, pool.getIdleTransformers());
+	}
+	@Test
+	public void configurazioneSicura() {
+		Assertions.assertThrows(IllegalArgumentException.class, () -> new XmlParserPool(0));
+		Assertions.assertSame(XmlParserPool.getInstance(), XmlParserPool.getInstance());
+		String doctype = "<!DOCTYPE foo [<!ENTITY xxe SYSTEM \"file:///etc/passwd\">]><foo>&xxe;</foo>";
+		XmlParserPool pool = new XmlParserPool(1);
+		Assertions.assertThrows(Exception.class, () -> pool.parse(new ByteArrayInputStream(doctype.getBytes(StandardCharsets.UTF_8))));
+		//Il parser che ha sollevato l'errore torna comunque nel pool
+		Assertions.assertEquals(1, pool.getIdleDocumentBuilders());
+	}
+}